@@ -16,6 +16,9 @@
 
 package com.peyrona.commons;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -27,6 +30,18 @@ import java.util.Set;
  * Simple class to create a map of params ({key,value} pairs), serialize and
  * deserialize them. It is useful when JSON can not be used (memory and or speed).
  * <p>
+ * Besides the text format (::serialize() and ::deserialize(...)), there is a
+ * compact binary one (::encode(...) and ::decode(...)), which is smaller and
+ * much cheaper to parse:
+ * <pre>
+ *    marker (1) version (1) count (varint)
+ *    key length (varint) key (UTF-8) tag (1) value      &lt;-- once per param
+ * </pre>
+ * Values that are integer numbers are sent as zig-zag varints, booleans and
+ * null as just their tag, long decimal numbers as 8 bytes and the rest as
+ * UTF-8 (preceded by their length). As values are kept as text, a number is
+ * sent as binary only when converting it back produces the same text.
+ * <p>
  * Note: key is case insensitive (ignores case) and only basic types plus String
  * and Date are accepted.
  *
@@ -34,6 +49,16 @@ import java.util.Set;
  */
 public final class ParamMap
 {
+    // Binary format (see ::encode(...))
+    private static final byte ENCODED = (byte) 0xB1;     // Can not be the first byte of the text format (it is not valid UTF-8 there)
+    private static final byte VERSION = 1;
+    private static final byte NULL    = 0;
+    private static final byte TRUE    = 1;
+    private static final byte FALSE   = 2;
+    private static final byte LONG    = 3;
+    private static final byte DOUBLE  = 4;
+    private static final byte STRING  = 5;
+
     private final Map<String,String> map = Collections.synchronizedMap( new HashMap<String,String>() );
 
     //----------------------------------------------------------------------------//
@@ -78,6 +103,188 @@ public final class ParamMap
         return ret;
     }
 
+    /**
+     * Returns the number of bytes ::encode(...) needs for current contents.
+     *
+     * @return The number of bytes ::encode(...) needs.
+     */
+    public int getEncodedSize()
+    {
+        synchronized( map )
+        {
+            int size = 2 + varIntSize( map.size() );
+
+            for( Map.Entry<String,String> entry : map.entrySet() )
+            {
+                int nKey = utf8Length( entry.getKey() );
+
+                size += varIntSize( nKey ) + nKey + 1 + valueSize( entry.getValue() );
+            }
+
+            return size;
+        }
+    }
+
+    /**
+     * Writes this map (binary format) into passed buffer (from its position).
+     *
+     * @param out Where to write.
+     * @throws java.nio.BufferOverflowException If there is not enough room
+     *         (see ::getEncodedSize()): the buffer position is undefined.
+     */
+    public void encode( ByteBuffer out )
+    {
+        synchronized( map )
+        {
+            out.put( ENCODED ).put( VERSION );
+            putVarInt( out, map.size() );
+
+            for( Map.Entry<String,String> entry : map.entrySet() )
+            {
+                String key   = entry.getKey();
+                String value = entry.getValue();
+
+                putVarInt( out, utf8Length( key ) );
+                putUtf8( out, key );
+
+                switch( typeOf( value ) )
+                {
+                    case NULL  : out.put( NULL  ); break;
+                    case TRUE  : out.put( TRUE  ); break;
+                    case FALSE : out.put( FALSE ); break;
+                    case LONG  : out.put( LONG  );
+                                 putVarLong( out, Long.parseLong( value ) );
+                                 break;
+                    case DOUBLE: out.put( DOUBLE );
+                                 out.putDouble( Double.parseDouble( value ) );
+                                 break;
+                    default    : out.put( STRING );
+                                 putVarInt( out, utf8Length( value ) );
+                                 putUtf8( out, value );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if passed buffer (from its position) starts as a binary
+     * encoded ParamMap (::encode(...)) of a supported version.
+     *
+     * @param in The bytes to check (the position is not changed).
+     * @return true if passed buffer starts as a binary encoded ParamMap.
+     */
+    public static boolean isEncoded( ByteBuffer in )
+    {
+        return (in.remaining() >= 2) && (in.get( in.position() ) == ENCODED) && (in.get( in.position() + 1 ) == VERSION);
+    }
+
+    /**
+     * Reads a map written by ::encode(...) (from the buffer position, which
+     * is left after the map).
+     *
+     * @param in Where to read from.
+     * @return The map.
+     * @throws IllegalArgumentException If the bytes are not a valid map.
+     */
+    @SuppressWarnings("AccessingNonPublicFieldOfAnotherObject")
+    public static ParamMap decode( ByteBuffer in )
+    {
+        if( ! isEncoded( in ) )
+        {
+            throw new IllegalArgumentException( "Not an encoded ParamMap (or unsupported version)" );
+        }
+
+        ParamMap ret = new ParamMap();
+
+        try
+        {
+            ByteBuffer bb = in;
+
+            if( ! in.hasArray() )       // One copy instead of one byte[] per String
+            {
+                byte[] ab = new byte[ in.remaining() ];
+
+                in.duplicate().get( ab );
+                bb = ByteBuffer.wrap( ab );
+            }
+
+            int nStart = bb.position();
+
+            bb.position( nStart + 2 );
+
+            for( int n = getLength( bb ); n > 0; n-- )
+            {
+                String key = getUtf8( bb, getLength( bb ) );
+
+                ret.map.put( key, getValue( bb ) );
+            }
+
+            if( bb != in )
+            {
+                in.position( in.position() + bb.position() - nStart );
+            }
+        }
+        catch( BufferUnderflowException bue )
+        {
+            throw new IllegalArgumentException( "Invalid encoded ParamMap: truncated" );
+        }
+
+        return ret;
+    }
+
+    /**
+     * Reads one parameter from a map written by ::encode(...) without
+     * decoding the rest of it.
+     *
+     * @param in The encoded map (from its position; the position is not changed).
+     * @param paramName Parameter name.
+     * @return Its value or null if it does not exist.
+     * @throws IllegalArgumentException If the bytes are not a valid map.
+     */
+    public static String decodeValue( ByteBuffer in, String paramName )
+    {
+        ByteBuffer bb = in.duplicate();
+
+        return (seek( bb, paramName.trim().toLowerCase() ) ? getValue( bb ) : null);
+    }
+
+    /**
+     * Same as ::decodeValue(...) but for numbers: nothing is created when the
+     * value was sent as a number.
+     *
+     * @param in The encoded map (from its position; it is used as it is and
+     *           restored before returning).
+     * @param paramName Parameter name.
+     * @param defaultValue Returned when the parameter does not exist.
+     * @return Its value or defaultValue if it does not exist.
+     * @throws IllegalArgumentException If the bytes are not a valid map.
+     * @throws NumberFormatException If the value is not a number.
+     */
+    public static long decodeLong( ByteBuffer in, String paramName, long defaultValue )
+    {
+        int nPos = in.position();
+
+        try
+        {
+            if( ! seek( in, paramName.trim().toLowerCase() ) )
+            {
+                return defaultValue;
+            }
+
+            if( in.get( in.position() ) == LONG )
+            {
+                in.get();
+                return getVarLong( in );
+            }
+
+            return Long.parseLong( getValue( in ) );
+        }
+        finally
+        {
+            in.position( nPos );
+        }
+    }
+
     //----------------------------------------------------------------------------//
 
     public boolean isEmpty()
@@ -359,6 +566,399 @@ public final class ParamMap
         return getClass().getSimpleName() + map.toString();
     }
 
+    //----------------------------------------------------------------------------//
+    // BINARY FORMAT
+
+    /**
+     * Returns the tag to be used for passed value: numbers are only sent as
+     * binary when they are converted back to the very same text.
+     */
+    private static byte typeOf( String value )
+    {
+        switch( value )
+        {
+            case "null" : return NULL;
+            case "true" : return TRUE;
+            case "false": return FALSE;
+        }
+
+        if( isCanonicalLong( value ) )
+        {
+            return LONG;
+        }
+
+        if( value.length() > 8 && value.indexOf( '.' ) > 0 )    // Only worth it if 8 bytes are less than the text
+        {
+            try
+            {
+                if( Double.toString( Double.parseDouble( value ) ).equals( value ) )
+                {
+                    return DOUBLE;
+                }
+            }
+            catch( NumberFormatException nfe )
+            {
+                // It is a String
+            }
+        }
+
+        return STRING;
+    }
+
+    private static boolean isCanonicalLong( String s )
+    {
+        int len   = s.length();
+        int start = ((len > 0 && s.charAt( 0 ) == '-') ? 1 : 0);
+
+        if( (len == start) || (len - start > 19) || ((s.charAt( start ) == '0') && (len > 1)) )    // Empty, too long, "-0" or leading zeros
+        {
+            return false;
+        }
+
+        for( int n = start; n < len; n++ )
+        {
+            char c = s.charAt( n );
+
+            if( c < '0' || c > '9' )
+            {
+                return false;
+            }
+        }
+
+        if( len - start < 19 )
+        {
+            return true;
+        }
+
+        try
+        {
+            Long.parseLong( s );      // 19 digits can overflow
+            return true;
+        }
+        catch( NumberFormatException nfe )
+        {
+            return false;
+        }
+    }
+
+    private static int valueSize( String value )
+    {
+        switch( typeOf( value ) )
+        {
+            case NULL  :
+            case TRUE  :
+            case FALSE : return 0;
+            case LONG  : return varLongSize( Long.parseLong( value ) );
+            case DOUBLE: return 8;
+            default    : int len = utf8Length( value );
+                         return varIntSize( len ) + len;
+        }
+    }
+
+    /**
+     * Reads a tag and its value.
+     */
+    private static String getValue( ByteBuffer in )
+    {
+        byte tag = in.get();
+
+        switch( tag )
+        {
+            case NULL  : return "null";
+            case TRUE  : return "true";
+            case FALSE : return "false";
+            case LONG  : return Long.toString( getVarLong( in ) );
+            case DOUBLE: return Double.toString( in.getDouble() );
+            case STRING: return getUtf8( in, getLength( in ) );
+            default    : throw new IllegalArgumentException( "Invalid encoded ParamMap: unknown tag "+ tag );
+        }
+    }
+
+    /**
+     * Moves the buffer position to the tag of passed param.
+     *
+     * @return false if it does not exist.
+     */
+    private static boolean seek( ByteBuffer in, String key )
+    {
+        if( ! isEncoded( in ) )
+        {
+            throw new IllegalArgumentException( "Not an encoded ParamMap (or unsupported version)" );
+        }
+
+        try
+        {
+            in.position( in.position() + 2 );
+
+            for( int n = getLength( in ); n > 0; n-- )
+            {
+                int len = getLength( in );
+
+                if( equalsUtf8( in, len, key ) )
+                {
+                    in.position( in.position() + len );
+                    return true;
+                }
+
+                in.position( in.position() + len );
+                skipValue( in );
+            }
+
+            return false;
+        }
+        catch( BufferUnderflowException bue )
+        {
+            throw new IllegalArgumentException( "Invalid encoded ParamMap: truncated" );
+        }
+    }
+
+    private static void skipValue( ByteBuffer in )
+    {
+        byte tag = in.get();
+
+        switch( tag )
+        {
+            case NULL  :
+            case TRUE  :
+            case FALSE : break;
+            case LONG  : getVarLong( in );                                  break;
+            case DOUBLE: in.position( in.position() + 8 );                  break;
+            case STRING: int len = getLength( in );
+                         in.position( in.position() + len );                break;
+            default    : throw new IllegalArgumentException( "Invalid encoded ParamMap: unknown tag "+ tag );
+        }
+    }
+
+    /**
+     * Compares (without creating a String) next len bytes with passed key.
+     */
+    private static boolean equalsUtf8( ByteBuffer in, int len, String key )
+    {
+        if( len != utf8Length( key ) )
+        {
+            return false;
+        }
+
+        int nPos = in.position();
+
+        for( int n = 0; n < key.length(); n++ )
+        {
+            char c = key.charAt( n );
+
+            if( c >= 0x80 )     // Not ASCII: compared the slow way
+            {
+                return getUtf8( in.duplicate(), len ).equals( key );
+            }
+
+            if( in.get( nPos + n ) != c )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String getUtf8( ByteBuffer in, int len )
+    {
+        String s;
+
+        if( in.hasArray() )
+        {
+            s = new String( in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8 );
+            in.position( in.position() + len );
+        }
+        else
+        {
+            byte[] ab = new byte[ len ];
+            in.get( ab );
+            s = new String( ab, StandardCharsets.UTF_8 );
+        }
+
+        return s;
+    }
+
+    /**
+     * Writes passed String as UTF-8 (no byte[] is created). Unpaired
+     * surrogates are written as '?' (same as String::getBytes(...)).
+     */
+    private static void putUtf8( ByteBuffer out, String s )
+    {
+        for( int n = 0; n < s.length(); n++ )
+        {
+            char c = s.charAt( n );
+
+            if( c < 0x80 )
+            {
+                out.put( (byte) c );
+            }
+            else if( c < 0x800 )
+            {
+                out.put( (byte) (0xC0 | (c >> 6)) )
+                   .put( (byte) (0x80 | (c & 0x3F)) );
+            }
+            else if( Character.isSurrogate( c ) )
+            {
+                if( Character.isHighSurrogate( c ) && (n + 1 < s.length()) && Character.isLowSurrogate( s.charAt( n + 1 ) ) )
+                {
+                    int cp = Character.toCodePoint( c, s.charAt( ++n ) );
+
+                    out.put( (byte) (0xF0 | (cp >> 18)) )
+                       .put( (byte) (0x80 | ((cp >> 12) & 0x3F)) )
+                       .put( (byte) (0x80 | ((cp >> 6) & 0x3F)) )
+                       .put( (byte) (0x80 | (cp & 0x3F)) );
+                }
+                else
+                {
+                    out.put( (byte) '?' );
+                }
+            }
+            else
+            {
+                out.put( (byte) (0xE0 | (c >> 12)) )
+                   .put( (byte) (0x80 | ((c >> 6) & 0x3F)) )
+                   .put( (byte) (0x80 | (c & 0x3F)) );
+            }
+        }
+    }
+
+    private static int utf8Length( String s )
+    {
+        int len = 0;
+
+        for( int n = 0; n < s.length(); n++ )
+        {
+            char c = s.charAt( n );
+
+            if( c < 0x80 )
+            {
+                len++;
+            }
+            else if( c < 0x800 )
+            {
+                len += 2;
+            }
+            else if( Character.isSurrogate( c ) )
+            {
+                if( Character.isHighSurrogate( c ) && (n + 1 < s.length()) && Character.isLowSurrogate( s.charAt( n + 1 ) ) )
+                {
+                    len += 4;
+                    n++;
+                }
+                else
+                {
+                    len++;      // '?'
+                }
+            }
+            else
+            {
+                len += 3;
+            }
+        }
+
+        return len;
+    }
+
+    private static void putVarInt( ByteBuffer out, int value )
+    {
+        while( (value & ~0x7F) != 0 )
+        {
+            out.put( (byte) ((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+
+        out.put( (byte) value );
+    }
+
+    private static int varIntSize( int value )
+    {
+        int size = 1;
+
+        while( (value & ~0x7F) != 0 )
+        {
+            size++;
+            value >>>= 7;
+        }
+
+        return size;
+    }
+
+    /**
+     * Reads a length (a non negative varint) that must fit in the buffer.
+     */
+    private static int getLength( ByteBuffer in )
+    {
+        int value = 0;
+
+        for( int shift = 0; shift < 35; shift += 7 )
+        {
+            byte b = in.get();
+
+            value |= (b & 0x7F) << shift;
+
+            if( (b & 0x80) == 0 )
+            {
+                if( (value < 0) || (value > in.remaining()) )
+                {
+                    throw new IllegalArgumentException( "Invalid encoded ParamMap: length "+ value );
+                }
+
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException( "Invalid encoded ParamMap: bad varint" );
+    }
+
+    /**
+     * Writes passed value as a zig-zag varint.
+     */
+    private static void putVarLong( ByteBuffer out, long value )
+    {
+        long v = (value << 1) ^ (value >> 63);
+
+        while( (v & ~0x7FL) != 0 )
+        {
+            out.put( (byte) ((v & 0x7F) | 0x80) );
+            v >>>= 7;
+        }
+
+        out.put( (byte) v );
+    }
+
+    private static int varLongSize( long value )
+    {
+        long v    = (value << 1) ^ (value >> 63);
+        int  size = 1;
+
+        while( (v & ~0x7FL) != 0 )
+        {
+            size++;
+            v >>>= 7;
+        }
+
+        return size;
+    }
+
+    private static long getVarLong( ByteBuffer in )
+    {
+        long value = 0;
+
+        for( int shift = 0; shift < 70; shift += 7 )
+        {
+            byte b = in.get();
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if( (b & 0x80) == 0 )
+            {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+
+        throw new IllegalArgumentException( "Invalid encoded ParamMap: bad varint" );
+    }
+
     //----------------------------------------------------------------------------//
 
     private String getStr4Param( String paramName )
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between reconnection attempts using "decorrelated jitter":
+ * <pre>
+ *    next = min( cap, random( base, previous * 3 ) )
+ * </pre>
+ * Delays grow (on average) exponentially until the cap, but every client
+ * picks a different random value, so thousands of clients that lost their
+ * server at the same time do not reconnect in lockstep when it comes back.
+ * <p>
+ * This class is not thread safe: every reconnecting thread (or loop) has to
+ * use its own instance.
+ *
+ * @author peyrona
+ */
+public final class Backoff
+{
+    private final long nBase;
+    private final long nCap;
+    private       long nLast;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance with delays from 8 millis up to 65 seconds.
+     */
+    public Backoff()
+    {
+        this( 8, 0xFFFF );
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param nBaseMillis Min delay.
+     * @param nCapMillis  Max delay.
+     */
+    public Backoff( long nBaseMillis, long nCapMillis )
+    {
+        this.nBase = Math.max( 1, nBaseMillis );
+        this.nCap  = Math.max( nBase, nCapMillis );
+        this.nLast = nBase;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the delay (in millis) to wait before next attempt.
+     *
+     * @return The delay to wait before next attempt.
+     */
+    public long next()
+    {
+        long nUpper = Math.min( nCap, nLast * 3 );
+
+        nLast = ((nUpper <= nBase) ? nBase : ThreadLocalRandom.current().nextLong( nBase, nUpper + 1 ));
+
+        return nLast;
+    }
+
+    /**
+     * Has to be invoked after a successful attempt.
+     */
+    public void reset()
+    {
+        nLast = nBase;
+    }
+}
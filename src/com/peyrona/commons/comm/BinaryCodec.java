@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.ParamMap;
+import com.peyrona.commons.db.dao.BaseDTO;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary MessageCodec.
+ * <p>
+ * Every value is written as a one byte type tag followed by its data:
+ * integers (int, long, short and Date) use zig-zag variable length encoding
+ * (small values need 1 or 2 bytes), floating point numbers use their IEEE 754
+ * bits and Strings use UTF-8 preceded by their length.
+ * <p>
+ * Supported types: null, Boolean, Byte, Short, Character, Integer, Long,
+ * Float, Double, String, Date, byte[], ParamMap and BaseDTO subclasses.
+ * BaseDTO subclasses are written field by field (using reflection; static,
+ * transient and final fields are skipped) and need a constructor with no
+ * arguments; their fields can be of any supported type.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class BinaryCodec implements MessageCodec
+{
+    private static final byte NULL    = 0;
+    private static final byte TRUE    = 1;
+    private static final byte FALSE   = 2;
+    private static final byte BYTE    = 3;
+    private static final byte SHORT   = 4;
+    private static final byte CHAR    = 5;
+    private static final byte INT     = 6;
+    private static final byte LONG    = 7;
+    private static final byte FLOAT   = 8;
+    private static final byte DOUBLE  = 9;
+    private static final byte STRING  = 10;
+    private static final byte DATE    = 11;
+    private static final byte BYTES   = 12;
+    private static final byte PARAMS  = 13;
+    private static final byte DTO     = 14;
+
+    private static final Map<Class<?>,Field[]> fields = new ConcurrentHashMap<>();
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public byte[] encode( Object message ) throws IOException
+    {
+        Out out = new Out();
+
+        write( out, message );
+
+        return Arrays.copyOf( out.buffer, out.size );
+    }
+
+    @Override
+    public Object decode( ByteBuffer frame ) throws IOException
+    {
+        ByteBuffer in = frame.duplicate().order( ByteOrder.BIG_ENDIAN );
+
+        try
+        {
+            Object message = read( in );
+
+            if( in.hasRemaining() )
+            {
+                throw new IOException( "Invalid message: "+ in.remaining() +" bytes after the end" );
+            }
+
+            return message;
+        }
+        catch( BufferUnderflowException | IllegalArgumentException exc )
+        {
+            throw new IOException( "Invalid message", exc );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // ENCODING
+
+    private void write( Out out, Object value ) throws IOException
+    {
+        if( value == null )
+        {
+            out.put( NULL );
+        }
+        else if( value instanceof String )
+        {
+            out.put( STRING );
+            writeString( out, (String) value );
+        }
+        else if( value instanceof Integer )
+        {
+            out.put( INT );
+            out.putVarLong( (Integer) value );
+        }
+        else if( value instanceof Long )
+        {
+            out.put( LONG );
+            out.putVarLong( (Long) value );
+        }
+        else if( value instanceof Boolean )
+        {
+            out.put( ((Boolean) value) ? TRUE : FALSE );
+        }
+        else if( value instanceof Double )
+        {
+            out.put( DOUBLE );
+            out.putFixed( Double.doubleToLongBits( (Double) value ), 8 );
+        }
+        else if( value instanceof Float )
+        {
+            out.put( FLOAT );
+            out.putFixed( Float.floatToIntBits( (Float) value ), 4 );
+        }
+        else if( value instanceof Short )
+        {
+            out.put( SHORT );
+            out.putVarLong( (Short) value );
+        }
+        else if( value instanceof Byte )
+        {
+            out.put( BYTE );
+            out.put( (Byte) value );
+        }
+        else if( value instanceof Character )
+        {
+            out.put( CHAR );
+            out.putFixed( (Character) value, 2 );
+        }
+        else if( value instanceof Date )
+        {
+            out.put( DATE );
+            out.putVarLong( ((Date) value).getTime() );
+        }
+        else if( value instanceof byte[] )
+        {
+            byte[] ab = (byte[]) value;
+
+            out.put( BYTES );
+            out.putVarLong( ab.length );
+            out.put( ab, ab.length );
+        }
+        else if( value instanceof ParamMap )
+        {
+            writeParamMap( out, (ParamMap) value );
+        }
+        else if( value instanceof BaseDTO )
+        {
+            writeDTO( out, (BaseDTO) value );
+        }
+        else
+        {
+            throw new IOException( "Unsupported type: "+ value.getClass().getName() );
+        }
+    }
+
+    private void writeString( Out out, String s )
+    {
+        byte[] ab = s.getBytes( StandardCharsets.UTF_8 );
+
+        out.putVarLong( ab.length );
+        out.put( ab, ab.length );
+    }
+
+    private void writeParamMap( Out out, ParamMap map )
+    {
+        List<String> names = new ArrayList<>( map.getParamNames() );    // Copied because the map could change meanwhile
+
+        out.put( PARAMS );
+        out.putVarLong( names.size() );
+
+        for( String name : names )
+        {
+            String value = map.getString( name, null );     // ParamMap stores null as "null"
+
+            writeString( out, name );
+            writeString( out, ((value == null) ? "null" : value) );
+        }
+    }
+
+    private void writeDTO( Out out, BaseDTO dto ) throws IOException
+    {
+        out.put( DTO );
+        writeString( out, dto.getClass().getName() );
+
+        try
+        {
+            for( Field field : fieldsOf( dto.getClass() ) )
+            {
+                write( out, field.get( dto ) );
+            }
+        }
+        catch( IllegalAccessException iae )
+        {
+            throw new IOException( "Can not read fields of: "+ dto.getClass().getName(), iae );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // DECODING
+
+    private Object read( ByteBuffer in ) throws IOException
+    {
+        byte tag = in.get();
+
+        switch( tag )
+        {
+            case NULL  : return null;
+            case TRUE  : return Boolean.TRUE;
+            case FALSE : return Boolean.FALSE;
+            case BYTE  : return in.get();
+            case SHORT : return (short) getVarLong( in );
+            case CHAR  : return in.getChar();
+            case INT   : return (int) getVarLong( in );
+            case LONG  : return getVarLong( in );
+            case FLOAT : return in.getFloat();
+            case DOUBLE: return in.getDouble();
+            case STRING: return readString( in );
+            case DATE  : return new Date( getVarLong( in ) );
+            case BYTES : byte[] ab = new byte[ getLength( in ) ];
+                         in.get( ab );
+                         return ab;
+            case PARAMS: return readParamMap( in );
+            case DTO   : return readDTO( in );
+            default    : throw new IOException( "Invalid type tag: "+ tag );
+        }
+    }
+
+    private String readString( ByteBuffer in ) throws IOException
+    {
+        int    len = getLength( in );
+        String s;
+
+        if( in.hasArray() )
+        {
+            s = new String( in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8 );
+            in.position( in.position() + len );
+        }
+        else
+        {
+            byte[] ab = new byte[ len ];
+            in.get( ab );
+            s = new String( ab, StandardCharsets.UTF_8 );
+        }
+
+        return s;
+    }
+
+    private ParamMap readParamMap( ByteBuffer in ) throws IOException
+    {
+        ParamMap map = new ParamMap();
+        int      len = getLength( in );
+
+        for( int n = 0; n < len; n++ )
+        {
+            map.put( readString( in ), readString( in ) );
+        }
+
+        return map;
+    }
+
+    private BaseDTO readDTO( ByteBuffer in ) throws IOException
+    {
+        String sClass = readString( in );
+
+        try
+        {
+            Class<?> clazz = Class.forName( sClass, false, getClass().getClassLoader() );
+
+            if( ! BaseDTO.class.isAssignableFrom( clazz ) )     // Only DTOs can be created
+            {
+                throw new IOException( "Not a BaseDTO: "+ sClass );
+            }
+
+            BaseDTO dto = (BaseDTO) clazz.getDeclaredConstructor().newInstance();
+
+            for( Field field : fieldsOf( clazz ) )
+            {
+                field.set( dto, read( in ) );
+            }
+
+            return dto;
+        }
+        catch( ReflectiveOperationException | ClassCastException exc )
+        {
+            throw new IOException( "Can not create an instance of: "+ sClass, exc );
+        }
+    }
+
+    private static int getLength( ByteBuffer in ) throws IOException
+    {
+        long len = getVarLong( in );
+
+        if( (len < 0) || (len > in.remaining()) )
+        {
+            throw new IOException( "Invalid length: "+ len );
+        }
+
+        return (int) len;
+    }
+
+    /**
+     * Reads a zig-zag variable length long.
+     */
+    private static long getVarLong( ByteBuffer in ) throws IOException
+    {
+        long value = 0;
+
+        for( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = in.get();
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if( (b & 0x80) == 0 )
+            {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+
+        throw new IOException( "Invalid variable length number" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the fields to be (de)serialized: from BaseDTO to passed class, sorted
+     * by name inside every class (getDeclaredFields() order is not guaranteed).
+     */
+    private static Field[] fieldsOf( Class<?> clazz )
+    {
+        return fields.computeIfAbsent( clazz, c ->
+                {
+                    List<Class<?>> hierarchy = new ArrayList<>();
+                    List<Field>    list      = new ArrayList<>();
+
+                    for( Class<?> k = c; (k != null) && (k != Object.class); k = k.getSuperclass() )
+                    {
+                        hierarchy.add( 0, k );
+                    }
+
+                    for( Class<?> k : hierarchy )
+                    {
+                        Field[] declared = k.getDeclaredFields();
+
+                        Arrays.sort( declared, Comparator.comparing( Field::getName ) );
+
+                        for( Field f : declared )
+                        {
+                            int mod = f.getModifiers();
+
+                            if( ! (Modifier.isStatic( mod ) || Modifier.isTransient( mod ) || Modifier.isFinal( mod )) )
+                            {
+                                f.setAccessible( true );
+                                list.add( f );
+                            }
+                        }
+                    }
+
+                    return list.toArray( new Field[ list.size() ] );
+                } );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A growable byte array (cheaper than ByteArrayOutputStream: no synchronization).
+     */
+    private static final class Out
+    {
+        byte[] buffer = new byte[ 64 ];
+        int    size   = 0;
+
+        void put( byte b )
+        {
+            ensure( 1 );
+            buffer[size++] = b;
+        }
+
+        void put( byte[] ab, int len )
+        {
+            ensure( len );
+            System.arraycopy( ab, 0, buffer, size, len );
+            size += len;
+        }
+
+        /**
+         * Writes passed value using len bytes (big endian).
+         */
+        void putFixed( long value, int len )
+        {
+            ensure( len );
+
+            for( int n = len - 1; n >= 0; n-- )
+            {
+                buffer[size++] = (byte) (value >>> (8 * n));
+            }
+        }
+
+        /**
+         * Writes passed value as a zig-zag variable length long.
+         */
+        void putVarLong( long value )
+        {
+            long v = (value << 1) ^ (value >> 63);
+
+            ensure( 10 );
+
+            while( (v & ~0x7FL) != 0 )
+            {
+                buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+
+            buffer[size++] = (byte) v;
+        }
+
+        private void ensure( int len )
+        {
+            if( size + len > buffer.length )
+            {
+                buffer = Arrays.copyOf( buffer, Math.max( buffer.length * 2, size + len ) );
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ public abstract class CommReceiver extends Thread
     protected final static long nMIN = 8;
 
     private boolean isRunning = false;
+    private Backoff backoff   = new Backoff( nMIN, 0xFFFF );    // Max delay == aprox 65 seconds
 
     //----------------------------------------------------------------------------//
 
@@ -36,6 +37,17 @@ public abstract class CommReceiver extends Thread
     protected abstract void destroySocket() throws Exception;
     protected abstract void readSocket()    throws Exception;
 
+    /**
+     * Changes the delays used between failed attempts to create the socket. It
+     * has to be invoked before the thread is started.
+     *
+     * @param backoff The delays to use.
+     */
+    public void setBackoff( Backoff backoff )
+    {
+        this.backoff = backoff;
+    }
+
     //----------------------------------------------------------------------------//
 
     @Override
@@ -48,21 +60,15 @@ public abstract class CommReceiver extends Thread
     @Override
     public void run()
     {
-        long delay = nMIN;
-
         isRunning = true;
 
         while( isRunning )
         {
             try
             {
-                if( ! _createSocket_( delay ) )
-                {
-                    delay = ((delay > 0xFFFF) ? nMIN : delay*2);   // Max delay == aprox 65 seconds
-                }
-                else
+                if( _createSocket_() )
                 {
-                    delay = nMIN;
+                    backoff.reset();
                     readSocket();
                 }
             }
@@ -85,7 +91,7 @@ public abstract class CommReceiver extends Thread
 
     //----------------------------------------------------------------------------//
 
-    private boolean _createSocket_( long delay ) throws InterruptedException
+    private boolean _createSocket_() throws InterruptedException
     {
         try
         {
@@ -96,7 +102,7 @@ public abstract class CommReceiver extends Thread
         {
             UtilDebug.debuggingTrace( "Can't create socket." );
             UtilDebug.log( exc, "Error creating socket." );
-            Thread.sleep( delay );
+            Thread.sleep( backoff.next() );     // Jittered: reconnections of many clients are spread over time
             return false;
         }
     }
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packs small messages addressed to the same peer into as few datagrams as
+ * possible (see UDPClient and UDPServer).
+ * <p>
+ * Datagram layout (big endian):
+ * <pre>
+ *    magic (1) version (1) session (4)
+ *    type (1) sequence (4) length (2) payload (length)     &lt;-- once per message
+ * </pre>
+ * Messages are added to a queue and the thread that finds nobody sending
+ * drains the queue: while one datagram is being sent, messages added by other
+ * threads are packed into the next one. So there is no added delay: with low
+ * traffic every message goes alone and, as traffic grows, more messages share
+ * one datagram. A datagram never exceeds the max size (by default 1472 bytes:
+ * Ethernet MTU minus IPv4 and UDP headers, so it is not fragmented) unless a
+ * single message does not fit: then it is sent alone (up to 64 KB).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class DatagramBatcher
+{
+    /** One way message. */
+    public static final byte MSG  = 1;
+    /** Request: the peer answers with a RESP using the same sequence. */
+    public static final byte REQ  = 2;
+    /** Answer to a REQ. */
+    public static final byte RESP = 3;
+
+    /** Max datagram size that is not fragmented in an Ethernet network. */
+    public static final int nDEFAULT_SIZE = 1472;
+    /** Max datagram size (IPv4). */
+    public static final int nMAX_SIZE     = 65507;
+    /** Datagram header size. */
+    public static final int nHEAD         = 6;
+    /** Message header size. */
+    public static final int nMSG_HEAD     = 7;
+
+    private static final byte MAGIC   = (byte) 0xD6;
+    private static final byte VERSION = 1;
+
+    /**
+     * Receives the messages found in a datagram.
+     */
+    public interface Sink
+    {
+        /**
+         * @param type MSG, REQ or RESP.
+         * @param nSeq Message sequence.
+         * @param payload Message payload (from position to limit): only valid
+         *                during this invocation.
+         * @throws IOException
+         */
+        void onMessage( byte type, int nSeq, ByteBuffer payload ) throws IOException;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private final DatagramChannel channel;
+    private final SocketAddress   target;
+    private final int             nSession;
+    private final int             nMaxSize;
+    private final ByteBuffer      buffer;
+    private final Queue<Message>  queue     = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean   isSending = new AtomicBoolean( false );
+    private final LongAdder       messages  = new LongAdder();
+    private final LongAdder       datagrams = new LongAdder();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a new instance.
+     *
+     * @param channel The channel to send through.
+     * @param target Where to send.
+     * @param nSession The session: written in every datagram.
+     * @param nMaxSize Max datagram size (for batching).
+     */
+    public DatagramBatcher( DatagramChannel channel, SocketAddress target, int nSession, int nMaxSize )
+    {
+        if( nMaxSize < nHEAD + nMSG_HEAD + 1 || nMaxSize > nMAX_SIZE )
+        {
+            throw new IllegalArgumentException( "Invalid datagram size: "+ nMaxSize );
+        }
+
+        this.channel  = channel;
+        this.target   = target;
+        this.nSession = nSession;
+        this.nMaxSize = nMaxSize;
+        this.buffer   = ByteBuffer.allocateDirect( nMAX_SIZE );     // Only messages that do not fit in nMaxSize use more
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Reads the session of passed datagram.
+     *
+     * @param datagram A received datagram (from position to limit).
+     * @return The session.
+     * @throws IOException If it is not a valid datagram.
+     */
+    public static int session( ByteBuffer datagram ) throws IOException
+    {
+        int nPos = datagram.position();
+
+        if( datagram.remaining() < nHEAD || datagram.get( nPos ) != MAGIC )
+        {
+            throw new IOException( "Invalid datagram" );
+        }
+
+        if( datagram.get( nPos + 1 ) != VERSION )
+        {
+            throw new IOException( "Unsupported datagram version: "+ datagram.get( nPos + 1 ) );
+        }
+
+        return datagram.getInt( nPos + 2 );
+    }
+
+    /**
+     * Passes every message in passed datagram to passed sink.
+     *
+     * @param datagram A received datagram (from position to limit; it is consumed).
+     * @param sink Receives the messages.
+     * @throws IOException If it is not a valid datagram.
+     */
+    public static void parse( ByteBuffer datagram, Sink sink ) throws IOException
+    {
+        session( datagram );
+        datagram.position( datagram.position() + nHEAD );
+
+        ByteBuffer payload = datagram.duplicate();
+
+        while( datagram.hasRemaining() )
+        {
+            if( datagram.remaining() < nMSG_HEAD )
+            {
+                throw new IOException( "Invalid datagram: truncated message" );
+            }
+
+            byte type = datagram.get();
+            int  nSeq = datagram.getInt();
+            int  nLen = datagram.getShort() & 0xFFFF;
+
+            if( nLen > datagram.remaining() )
+            {
+                throw new IOException( "Invalid datagram: truncated message" );
+            }
+
+            payload.limit( datagram.position() + nLen ).position( datagram.position() );
+            datagram.position( datagram.position() + nLen );
+            sink.onMessage( type, nSeq, payload );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Sends a message (packed with others when they are sent at the same time).
+     *
+     * @param type MSG, REQ or RESP.
+     * @param nSeq Message sequence.
+     * @param payload Message payload.
+     * @throws IOException If the message is too big or the channel failed.
+     */
+    public void send( byte type, int nSeq, byte[] payload ) throws IOException
+    {
+        add( type, nSeq, payload );
+        flush();
+    }
+
+    /**
+     * Adds a message to be sent by next ::flush() (or by the next ::send(...)
+     * made by any thread).
+     *
+     * @param type MSG, REQ or RESP.
+     * @param nSeq Message sequence.
+     * @param payload Message payload.
+     * @throws IOException If the message is too big.
+     */
+    public void add( byte type, int nSeq, byte[] payload ) throws IOException
+    {
+        if( payload.length > nMAX_SIZE - nHEAD - nMSG_HEAD )
+        {
+            throw new IOException( "Message too big for a datagram: "+ payload.length +" bytes" );
+        }
+
+        queue.add( new Message( type, nSeq, payload ) );
+    }
+
+    /**
+     * Sends all added messages.
+     *
+     * @throws IOException If the channel failed.
+     */
+    public void flush() throws IOException
+    {
+        while( ! queue.isEmpty() && isSending.compareAndSet( false, true ) )     // Whoever gets it, sends all
+        {
+            try
+            {
+                Message msg;
+
+                buffer.clear().limit( nMaxSize );
+                header();
+
+                while( (msg = queue.poll()) != null )
+                {
+                    int nNeeded = nMSG_HEAD + msg.payload.length;
+
+                    if( nNeeded > buffer.remaining() )
+                    {
+                        if( buffer.position() > nHEAD )     // Full: send what is there
+                        {
+                            write();
+                            buffer.clear().limit( nMaxSize );
+                            header();
+                        }
+
+                        if( nNeeded > buffer.remaining() )  // It does not fit alone: send it alone
+                        {
+                            buffer.limit( nHEAD + nNeeded );
+                            put( msg );
+                            write();
+                            buffer.clear().limit( nMaxSize );
+                            header();
+                            continue;
+                        }
+                    }
+
+                    put( msg );
+                }
+
+                if( buffer.position() > nHEAD )
+                {
+                    write();
+                }
+
+                buffer.clear().limit( nMaxSize );
+            }
+            finally
+            {
+                isSending.set( false );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages sent.
+     *
+     * @return The number of messages sent.
+     */
+    public long getMessages()
+    {
+        return messages.sum();
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return The number of datagrams sent.
+     */
+    public long getDatagrams()
+    {
+        return datagrams.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DatagramBatcher{target="+ target +", messages="+ getMessages() +", datagrams="+ getDatagrams() +'}';
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void header()
+    {
+        buffer.put( MAGIC ).put( VERSION ).putInt( nSession );
+    }
+
+    private void put( Message msg )
+    {
+        buffer.put( msg.type ).putInt( msg.nSeq ).putShort( (short) msg.payload.length ).put( msg.payload );
+        messages.increment();
+    }
+
+    private void write() throws IOException
+    {
+        buffer.flip();
+        channel.send( buffer, target );
+        datagrams.increment();
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Message
+    {
+        final byte   type;
+        final int    nSeq;
+        final byte[] payload;
+
+        Message( byte type, int nSeq, byte[] payload )
+        {
+            this.type    = type;
+            this.nSeq    = nSeq;
+            this.payload = payload;
+        }
+    }
+}
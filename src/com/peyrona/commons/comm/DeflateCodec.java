@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A MessageCodec that compresses (deflate) the messages encoded by another
+ * codec.
+ * <p>
+ * Every message starts with one byte that tells if it is compressed or not,
+ * so each side decides on its own and the peer always knows how to read it:
+ * messages smaller than the threshold and messages that do not get smaller
+ * (e.g. already compressed data) are sent as they are.
+ * <p>
+ * A preset dictionary (a sample of typical messages: ParamMap names, CSV
+ * headers, etc.) makes a huge difference for short messages: both sides
+ * must use the same dictionary.
+ * <p>
+ * Bytes saved and time spent compressing and decompressing are counted:
+ * this allows to tune the threshold and the level.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class DeflateCodec implements MessageCodec
+{
+    private static final byte STORED   = 0;
+    private static final byte DEFLATED = 1;
+
+    private final MessageCodec      codec;
+    private final int               nLevel;
+    private final int               nThreshold;
+    private final byte[]            dictionary;
+    private final Queue<Deflater>   deflaters   = new ConcurrentLinkedQueue<>();   // Creating them is expensive: they are reused
+    private final Queue<Inflater>   inflaters   = new ConcurrentLinkedQueue<>();
+    private final LongAdder         compressed  = new LongAdder();
+    private final LongAdder         stored      = new LongAdder();
+    private final LongAdder         saved       = new LongAdder();
+    private final LongAdder         deflateTime = new LongAdder();
+    private final LongAdder         inflateTime = new LongAdder();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance that compresses (default level, no dictionary)
+     * BinaryCodec messages of 128 bytes or more.
+     */
+    public DeflateCodec()
+    {
+        this( new BinaryCodec(), Deflater.DEFAULT_COMPRESSION, 128, null );
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param codec Encodes and decodes the messages before compressing them.
+     * @param nLevel Compression level: from 1 (fastest) to 9 (smallest) or -1 (default).
+     * @param nThreshold Messages (encoded) smaller than this are not compressed.
+     * @param dictionary Preset dictionary (null for none).
+     */
+    public DeflateCodec( MessageCodec codec, int nLevel, int nThreshold, byte[] dictionary )
+    {
+        if( codec == null )
+        {
+            throw new IllegalArgumentException( "Codec can not be null" );
+        }
+
+        if( (nLevel < Deflater.DEFAULT_COMPRESSION) || (nLevel > Deflater.BEST_COMPRESSION) )
+        {
+            throw new IllegalArgumentException( "Invalid compression level: "+ nLevel );
+        }
+
+        this.codec      = codec;
+        this.nLevel     = nLevel;
+        this.nThreshold = Math.max( 0, nThreshold );
+        this.dictionary = ((dictionary == null || dictionary.length == 0) ? null : dictionary.clone());
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public byte[] encode( Object message ) throws IOException
+    {
+        byte[] ab = codec.encode( message );
+
+        if( ab.length >= nThreshold )
+        {
+            byte[] deflated = deflate( ab );
+
+            if( deflated != null )
+            {
+                compressed.increment();
+                saved.add( ab.length - deflated.length + 1 );    // +1 because the STORED byte is also saved
+                return deflated;
+            }
+        }
+
+        byte[] frame = new byte[ ab.length + 1 ];
+
+        frame[0] = STORED;
+        System.arraycopy( ab, 0, frame, 1, ab.length );
+        stored.increment();
+
+        return frame;
+    }
+
+    @Override
+    public Object decode( ByteBuffer frame ) throws IOException
+    {
+        if( ! frame.hasRemaining() )
+        {
+            throw new IOException( "Invalid message: empty" );
+        }
+
+        ByteBuffer data = frame.duplicate();
+        byte       type = data.get();
+
+        switch( type )
+        {
+            case STORED  : return codec.decode( data );
+            case DEFLATED: return codec.decode( ByteBuffer.wrap( inflate( data ) ) );
+            default      : throw new IOException( "Invalid message type: "+ type );
+        }
+    }
+
+    @Override
+    public int getMaxFrameSize()
+    {
+        return codec.getMaxFrameSize() + 5;
+    }
+
+    /**
+     * Returns the number of messages sent compressed.
+     *
+     * @return The number of messages sent compressed.
+     */
+    public long getCompressed()
+    {
+        return compressed.sum();
+    }
+
+    /**
+     * Returns the number of messages sent as they are (below the threshold or
+     * not compressible).
+     *
+     * @return The number of messages sent as they are.
+     */
+    public long getStored()
+    {
+        return stored.sum();
+    }
+
+    /**
+     * Returns the bytes that were not sent thanks to the compression.
+     *
+     * @return The bytes that were not sent thanks to the compression.
+     */
+    public long getBytesSaved()
+    {
+        return saved.sum();
+    }
+
+    /**
+     * Returns the time (in nanoseconds) spent compressing messages.
+     *
+     * @return The time spent compressing messages.
+     */
+    public long getCompressTime()
+    {
+        return deflateTime.sum();
+    }
+
+    /**
+     * Returns the time (in nanoseconds) spent decompressing messages.
+     *
+     * @return The time spent decompressing messages.
+     */
+    public long getDecompressTime()
+    {
+        return inflateTime.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeflateCodec{level="+ nLevel +", threshold="+ nThreshold +", dictionary="+ (dictionary == null ? 0 : dictionary.length) +
+                           ", compressed="+ getCompressed() +", stored="+ getStored() +", saved="+ getBytesSaved() +
+                           ", compressNanos="+ getCompressTime() +", decompressNanos="+ getDecompressTime() +'}';
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns passed bytes compressed (preceded by the DEFLATED byte and the
+     * original length) or null if they do not get smaller.
+     */
+    private byte[] deflate( byte[] ab )
+    {
+        long     nStart   = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+
+        if( deflater == null )
+        {
+            deflater = new Deflater( nLevel, true );     // Raw deflate: no zlib header and checksum (6 bytes less)
+        }
+
+        try
+        {
+            if( dictionary != null )
+            {
+                deflater.setDictionary( dictionary );
+            }
+
+            deflater.setInput( ab );
+            deflater.finish();
+
+            byte[] out  = new byte[ ab.length ];        // Not worth it if it does not fit here
+            int    size = 5;
+
+            out[0] = DEFLATED;
+            out[1] = (byte) (ab.length >>> 24);
+            out[2] = (byte) (ab.length >>> 16);
+            out[3] = (byte) (ab.length >>> 8);
+            out[4] = (byte) ab.length;
+
+            while( ! deflater.finished() && (size < out.length) )
+            {
+                size += deflater.deflate( out, size, out.length - size );
+            }
+
+            return (deflater.finished() ? Arrays.copyOf( out, size ) : null);
+        }
+        finally
+        {
+            deflater.reset();
+            deflaters.add( deflater );
+            deflateTime.add( System.nanoTime() - nStart );
+        }
+    }
+
+    private byte[] inflate( ByteBuffer data ) throws IOException
+    {
+        if( data.remaining() < 4 )
+        {
+            throw new IOException( "Invalid compressed message" );
+        }
+
+        int nLength = data.getInt();
+
+        if( (nLength < 0) || (nLength > codec.getMaxFrameSize()) )      // Protects against "zip bombs"
+        {
+            throw new IOException( "Invalid compressed message length: "+ nLength );
+        }
+
+        long     nStart   = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+
+        if( inflater == null )
+        {
+            inflater = new Inflater( true );
+        }
+
+        try
+        {
+            if( dictionary != null )
+            {
+                inflater.setDictionary( dictionary );
+            }
+
+            inflater.setInput( data );
+
+            byte[] out  = new byte[ nLength ];
+            int    size = 0;
+
+            while( (size < nLength) && ! inflater.finished() )
+            {
+                int n = inflater.inflate( out, size, nLength - size );
+
+                if( (n == 0) && (inflater.needsInput() || inflater.needsDictionary()) )
+                {
+                    break;
+                }
+
+                size += n;
+            }
+
+            if( size != nLength )
+            {
+                throw new IOException( "Invalid compressed message (different dictionary?)" );
+            }
+
+            return out;
+        }
+        catch( DataFormatException dfe )
+        {
+            throw new IOException( "Invalid compressed message (different dictionary?)", dfe );
+        }
+        finally
+        {
+            inflater.reset();
+            inflaters.add( inflater );
+            inflateTime.add( System.nanoTime() - nStart );
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.lang.BufferPool;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits a stream of bytes (as received from a socket, with boundaries that
+ * depend on TCP segmentation) into complete frames.
+ * <p>
+ * Built-in decoders: delimiter, line, fixed length and length-prefixed (1, 2
+ * or 4 bytes, big or little endian). All of them have a maximum frame size:
+ * a bigger frame is a protocol error and ::decode(...) throws an IOException
+ * (the connection should be closed).
+ * <p>
+ * Frames that arrive complete are passed to the sink directly from the
+ * received buffer (no copy); only the bytes of an incomplete frame are copied
+ * into a pooled buffer (released when the decoder is reset).
+ * <p>
+ * An instance keeps the state of one connection: it can not be shared and it
+ * is not thread safe.
+ *
+ * @author peyrona
+ */
+public abstract class FrameDecoder
+{
+    /**
+     * Receives complete frames.
+     */
+    public interface Sink
+    {
+        /**
+         *
+         * @param frame A read-only view of the frame payload (from position to
+         *              limit). It is only valid during this invocation.
+         * @throws IOException
+         */
+        void onFrame( ByteBuffer frame ) throws IOException;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private final BufferPool pool;
+    private       ByteBuffer acc     = null;    // Bytes of an incomplete frame (in write mode)
+    private       ByteBuffer source  = null;    // Last buffer a view was created for
+    private       ByteBuffer view    = null;    // Read-only view of source
+
+    /** Set by ::frame(...): bytes before the payload. */
+    protected int nHead = 0;
+
+    /** Set by ::frame(...): bytes after the payload. */
+    protected int nTail = 0;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Frames end with passed delimiter (it is not part of the payload).
+     *
+     * @param delimiter The delimiter.
+     * @param nMaxFrame Max payload size.
+     * @return A new decoder.
+     */
+    public static FrameDecoder delimiter( byte[] delimiter, int nMaxFrame )
+    {
+        return new Delimiter( delimiter.clone(), nMaxFrame, false );
+    }
+
+    /**
+     * Frames end with '\n' or "\r\n" (same as BufferedReader::readLine()).
+     *
+     * @param nMaxFrame Max payload size.
+     * @return A new decoder.
+     */
+    public static FrameDecoder line( int nMaxFrame )
+    {
+        return new Delimiter( new byte[] { '\n' }, nMaxFrame, true );
+    }
+
+    /**
+     * All frames have the same length.
+     *
+     * @param nLength Frames length.
+     * @return A new decoder.
+     */
+    public static FrameDecoder fixed( int nLength )
+    {
+        return new Fixed( nLength );
+    }
+
+    /**
+     * Every frame starts with its payload length (unsigned; header not included).
+     *
+     * @param nPrefixBytes 1, 2 or 4.
+     * @param order Byte order of the length.
+     * @param nMaxFrame Max payload size.
+     * @return A new decoder.
+     */
+    public static FrameDecoder lengthPrefixed( int nPrefixBytes, ByteOrder order, int nMaxFrame )
+    {
+        return new LengthPrefixed( nPrefixBytes, order, nMaxFrame );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Constructor.
+     *
+     * @param nMaxWire Max bytes that one frame can occupy (including head and tail).
+     */
+    protected FrameDecoder( int nMaxWire )
+    {
+        if( nMaxWire < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid max frame size" );
+        }
+
+        this.pool = BufferPool.of( nMaxWire );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Looks for a frame starting at buffer position (buffer position and limit
+     * must not be changed).
+     *
+     * @param buffer Where to look for.
+     * @return -1 if the frame is not complete or the number of bytes the frame
+     *         occupies (::nHead and ::nTail have to be set).
+     * @throws IOException If the frame is not valid (e.g. too long).
+     */
+    protected abstract int frame( ByteBuffer buffer ) throws IOException;
+
+    /**
+     * Invoked after a frame is found or when the decoder is reset.
+     */
+    protected void onFrameEnd()
+    {
+    }
+
+    /**
+     * Consumes all bytes in passed buffer (from position to limit), invoking
+     * the sink for every complete frame.
+     *
+     * @param data Received bytes.
+     * @param sink Receives complete frames.
+     * @throws IOException If a frame is not valid (e.g. too long).
+     */
+    public final void decode( ByteBuffer data, Sink sink ) throws IOException
+    {
+        while( data.hasRemaining() )
+        {
+            if( (acc == null) || (acc.position() == 0) )       // Nothing pending: frames are taken directly from data
+            {
+                int n = frame( data );
+
+                if( n >= 0 )
+                {
+                    emit( data, n, sink );
+                    continue;
+                }
+
+                if( data.remaining() > pool.getCapacity() )
+                {
+                    throw new IOException( "Frame too long" );
+                }
+
+                if( acc == null )
+                {
+                    acc = pool.acquire();
+                }
+
+                acc.put( data );
+            }
+            else
+            {
+                ByteBuffer part = data.duplicate();
+                           part.limit( part.position() + Math.min( acc.remaining(), data.remaining() ) );
+
+                acc.put( part );
+                data.position( part.position() );
+                acc.flip();
+
+                int n;
+
+                while( acc.hasRemaining() && ((n = frame( acc )) >= 0) )
+                {
+                    emit( acc, n, sink );
+                }
+
+                if( (acc.position() == 0) && (acc.limit() == acc.capacity()) )
+                {
+                    throw new IOException( "Frame too long" );
+                }
+
+                acc.compact();
+            }
+        }
+    }
+
+    /**
+     * Discards the bytes of an incomplete frame (if any): has to be invoked
+     * when a new connection is established.
+     */
+    public void reset()
+    {
+        pool.release( acc );
+        acc    = null;
+        source = null;
+        view   = null;
+        onFrameEnd();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void emit( ByteBuffer buffer, int nLength, Sink sink ) throws IOException
+    {
+        int nStart = buffer.position();
+
+        if( buffer != source )
+        {
+            source = buffer;
+            view   = buffer.asReadOnlyBuffer();
+        }
+
+        view.clear();
+        view.position( nStart + nHead );
+        view.limit( nStart + nLength - nTail );
+        buffer.position( nStart + nLength );
+        onFrameEnd();
+
+        sink.onFrame( view );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Delimiter extends FrameDecoder
+    {
+        private final byte[]  delimiter;
+        private final boolean bStripCR;
+        private final int     nMaxFrame;
+        private       int     nScanned = 0;     // Bytes of current frame already scanned
+
+        Delimiter( byte[] delimiter, int nMaxFrame, boolean bStripCR )
+        {
+            super( nMaxFrame + delimiter.length + (bStripCR ? 1 : 0) );
+
+            if( delimiter.length == 0 )
+            {
+                throw new IllegalArgumentException( "Empty delimiter" );
+            }
+
+            this.delimiter = delimiter;
+            this.nMaxFrame = nMaxFrame;
+            this.bStripCR  = bStripCR;
+        }
+
+        @Override
+        protected int frame( ByteBuffer buffer ) throws IOException
+        {
+            int nStart = buffer.position();
+            int nLimit = buffer.limit();
+            int nFrom  = nStart + Math.max( 0, nScanned - delimiter.length + 1 );
+
+            for( int n = nFrom; n <= nLimit - delimiter.length; n++ )
+            {
+                if( matches( buffer, n ) )
+                {
+                    nHead = 0;
+                    nTail = delimiter.length;
+
+                    if( bStripCR && (n > nStart) && (buffer.get( n - 1 ) == '\r') )
+                    {
+                        nTail++;
+                    }
+
+                    if( n - nStart - (nTail - delimiter.length) > nMaxFrame )
+                    {
+                        throw new IOException( "Frame too long" );
+                    }
+
+                    return n - nStart + delimiter.length;
+                }
+            }
+
+            nScanned = nLimit - nStart;
+
+            return -1;
+        }
+
+        @Override
+        protected void onFrameEnd()
+        {
+            nScanned = 0;
+        }
+
+        private boolean matches( ByteBuffer buffer, int nAt )
+        {
+            for( int n = 0; n < delimiter.length; n++ )
+            {
+                if( buffer.get( nAt + n ) != delimiter[n] )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Fixed extends FrameDecoder
+    {
+        private final int nLength;
+
+        Fixed( int nLength )
+        {
+            super( nLength );
+
+            this.nLength = nLength;
+        }
+
+        @Override
+        protected int frame( ByteBuffer buffer )
+        {
+            return ((buffer.remaining() < nLength) ? -1 : nLength);
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class LengthPrefixed extends FrameDecoder
+    {
+        private final int     nPrefix;
+        private final boolean bBigEndian;
+        private final int     nMaxFrame;
+
+        LengthPrefixed( int nPrefix, ByteOrder order, int nMaxFrame )
+        {
+            super( nMaxFrame + nPrefix );
+
+            if( (nPrefix != 1) && (nPrefix != 2) && (nPrefix != 4) )
+            {
+                throw new IllegalArgumentException( "Prefix must be 1, 2 or 4 bytes" );
+            }
+
+            this.nPrefix    = nPrefix;
+            this.bBigEndian = (order == ByteOrder.BIG_ENDIAN);
+            this.nMaxFrame  = nMaxFrame;
+        }
+
+        @Override
+        protected int frame( ByteBuffer buffer ) throws IOException
+        {
+            if( buffer.remaining() < nPrefix )
+            {
+                return -1;
+            }
+
+            int  nStart  = buffer.position();
+            long nLength = 0;
+
+            for( int n = 0; n < nPrefix; n++ )
+            {
+                long b = buffer.get( nStart + n ) & 0xFF;
+
+                nLength |= (bBigEndian ? (b << (8 * (nPrefix - 1 - n))) : (b << (8 * n)));
+            }
+
+            if( nLength > nMaxFrame )
+            {
+                throw new IOException( "Frame too long: "+ nLength );
+            }
+
+            nHead = nPrefix;
+            nTail = 0;
+
+            return ((buffer.remaining() < nPrefix + nLength) ? -1 : nPrefix + (int) nLength);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketTimeoutException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection between two processes running in the same host through a
+ * memory-mapped file (created by MappedServerChannel): bytes are exchanged
+ * without system calls, so the hand-off between processes can take less
+ * than a microsecond.
+ * <p>
+ * The file holds two single-producer/single-consumer ring buffers (one per
+ * direction). Each ring has two sequence counters (total bytes written and
+ * total bytes read), each one in its own cache line: the writer publishes
+ * bytes by increasing its counter (release) and the reader sees them when it
+ * reads that counter (acquire).
+ * <p>
+ * When a ring is empty (reader) or full (writer), the thread waits using the
+ * WaitStrategy:
+ * <ul>
+ * <li>SPIN: never leaves the CPU (lowest latency, but it needs one free core
+ *     per waiting thread: otherwise it is the slowest one).
+ * <li>YIELD: spins for a while and then yields the CPU to other threads.
+ * <li>PARK: spins, yields and then sleeps 50 microseconds at a time (low CPU
+ *     usage but higher latency).
+ * </ul>
+ * Only one thread can read and only one thread can write at a time (callers
+ * have to synchronize them if needed).
+ *
+ * @author peyrona
+ */
+public final class MappedChannel implements AutoCloseable
+{
+    public static enum WaitStrategy
+    {
+        SPIN, YIELD, PARK;
+
+        /**
+         * Waits a little bit.
+         *
+         * @param nTimes Number of times this was invoked since last progress.
+         */
+        void idle( int nTimes )
+        {
+            if( (this == SPIN) || (nTimes < 128) )
+            {
+                Thread.onSpinWait();
+            }
+            else if( (this == YIELD) || (nTimes < 256) )
+            {
+                Thread.yield();
+            }
+            else
+            {
+                LockSupport.parkNanos( 50_000 );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // File layout (every counter in its own cache line)
+
+    static final long MAGIC          = 0x5045_5952_4F4E_4131L;    // "PEYRONA1"
+    static final int  LINE           = 64;
+    static final int  OFF_MAGIC      = 0;
+    static final int  OFF_CAPACITY   = 8;
+    static final int  OFF_SERVER     = LINE;          // 1 == server open
+    static final int  OFF_CLIENT     = LINE * 2;      // Following states
+    static final int  OFF_SESSION    = LINE * 3;      // Incremented by the server before accepting a new client
+    static final int  HEADER         = LINE * 4;
+    static final int  RING_HEADER    = LINE * 2;      // Write sequence + read sequence
+
+    static final long CLIENT_FREE     = 0;            // Server is waiting for a client
+    static final long CLIENT_ATTACHED = 1;
+    static final long CLIENT_DETACHED = 2;            // Session ended: server has to reset the rings
+
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle( long[].class, ByteOrder.nativeOrder() );
+
+    private final    MappedByteBuffer buffer;
+    private final    Path             path;
+    private final    boolean          bServer;
+    private final    long             nSession;
+    private final    WaitStrategy     wait;
+    private final    Ring             in;
+    private final    Ring             out;
+    private final    InputStream      input;
+    private final    OutputStream     output;
+    private volatile boolean          bClosed  = false;
+    private volatile long             nTimeout = 0;      // Read timeout in nanos (0 == no limit)
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Connects to passed file (created by a MappedServerChannel).
+     *
+     * @param path The file.
+     * @param wait How to wait for data or room.
+     * @return A new channel.
+     * @throws IOException If the file is not valid, the server is not open or
+     *                     it already has a client.
+     */
+    public static MappedChannel open( Path path, WaitStrategy wait ) throws IOException
+    {
+        MappedByteBuffer buffer;
+
+        try( FileChannel fc = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            if( fc.size() < HEADER )
+            {
+                throw new IOException( "Not a valid file: "+ path );
+            }
+
+            buffer = fc.map( FileChannel.MapMode.READ_WRITE, 0, fc.size() );
+        }
+
+        if( ((long) LONGS.getAcquire( buffer, OFF_MAGIC ) != MAGIC) ||
+            (size( (int) (long) LONGS.getAcquire( buffer, OFF_CAPACITY ) ) != buffer.capacity()) )
+        {
+            throw new IOException( "Not a valid file: "+ path );
+        }
+
+        if( (long) LONGS.getAcquire( buffer, OFF_SERVER ) != 1 )
+        {
+            throw new IOException( "Server is not open: "+ path );
+        }
+
+        if( ! LONGS.compareAndSet( buffer, OFF_CLIENT, CLIENT_FREE, CLIENT_ATTACHED ) )
+        {
+            throw new IOException( "Server is busy (it has already a client): "+ path );
+        }
+
+        return new MappedChannel( buffer, path, false, (long) LONGS.getAcquire( buffer, OFF_SESSION ), wait );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    MappedChannel( MappedByteBuffer buffer, Path path, boolean bServer, long nSession, WaitStrategy wait )
+    {
+        int  nCap  = (int) (long) LONGS.getAcquire( buffer, OFF_CAPACITY );
+        Ring ring0 = new Ring( buffer, HEADER, nCap );                       // Client --> server
+        Ring ring1 = new Ring( buffer, HEADER + RING_HEADER + nCap, nCap );  // Server --> client
+
+        this.buffer   = buffer;
+        this.path     = path;
+        this.bServer  = bServer;
+        this.nSession = nSession;
+        this.wait     = ((wait == null) ? WaitStrategy.YIELD : wait);
+        this.in       = (bServer ? ring0 : ring1);
+        this.out      = (bServer ? ring1 : ring0);
+        this.input    = new MappedInputStream();
+        this.output   = new MappedOutputStream();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns true if this side did not close the connection (the peer could
+     * have closed it).
+     *
+     * @return true if this side did not close the connection.
+     */
+    public boolean isOpen()
+    {
+        return (! bClosed);
+    }
+
+    /**
+     * Returns true if neither this side nor the peer closed the connection.
+     *
+     * @return true if neither this side nor the peer closed the connection.
+     */
+    public boolean isConnected()
+    {
+        return (! bClosed) && isPeerOpen();
+    }
+
+    /**
+     * Maximum time (in millis) that a read waits for data (0 == no limit):
+     * after it, a SocketTimeoutException is thrown.
+     *
+     * @param millis Maximum time that a read waits for data.
+     */
+    public void setReadTimeout( int millis )
+    {
+        nTimeout = Math.max( 0, millis ) * 1_000_000L;
+    }
+
+    /**
+     * Returns an stream to read from this channel (only one thread can read
+     * at a time).
+     *
+     * @return An stream to read from this channel.
+     */
+    public InputStream getInputStream()
+    {
+        return input;
+    }
+
+    /**
+     * Returns an stream to write to this channel (only one thread can write
+     * at a time). Written bytes are visible to the peer immediately: flush()
+     * does nothing.
+     *
+     * @return An stream to write to this channel.
+     */
+    public OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    /**
+     * Reads available bytes (at least one) into passed array.
+     *
+     * @param ab Where to read.
+     * @param off Where to start.
+     * @param len Max bytes to read.
+     * @return The number of bytes read or -1 if the connection was closed (and
+     *         all bytes sent by the peer were already read).
+     * @throws IOException
+     */
+    public int read( byte[] ab, int off, int len ) throws IOException
+    {
+        if( len == 0 )
+        {
+            return 0;
+        }
+
+        long nStart = 0;
+
+        for( int nTimes = 0; true; nTimes++ )
+        {
+            checkUsable();           // Before touching the ring: it could belong to a newer session
+
+            if( ! isOwnSession() )
+            {
+                return -1;
+            }
+
+            int n = in.read( ab, off, len );
+
+            if( n > 0 )
+            {
+                return n;
+            }
+
+            if( ! isPeerOpen() )
+            {
+                return (isOwnSession() && ((n = in.read( ab, off, len )) > 0)) ? n : -1;     // Bytes written just before closing
+            }
+
+            if( (nTimeout > 0) && ((nTimes & 0xFF) == 0) )
+            {
+                if( nStart == 0 )
+                {
+                    nStart = System.nanoTime();
+                }
+                else if( System.nanoTime() - nStart > nTimeout )
+                {
+                    throw new SocketTimeoutException( "Read timed out: "+ path );
+                }
+            }
+
+            wait.idle( nTimes );
+        }
+    }
+
+    /**
+     * Writes passed bytes (waiting for room when the ring is full).
+     *
+     * @param ab What to write.
+     * @param off Where to start.
+     * @param len Bytes to write.
+     * @throws IOException
+     */
+    public void write( byte[] ab, int off, int len ) throws IOException
+    {
+        for( int nTimes = 0; len > 0; )
+        {
+            checkUsable();           // Before touching the ring: it could belong to a newer session
+
+            if( ! isPeerOpen() )
+            {
+                throw new EOFException( "Connection closed by peer: "+ path );
+            }
+
+            int n = out.write( ab, off, len );
+
+            if( n > 0 )
+            {
+                off   += n;
+                len   -= n;
+                nTimes = 0;
+            }
+            else
+            {
+                wait.idle( nTimes++ );
+            }
+        }
+    }
+
+    /**
+     * Closes this side of the connection: the peer will receive an end of
+     * stream after reading pending bytes.
+     */
+    @Override
+    public void close()
+    {
+        if( ! bClosed )
+        {
+            bClosed = true;
+
+            if( (long) LONGS.getAcquire( buffer, OFF_SESSION ) == nSession )     // Otherwise, the session is already over
+            {
+                LONGS.compareAndSet( buffer, OFF_CLIENT, CLIENT_ATTACHED, CLIENT_DETACHED );
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MappedChannel{path="+ path +", server="+ bServer +", session="+ nSession +", connected="+ isConnected() +'}';
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the size of a file for passed rings capacity.
+     */
+    static int size( int nCapacity )
+    {
+        return HEADER + (2 * (RING_HEADER + nCapacity));
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private boolean isPeerOpen()
+    {
+        return ((long) LONGS.getAcquire( buffer, OFF_CLIENT ) == CLIENT_ATTACHED) &&
+               isOwnSession() &&
+               (bServer || ((long) LONGS.getAcquire( buffer, OFF_SERVER ) == 1));
+    }
+
+    /**
+     * Returns false when the server started a new session: rings belong to
+     * another client and they must not be touched anymore.
+     */
+    private boolean isOwnSession()
+    {
+        return ((long) LONGS.getAcquire( buffer, OFF_SESSION ) == nSession);
+    }
+
+    private void checkUsable() throws IOException
+    {
+        if( bClosed )
+        {
+            throw new AsynchronousCloseException();
+        }
+
+        if( Thread.currentThread().isInterrupted() )
+        {
+            throw new InterruptedIOException();
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * One direction: only one thread writes and only one thread reads.
+     */
+    private static final class Ring
+    {
+        private final MappedByteBuffer buffer;
+        private final int              nWriteSeq;     // Offset of the counters
+        private final int              nReadSeq;
+        private final int              nData;         // Offset of the data
+        private final int              nCapacity;
+        private final int              nMask;
+
+        Ring( MappedByteBuffer buffer, int nOffset, int nCapacity )
+        {
+            this.buffer    = buffer;
+            this.nWriteSeq = nOffset;
+            this.nReadSeq  = nOffset + LINE;
+            this.nData     = nOffset + RING_HEADER;
+            this.nCapacity = nCapacity;
+            this.nMask     = nCapacity - 1;
+        }
+
+        /**
+         * Returns the number of bytes written (0 if the ring is full).
+         */
+        int write( byte[] ab, int off, int len )
+        {
+            long nWrite = (long) LONGS.getOpaque( buffer, nWriteSeq );      // Only this thread changes it
+            long nRead  = (long) LONGS.getAcquire( buffer, nReadSeq );
+            int  n      = (int) Math.min( len, nCapacity - (nWrite - nRead) );
+
+            if( n > 0 )
+            {
+                copy( ab, off, n, (int) (nWrite & nMask), true );
+                LONGS.setRelease( buffer, nWriteSeq, nWrite + n );
+            }
+
+            return n;
+        }
+
+        /**
+         * Returns the number of bytes read (0 if the ring is empty).
+         */
+        int read( byte[] ab, int off, int len )
+        {
+            long nRead  = (long) LONGS.getOpaque( buffer, nReadSeq );       // Only this thread changes it
+            long nWrite = (long) LONGS.getAcquire( buffer, nWriteSeq );
+            int  n      = (int) Math.min( len, nWrite - nRead );
+
+            if( n > 0 )
+            {
+                copy( ab, off, n, (int) (nRead & nMask), false );
+                LONGS.setRelease( buffer, nReadSeq, nRead + n );
+            }
+
+            return n;
+        }
+
+        private void copy( byte[] ab, int off, int len, int nAt, boolean bPut )
+        {
+            int nFirst = Math.min( len, nCapacity - nAt );     // Until the end of the ring
+
+            if( bPut )
+            {
+                buffer.put( nData + nAt, ab, off, nFirst );
+                buffer.put( nData, ab, off + nFirst, len - nFirst );
+            }
+            else
+            {
+                buffer.get( nData + nAt, ab, off, nFirst );
+                buffer.get( nData, ab, off + nFirst, len - nFirst );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class MappedInputStream extends InputStream
+    {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException
+        {
+            return ((MappedChannel.this.read( one, 0, 1 ) < 1) ? -1 : (one[0] & 0xFF));
+        }
+
+        @Override
+        public int read( byte[] ab, int off, int len ) throws IOException
+        {
+            return MappedChannel.this.read( ab, off, len );
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min( Integer.MAX_VALUE, (long) LONGS.getAcquire( buffer, in.nWriteSeq ) -
+                                                      (long) LONGS.getOpaque(  buffer, in.nReadSeq ) );
+        }
+
+        @Override
+        public void close()
+        {
+            MappedChannel.this.close();
+        }
+    }
+
+    private final class MappedOutputStream extends OutputStream
+    {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            one[0] = (byte) b;
+            MappedChannel.this.write( one, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] ab, int off, int len ) throws IOException
+        {
+            MappedChannel.this.write( ab, off, len );
+        }
+
+        @Override
+        public void close()
+        {
+            MappedChannel.this.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.peyrona.commons.comm.MappedChannel.*;
+
+/**
+ * Creates the memory-mapped file used by MappedChannel and accepts clients:
+ * one at a time (the rings are single-producer/single-consumer).
+ * <p>
+ * For better performance, the file should be in a memory file system (e.g.
+ * /dev/shm in Linux): this way the OS never writes it to disk.
+ * <p>
+ * The file is deleted when this channel is closed.
+ *
+ * @author peyrona
+ */
+public final class MappedServerChannel implements AutoCloseable
+{
+    private final    Path                       path;
+    private final    MappedByteBuffer           buffer;
+    private final    MappedChannel.WaitStrategy wait;
+    private volatile MappedChannel              current = null;     // Session in progress
+    private volatile boolean                    bClosed = false;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates the file (an existing one is replaced) and opens it.
+     *
+     * @param path The file.
+     * @param nCapacity Bytes per ring (rounded up to a power of 2; min 4 KB).
+     * @param wait How to wait for data or room (used by accepted channels).
+     * @return A new channel.
+     * @throws IOException
+     */
+    public static MappedServerChannel bind( Path path, int nCapacity, MappedChannel.WaitStrategy wait ) throws IOException
+    {
+        int nCap = Integer.highestOneBit( Math.max( 4 * 1024, nCapacity ) - 1 ) << 1;     // Next power of 2
+
+        if( (nCap <= 0) || (nCap > (Integer.MAX_VALUE - HEADER) / 2 - RING_HEADER) )
+        {
+            throw new IllegalArgumentException( "Invalid capacity: "+ nCapacity );
+        }
+
+        MappedByteBuffer buffer;
+
+        Files.deleteIfExists( path );     // A client could still have the old one mapped
+
+        try( FileChannel fc = FileChannel.open( path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+        {
+            buffer = fc.map( FileChannel.MapMode.READ_WRITE, 0, size( nCap ) );     // New file: all zeros
+        }
+
+        LONGS.setRelease( buffer, OFF_CAPACITY, (long) nCap );
+        LONGS.setRelease( buffer, OFF_CLIENT  , CLIENT_DETACHED );    // Until ::accept() is invoked
+        LONGS.setRelease( buffer, OFF_SERVER  , 1L );
+        LONGS.setRelease( buffer, OFF_MAGIC   , MAGIC );              // Last: now clients can use it
+
+        return new MappedServerChannel( path, buffer, wait );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private MappedServerChannel( Path path, MappedByteBuffer buffer, MappedChannel.WaitStrategy wait )
+    {
+        this.path   = path;
+        this.buffer = buffer;
+        this.wait   = wait;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public boolean isOpen()
+    {
+        return (! bClosed);
+    }
+
+    /**
+     * Waits until previous client (if any) disconnects and a new one connects.
+     *
+     * @return The channel to talk with the new client.
+     * @throws IOException If this channel was closed or the thread interrupted.
+     */
+    public synchronized MappedChannel accept() throws IOException
+    {
+        if( current != null )
+        {
+            while( current.isOpen() )     // Until the session is closed at this side (accept is not a hot path: parking is OK)
+            {
+                await();
+            }
+
+            current = null;
+        }
+
+        reset();
+
+        while( (long) LONGS.getAcquire( buffer, OFF_CLIENT ) != CLIENT_ATTACHED )
+        {
+            await();
+        }
+
+        current = new MappedChannel( buffer, path, true, (long) LONGS.getAcquire( buffer, OFF_SESSION ), wait );
+
+        return current;
+    }
+
+    /**
+     * Closes this channel and the current session (if any) and deletes the
+     * file.
+     */
+    @Override
+    public void close()
+    {
+        if( ! bClosed )
+        {
+            bClosed = true;
+
+            LONGS.setRelease( buffer, OFF_SERVER, 0L );
+
+            MappedChannel mc = current;
+
+            if( mc != null )
+            {
+                mc.close();
+            }
+
+            try
+            {
+                Files.deleteIfExists( path );
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Starts a new session: counters of both rings are set to zero.
+     */
+    private void reset()
+    {
+        int nCap = (int) (long) LONGS.getAcquire( buffer, OFF_CAPACITY );
+
+        LONGS.getAndAdd( buffer, OFF_SESSION, 1L );     // First: old clients still mapping the file stop touching the rings
+
+        for( int nRing : new int[] { HEADER, HEADER + RING_HEADER + nCap } )
+        {
+            LONGS.setRelease( buffer, nRing       , 0L );
+            LONGS.setRelease( buffer, nRing + LINE, 0L );
+        }
+
+        LONGS.setRelease( buffer, OFF_CLIENT, CLIENT_FREE );
+    }
+
+    private void await() throws IOException
+    {
+        if( bClosed )
+        {
+            throw new AsynchronousCloseException();
+        }
+
+        if( Thread.currentThread().isInterrupted() )
+        {
+            throw new InterruptedIOException();
+        }
+
+        LockSupport.parkNanos( 1_000_000 );
+    }
+}
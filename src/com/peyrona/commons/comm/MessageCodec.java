@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts typed messages into bytes and back: it is used by clients
+ * (TCPClientAbstract::setCodec(...)) and servers (TCPServerAbstract::setCodec(...))
+ * instead of sending the message toString() as a line.
+ * <p>
+ * On stream connections (TCP, Unix domain and shared memory), every encoded
+ * message is preceded by a header: its length (4 bytes, big endian; it
+ * includes the id that follows) and a correlation id (8 bytes, big endian).
+ * The id is 0 unless the message is a request made using
+ * ResponseMatcher.CORRELATION_ID or its answer (ProtocolHandler answers with
+ * the same id). UDP datagrams carry the encoded messages with no header.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @author peyrona
+ * @see BinaryCodec
+ */
+public interface MessageCodec
+{
+    /**
+     * Converts passed message into bytes.
+     *
+     * @param message What to encode (can be null).
+     * @return The encoded message.
+     * @throws IOException If the message can not be encoded (e.g. unsupported type).
+     */
+    byte[] encode( Object message ) throws IOException;
+
+    /**
+     * Converts passed bytes (from position to limit) into a message.
+     *
+     * @param frame An encoded message.
+     * @return The decoded message.
+     * @throws IOException If the bytes are not a valid message.
+     */
+    Object decode( ByteBuffer frame ) throws IOException;
+
+    /**
+     * Returns the max size (in bytes) of an encoded message: bigger messages
+     * are a protocol error and the connection is closed.
+     *
+     * @return The max size of an encoded message.
+     */
+    default int getMaxFrameSize()
+    {
+        return 16 * 1024 * 1024;
+    }
+}
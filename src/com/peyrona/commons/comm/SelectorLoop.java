@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * A single thread that multiplexes many non-blocking channels using one
+ * Selector.
+ * <p>
+ * All channel operations (register, read, write, close) must be done inside
+ * the loop thread: use ::execute(...) to run code there from other threads and
+ * ::schedule(...) to run it after a delay. Handlers are invoked from the loop
+ * thread, therefore they must never block.
+ * <p>
+ * A small group of default loops (shared by all clients that do not provide
+ * their own loop) is created on demand: see ::next().
+ *
+ * @author peyrona
+ */
+public final class SelectorLoop implements Runnable
+{
+    /**
+     * Receives the selected keys for the channels registered by the handler.
+     */
+    public interface Handler
+    {
+        void onSelected( SelectionKey key ) throws IOException;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static final int            nDEFAULTS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() / 2 ) );
+    private static final SelectorLoop[] defaults  = new SelectorLoop[ nDEFAULTS ];
+    private static final AtomicInteger  nNext     = new AtomicInteger( 0 );
+
+    private final    Selector                selector;
+    private final    Thread                  thread;
+    private final    Queue<Runnable>         tasks  = new ConcurrentLinkedQueue<>();
+    private final    PriorityQueue<Schedule> timers = new PriorityQueue<>();        // Only used inside the loop thread
+    private final    AtomicInteger           nCancelled = new AtomicInteger( 0 );   // Cancelled timers still in the queue
+    private volatile boolean                 isRunning;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns one of the default loops (round-robin).
+     *
+     * @return One of the default loops.
+     */
+    public static SelectorLoop next()
+    {
+        int n = Math.abs( nNext.getAndIncrement() % nDEFAULTS );
+
+        synchronized( defaults )
+        {
+            if( defaults[n] == null )
+            {
+                try
+                {
+                    defaults[n] = new SelectorLoop( "default-"+ n );
+                }
+                catch( IOException ioe )
+                {
+                    throw new IllegalStateException( "Can not open a Selector", ioe );
+                }
+            }
+
+            return defaults[n];
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates and starts a new loop (running in a daemon thread).
+     *
+     * @param name Used to name the thread.
+     * @throws IOException If the Selector can not be opened.
+     */
+    public SelectorLoop( String name ) throws IOException
+    {
+        selector  = Selector.open();
+        isRunning = true;
+        thread    = new Thread( this, getClass().getSimpleName() +"-"+ name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns true if the caller is running inside this loop thread.
+     *
+     * @return true if the caller is running inside this loop thread.
+     */
+    public boolean inLoop()
+    {
+        return (Thread.currentThread() == thread);
+    }
+
+    /**
+     * Runs passed task inside the loop thread as soon as possible.
+     *
+     * @param task What to run.
+     */
+    public void execute( Runnable task )
+    {
+        tasks.add( task );
+
+        if( ! inLoop() )
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs passed task inside the loop thread after passed delay.
+     * <p>
+     * The delay is measured using System.nanoTime(): changes of the wall clock
+     * do not affect it. Cancelled tasks are removed from the loop as soon as
+     * they become a significant part of all scheduled tasks.
+     *
+     * @param task What to run.
+     * @param nDelayInMillis Delay.
+     * @return An object that can be used to cancel the execution.
+     */
+    public Schedule schedule( Runnable task, long nDelayInMillis )
+    {
+        Schedule sched = new Schedule( this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( Math.max( 0, nDelayInMillis ) ) );
+
+        execute( () -> { if( sched.enqueue() ) timers.add( sched ); } );
+
+        return sched;
+    }
+
+    /**
+     * Registers a channel: must be invoked from inside the loop thread.
+     *
+     * @param channel A channel in non-blocking mode.
+     * @param ops Interest set.
+     * @param handler Who receives the selected keys.
+     * @return The selection key.
+     * @throws ClosedChannelException
+     */
+    public SelectionKey register( SelectableChannel channel, int ops, Handler handler ) throws ClosedChannelException
+    {
+        if( ! inLoop() )
+        {
+            throw new IllegalStateException( "Must be invoked from the loop thread" );
+        }
+
+        return channel.register( selector, ops, handler );
+    }
+
+    /**
+     * Stops the loop and closes all registered channels.
+     * <p>
+     * Default loops can not be closed.
+     */
+    public void close()
+    {
+        synchronized( defaults )
+        {
+            for( SelectorLoop loop : defaults )
+            {
+                if( loop == this )
+                {
+                    throw new IllegalStateException( "Default loops can not be closed" );
+                }
+            }
+        }
+
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    public void run()
+    {
+        while( isRunning )
+        {
+            try
+            {
+                long wait = runTimers();
+
+                if( tasks.isEmpty() )
+                {
+                    selector.select( wait );
+                }
+                else
+                {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> itor = selector.selectedKeys().iterator();
+
+                while( itor.hasNext() )
+                {
+                    SelectionKey key = itor.next();
+                    itor.remove();
+
+                    try
+                    {
+                        ((Handler) key.attachment()).onSelected( key );
+                    }
+                    catch( Exception exc )
+                    {
+                        UtilDebug.log( Level.WARNING, exc, "Error processing selected key" );
+                    }
+                }
+
+                runTasks();
+            }
+            catch( Exception exc )      // Nothing can break the loop
+            {
+                UtilDebug.log( Level.SEVERE, exc, "Error inside selector loop" );
+            }
+        }
+
+        for( SelectionKey key : selector.keys() )
+        {
+            try{ key.channel().close(); }
+            catch( IOException e ) { }
+        }
+
+        try{ selector.close(); }
+        catch( IOException e ) { }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while( (task = tasks.poll()) != null )
+        {
+            try
+            {
+                task.run();
+            }
+            catch( Exception exc )
+            {
+                UtilDebug.log( Level.WARNING, exc, "Error running task inside selector loop" );
+            }
+        }
+    }
+
+    /**
+     * Runs expired timers and returns the millis to wait until next one (0 == no timers).
+     */
+    private long runTimers()
+    {
+        purgeTimers();
+
+        long now = System.nanoTime();
+
+        while( (! timers.isEmpty()) && (timers.peek().when - now <= 0) )
+        {
+            Schedule sched = timers.poll();
+
+            if( sched.dequeue() )
+            {
+                tasks.add( sched.task );
+            }
+        }
+
+        return (timers.isEmpty() ? 0 : Math.max( 1, TimeUnit.NANOSECONDS.toMillis( timers.peek().when - now + 999_999 ) ));    // Rounded up
+    }
+
+    /**
+     * Removes cancelled timers when they are more than half of the queue:
+     * otherwise they would stay there until their deadline (e.g. a request
+     * timeout that is cancelled every time the answer arrives).
+     */
+    private void purgeTimers()
+    {
+        int n = nCancelled.get();
+
+        if( (n > 256) && (n * 2 > timers.size()) )
+        {
+            timers.removeIf( sched -> sched.isCancelled() && (! sched.dequeue()) );     // ::dequeue() updates the counter
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A delayed task.
+     */
+    public static final class Schedule implements Comparable<Schedule>
+    {
+        private final SelectorLoop loop;
+        private final Runnable     task;
+        private final long         when;                // System.nanoTime()
+        private       boolean      cancelled = false;   // Guarded by this
+        private       boolean      queued    = false;   // Guarded by this: true while it is in the timers queue
+
+        private Schedule( SelectorLoop loop, Runnable task, long when )
+        {
+            this.loop = loop;
+            this.task = task;
+            this.when = when;
+        }
+
+        public synchronized void cancel()
+        {
+            if( ! cancelled )
+            {
+                cancelled = true;
+
+                if( queued )
+                {
+                    loop.nCancelled.incrementAndGet();
+                }
+            }
+        }
+
+        synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * Invoked by the loop before adding it to the timers queue.
+         *
+         * @return false if it was already cancelled (it must not be added).
+         */
+        synchronized boolean enqueue()
+        {
+            queued = (! cancelled);
+
+            return queued;
+        }
+
+        /**
+         * Invoked by the loop after removing it from the timers queue.
+         *
+         * @return false if it was cancelled (its task must not be run).
+         */
+        synchronized boolean dequeue()
+        {
+            queued = false;
+
+            if( cancelled )
+            {
+                loop.nCancelled.decrementAndGet();
+            }
+
+            return (! cancelled);
+        }
+
+        @Override
+        public int compareTo( Schedule other )
+        {
+            return Long.signum( when - other.when );     // nanoTime values can only be compared by subtraction
+        }
+    }
+}
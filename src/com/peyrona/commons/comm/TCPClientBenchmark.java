@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.comm.client.TCPClientClassic;
+import com.peyrona.commons.comm.server.ProtocolHandler;
+import com.peyrona.commons.comm.server.TCPServerClassic;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways TCPClientClassic can write messages (see
+ * TCPClientClassic::setBuffered(...)) over loopback: autoflush (one syscall
+ * per line), buffered (one flush per send invocation) and buffered with a
+ * linger time (sends made by many threads are coalesced).
+ * <p>
+ * Every thread sends batches of lines using ::sendLine(List); the time is
+ * measured until the server has received all of them.
+ * <p>
+ * Usage: java com.peyrona.commons.comm.TCPClientBenchmark [messages] [batch size] [threads] [message size] [linger micros]
+ *
+ * @author peyrona
+ */
+public class TCPClientBenchmark
+{
+    private static final String sEND = "END";
+
+    public static void main( String[] as ) throws Exception
+    {
+        int  nMessages = ((as.length > 0) ? Integer.parseInt( as[0] ) : 200_000);
+        int  nBatch    = ((as.length > 1) ? Integer.parseInt( as[1] ) : 10);
+        int  nThreads  = ((as.length > 2) ? Integer.parseInt( as[2] ) : 4);
+        int  nSize     = ((as.length > 3) ? Integer.parseInt( as[3] ) : 100);
+        long nLinger   = ((as.length > 4) ? Long.parseLong(   as[4] ) : 200);
+        int  nPort     = 55_124;
+
+        System.out.println( "Messages: "+ nMessages +", batch: "+ nBatch +", threads: "+ nThreads +
+                            ", message size: "+ nSize +" bytes, linger: "+ nLinger +"us" );
+
+        TCPServerClassic server = new TCPServerClassic( Echo.class );
+                         server.connect( nPort );
+
+        InetSocketAddress address = new InetSocketAddress( "127.0.0.1", server.getPort() );
+
+        try
+        {
+            run( "Autoflush"        , false, 0      , address, nMessages, nBatch, nThreads, nSize );
+            run( "Buffered"         , true , 0      , address, nMessages, nBatch, nThreads, nSize );
+            run( "Buffered + linger", true , nLinger, address, nMessages, nBatch, nThreads, nSize );
+        }
+        finally
+        {
+            server.disconnect();
+        }
+
+        System.exit( 0 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void run( String sName, boolean bBuffered, long nLinger, InetSocketAddress address,
+                             int nMessages, int nBatch, int nThreads, int nSize )
+            throws Exception
+    {
+        TCPClientClassic client = new TCPClientClassic();
+        List<Object>     batch  = new ArrayList<>();
+        int              nLoops = Math.max( 1, nMessages / (Math.max( 1, nBatch ) * Math.max( 1, nThreads )) );
+
+        for( int n = 0; n < Math.max( 1, nBatch ); n++ )
+        {
+            batch.add( '-'+ "x".repeat( Math.max( 1, nSize ) ) );       // Not answered by Echo
+        }
+
+        client.setBuffered( bBuffered, nLinger );
+        client.setRequestTimeout( 60_000 );
+        client.connect( address );
+
+        while( ! client.isConnected() )
+        {
+            Thread.sleep( 10 );
+        }
+
+        send( client, batch, Math.min( nLoops, 1_000 ), nThreads );       // Warm up
+        client.request( sEND ).get( 60, TimeUnit.SECONDS );
+
+        long nStart = System.nanoTime();
+
+        send( client, batch, nLoops, nThreads );
+        client.request( sEND ).get( 60, TimeUnit.SECONDS );       // Answered after all previous ones were received
+
+        double nSecs = (System.nanoTime() - nStart) / 1e9;
+        long   nSent = (long) nLoops * batch.size() * Math.max( 1, nThreads );
+
+        client.disconnect();
+
+        System.out.println();
+        System.out.println( sName );
+        System.out.println( "\tThroughput  : "+ Math.round( nSent / nSecs ) +" msgs/s ("+ nSent +" msgs in "+ Math.round( nSecs * 1000 ) +" ms)" );
+    }
+
+    private static void send( TCPClientClassic client, List<Object> batch, int nLoops, int nThreads ) throws InterruptedException
+    {
+        Thread[] threads = new Thread[ Math.max( 1, nThreads ) ];
+
+        for( int t = 0; t < threads.length; t++ )
+        {
+            threads[t] = new Thread( () ->
+                                    {
+                                        for( int n = 0; n < nLoops; n++ )
+                                        {
+                                            client.sendLine( batch );
+                                        }
+                                    } );
+            threads[t].start();
+        }
+
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    public static final class Echo extends ProtocolHandler
+    {
+        public Echo( Socket socket ) throws IOException
+        {
+            super( socket );
+        }
+
+        @Override
+        protected Object process( String sMsg )
+        {
+            return (sMsg.startsWith( "-" ) ? null : sMsg);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.lang.LatencyHistogram;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS configuration shared by TCP servers and clients.
+ * <p>
+ * An instance wraps an SSLContext and must be reused across reconnections:
+ * the context holds the session cache that allows a reconnecting peer to
+ * resume its previous session (abbreviated handshake) instead of paying a full
+ * one. Session tickets (stateless resumption) are enabled by the JDK by
+ * default (jdk.tls.server.enableSessionTicketExtension), so the server does
+ * not need to keep state for every device.
+ * <p>
+ * Handshakes are counted (full, resumed and failed) and timed: this allows to
+ * check that reconnect storms are really cheap.
+ * <p>
+ * Client sockets check that the server certificate belongs to the host they
+ * connect to (as HTTPS does): otherwise any trusted certificate issued for
+ * any other host would be accepted. This can be switched off (only for tests
+ * or closed networks) by ::setHostVerification(false).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class TLSConfig
+{
+    private final SSLContext       context;
+    private final LatencyHistogram latency  = new LatencyHistogram();
+    private final LongAdder        full     = new LongAdder();
+    private final LongAdder        resumed  = new LongAdder();
+    private final LongAdder        failed   = new LongAdder();
+    private       int              nTimeout = 0;
+    private       boolean          bVerify  = true;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance using a key store that holds both: the key used by
+     * the server and the certificates trusted by the client (useful for self
+     * signed certificates).
+     *
+     * @param keyStore A PKCS12 or JKS key store file.
+     * @param password Key store password.
+     * @return A new instance.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static TLSConfig fromKeyStore( File keyStore, char[] password ) throws IOException, GeneralSecurityException
+    {
+        KeyStore ks = KeyStore.getInstance( KeyStore.getDefaultType() );
+
+        try( InputStream is = new FileInputStream( keyStore ) )
+        {
+            ks.load( is, password );
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+                          kmf.init( ks, password );
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+                            tmf.init( ks );
+
+        SSLContext ctx = SSLContext.getInstance( "TLS" );
+                   ctx.init( kmf.getKeyManagers(), tmf.getTrustManagers(), null );
+
+        return new TLSConfig( ctx );
+    }
+
+    /**
+     * Creates an instance that uses the JVM default trust store (only valid
+     * for clients).
+     *
+     * @return A new instance.
+     * @throws GeneralSecurityException
+     */
+    public static TLSConfig forClient() throws GeneralSecurityException
+    {
+        return new TLSConfig( SSLContext.getDefault() );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public TLSConfig( SSLContext context )
+    {
+        this.context = context;
+
+        setSessionCache( 4 * 1024, 24 * 60 * 60 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public SSLContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Sets the size and life time of the (server and client) session caches.
+     * Note: session tickets do not use the server cache.
+     *
+     * @param nSize Maximum number of sessions to keep (0 == no limit).
+     * @param nTimeoutInSeconds Seconds a session can be resumed (0 == no limit).
+     * @return Itself.
+     */
+    public TLSConfig setSessionCache( int nSize, int nTimeoutInSeconds )
+    {
+        context.getServerSessionContext().setSessionCacheSize( nSize );
+        context.getServerSessionContext().setSessionTimeout( nTimeoutInSeconds );
+        context.getClientSessionContext().setSessionCacheSize( nSize );
+        context.getClientSessionContext().setSessionTimeout( nTimeoutInSeconds );
+
+        return this;
+    }
+
+    /**
+     * Maximum time (in millis) that a handshake can last (0 == no limit).
+     *
+     * @param millis Maximum time that a handshake can last.
+     * @return Itself.
+     */
+    public synchronized TLSConfig setHandshakeTimeout( int millis )
+    {
+        nTimeout = Math.max( 0, millis );
+
+        return this;
+    }
+
+    /**
+     * Defines if client sockets check that the server certificate was issued
+     * for the host they connect to (true by default).
+     * <p>
+     * Switching it off allows man-in-the-middle attacks: do it only when the
+     * trusted certificates are under control (e.g. a self signed one).
+     *
+     * @param bVerify false to accept a trusted certificate for any host.
+     * @return Itself.
+     */
+    public synchronized TLSConfig setHostVerification( boolean bVerify )
+    {
+        this.bVerify = bVerify;
+
+        return this;
+    }
+
+    public synchronized boolean isHostVerification()
+    {
+        return bVerify;
+    }
+
+    public long getFullHandshakes()
+    {
+        return full.sum();
+    }
+
+    public long getResumedHandshakes()
+    {
+        return resumed.sum();
+    }
+
+    public long getFailedHandshakes()
+    {
+        return failed.sum();
+    }
+
+    /**
+     * Returns the histogram with the duration (in nanoseconds) of all
+     * successful handshakes.
+     *
+     * @return The histogram with the duration of all successful handshakes.
+     */
+    public LatencyHistogram getHandshakeLatency()
+    {
+        return latency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TLSConfig{full="+ getFullHandshakes() +", resumed="+ getResumedHandshakes() +
+                       ", failed="+ getFailedHandshakes() +", latency={"+ latency +"}}";
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a non bound server socket.
+     *
+     * @return A non bound server socket.
+     * @throws IOException
+     */
+    public ServerSocket createServerSocket() throws IOException
+    {
+        return context.getServerSocketFactory().createServerSocket();
+    }
+
+    /**
+     * Creates a client socket and completes the handshake.
+     *
+     * @param address Where to connect.
+     * @param nConnectTimeout In millis (0 == no limit).
+     * @return A client socket that already completed the handshake.
+     * @throws IOException
+     */
+    public Socket createSocket( InetSocketAddress address, int nConnectTimeout ) throws IOException
+    {
+        Socket    plain  = new Socket();
+        SSLSocket socket = null;
+
+        try
+        {
+            plain.connect( address, nConnectTimeout );
+
+            // Host and port are needed by the client session cache to find the session to resume
+            socket = (SSLSocket) context.getSocketFactory().createSocket( plain, address.getHostString(), address.getPort(), true );
+            socket.setUseClientMode( true );
+
+            if( isHostVerification() )
+            {
+                SSLParameters params = socket.getSSLParameters();
+                              params.setEndpointIdentificationAlgorithm( "HTTPS" );
+                socket.setSSLParameters( params );
+            }
+
+            handshake( socket );
+        }
+        catch( IOException ioe )
+        {
+            try{ plain.close(); }
+            catch( IOException e ) { }
+
+            throw ioe;
+        }
+
+        return socket;
+    }
+
+    /**
+     * Performs (and measures) the handshake for passed socket.
+     *
+     * @param socket The socket to make the handshake for.
+     * @throws IOException If the handshake failed.
+     */
+    public void handshake( SSLSocket socket ) throws IOException
+    {
+        int  nOldTimeout = socket.getSoTimeout();
+        long nStartMillis;
+        long nStartNanos;
+
+        synchronized( this )
+        {
+            if( nTimeout > 0 )
+            {
+                socket.setSoTimeout( nTimeout );
+            }
+        }
+
+        nStartMillis = System.currentTimeMillis();
+        nStartNanos  = System.nanoTime();
+
+        try
+        {
+            socket.startHandshake();
+
+            latency.record( System.nanoTime() - nStartNanos );
+
+            if( socket.getSession().getCreationTime() < nStartMillis )    // Session existed before: it was resumed
+            {
+                resumed.increment();
+            }
+            else
+            {
+                full.increment();
+            }
+        }
+        catch( IOException ioe )
+        {
+            failed.increment();
+            throw ioe;
+        }
+        finally
+        {
+            if( ! socket.isClosed() )     // A failed handshake could have closed it
+            {
+                socket.setSoTimeout( nOldTimeout );
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.comm.client.TCPClientAbstract;
+import com.peyrona.commons.comm.client.TCPClientClassic;
+import com.peyrona.commons.comm.client.UDPClient;
+import com.peyrona.commons.comm.server.ProtocolHandler;
+import com.peyrona.commons.comm.server.TCPServerAbstract;
+import com.peyrona.commons.comm.server.TCPServerClassic;
+import com.peyrona.commons.comm.server.UDPServer;
+import com.peyrona.commons.lang.LatencyHistogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares UDP (UDPServer and UDPClient) with TCP (TCPServerClassic and
+ * TCPClientClassic) over loopback: request/response latency and one-way
+ * throughput. For UDP, the percentage of one-way messages that arrived and
+ * the number of messages packed per datagram are also shown.
+ * <p>
+ * Usage: java com.peyrona.commons.comm.UDPBenchmark [requests] [messages] [message size]
+ *
+ * @author peyrona
+ */
+public class UDPBenchmark
+{
+    private static final String sEND = "END";
+
+    public static void main( String[] as ) throws Exception
+    {
+        int nRequests = ((as.length > 0) ? Integer.parseInt( as[0] ) : 20_000);
+        int nMessages = ((as.length > 1) ? Integer.parseInt( as[1] ) : 200_000);
+        int nSize     = ((as.length > 2) ? Integer.parseInt( as[2] ) : 100);
+
+        System.out.println( "Requests: "+ nRequests +", messages: "+ nMessages +", message size: "+ nSize +" bytes" );
+
+        TCPServerClassic tcp = new TCPServerClassic( Echo.class );
+                         tcp.connect( 55_124 );
+
+        UDPServer udp = new UDPServer( Echo.class );
+                  udp.connect( 55_125 );
+
+        UDPClient client = new UDPClient();
+                  client.setRetransmit( 200, 5 );     // Loopback can also drop datagrams when buffers are full
+
+        try
+        {
+            run( "TCP loopback", tcp, new TCPClientClassic(), new InetSocketAddress( "127.0.0.1", tcp.getPort() ), nRequests, nMessages, nSize );
+            run( "UDP loopback", udp, client                , new InetSocketAddress( "127.0.0.1", udp.getPort() ), nRequests, nMessages, nSize );
+
+            System.out.println( "\tPacking     : "+ client.getMessagesSent() +" messages in "+ client.getDatagramsSent() +" datagrams, "+
+                                                     client.getRetransmissions() +" retransmissions" );
+        }
+        finally
+        {
+            tcp.disconnect();
+            udp.disconnect();
+        }
+
+        System.exit( 0 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void run( String sName, TCPServerAbstract server, TCPClientAbstract<InetSocketAddress> client, InetSocketAddress address,
+                             int nRequests, int nMessages, int nSize )
+            throws Exception
+    {
+        LatencyHistogram latency = new LatencyHistogram();
+        String           sMsg    = "x".repeat( Math.max( 1, nSize ) );
+
+        client.setRequestTimeout( 10_000 );
+        client.connect( address );
+
+        while( ! client.isConnected() )
+        {
+            Thread.sleep( 10 );
+        }
+
+        for( int n = 0; n < Math.min( nRequests, 2_000 ); n++ )      // Warm up
+        {
+            client.request( sMsg ).get();
+        }
+
+        for( int n = 0; n < nRequests; n++ )
+        {
+            long nStart = System.nanoTime();
+
+            client.request( sMsg ).get();
+            latency.record( System.nanoTime() - nStart );
+        }
+
+        long nReqs  = server.getMetrics().snapshot().getRequests();
+        long nStart = System.nanoTime();
+
+        for( int n = 0; n < nMessages; n++ )
+        {
+            client.sendLine( '-'+ sMsg );        // Not answered by Echo
+        }
+
+        client.request( sEND ).get( 60, TimeUnit.SECONDS );        // Answered after all previous ones were processed
+
+        double nSecs     = (System.nanoTime() - nStart) / 1e9;
+        long   nArrived  = server.getMetrics().snapshot().getRequests() - nReqs - 1;
+
+        client.disconnect();
+
+        System.out.println();
+        System.out.println( sName );
+        System.out.println( "\tRound trip  : mean="+ Math.round( latency.getMean() / 1000 ) +"us, p50="+ latency.getPercentile( 50 ) / 1000 +
+                                                  "us, p99="+ latency.getPercentile( 99 ) / 1000 +"us" );
+        System.out.println( "\tThroughput  : "+ Math.round( nMessages / nSecs ) +" msgs/s sent, "+
+                                                Math.round( nArrived * 100d / nMessages ) +"% arrived" );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    public static final class Echo extends ProtocolHandler
+    {
+        public Echo( Socket socket ) throws IOException
+        {
+            super( socket );
+        }
+
+        public Echo( UDPServer.Peer peer )
+        {
+            super( peer );
+        }
+
+        @Override
+        protected Object process( String sMsg )
+        {
+            return (sMsg.startsWith( "-" ) ? null : sMsg);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm;
+
+import com.peyrona.commons.comm.client.ChannelClientAbstract;
+import com.peyrona.commons.comm.client.TCPClientNIO;
+import com.peyrona.commons.comm.client.UnixSocketClient;
+import com.peyrona.commons.comm.server.ProtocolHandler;
+import com.peyrona.commons.comm.server.TCPServerAbstract;
+import com.peyrona.commons.comm.server.TCPServerClassic;
+import com.peyrona.commons.comm.server.UnixSocketServer;
+import com.peyrona.commons.lang.LatencyHistogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Unix domain sockets (UnixSocketServer and UnixSocketClient) with
+ * TCP over loopback (TCPServerClassic and TCPClientNIO): request/response
+ * latency and one-way throughput.
+ * <p>
+ * Usage: java com.peyrona.commons.comm.UnixSocketBenchmark [requests] [messages] [message size]
+ *
+ * @author peyrona
+ */
+public class UnixSocketBenchmark
+{
+    private static final String sEND = "END";
+
+    public static void main( String[] as ) throws Exception
+    {
+        int  nRequests = ((as.length > 0) ? Integer.parseInt( as[0] ) : 20_000);
+        int  nMessages = ((as.length > 1) ? Integer.parseInt( as[1] ) : 200_000);
+        int  nSize     = ((as.length > 2) ? Integer.parseInt( as[2] ) : 100);
+        int  nPort     = 55_123;
+        Path path      = Files.createTempDirectory( "peyrona" ).resolve( "bench.sock" );
+
+        System.out.println( "Requests: "+ nRequests +", messages: "+ nMessages +", message size: "+ nSize +" bytes" );
+
+        TCPServerClassic tcp = new TCPServerClassic( Echo.class );
+                         tcp.connect( nPort );
+
+        UnixSocketServer unix = new UnixSocketServer( Echo.class, path );
+                         unix.connect( 0 );
+
+        try
+        {
+            run( "TCP loopback", tcp , new TCPClientNIO()    , new InetSocketAddress( "127.0.0.1", tcp.getPort() ), nRequests, nMessages, nSize );
+            run( "Unix socket" , unix, new UnixSocketClient(), UnixDomainSocketAddress.of( path )                 , nRequests, nMessages, nSize );
+        }
+        finally
+        {
+            tcp.disconnect();
+            unix.disconnect();
+            Files.deleteIfExists( path.getParent() );
+        }
+
+        System.exit( 0 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static <T extends SocketAddress> void run( String sName, TCPServerAbstract server, ChannelClientAbstract<T> client, T address,
+                                                       int nRequests, int nMessages, int nSize )
+            throws Exception
+    {
+        LatencyHistogram latency = new LatencyHistogram();
+        String           sMsg    = "x".repeat( Math.max( 1, nSize ) );
+
+        client.setRequestTimeout( 10_000 );
+        client.connect( address );
+
+        for( int n = 0; n < Math.min( nRequests, 2_000 ); n++ )      // Warm up
+        {
+            client.request( sMsg ).get();
+        }
+
+        for( int n = 0; n < nRequests; n++ )
+        {
+            long nStart = System.nanoTime();
+
+            client.request( sMsg ).get();
+            latency.record( System.nanoTime() - nStart );
+        }
+
+        long nBytesIn = server.getMetrics().snapshot().getBytesIn();
+        long nStart   = System.nanoTime();
+
+        for( int n = 0; n < nMessages; n++ )
+        {
+            client.sendLine( '-'+ sMsg );        // Not answered by Echo
+        }
+
+        client.request( sEND ).get( 60, TimeUnit.SECONDS );        // Answered after all previous ones were received
+
+        double nSecs  = (System.nanoTime() - nStart) / 1e9;
+        double nMB    = (server.getMetrics().snapshot().getBytesIn() - nBytesIn) / (1024d * 1024d);
+
+        client.disconnect();
+
+        System.out.println();
+        System.out.println( sName );
+        System.out.println( "\tRound trip  : mean="+ Math.round( latency.getMean() / 1000 ) +"us, p50="+ latency.getPercentile( 50 ) / 1000 +
+                                                  "us, p99="+ latency.getPercentile( 99 ) / 1000 +"us" );
+        System.out.println( "\tThroughput  : "+ Math.round( nMessages / nSecs ) +" msgs/s, "+ Math.round( nMB / nSecs ) +" MB/s" );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    public static final class Echo extends ProtocolHandler
+    {
+        public Echo( Socket socket ) throws IOException
+        {
+            super( socket );
+        }
+
+        public Echo( SocketChannel channel ) throws IOException
+        {
+            super( channel );
+        }
+
+        @Override
+        protected Object process( String sMsg )
+        {
+            return (sMsg.startsWith( "-" ) ? null : sMsg);
+        }
+    }
+}
@@ -21,16 +21,69 @@ import com.peyrona.commons.lang.ListenerWise;
 import com.peyrona.commons.util.UtilComm;
 import com.peyrona.commons.util.UtilDebug;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Discover machines that are broadcasting UDP datagrams.
+ * <p>
+ * Received messages are parsed only when a listener asks for their contents
+ * (see BroadcastMessage). In reuse mode (see constructors) nothing is created
+ * per datagram: the same buffer, DatagramPacket and BroadcastMessage are used
+ * for all of them, so listeners must not keep them (they are only valid
+ * during the invocation). This avoids steady garbage when hundreds of
+ * machines are broadcasting.
+ * <p>
+ * Received messages also feed a table of peers (keyed by sender address):
+ * PeerListener(s) are only informed when a peer appears, when the data it
+ * broadcasts changes and when it disappears (nothing received during the
+ * number of its intervals set by ::setMaxMissed(...)), not for every
+ * repeated announcement. Departures are checked once per second by one
+ * timer shared by all consumers.
+ * <p>
+ * Besides broadcast datagrams, multicast datagrams are received for every
+ * group joined (::joinGroup(...)): this way only interested hosts process
+ * discovery traffic (see BroadcastProducer).
+ * <p>
+ * By default listeners are invoked by the thread that receives datagrams:
+ * while a listener works, nothing is read and the kernel can drop datagrams
+ * (its buffer is full). In async mode (::setAsync(...)) received datagrams
+ * are put into a bounded queue and listeners are invoked by another thread,
+ * so receiving never blocks; when the queue is full, the DropPolicy decides
+ * which datagram is discarded. Both losses can be checked: ::getDropped()
+ * (queue) and ::getKernelDrops() (socket buffer).
  *
  * @author peyrona
  */
@@ -39,17 +92,46 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
     //----------------------------------------------------------------------------//
     // INNER CLASS: Interface Declaration
     //----------------------------------------------------------------------------//
+    public static enum DropPolicy { DROP_NEWEST, DROP_OLDEST }
+
     public static interface Listener
     {
         void onBroadcastReceived( DatagramPacket packet, BroadcastMessage message );
     }
 
+    /**
+     * Informed about changes in the table of peers.
+     */
+    public static interface PeerListener
+    {
+        void onPeerArrived( Peer peer );
+
+        void onPeerChanged( Peer peer );
+
+        void onPeerDeparted( Peer peer );
+    }
+
     //----------------------------------------------------------------------------//
 
+    private static final ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor( r -> { Thread t = new Thread( r, "BroadcastConsumer-expiry" );
+                                                                                                              t.setDaemon( true );
+                                                                                                              return t; } );
+
+    private final    Map<SocketAddress,Peer> peers         = new ConcurrentHashMap<>();
+    private final    List<PeerListener>      peerListeners = new CopyOnWriteArrayList<>();
+    private volatile int                     nMaxMissed    = 5;
+    private final    Map<List<Object>,MembershipKey> groups    = new LinkedHashMap<>();     // (group,interface) -> key (null == not joined yet)
+    private          ScheduledFuture<?>      sweeper       = null;
+    private          int                     nQueueSize    = 0;       // 0 == sync mode
+    private          DropPolicy              policy        = DropPolicy.DROP_OLDEST;
+    private volatile ThreadPoolExecutor      dispatcher    = null;    // Not null == async mode (while running)
+    private final    LongAdder               dropped       = new LongAdder();
+
     private       ExecutorService   executor = null;
     private final BroadcastListener listener = new BroadcastListener();
     private final int               nPort;
     private final int               nBufferSize;
+    private final boolean           bReuse;
 
     //----------------------------------------------------------------------------//
 
@@ -80,9 +162,25 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
      * @param nBufferSize
      */
     public BroadcastConsumer( int nPort, int nBufferSize )
+    {
+        this( nPort, nBufferSize, false );
+    }
+
+    /**
+     * Creates an instance of this class with desired port to receive UDP
+     * datagrams, desired buffer size and receive mode.
+     *
+     * @param nPort
+     * @param nBufferSize
+     * @param bReuse true to reuse same DatagramPacket and BroadcastMessage
+     *               instances for all received datagrams (listeners must not
+     *               keep them).
+     */
+    public BroadcastConsumer( int nPort, int nBufferSize, boolean bReuse )
     {
         this.nPort       = UtilComm.ensureRecommendedPort( nPort );
         this.nBufferSize = nBufferSize;
+        this.bReuse      = bReuse;
     }
 
     //----------------------------------------------------------------------------//
@@ -97,6 +195,212 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
         return nPort;
     }
 
+    public void addPeerListener( PeerListener listener )
+    {
+        if( ! peerListeners.contains( listener ) )
+        {
+            peerListeners.add( listener );
+        }
+    }
+
+    public void removePeerListener( PeerListener listener )
+    {
+        peerListeners.remove( listener );
+    }
+
+    /**
+     * Number of intervals (the one every peer announces in its messages)
+     * without receiving anything from a peer to consider that it departed. By
+     * default it is 5.
+     *
+     * @param nIntervals Number of intervals.
+     */
+    public void setMaxMissed( int nIntervals )
+    {
+        nMaxMissed = Math.max( 1, nIntervals );
+    }
+
+    /**
+     * Sets (or unsets) the async mode: received datagrams are queued and
+     * listeners are invoked by another thread. In async mode the reuse mode
+     * does not apply (every queued datagram is a copy). It has to be invoked
+     * before ::start().
+     *
+     * @param nQueueSize Max number of datagrams waiting for listeners (0 to
+     *                   go back to synchronous mode).
+     * @param policy What to discard when the queue is full (by default the
+     *               oldest datagram: discovery cares about the latest news).
+     */
+    public synchronized void setAsync( int nQueueSize, DropPolicy policy )
+    {
+        this.nQueueSize = Math.max( 0, nQueueSize );
+        this.policy     = ((policy == null) ? DropPolicy.DROP_OLDEST : policy);
+    }
+
+    public synchronized boolean isAsync()
+    {
+        return (nQueueSize > 0);
+    }
+
+    /**
+     * Returns the number of datagrams waiting for listeners (async mode).
+     *
+     * @return The number of datagrams waiting for listeners.
+     */
+    public int getQueueDepth()
+    {
+        ThreadPoolExecutor tpe = dispatcher;
+
+        return ((tpe == null) ? 0 : tpe.getQueue().size());
+    }
+
+    /**
+     * Returns the number of datagrams discarded because the queue was full
+     * (async mode).
+     *
+     * @return The number of datagrams discarded because the queue was full.
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of datagrams discarded by the kernel because the
+     * socket receive buffer was full (for all sockets bound to this port).
+     * <p>
+     * It is read from /proc/net/udp and /proc/net/udp6, so it is only
+     * available in Linux.
+     *
+     * @return The number of datagrams discarded by the kernel or -1 if it is
+     *         not available.
+     */
+    public long getKernelDrops()
+    {
+        String sPort  = String.format( ":%04X", nPort );
+        long   nDrops = -1;
+
+        for( String sFile : new String[] { "/proc/net/udp", "/proc/net/udp6" } )
+        {
+            Path path = Paths.get( sFile );
+
+            if( ! Files.isReadable( path ) )
+            {
+                continue;
+            }
+
+            try
+            {
+                for( String line : Files.readAllLines( path ) )
+                {
+                    String[] as = line.trim().split( "\\s+" );      // sl local_address rem_address st ... drops
+
+                    if( (as.length > 12) && as[1].endsWith( sPort ) )
+                    {
+                        nDrops = Math.max( nDrops, 0 ) + Long.parseLong( as[as.length - 1] );
+                    }
+                }
+            }
+            catch( IOException | NumberFormatException exc )
+            {
+                // Not available
+            }
+        }
+
+        return nDrops;
+    }
+
+    /**
+     * Receives multicast datagrams sent to passed group through passed
+     * interface (it can be invoked before or after ::start()).
+     *
+     * @param group The multicast group (e.g. 239.255.42.99).
+     * @param ni The interface to use (null == the first one that is up and
+     *           supports multicast; the loopback one if none).
+     * @throws IOException If the group can not be joined.
+     */
+    public void joinGroup( InetAddress group, NetworkInterface ni ) throws IOException
+    {
+        if( ! group.isMulticastAddress() )
+        {
+            throw new IllegalArgumentException( "Not a multicast address: "+ group );
+        }
+
+        if( ni == null )
+        {
+            ni = getMulticastInterface();
+        }
+
+        List<Object> id = Arrays.asList( group, ni );
+
+        synchronized( groups )
+        {
+            if( ! groups.containsKey( id ) )
+            {
+                DatagramChannel dc = listener.channel;
+
+                groups.put( id, (((dc != null) && dc.isOpen()) ? dc.join( group, ni ) : null) );
+            }
+        }
+    }
+
+    /**
+     * Stops receiving multicast datagrams sent to passed group through passed
+     * interface.
+     *
+     * @param group The multicast group.
+     * @param ni The interface passed to ::joinGroup(...) (null == same as in
+     *           ::joinGroup(...)).
+     * @throws SocketException
+     */
+    public void leaveGroup( InetAddress group, NetworkInterface ni ) throws SocketException
+    {
+        if( ni == null )
+        {
+            ni = getMulticastInterface();
+        }
+
+        synchronized( groups )
+        {
+            MembershipKey key = groups.remove( Arrays.asList( group, ni ) );
+
+            if( key != null )
+            {
+                key.drop();
+            }
+        }
+    }
+
+    /**
+     * Returns the multicast groups joined.
+     *
+     * @return The multicast groups joined.
+     */
+    public List<InetAddress> getGroups()
+    {
+        List<InetAddress> list = new ArrayList<>();
+
+        synchronized( groups )
+        {
+            for( List<Object> id : groups.keySet() )
+            {
+                list.add( (InetAddress) id.get( 0 ) );
+            }
+        }
+
+        return Collections.unmodifiableList( list );
+    }
+
+    /**
+     * Returns the peers that are currently alive.
+     *
+     * @return The peers that are currently alive (a copy).
+     */
+    public List<Peer> getPeers()
+    {
+        return new ArrayList<>( peers.values() );
+    }
+
     /**
      * Starts a new thread (which creates the socket) to send broadcast datagram
      * packets.
@@ -109,8 +413,16 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
     {
         if( ! isRunning() )
         {
+            if( nQueueSize > 0 )
+            {
+                dispatcher = new ThreadPoolExecutor( 1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>( nQueueSize ),
+                                                     r -> new Thread( r, BroadcastConsumer.class.getSimpleName() +"-dispatcher" ),
+                                                     getDropHandler() );
+            }
+
             executor = Executors.newSingleThreadExecutor();
             executor.execute( listener );
+            sweeper  = expirer.scheduleWithFixedDelay( this::expire, 1, 1, TimeUnit.SECONDS );
         }
     }
 
@@ -140,6 +452,157 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
                 catch( Exception e ) { }
 
                 executor = null;
+
+                if( dispatcher != null )
+                {
+                    dispatcher.shutdownNow();     // Queued datagrams are discarded
+                    dispatcher = null;
+                }
+
+                sweeper.cancel( false );
+                sweeper = null;
+                peers.clear();      // They will arrive again if started again
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the first interface that is up and supports IPv4 multicast or
+     * the loopback interface if there is none.
+     */
+    private static NetworkInterface getMulticastInterface() throws SocketException
+    {
+        Enumeration<NetworkInterface> enumera  = NetworkInterface.getNetworkInterfaces();
+        NetworkInterface              loopback = null;
+
+        while( enumera.hasMoreElements() )
+        {
+            NetworkInterface ni = enumera.nextElement();
+
+            if( ni.isUp() && ni.inetAddresses().anyMatch( ia -> ia instanceof Inet4Address ) )
+            {
+                if( ni.isLoopback() )
+                {
+                    loopback = ni;
+                }
+                else if( ni.supportsMulticast() )
+                {
+                    return ni;
+                }
+            }
+        }
+
+        if( loopback == null )
+        {
+            throw new SocketException( "There is no interface that supports multicast" );
+        }
+
+        return loopback;
+    }
+
+    /**
+     * Counts discarded datagrams (the receiver thread never waits).
+     */
+    private RejectedExecutionHandler getDropHandler()
+    {
+        if( policy == DropPolicy.DROP_NEWEST )
+        {
+            return (task, tpe) -> dropped.increment();
+        }
+
+        return (task, tpe) ->
+                {
+                    if( ! tpe.isShutdown() )
+                    {
+                        if( tpe.getQueue().poll() != null )
+                        {
+                            dropped.increment();
+                        }
+
+                        if( ! tpe.getQueue().offer( task ) )     // Only this thread adds: it can not be full now (just in case)
+                        {
+                            dropped.increment();
+                        }
+                    }
+                };
+    }
+
+    /**
+     * Updates the table of peers and informs listeners about a received
+     * datagram.
+     */
+    private void dispatch( SocketAddress from, byte[] data, int nLength, DatagramPacket packet, BroadcastMessage message )
+    {
+        track( from, data, nLength );
+
+        for( BroadcastConsumer.Listener l : getAllListeners() )
+        {
+            try
+            {
+                l.onBroadcastReceived( packet, message );
+            }
+            catch( Exception exc )   // Exception thrown inside listener (e.g. a malformed message)
+            {
+                UtilDebug.log( exc );
+            }
+        }
+    }
+
+    /**
+     * Updates the table of peers with a received datagram.
+     */
+    private void track( SocketAddress from, byte[] data, int nLength )
+    {
+        Peer peer = peers.get( from );
+
+        if( peer == null )
+        {
+            peer = new Peer( from, data, nLength );
+            peers.put( from, peer );
+            firePeer( peer, 0 );
+        }
+        else if( peer.update( data, nLength ) )
+        {
+            firePeer( peer, 1 );
+        }
+    }
+
+    /**
+     * Removes the peers that were not heard for too long (invoked by the timer).
+     */
+    private void expire()
+    {
+        long now = System.currentTimeMillis();
+
+        for( Peer peer : peers.values() )
+        {
+            long nLimit = Math.max( 1, peer.getInterval() ) * nMaxMissed;
+
+            if( (now - peer.nLastSeen > nLimit) && peers.remove( peer.address, peer ) )
+            {
+                firePeer( peer, 2 );
+            }
+        }
+    }
+
+    private void firePeer( Peer peer, int nEvent )
+    {
+        for( PeerListener pl : peerListeners )
+        {
+            try
+            {
+                switch( nEvent )
+                {
+                    case 0 : pl.onPeerArrived(  peer ); break;
+                    case 1 : pl.onPeerChanged(  peer ); break;
+                    default: pl.onPeerDeparted( peer );
+                }
+            }
+            catch( Exception exc )   // Exception thrown inside listener
+            {
+                UtilDebug.log( exc );
             }
         }
     }
@@ -153,12 +616,123 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
         super.finalize();
     }
 
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A machine that is broadcasting.
+     */
+    public static final class Peer
+    {
+        private final    SocketAddress    address;
+        private final    long             nFirstSeen = System.currentTimeMillis();
+        private volatile long             nLastSeen  = nFirstSeen;
+        private volatile BroadcastMessage message;
+        private volatile long             nInterval;
+        private          byte[]           data;         // Last received bytes (only used by the receiver thread)
+
+        private Peer( SocketAddress address, byte[] received, int nLength )
+        {
+            this.address = address;
+
+            set( received, nLength );
+        }
+
+        public SocketAddress getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Returns the last message received from this peer.
+         *
+         * @return The last message received from this peer.
+         */
+        public BroadcastMessage getMessage()
+        {
+            return message;
+        }
+
+        /**
+         * Returns the interval announced by this peer (30 seconds if the
+         * message is malformed).
+         *
+         * @return The interval announced by this peer.
+         */
+        public long getInterval()
+        {
+            return nInterval;
+        }
+
+        public long getFirstSeen()
+        {
+            return nFirstSeen;
+        }
+
+        public long getLastSeen()
+        {
+            return nLastSeen;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Peer{address="+ address +", firstSeen="+ nFirstSeen +", lastSeen="+ nLastSeen +", message="+ message +'}';
+        }
+
+        /**
+         * Returns true if received bytes are not the same as the previous ones.
+         */
+        private boolean update( byte[] received, int nLength )
+        {
+            nLastSeen = System.currentTimeMillis();
+
+            if( Arrays.equals( data, 0, data.length, received, 0, nLength ) )     // Nothing is created when it did not change
+            {
+                return false;
+            }
+
+            set( received, nLength );
+
+            return true;
+        }
+
+        /**
+         * The message is parsed here (only when it changes) because it is read
+         * by other threads (BroadcastMessage is not thread safe).
+         */
+        private void set( byte[] received, int nLength )
+        {
+            BroadcastMessage msg = new BroadcastMessage( Arrays.copyOf( received, nLength ) );
+            long             nMillis;
+
+            try
+            {
+                msg.getData();
+                nMillis = msg.getInterval();
+            }
+            catch( RuntimeException exc )     // Malformed
+            {
+                UtilDebug.log( exc );
+                nMillis = 30 * 1000;
+            }
+
+            data      = Arrays.copyOf( received, nLength );
+            nInterval = nMillis;
+            message   = msg;
+        }
+    }
+
     //----------------------------------------------------------------------------//
     // INNER CLASS
     //----------------------------------------------------------------------------//
     private final class BroadcastListener extends CommReceiver
     {
-        private DatagramSocket socket = null;
+        private volatile DatagramChannel channel = null;
+        private ByteBuffer       buffer  = null;     // Direct: the channel reads into it without an intermediate copy
+        private byte[]           data    = null;     // Following 3 are only used in reuse mode
+        private DatagramPacket   packet  = null;
+        private BroadcastMessage message = null;
 
         //-----------------------------------------------------------------------//
 
@@ -172,50 +746,125 @@ public class BroadcastConsumer extends ListenerWise<BroadcastConsumer.Listener>
         @Override
         public void readSocket() throws IOException
         {
-            DatagramPacket packet = new DatagramPacket( new byte[nBufferSize], nBufferSize ); // Must be recreated (can't be reused)
+            buffer.clear();
 
-            socket.receive( packet );
+            SocketAddress from = channel.receive( buffer );     // Same instance while the sender does not change
+            int           nLen = buffer.position();
 
-            if( packet.getLength() == 0 )
+            if( nLen == 0 )     // Nothing to do with an empty datagram
             {
-                throw new IOException( "Channel is not operative." );
+                return;
             }
 
-            byte[]           data = Arrays.copyOfRange( packet.getData(), packet.getOffset(), packet.getLength() );
-            BroadcastMessage msg  = new BroadcastMessage( data );
+            ThreadPoolExecutor tpe = dispatcher;
 
-            // Fires event
-            for( BroadcastConsumer.Listener listener : getAllListeners() )
+            buffer.flip();
+
+            if( tpe != null )
             {
-                try
+                byte[] ab = new byte[ nLen ];
+
+                buffer.get( ab );
+                tpe.execute( () -> dispatch( from, ab, nLen, new DatagramPacket( ab, nLen, from ), new BroadcastMessage( ab ) ) );
+            }
+            else if( bReuse )
+            {
+                buffer.get( data, 0, nLen );
+                packet.setData( data, 0, nLen );
+                packet.setSocketAddress( from );
+                message.wrap( data, nLen );
+
+                dispatch( from, data, nLen, packet, message );
+            }
+            else
+            {
+                byte[] ab = new byte[ nLen ];
+
+                buffer.get( ab );
+
+                dispatch( from, ab, nLen, new DatagramPacket( ab, nLen, from ), new BroadcastMessage( ab ) );
+            }
+        }
+
+        @Override
+        protected void createSocket() throws IOException
+        {
+            if( channel == null )
+            {
+                DatagramChannel dc;
+
+                synchronized( groups )
                 {
-                    listener.onBroadcastReceived( packet, msg );
+                    boolean bIPv6 = groups.keySet().stream().anyMatch( id -> id.get( 0 ) instanceof Inet6Address );
+
+                    dc = DatagramChannel.open( bIPv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET );
+
+                    try
+                    {
+                        dc.setOption( StandardSocketOptions.SO_REUSEADDR, true );     // Must be set before binding
+                        dc.bind( new InetSocketAddress( getPort() ) );
+
+                        for( Map.Entry<List<Object>,MembershipKey> entry : groups.entrySet() )
+                        {
+                            entry.setValue( dc.join( (InetAddress) entry.getKey().get( 0 ), (NetworkInterface) entry.getKey().get( 1 ) ) );
+                        }
+                    }
+                    catch( IOException ioe )
+                    {
+                        dc.close();
+                        throw ioe;
+                    }
+
+                    channel = dc;     // Inside the lock: ::joinGroup(...) must see it
                 }
-                catch( Exception exc )   // Exception thrown inside listener
+
+                if( buffer == null )
                 {
-                    UtilDebug.log( exc );
+                    buffer = ByteBuffer.allocateDirect( nBufferSize );
+
+                    if( bReuse )
+                    {
+                        data    = new byte[ nBufferSize ];
+                        packet  = new DatagramPacket( data, nBufferSize );
+                        message = new BroadcastMessage( data );
+                    }
                 }
             }
         }
 
         @Override
-        protected void createSocket() throws SocketException
+        protected void destroySocket() throws IOException
         {
-            if( socket == null )
+            if( channel != null )
             {
-                socket = new DatagramSocket( getPort() );
-                socket.setReuseAddress( true );
+                try
+                {
+                    channel.close();     // Memberships are dropped
+                }
+                finally
+                {
+                    channel = null;
+
+                    synchronized( groups )
+                    {
+                        groups.replaceAll( (id,key) -> null );
+                    }
+                }
             }
         }
 
         @Override
-        protected void destroySocket()
+        public void interrupt()
         {
-            if( socket != null )
+            super.interrupt();
+
+            DatagramChannel dc = channel;     // Unblocks ::receive(...)
+
+            if( dc != null )
             {
-                socket.close();
-                socket = null;
+                try{ dc.close(); }
+                catch( IOException ioe ) { }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -18,10 +18,16 @@ package com.peyrona.commons.comm.broadcast;
 
 import com.peyrona.commons.ParamMap;
 import com.peyrona.commons.util.UtilConvert;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Create and manipulate Broadcast messages.
  * <p>
+ * Messages are sent using ParamMap text format or, when all consumers
+ * understand it, ParamMap binary format (see BroadcastProducer::setBinary(...)
+ * and ParamMap::encode(...)). Received messages can be in either format.
+ * <p>
  * This class does not needs to be thread-safe and it is not.
  * @author peyrona
  */
@@ -29,8 +35,12 @@ public class BroadcastMessage
 {
     private final static String sINTERVAL = "interval";
 
-    private       long     nInterval;  // Interval used to send two consecutive messaages.
-    private final ParamMap mapParams;
+    private long       nInterval;     // Interval used to send two consecutive messaages (-1 == not read yet)
+    private ParamMap   mapParams;     // null == received bytes not parsed yet
+    private byte[]     received;      // Received bytes (parsed only when asked)
+    private int        nReceived;
+    private int        nAscii;        // 1 == received bytes are ASCII, 0 == they are not, -1 == not checked yet
+    private ByteBuffer view = null;   // Wraps received bytes
 
     //----------------------------------------------------------------------------//
     // PROTECTED CONSTRUCTORS
@@ -44,7 +54,8 @@ public class BroadcastMessage
     }
 
     /**
-     * Used by the BroadcastConsumer.
+     * Used by the BroadcastConsumer: bytes are parsed only when asked (see
+     * ::getData(), ::getInterval() and ::getValue(...)).
      *
      * @param buffer
      */
@@ -58,8 +69,7 @@ public class BroadcastMessage
         }
         else
         {
-            mapParams = ParamMap.deserialize( new String( buffer ) );
-            nInterval = mapParams.getLong( sINTERVAL );
+            wrap( buffer, buffer.length );
         }
     }
 
@@ -73,9 +83,41 @@ public class BroadcastMessage
      */
     public ParamMap getData()
     {
+        if( mapParams == null )
+        {
+            mapParams = (isBinary() ? ParamMap.decode( view() )
+                                    : ParamMap.deserialize( new String( received, 0, nReceived ) ));
+        }
+
         return mapParams;
     }
 
+    /**
+     * Returns the value of passed parameter or null if it does not exist.
+     * <p>
+     * For a received message, it is read directly from the received bytes
+     * (::getData() is cheaper when many values are needed).
+     *
+     * @param name Parameter name.
+     * @return The value of passed parameter or null if it does not exist.
+     */
+    public String getValue( String name )
+    {
+        if( isBinary() )
+        {
+            return ParamMap.decodeValue( view(), name );
+        }
+
+        int ndx = find( name.trim().toLowerCase() );
+
+        switch( ndx )
+        {
+            case -1: return null;
+            case -2: return getData().getString( name, null );
+            default: return new String( received, ndx + 1, received[ndx] );
+        }
+    }
+
     /**
      * Returns the interval used to send two consecutive messaages.
      * <p>
@@ -89,13 +131,30 @@ public class BroadcastMessage
      */
     public long getInterval()
     {
+        if( nInterval < 0 && isBinary() )
+        {
+            nInterval = ParamMap.decodeLong( view(), sINTERVAL, 30 * UtilConvert.SECOND );     // No String is created
+        }
+
+        if( nInterval < 0 )
+        {
+            int ndx = find( sINTERVAL );
+
+            switch( ndx )
+            {
+                case -1: nInterval = 30 * UtilConvert.SECOND;     break;
+                case -2: nInterval = getData().getLong( sINTERVAL ); break;
+                default: nInterval = toLong( ndx + 1, received[ndx] );   // No String is created
+            }
+        }
+
         return nInterval;
     }
 
     @Override
     public String toString()
     {
-        return "BroadcastMessage{" + "interval = "  + nInterval + ", extraData = " + mapParams + '}';
+        return "BroadcastMessage{" + "interval = "  + getInterval() + ", extraData = " + getData() + '}';
     }
 
     //----------------------------------------------------------------------------//
@@ -107,5 +166,178 @@ public class BroadcastMessage
     protected void setInterval( long millis )
     {
         nInterval = millis;
+        mapParams.put( sINTERVAL, nInterval );     // Consumers read it from here
+    }
+
+    /**
+     * Used by BroadcastConsumer to reuse this instance for a new received
+     * datagram (passed array is not copied).
+     *
+     * @param buffer Received bytes.
+     * @param nLength Number of bytes.
+     */
+    void wrap( byte[] buffer, int nLength )
+    {
+        received  = buffer;
+        nReceived = nLength;
+        mapParams = null;
+        nInterval = -1;
+        nAscii    = -1;
+    }
+
+    /**
+     * Used by BroadcastProducer: returns the message encoded (in a direct
+     * buffer, ready to be sent).
+     *
+     * @param bBinary true to use ParamMap binary format, false to use its
+     *                text format.
+     * @return The message encoded.
+     */
+    ByteBuffer encode( boolean bBinary )
+    {
+        ParamMap   map = getData();
+        ByteBuffer bb;
+
+        if( ! bBinary )
+        {
+            byte[] ab = map.serialize().getBytes();
+
+            return ByteBuffer.allocateDirect( ab.length ).put( ab ).flip();
+        }
+
+        while( true )
+        {
+            bb = ByteBuffer.allocateDirect( map.getEncodedSize() );
+
+            try
+            {
+                map.encode( bb );
+                return bb.flip();
+            }
+            catch( BufferOverflowException boe )
+            {
+                // The map grew meanwhile: try again
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns true if received bytes (not parsed yet) use ParamMap binary
+     * format.
+     */
+    private boolean isBinary()
+    {
+        return (mapParams == null) && (received != null) && ParamMap.isEncoded( view() );
+    }
+
+    /**
+     * Returns received bytes wrapped (the same instance while the array does
+     * not change).
+     */
+    private ByteBuffer view()
+    {
+        if( (view == null) || (view.array() != received) )
+        {
+            view = ByteBuffer.wrap( received );
+        }
+
+        view.limit( nReceived ).position( 0 );
+
+        return view;
+    }
+
+    /**
+     * Looks for passed parameter in the received bytes.
+     *
+     * @return The index of the value length (the value follows it), -1 if it
+     *         does not exist or -2 if the bytes can not be used directly (they
+     *         are already parsed, not ASCII or malformed).
+     */
+    private int find( String key )
+    {
+        if( (mapParams != null) || ! isAscii() )
+        {
+            return -2;
+        }
+
+        int ndx = 0;
+
+        while( ndx < nReceived )
+        {
+            int nKey   = received[ndx++];
+            int nValue = ((ndx + nKey < nReceived) ? received[ndx + nKey] : -1);
+
+            if( nValue < 0 || ndx + nKey + 1 + nValue > nReceived )     // Malformed: ParamMap decides what to do
+            {
+                return -2;
+            }
+
+            if( (nKey == key.length()) && matches( ndx, key ) )
+            {
+                return ndx + nKey;
+            }
+
+            ndx += nKey + 1 + nValue;
+        }
+
+        return -1;
+    }
+
+    private long toLong( int nFrom, int nLength )
+    {
+        long    value = 0;
+        boolean bNeg  = (nLength > 0) && (received[nFrom] == '-');
+
+        for( int n = (bNeg ? 1 : 0); n < nLength; n++ )
+        {
+            int digit = received[nFrom + n] - '0';
+
+            if( digit < 0 || digit > 9 )
+            {
+                throw new NumberFormatException( "Invalid interval: "+ new String( received, nFrom, nLength ) );
+            }
+
+            value = value * 10 + digit;
+        }
+
+        return (bNeg ? -value : value);
+    }
+
+    /**
+     * Lengths are written as chars: bytes can be used as they are only when
+     * all of them are ASCII (otherwise the String has to be decoded).
+     */
+    private boolean isAscii()
+    {
+        if( nAscii < 0 )
+        {
+            nAscii = 1;
+
+            for( int n = 0; n < nReceived; n++ )
+            {
+                if( received[n] < 0 )
+                {
+                    nAscii = 0;
+                    break;
+                }
+            }
+        }
+
+        return (nAscii == 1);
+    }
+
+    private boolean matches( int nFrom, String key )
+    {
+        for( int n = 0; n < key.length(); n++ )
+        {
+            if( received[nFrom + n] != key.charAt( n ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
     }
 }
\ No newline at end of file
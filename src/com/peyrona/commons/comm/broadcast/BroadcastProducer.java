@@ -19,27 +19,61 @@ package com.peyrona.commons.comm.broadcast;
 import com.peyrona.commons.util.UtilComm;
 import com.peyrona.commons.util.UtilDebug;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 /**
+ * Periodically sends a BroadcastMessage (UDP) so BroadcastConsumers in the
+ * same network can discover this machine.
+ * <p>
+ * When no group (address) is specified, the message is sent to the broadcast
+ * address of every site-local (intranet) IPv4 interface, so it reaches all
+ * networks this machine belongs to.
+ * <p>
+ * When the group is a multicast address (e.g. 239.255.42.99), messages are
+ * sent to that group and only hosts that joined it (see BroadcastConsumer)
+ * process them: time to live (by default 1: only the local network) and the
+ * interface to send through can be set before ::start(). It can be tested on
+ * the loopback interface.
+ * <p>
+ * One channel is opened by ::start() and used until ::stop() and the message
+ * is encoded only once (into a direct buffer): every tick just sends those
+ * bytes. If the message data is changed while broadcasting, ::update() has
+ * to be invoked: the new bytes replace the old ones atomically (next tick
+ * sends them).
  *
  * @author peyrona
  */
 public class BroadcastProducer
 {
-    private final InetAddress              group;
-    private final BroadcastMessage         message;
-    private final long                     nInterval;
-    private final int                      nPort;      // Broadcasting port (this is not the accepting connections port)
-    private       byte[]                   msgData;
-    private       ScheduledExecutorService executor;
+    private final    InetAddress              group;      // null == all site-local interfaces
+    private final    BroadcastMessage         message;
+    private final    long                     nInterval;
+    private final    int                      nPort;      // Broadcasting port (this is not the accepting connections port)
+    private volatile ByteBuffer               payload  = null;    // Encoded message (read-only for the sender)
+    private          int                      nTTL     = 1;       // Multicast only
+    private          NetworkInterface         netIface = null;    // Multicast only (null == OS decides)
+    private volatile boolean                  bBinary  = false;   // ParamMap binary format (opt-in: older consumers only understand text)
+    private          DatagramChannel          channel  = null;
+    private          ScheduledExecutorService executor = null;
 
     //----------------------------------------------------------------------------//
 
@@ -58,17 +92,19 @@ public class BroadcastProducer
         this( nIntervalInMillis, nPort, null );
     }
 
+    /**
+     * Creates a new instance.
+     *
+     * @param nIntervalInMillis Time between two messages.
+     * @param nPort Broadcasting port.
+     * @param group Where to send the messages: a multicast group, a host or
+     *              a broadcast address (null == to the broadcast address of
+     *              every site-local interface).
+     * @throws SocketException
+     * @throws UnknownHostException
+     */
     public BroadcastProducer( long nIntervalInMillis, int nPort, InetAddress group ) throws SocketException, UnknownHostException
     {
-        if( group == null )
-        {
-            InetAddress ip = UtilComm.getLocalIntranetIP().iterator().next();  // FIXME <<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<
-            byte[]      ab = ip.getAddress();
-                        ab[3] = (byte) 255;    // Changes last ip number to 255
-
-            group = InetAddress.getByAddress( ab );
-        }
-
         this.group     = group;
         this.nInterval = nIntervalInMillis;
         this.nPort     = UtilComm.ensureRecommendedPort( nPort );
@@ -79,6 +115,12 @@ public class BroadcastProducer
 
     //----------------------------------------------------------------------------//
 
+    /**
+     * Returns the address passed to the constructor: null means that messages
+     * are sent to every site-local interface (see ::getTargets()).
+     *
+     * @return The address passed to the constructor.
+     */
     public InetAddress getGroup()
     {
         return group;
@@ -95,67 +137,223 @@ public class BroadcastProducer
     }
 
     /**
-     * Start broadcasting messages.
-     * <p>
-     * CARE: All Message configuration must be done prior to invoking this
-     *       method. If futher configuration has to be done, the call stop(),
-     *       make chanhes and call start().
+     * Returns true if messages are sent to a multicast group.
      *
-     * @throws SocketException
+     * @return true if messages are sent to a multicast group.
      */
-    public synchronized void start() throws SocketException
+    public boolean isMulticast()
     {
-        msgData = message.getData().serialize().getBytes();
+        return (group != null) && group.isMulticastAddress();
+    }
+
+    /**
+     * Multicast only: number of routers multicast messages can cross (0 ==
+     * this host only, 1 == local network). By default it is 1. It has to be
+     * invoked before ::start().
+     *
+     * @param nHops Time to live (from 0 to 255).
+     * @return Itself.
+     */
+    public synchronized BroadcastProducer setTimeToLive( int nHops )
+    {
+        if( nHops < 0 || nHops > 255 )
+        {
+            throw new IllegalArgumentException( "Invalid TTL: "+ nHops );
+        }
 
-        executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleWithFixedDelay( new DatagramSender(), 0, nInterval, TimeUnit.MILLISECONDS );
+        nTTL = nHops;
+        return this;
     }
 
-    public synchronized void stop()
+    /**
+     * Multicast only: the interface used to send messages (null == the OS
+     * decides). It has to be invoked before ::start().
+     *
+     * @param ni The interface (e.g. NetworkInterface.getByName( "lo" )).
+     * @return Itself.
+     */
+    public synchronized BroadcastProducer setNetworkInterface( NetworkInterface ni )
+    {
+        netIface = ni;
+        return this;
+    }
+
+    /**
+     * Returns the addresses the message is sent to: the group (if one was
+     * specified) or the broadcast address of every site-local IPv4 interface
+     * that is up (checked every time this method is invoked).
+     *
+     * @return The addresses the message is sent to.
+     * @throws SocketException
+     */
+    public List<InetSocketAddress> getTargets() throws SocketException
     {
-        try
+        if( group != null )
         {
-            executor.shutdown();
-            executor.awaitTermination( 2L, TimeUnit.SECONDS );
+            return Collections.singletonList( new InetSocketAddress( group, nPort ) );
         }
-        catch( InterruptedException ex )
+
+        List<InetSocketAddress>       targets = new ArrayList<>();
+        Enumeration<NetworkInterface> enumera = NetworkInterface.getNetworkInterfaces();
+
+        while( enumera.hasMoreElements() )
         {
-            // Nothing to do
+            NetworkInterface ni = enumera.nextElement();
+
+            if( ni.isUp() && ! ni.isLoopback() )
+            {
+                for( InterfaceAddress ia : ni.getInterfaceAddresses() )
+                {
+                    InetAddress address   = ia.getAddress();
+                    InetAddress broadcast = ia.getBroadcast();      // Takes the netmask into account
+
+                    if( (address instanceof Inet4Address) && address.isSiteLocalAddress() && (broadcast != null) )
+                    {
+                        InetSocketAddress target = new InetSocketAddress( broadcast, nPort );
+
+                        if( ! targets.contains( target ) )
+                        {
+                            targets.add( target );
+                        }
+                    }
+                }
+            }
         }
-        finally
+
+        return targets;
+    }
+
+    /**
+     * Start broadcasting messages.
+     * <p>
+     * Calling on a BroadcastProducer that is already started has no effect.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException
+    {
+        if( executor == null )
         {
-            executor.shutdownNow();
+            update();
+
+            channel = DatagramChannel.open( (group instanceof Inet6Address) ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET );
+
+            if( isMulticast() )
+            {
+                channel.setOption( StandardSocketOptions.IP_MULTICAST_TTL , nTTL );
+                channel.setOption( StandardSocketOptions.IP_MULTICAST_LOOP, true );     // Consumers in this host also receive them
+
+                if( netIface != null )
+                {
+                    channel.setOption( StandardSocketOptions.IP_MULTICAST_IF, netIface );
+                }
+            }
+            else
+            {
+                channel.setOption( StandardSocketOptions.SO_BROADCAST, true );
+            }
+
+            executor = Executors.newSingleThreadScheduledExecutor( r -> new Thread( r, BroadcastProducer.class.getSimpleName() +"-"+ hashCode() ) );
+            executor.scheduleWithFixedDelay( new DatagramSender(), 0, nInterval, TimeUnit.MILLISECONDS );
         }
     }
 
+    /**
+     * Sets the format used to send the message: ParamMap text format (the
+     * default: understood by every consumer) or ParamMap binary format
+     * (smaller and cheaper to parse, but only understood by consumers that
+     * know it). It is applied by next ::start() or ::update().
+     *
+     * @param bBinary true to use the binary format.
+     * @return Itself.
+     */
+    public BroadcastProducer setBinary( boolean bBinary )
+    {
+        this.bBinary = bBinary;
+        return this;
+    }
 
-    //----------------------------------------------------------------------------//
-    // INNER CLASS
-    //----------------------------------------------------------------------------//
-    private class DatagramSender extends Thread
+    /**
+     * Encodes the message again: it has to be invoked after changing the
+     * message data (::getMessage()) while broadcasting.
+     */
+    public void update()
     {
-        private final DatagramPacket packet;
+        payload = message.encode( bBinary );
+    }
 
-        DatagramSender()
+    public synchronized void stop()
+    {
+        if( executor != null )
         {
-            setName( BroadcastProducer.class.getSimpleName() +"-"+ getClass().getSimpleName() +"-"+ hashCode() );
+            try
+            {
+                executor.shutdown();
+                executor.awaitTermination( 2L, TimeUnit.SECONDS );
+            }
+            catch( InterruptedException ex )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                executor.shutdownNow();
+                executor = null;
+
+                try
+                {
+                    channel.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Nothing to do
+                }
 
-            packet = new DatagramPacket( msgData, msgData.length, group, nPort );
+                channel = null;
+            }
         }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class DatagramSender implements Runnable
+    {
+        private final DatagramChannel         dc      = channel;
+        private       List<InetSocketAddress> targets = null;
+        private       long                    nLookup = 0;        // When targets were found
 
         @Override
         public void run()
         {
-            try( DatagramSocket socket = new DatagramSocket() )
+            try
             {
-                socket.setBroadcast( true );
-                socket.setReuseAddress( true );
-                socket.send( packet );
+                if( (targets == null) || (System.currentTimeMillis() - nLookup > 60 * 1000) )    // Interfaces can change (e.g. DHCP)
+                {
+                    targets = getTargets();
+                    nLookup = System.currentTimeMillis();
+                }
+
+                ByteBuffer bb = payload;
+
+                for( InetSocketAddress target : targets )
+                {
+                    bb.rewind();
+
+                    try
+                    {
+                        dc.send( bb, target );
+                    }
+                    catch( IOException ioe )     // An interface failing must not affect the others
+                    {
+                        UtilDebug.log( Level.WARNING, ioe, "Error broadcasting to: "+ target );
+                    }
+                }
             }
-            catch( IOException se )
+            catch( IOException ioe )
             {
-                UtilDebug.log( se );
+                UtilDebug.log( ioe );
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.comm.Backoff;
+import com.peyrona.commons.comm.SelectorLoop;
+import com.peyrona.commons.comm.client.TCPClientClassic.FullPolicy;
+import com.peyrona.commons.util.UtilComm;
+import com.peyrona.commons.util.UtilString;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Base class for clients based on Java NIO non-blocking SocketChannels:
+ * subclasses only have to open the channel for their kind of address (see
+ * TCPClientNIO and UnixSocketClient).
+ * <p>
+ * Many instances of this class share one (or a few) SelectorLoop threads, so
+ * thousands of connections can be opened without having one blocking thread
+ * per connection. Connection is non-blocking (with timeout) and broken
+ * connections are re-established (with increasing jittered delays) until ::disconnect()
+ * is invoked.
+ * <p>
+ * Messages sent are appended to a per-connection bounded write queue that is
+ * drained by the loop thread; messages sent while the connection is not yet
+ * open are kept in the queue and sent as soon as it opens. What happens when
+ * the queue is full (the peer is slow or the connection is not open) depends
+ * on the FullPolicy (see ::setSendQueue(...)).
+ * <p>
+ * Depending on the constructor used, received data is split in lines (same as
+ * socket.readLine()) or delivered as it arrives (same as socket.read()). When
+ * a FrameDecoder is set, received data is split in frames by the decoder.
+ * <p>
+ * CARE: listeners are invoked from the loop thread: they must not block.
+ *
+ * @author peyrona
+ */
+public abstract class ChannelClientAbstract<T extends SocketAddress>
+       extends TCPClientAbstract<T>
+       implements SelectorLoop.Handler
+{
+    private final    SelectorLoop        loop;
+    private final    Queue<Pending>      queue     = new ConcurrentLinkedQueue<>();    // Messages not started to be written yet
+    private final    AtomicInteger       nQueued   = new AtomicInteger( 0 );            // Size of the queue
+    private final    Object              room      = new Object();                      // Callers wait here when the queue is full (BLOCK)
+    private volatile int                 nWaiting  = 0;                                 // Callers waiting for room (modified holding room)
+    private volatile int                 nMaxQueue = 64 * 1024;
+    private volatile FullPolicy          policy    = FullPolicy.BLOCK;
+    private final    LongAdder           dropped   = new LongAdder();
+    private final    LongAdder           rejected  = new LongAdder();
+    private final    AtomicBoolean       flushing  = new AtomicBoolean( false );
+    private final    AtomicBoolean       sendNull  = new AtomicBoolean( true );
+    private final    Charset             charset   = Charset.defaultCharset();
+    private final    boolean             bLines;
+    private volatile boolean             isStarted = false;
+    private volatile int                 nTimeout  = 10 * 1000;
+    private volatile int                 nMaxLine  = 1024 * 1024;
+
+    // Following are used only from inside the loop thread
+    private final    ByteBuffer          input;
+    private          byte[]              line      = new byte[ 128 ];
+    private          Pending             current   = null;              // Being written (already taken from the queue)
+    private          int                 nLine     = 0;
+    private          SocketChannel       channel   = null;
+    private          SelectionKey        key       = null;
+    private          SelectorLoop.Schedule timeout = null;
+    private volatile Backoff             backoff   = null;              // Delays between reconnections (created by ::connect(...))
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance that will use passed loop.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then received data will
+     *                        be split in lines.
+     * @param loop The loop to be used.
+     */
+    protected ChannelClientAbstract( int nReadBufferSize, SelectorLoop loop )
+    {
+        setReadBufferSize( nReadBufferSize );
+
+        this.loop   = loop;
+        this.bLines = (nReadBufferSize <= 0);
+        this.input  = ByteBuffer.allocate( bLines ? 8 * 1024 : nReadBufferSize );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Indicates if null values should be sent or ignored.
+     *
+     * @param send true to send null values.
+     */
+    public final void setSendNullValues( boolean send )
+    {
+        sendNull.set( send );
+    }
+
+    /**
+     * Maximum time (in millis) to wait for a connection to be established.
+     * By default it is 10 seconds.
+     *
+     * @param millis Maximum time to wait for a connection to be established.
+     */
+    public final void setConnectTimeout( int millis )
+    {
+        nTimeout = Math.max( 1, millis );
+    }
+
+    /**
+     * Maximum length (in bytes) of a received line (only used when received
+     * data is split in lines): a longer line is a protocol error and the
+     * connection is closed (and re-established as usual). By default it is
+     * 1 MB.
+     *
+     * @param nBytes Maximum length of a received line.
+     */
+    public final void setMaxLineLength( int nBytes )
+    {
+        nMaxLine = Math.max( 1, nBytes );
+    }
+
+    /**
+     * Sets the size of the write queue and what to do when it is full:
+     * <ul>
+     * <li>BLOCK: the caller waits until there is room in the queue (the loop
+     *     thread never waits: when it is the caller, it behaves as FAIL_FAST).
+     * <li>FAIL_FAST: the send method throws a RejectedExecutionException.
+     * <li>DROP_OLDEST: the oldest message in the queue is discarded.
+     * </ul>
+     * By default: 64K messages and BLOCK.
+     *
+     * @param nMaxMessages Max number of messages pending to be written.
+     * @param policy What to do when the queue is full.
+     */
+    public final void setSendQueue( int nMaxMessages, FullPolicy policy )
+    {
+        this.nMaxQueue = Math.max( 1, nMaxMessages );
+        this.policy    = ((policy == null) ? FullPolicy.BLOCK : policy);
+
+        signalRoom();     // Waiting callers have to check the new size
+    }
+
+    /**
+     * Returns the number of messages that are pending to be sent.
+     *
+     * @return The number of messages that are pending to be sent.
+     */
+    public final int getPendingCount()
+    {
+        return nQueued.get();
+    }
+
+    /**
+     * Returns the number of messages discarded because the queue was full
+     * (only when FullPolicy is DROP_OLDEST).
+     *
+     * @return The number of discarded messages.
+     */
+    public final long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of messages rejected because the queue was full.
+     *
+     * @return The number of rejected messages.
+     */
+    public final long getRejected()
+    {
+        return rejected.sum();
+    }
+
+    @Override
+    public final synchronized void connect( T address )
+    {
+        setSocketAddress( address );
+
+        if( ! isStarted )     // If already started, the invocation is ignored
+        {
+            isStarted = true;
+            backoff   = newBackoff();
+            loop.execute( this::open );
+        }
+
+        startHeartbeat();
+    }
+
+    @Override
+    public final synchronized void disconnect()
+    {
+        stopHeartbeat();
+
+        if( isStarted )       // If already stopped, the invocation is ignored
+        {
+            isStarted = false;
+            loop.execute( () -> { close(); discardPending(); } );
+        }
+    }
+
+    @Override
+    public final void send( List<Object> lstMessages )
+    {
+        for( Object msg : lstMessages )
+        {
+            enqueue( msg, false );
+        }
+    }
+
+    @Override
+    public final void sendLine( List<Object> lstMessages )
+    {
+        for( Object msg : lstMessages )
+        {
+            enqueue( msg, true );
+        }
+    }
+
+    @Override
+    public final void sendLine()
+    {
+        enqueue( UtilString.sEOL, false );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a new channel (not connected yet) for the kind of address used
+     * by this client. Non-blocking mode is set by the caller.
+     *
+     * @return A new channel.
+     * @throws IOException
+     */
+    protected abstract SocketChannel openChannel() throws IOException;
+
+    @Override
+    protected final void onPeerDead()
+    {
+        loop.execute( () -> { if( channel != null )
+                              {
+                                  close();
+                                  loop.schedule( this::open, backoff.next() );
+                              } } );
+    }
+
+    //----------------------------------------------------------------------------//
+    // SelectorLoop.Handler
+
+    @Override
+    public final void onSelected( SelectionKey key ) throws IOException
+    {
+        try
+        {
+            if( key.isConnectable() && channel.finishConnect() )
+            {
+                onOpened();
+            }
+
+            if( key.isValid() && key.isReadable() )
+            {
+                read();
+            }
+
+            if( key.isValid() && key.isWritable() )
+            {
+                write();
+            }
+        }
+        catch( IOException ioe )
+        {
+            fail( ioe );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void enqueue( Object msg, boolean bEoL )
+    {
+        if( (msg == null) && (! sendNull.get()) )
+        {
+            return;
+        }
+
+        ByteBuffer data;
+
+        if( getCodec() != null )
+        {
+            try
+            {
+                data = ByteBuffer.wrap( encodeFrame( msg ) );
+            }
+            catch( IOException ioe )
+            {
+                fireException( ioe );
+                return;
+            }
+        }
+        else
+        {
+            String s = String.valueOf( msg );
+
+            if( bEoL )
+            {
+                s += UtilString.sEOL;
+            }
+
+            data = ByteBuffer.wrap( s.getBytes( charset ) );
+        }
+
+        if( reserve( msg ) )
+        {
+            queue.add( new Pending( msg, data ) );
+            flush();
+        }
+    }
+
+    /**
+     * Takes a place in the queue applying the FullPolicy when it is full.
+     *
+     * @return false if the message has to be discarded.
+     */
+    private boolean reserve( Object msg )
+    {
+        while( true )
+        {
+            int n = nQueued.get();
+
+            if( n < nMaxQueue )
+            {
+                if( nQueued.compareAndSet( n, n + 1 ) )
+                {
+                    return true;
+                }
+
+                continue;
+            }
+
+            if( msg == UtilComm.sHEARTBEAT_PING )     // Same instance: sent by the shared heartbeat thread, that must never wait nor fail
+            {
+                return false;
+            }
+
+            switch( policy )
+            {
+                case DROP_OLDEST:
+                    if( queue.poll() != null )        // Only messages not started to be written are in the queue
+                    {
+                        nQueued.decrementAndGet();
+                        dropped.increment();
+                    }
+                    break;
+
+                case BLOCK:
+                    if( loop.inLoop() )               // The loop thread would wait for itself
+                    {
+                        throw reject();
+                    }
+
+                    synchronized( room )
+                    {
+                        nWaiting++;
+
+                        try
+                        {
+                            if( nQueued.get() >= nMaxQueue )
+                            {
+                                room.wait( 100 );
+                            }
+                        }
+                        catch( InterruptedException ie )
+                        {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                        finally
+                        {
+                            nWaiting--;
+                        }
+                    }
+                    break;
+
+                default:
+                    throw reject();
+            }
+        }
+    }
+
+    private RejectedExecutionException reject()
+    {
+        rejected.increment();
+
+        return new RejectedExecutionException( "Send queue full: "+ getAddress() );
+    }
+
+    private void signalRoom()
+    {
+        if( nWaiting > 0 )
+        {
+            synchronized( room )
+            {
+                room.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards all messages pending to be written: invoked from the loop
+     * thread by ::disconnect().
+     */
+    private void discardPending()
+    {
+        current = null;
+
+        while( queue.poll() != null )
+        {
+            nQueued.decrementAndGet();
+        }
+
+        signalRoom();
+    }
+
+    /**
+     * Asks the loop to write pending messages (only once per batch).
+     */
+    private void flush()
+    {
+        if( flushing.compareAndSet( false, true ) )
+        {
+            loop.execute( () -> { if( (key != null) && key.isValid() && channel.isConnected() )
+                                      key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+                                  else
+                                      flushing.set( false ); } );     // Will be written when connection opens
+        }
+    }
+
+    private void open()
+    {
+        if( (! isStarted) || (channel != null) )
+        {
+            return;
+        }
+
+        try
+        {
+            channel = openChannel();
+            channel.configureBlocking( false );
+
+            if( channel.connect( getAddress() ) )
+            {
+                key = loop.register( channel, 0, this );
+                onOpened();
+            }
+            else
+            {
+                key     = loop.register( channel, SelectionKey.OP_CONNECT, this );
+                timeout = loop.schedule( () -> { if( (channel != null) && channel.isConnectionPending() )
+                                                     fail( new SocketTimeoutException( "Connect timed out: "+ getAddress() ) ); },
+                                         nTimeout );
+            }
+        }
+        catch( Exception exc )
+        {
+            fail( exc );
+        }
+    }
+
+    private void onOpened()
+    {
+        if( timeout != null )
+        {
+            timeout.cancel();
+            timeout = null;
+        }
+
+        backoff.reset();
+        boolean bPending = ((current != null) || (! queue.isEmpty()));
+
+        flushing.set( bPending );
+        key.interestOps( SelectionKey.OP_READ | (bPending ? SelectionKey.OP_WRITE : 0) );
+        fireConnected();
+    }
+
+    private void read() throws IOException
+    {
+        int n = channel.read( input );
+
+        if( n < 0 )
+        {
+            throw new EOFException( "Connection closed by peer: "+ getAddress() );
+        }
+
+        if( n > 0 )
+        {
+            input.flip();
+
+            if( getFrameDecoder() != null )
+            {
+                onBytes( input );
+            }
+            else if( bLines )
+            {
+                splitLines( nMaxLine );
+            }
+            else
+            {
+                fireReceived( new String( input.array(), 0, input.limit(), charset ) );
+            }
+
+            input.clear();
+        }
+    }
+
+    private void splitLines( int nMax ) throws IOException
+    {
+        while( input.hasRemaining() )
+        {
+            byte b = input.get();
+
+            if( b == '\n' )
+            {
+                int len = (((nLine > 0) && (line[nLine - 1] == '\r')) ? nLine - 1 : nLine);
+
+                if( len > nMax )
+                {
+                    throw new IOException( "Frame too long" );
+                }
+
+                fireReceived( new String( line, 0, len, charset ) );
+                nLine = 0;
+            }
+            else
+            {
+                if( nLine > nMax )     // nMax + 1 bytes are kept: last one could be the '\r' before the '\n'
+                {
+                    throw new IOException( "Frame too long" );
+                }
+
+                if( nLine == line.length )
+                {
+                    line = Arrays.copyOf( line, (int) Math.min( line.length * 2L, nMax + 1L ) );
+                }
+
+                line[nLine++] = b;
+            }
+        }
+    }
+
+    private void write() throws IOException
+    {
+        boolean bTaken = false;
+
+        try
+        {
+            while( true )
+            {
+                if( current == null )
+                {
+                    current = queue.poll();
+
+                    if( current == null )
+                    {
+                        break;
+                    }
+
+                    nQueued.decrementAndGet();
+                    bTaken = true;
+                }
+
+                channel.write( current.data );
+
+                if( current.data.hasRemaining() )     // Socket send buffer is full: wait for next OP_WRITE
+                {
+                    return;
+                }
+
+                Pending p = current;
+
+                current = null;
+                fireSent( p.message );
+            }
+        }
+        finally
+        {
+            if( bTaken )
+            {
+                signalRoom();
+            }
+        }
+
+        key.interestOps( SelectionKey.OP_READ );
+        flushing.set( false );
+
+        if( (! queue.isEmpty()) && flushing.compareAndSet( false, true ) )   // Something arrived meanwhile
+        {
+            key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+        }
+    }
+
+    private void fail( Exception exc )
+    {
+        if( isStarted )
+        {
+            fireException( exc );
+        }
+
+        close();
+
+        if( isStarted )
+        {
+            loop.schedule( this::open, backoff.next() );     // Jittered: reconnections of many clients are spread over time
+        }
+    }
+
+    private void close()
+    {
+        if( timeout != null )
+        {
+            timeout.cancel();
+            timeout = null;
+        }
+
+        if( channel != null )
+        {
+            try
+            {
+                channel.close();    // Also cancels the key
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                channel = null;
+                key     = null;
+                nLine   = 0;
+
+                input.clear();
+                flushing.set( false );
+
+                if( current != null )
+                {
+                    current.data.rewind();     // Partially sent message will be re-sent entirely
+                }
+
+                if( isConnected() )
+                {
+                    fireDisconnected();
+                }
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Pending
+    {
+        final Object     message;
+        final ByteBuffer data;
+
+        Pending( Object message, ByteBuffer data )
+        {
+            this.message = message;
+            this.data    = data;
+        }
+    }
+}
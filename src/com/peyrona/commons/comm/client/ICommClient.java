@@ -16,7 +16,9 @@
 
 package com.peyrona.commons.comm.client;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface that defines what a CommClient is: it allows to send and receive
@@ -54,6 +56,24 @@ public interface ICommClient<T>
         void onException( ICommClient origin, Exception exc );
     }
 
+    /**
+     * Interface that defines receivers of raw data: used by clients working in
+     * raw mode (no charset decoding, no String creation).
+     *
+     * @author peyrona
+     */
+    public interface ByteListener
+    {
+        /**
+         *
+         * @param origin
+         * @param data A read-only view of the received bytes (from position to
+         *             limit). The view and its content are reused by next read:
+         *             they are only valid during this invocation.
+         */
+        void onReceived( ICommClient origin, ByteBuffer data );
+    }
+
     //----------------------------------------------------------------------------//
 
     void connect( T address );
@@ -82,7 +102,59 @@ public interface ICommClient<T>
 
     void sendLine();
 
+    /**
+     * Sends passed message (as a line) and returns a future that will be
+     * completed with the answer, using the client default timeout (by
+     * default, there is no limit).
+     *
+     * @param message The request.
+     * @return A future that will be completed with the answer.
+     * @see #request(Object, long)
+     */
+    default CompletableFuture<Object> request( Object message )
+    {
+        return request( message, 0 );
+    }
+
+    /**
+     * Sends passed message (as a line) and returns a future that will be
+     * completed with the answer. The answer is found by using the client
+     * ResponseMatcher and it is not delivered to listeners.
+     * <p>
+     * The future completes exceptionally with a TimeoutException if there is
+     * no answer in time and with an IOException if the connection is lost.
+     * Cancelling the future discards the answer when it arrives.
+     *
+     * @param message The request.
+     * @param nTimeoutMillis Maximum time to wait for the answer (0 == no limit).
+     * @return A future that will be completed with the answer.
+     * @see ResponseMatcher
+     */
+    default CompletableFuture<Object> request( Object message, long nTimeoutMillis )
+    {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+
+        future.completeExceptionally( new UnsupportedOperationException( getClass().getName() +" does not support requests" ) );
+
+        return future;
+    }
+
     void addListener( ICommClient.Listener handler );
 
     void removeListener( ICommClient.Listener handler );
+
+    /**
+     * Adds a receiver of raw data.
+     *
+     * @param handler The receiver.
+     * @throws UnsupportedOperationException If this client does not support raw data.
+     */
+    default void addByteListener( ICommClient.ByteListener handler )
+    {
+        throw new UnsupportedOperationException( getClass().getName() +" does not support raw data" );
+    }
+
+    default void removeByteListener( ICommClient.ByteListener handler )
+    {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.util.UtilComm;
+
+/**
+ * Strategy used by ICommClient::request(...) to know which request is
+ * answered by a received message.
+ * <p>
+ * Two implementations are provided:
+ * <ul>
+ * <li>FIFO: for line protocols where the peer answers requests in the same
+ *     order they were sent. Nothing is added to the messages.
+ * <li>CORRELATION_ID: every request carries an unique id and the peer
+ *     answers with the same id (ProtocolHandler does it transparently).
+ *     Answers can arrive in any order. Lines are prefixed by the id (id +
+ *     UtilComm.cID_SEPARATOR + message); when a MessageCodec is used, the id
+ *     travels in the frame header (see MessageCodec).
+ * </ul>
+ *
+ * @author peyrona
+ */
+public interface ResponseMatcher
+{
+    public static final ResponseMatcher FIFO           = new Fifo();
+    public static final ResponseMatcher CORRELATION_ID = new CorrelationId();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns true if answers arrive in the same order that requests were sent:
+     * in this case ::getId(...) is not used.
+     *
+     * @return true if answers arrive in the same order that requests were sent.
+     */
+    boolean isOrdered();
+
+    /**
+     * Returns what has to be sent for passed request.
+     *
+     * @param id An unique id for the request.
+     * @param request The request.
+     * @return What has to be sent.
+     */
+    Object encode( long id, Object request );
+
+    /**
+     * Returns the id of the request that is answered by passed message or -1
+     * if the message is not an answer.
+     *
+     * @param message A received message.
+     * @return The id of the request that is answered by passed message or -1.
+     */
+    long getId( Object message );
+
+    /**
+     * Returns the answer contained in passed message: it is used to complete
+     * the request future.
+     *
+     * @param message A received message that is an answer.
+     * @return The answer contained in passed message.
+     */
+    Object decode( Object message );
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    public static class Fifo implements ResponseMatcher
+    {
+        @Override
+        public boolean isOrdered()
+        {
+            return true;
+        }
+
+        @Override
+        public Object encode( long id, Object request )
+        {
+            return request;
+        }
+
+        @Override
+        public long getId( Object message )
+        {
+            return -1;
+        }
+
+        @Override
+        public Object decode( Object message )
+        {
+            return message;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    public static class CorrelationId implements ResponseMatcher
+    {
+        @Override
+        public boolean isOrdered()
+        {
+            return false;
+        }
+
+        @Override
+        public Object encode( long id, Object request )
+        {
+            return new Correlated( id, request );
+        }
+
+        @Override
+        public long getId( Object message )
+        {
+            if( message instanceof Correlated )
+            {
+                return ((Correlated) message).getId();
+            }
+
+            if( message == null )
+            {
+                return -1;
+            }
+
+            String s = message.toString();
+            int    n = s.indexOf( UtilComm.cID_SEPARATOR );
+
+            if( (n < 1) || (n > 19) )     // 19 == max digits for a long
+            {
+                return -1;
+            }
+
+            try
+            {
+                return Long.parseLong( s.substring( 0, n ) );
+            }
+            catch( NumberFormatException nfe )
+            {
+                return -1;
+            }
+        }
+
+        @Override
+        public Object decode( Object message )
+        {
+            if( message instanceof Correlated )
+            {
+                return ((Correlated) message).getMessage();
+            }
+
+            String s = message.toString();
+
+            return s.substring( s.indexOf( UtilComm.cID_SEPARATOR ) + 1 );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A message and the id of the request it belongs to.
+     * <p>
+     * When it is sent as a line, it is written as its ::toString() (id +
+     * UtilComm.cID_SEPARATOR + message); when a MessageCodec is used, the
+     * message is encoded and the id is written in the frame header. Received
+     * encoded answers are passed to the ResponseMatcher as instances of this
+     * class.
+     */
+    public static final class Correlated
+    {
+        private final long   id;
+        private final Object message;
+
+        public Correlated( long id, Object message )
+        {
+            this.id      = id;
+            this.message = message;
+        }
+
+        public long getId()
+        {
+            return id;
+        }
+
+        public Object getMessage()
+        {
+            return message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return Long.toString( id ) + UtilComm.cID_SEPARATOR + message;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.comm.CommReceiver;
+import com.peyrona.commons.comm.FrameDecoder;
+import com.peyrona.commons.comm.MappedChannel;
+import com.peyrona.commons.util.UtilString;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client that talks with a SharedMemoryServer running in the same host
+ * through a memory-mapped file (see MappedChannel): sending and receiving do
+ * not involve the kernel, so messages are handed off in less than a
+ * microsecond (using WaitStrategy SPIN or YIELD).
+ * <p>
+ * Listeners are informed the same way as in the other clients (received
+ * data is split in lines unless a FrameDecoder or a MessageCodec is set). A
+ * background thread receives data and re-connects (with increasing jittered
+ * delays) when the connection is lost.
+ * <p>
+ * Messages are written using the thread that invokes ::send(...): they are
+ * visible to the server as soon as the method returns.
+ *
+ * @author peyrona
+ */
+public final class SharedMemoryClient extends TCPClientAbstract<Path>
+{
+    private final    MappedChannel.WaitStrategy wait;
+    private final    Charset                    charset  = Charset.defaultCharset();
+    private final    AtomicBoolean              sendNull = new AtomicBoolean( true );
+    private final    Object                     sendLock = new Object();     // Only one thread can write at a time
+    private volatile MappedChannel              channel  = null;
+    private          Receiver                   receiver = null;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance that yields the CPU while waiting for data.
+     */
+    public SharedMemoryClient()
+    {
+        this( MappedChannel.WaitStrategy.YIELD );
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param wait How to wait for data (receiver thread) or room (senders).
+     */
+    public SharedMemoryClient( MappedChannel.WaitStrategy wait )
+    {
+        this.wait = wait;
+
+        setReadBufferSize( 64 * 1024 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Indicates if null values should be sent or ignored.
+     *
+     * @param send true to send null values.
+     */
+    public void setSendNullValues( boolean send )
+    {
+        sendNull.set( send );
+    }
+
+    @Override
+    public synchronized void connect( Path path )
+    {
+        setSocketAddress( path );
+
+        if( receiver == null )     // If the thread was already started, the invocation is ignored.
+        {
+            receiver = new Receiver();
+            receiver.setBackoff( newBackoff() );
+            receiver.start();
+        }
+
+        startHeartbeat();
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        stopHeartbeat();
+
+        if( receiver != null )     // If the thread was already null, the invocation is ignored.
+        {
+            receiver.interrupt();
+            closeChannel();
+
+            try
+            {
+                receiver.join( 1000 );
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                receiver = null;
+            }
+        }
+    }
+
+    @Override
+    public void send( List<Object> lstMessages )
+    {
+        write( lstMessages, false );
+    }
+
+    @Override
+    public void sendLine( List<Object> lstMessages )
+    {
+        write( lstMessages, true );
+    }
+
+    @Override
+    public void sendLine()
+    {
+        write( Collections.singletonList( UtilString.sEOL ), false );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    protected void onPeerDead()
+    {
+        closeChannel();      // The receiver will reconnect
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void write( List<Object> lstMessages, boolean bEoL )
+    {
+        MappedChannel mc = channel;
+
+        if( mc == null )
+        {
+            fireException( new IOException( "Not connected: "+ getAddress() ) );
+            return;
+        }
+
+        List<Object> lstSent = new ArrayList<>( lstMessages.size() );
+
+        try
+        {
+            for( Object msg : lstMessages )
+            {
+                if( (msg != null) || sendNull.get() )
+                {
+                    byte[] ab;
+
+                    if( getCodec() != null )
+                    {
+                        ab = encodeFrame( msg );
+                    }
+                    else
+                    {
+                        String s = String.valueOf( msg );
+
+                        ab = (bEoL ? s + UtilString.sEOL : s).getBytes( charset );
+                    }
+
+                    synchronized( sendLock )
+                    {
+                        mc.write( ab, 0, ab.length );
+                    }
+
+                    lstSent.add( msg );
+                }
+            }
+        }
+        catch( IOException ioe )
+        {
+            fireException( new IOException( "Error writing to: "+ getAddress(), ioe ) );
+        }
+
+        for( Object msg : lstSent )
+        {
+            fireSent( msg );
+        }
+    }
+
+    private void closeChannel()
+    {
+        MappedChannel mc = channel;
+
+        if( mc != null )
+        {
+            mc.close();     // Receiver thread will get an end of stream
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class Receiver extends CommReceiver
+    {
+        private final byte[]       raw   = new byte[ getReadBufferSize() ];
+        private final ByteBuffer   view  = ByteBuffer.wrap( raw ).asReadOnlyBuffer();
+        private final FrameDecoder lines = FrameDecoder.line( 64 * 1024 );     // Used when there is no FrameDecoder
+
+        Receiver()
+        {
+            super( SharedMemoryClient.class.getSimpleName() +"-->" );
+
+            setDaemon( true );
+        }
+
+        @Override
+        protected void createSocket() throws IOException
+        {
+            if( (channel != null) && (! channel.isOpen()) )
+            {
+                destroySocket();
+            }
+
+            if( channel == null )
+            {
+                channel = MappedChannel.open( getAddress(), wait );
+                lines.reset();
+                fireConnected();
+            }
+        }
+
+        @Override
+        protected void destroySocket()
+        {
+            MappedChannel mc = channel;
+
+            if( mc != null )
+            {
+                mc.close();
+                channel = null;
+                fireDisconnected();
+            }
+        }
+
+        @Override
+        protected void readSocket() throws IOException
+        {
+            int n = channel.read( raw, 0, raw.length );
+
+            if( n < 0 )
+            {
+                throw new EOFException( "Connection closed by server: "+ getAddress() );
+            }
+
+            view.clear();
+            view.limit( n );
+
+            if( getFrameDecoder() != null )
+            {
+                onBytes( view );
+            }
+            else
+            {
+                lines.decode( view, frame -> { byte[] ab = new byte[ frame.remaining() ];
+                                               frame.get( ab );
+                                               fireReceived( new String( ab, charset ) ); } );
+            }
+        }
+    }
+}
@@ -16,25 +16,75 @@
 
 package com.peyrona.commons.comm.client;
 
+import com.peyrona.commons.comm.Backoff;
+import com.peyrona.commons.comm.FrameDecoder;
+import com.peyrona.commons.comm.MessageCodec;
+import com.peyrona.commons.lang.LatencyHistogram;
 import com.peyrona.commons.lang.ListenerWise;
-import java.net.SocketAddress;
+import com.peyrona.commons.util.UtilComm;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.rmi.MarshalException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class with common methods for all kind of Clients.
  *
  * @author peyrona
- * @param <T>
+ * @param <T> The type of address: a SocketAddress or (for shared memory) a Path.
  */
-public abstract class TCPClientAbstract<T extends SocketAddress>
+public abstract class TCPClientAbstract<T>
        extends ListenerWise<ICommClient.Listener>
        implements ICommClient<T>
 {
+    private static final ScheduledThreadPoolExecutor heartbeats = new ScheduledThreadPoolExecutor( 1, r -> { Thread t = new Thread( r, "TCPClient-heartbeat" );
+                                                                                                             t.setDaemon( true );
+                                                                                                             return t; } );
+    static
+    {
+        heartbeats.setRemoveOnCancelPolicy( true );     // Otherwise a cancelled beat keeps its client reachable until its next run
+    }
+
     private T       socketAddress   = null;
     private int     nReadBufferSize = 1204*4;
     private boolean bConnected      = false;
 
+    private final    List<ICommClient.ByteListener> byteListeners = new CopyOnWriteArrayList<>();
+    private volatile FrameDecoder                   decoder       = null;
+    private volatile MessageCodec                   codec         = null;
+
+    // Used by ::request(...)
+    private final    Object                              reqLock  = new Object();     // Sending order must be the same as fifo order
+    private final    Queue<CompletableFuture<Object>>    fifo     = new ConcurrentLinkedQueue<>();
+    private final    Map<Long,CompletableFuture<Object>> pending  = new ConcurrentHashMap<>();
+    private final    AtomicLong                          nextId   = new AtomicLong( 0 );
+    private volatile ResponseMatcher                     matcher  = ResponseMatcher.CORRELATION_ID;
+    private volatile long                                nTimeout = 30 * 1000;
+
+    // Used by the heartbeat
+    private final    LatencyHistogram                    rtt      = new LatencyHistogram();
+    private          ScheduledFuture<?>                  beat     = null;     // Guarded by this
+    private          long                                nBeat    = 0;        // Interval (millis); guarded by this
+    private          long                                nDead    = 0;        // Peer is dead after this (millis); guarded by this
+    private volatile long                                nPing    = 0;        // nanoTime when the unanswered ping was sent (0 == none)
+
+    // Used to reconnect
+    private volatile long                                nWaitMin = 8;
+    private volatile long                                nWaitMax = 0xFFFF;   // Aprox 65 seconds
+
     //----------------------------------------------------------------------------//
 
     @Override
@@ -77,6 +127,223 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
         sendLine( Arrays.asList( message ) );
     }
 
+    @Override
+    public void addByteListener( ICommClient.ByteListener handler )
+    {
+        if( (handler != null) && (! byteListeners.contains( handler )) )
+        {
+            byteListeners.add( handler );
+        }
+    }
+
+    @Override
+    public void removeByteListener( ICommClient.ByteListener handler )
+    {
+        byteListeners.remove( handler );
+    }
+
+    public FrameDecoder getFrameDecoder()
+    {
+        return decoder;
+    }
+
+    /**
+     * Sets the decoder used to split received bytes into frames (null to not
+     * use a decoder). It has to be invoked before ::connect(...).
+     * <p>
+     * Every complete frame is passed to ICommClient.ByteListener(s) and (as a
+     * String) to ICommClient.Listener(s). The String is only created if there
+     * is someone to receive it.
+     *
+     * @param decoder The decoder to use: it can not be shared with other clients.
+     */
+    public void setFrameDecoder( FrameDecoder decoder )
+    {
+        this.decoder = decoder;
+    }
+
+    public MessageCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * Makes this client to send and receive typed messages using passed codec
+     * (or lines of text when passing null). It has to be invoked before
+     * ::connect(...) and the server has to use the same codec.
+     * <p>
+     * Every message sent (send(...) and sendLine(...) behave the same) is
+     * encoded and preceded by its header (see MessageCodec); received messages
+     * are decoded and passed to ICommClient.Listener(s). This method sets the
+     * FrameDecoder needed to split received messages.
+     *
+     * @param codec The codec to use.
+     */
+    public void setCodec( MessageCodec codec )
+    {
+        this.codec = codec;
+
+        setFrameDecoder( (codec == null) ? null : FrameDecoder.lengthPrefixed( 4, ByteOrder.BIG_ENDIAN, codec.getMaxFrameSize() + 8 ) );    // + correlation id
+    }
+
+    /**
+     * Sets the strategy used to find the request answered by a received
+     * message. It has to be invoked before making requests.
+     * <p>
+     * By default it is ResponseMatcher.CORRELATION_ID (for lines and for
+     * encoded messages): a request that is not answered or a message pushed by
+     * the server can not be taken as the answer of another request.
+     * ResponseMatcher.FIFO can be used with line protocols that do not accept
+     * ids: in this case, the server has to answer every request (in the same
+     * order) and it must not push messages while there are pending requests.
+     *
+     * @param matcher The strategy to use (null == default).
+     */
+    public void setResponseMatcher( ResponseMatcher matcher )
+    {
+        this.matcher = ((matcher == null) ? ResponseMatcher.CORRELATION_ID : matcher);
+    }
+
+    /**
+     * Returns the strategy used to find the request answered by a received
+     * message.
+     *
+     * @return The strategy used to find the request answered by a received message.
+     * @see #setResponseMatcher(ResponseMatcher)
+     */
+    public ResponseMatcher getResponseMatcher()
+    {
+        return matcher;
+    }
+
+    /**
+     * Default time (in millis) for a request to be answered (0 == no limit).
+     * By default it is 30 seconds.
+     *
+     * @param millis Default time for a request to be answered.
+     */
+    public void setRequestTimeout( long millis )
+    {
+        nTimeout = Math.max( 0, millis );
+    }
+
+    /**
+     * Returns the number of requests that are waiting for an answer.
+     *
+     * @return The number of requests that are waiting for an answer.
+     */
+    public int getPendingRequests()
+    {
+        return (getResponseMatcher().isOrdered() ? (int) fifo.stream().filter( f -> ! f.isDone() ).count() : pending.size());
+    }
+
+    /**
+     * Starts (or stops) the application level heartbeat.
+     * <p>
+     * While connected, a ping line (UtilComm.sHEARTBEAT_PING) is sent every
+     * interval and the peer answers with a pong line (ProtocolHandler does it
+     * transparently). The round-trip time of every ping is recorded (see
+     * ::getRTT()) and if there is no answer after nMaxMissed intervals, the
+     * peer is considered dead: the connection is closed (and re-established as
+     * usual). This detects half-open connections much faster than TCP
+     * keep-alive.
+     * <p>
+     * Pings and pongs are not delivered to listeners. The heartbeat needs the
+     * received data to be split in lines.
+     * <p>
+     * ::disconnect() stops the heartbeat and ::connect(...) starts it again.
+     *
+     * @param nIntervalMillis Time between pings (0 == no heartbeat).
+     * @param nMaxMissed Number of intervals without answer to consider the peer dead.
+     */
+    public synchronized void setHeartbeat( long nIntervalMillis, int nMaxMissed )
+    {
+        stopHeartbeat();
+
+        nBeat = Math.max( 0, nIntervalMillis );
+        nDead = nBeat * Math.max( 1, nMaxMissed );
+
+        startHeartbeat();
+    }
+
+    /**
+     * Sets the delays between failed attempts to (re)connect: every delay is
+     * random between the min and three times the previous one (up to the max),
+     * so reconnections of many clients are spread over time. It is applied by
+     * next ::connect(...). By default: from 8 millis up to 65 seconds.
+     *
+     * @param nMinMillis Min delay.
+     * @param nMaxMillis Max delay.
+     */
+    public void setBackoff( long nMinMillis, long nMaxMillis )
+    {
+        nWaitMin = nMinMillis;
+        nWaitMax = nMaxMillis;
+    }
+
+    /**
+     * Returns the histogram with the round-trip time (in nanoseconds) of the
+     * heartbeat pings.
+     *
+     * @return The histogram with the round-trip time of the heartbeat pings.
+     */
+    public LatencyHistogram getRTT()
+    {
+        return rtt;
+    }
+
+    @Override
+    public CompletableFuture<Object> request( Object message )
+    {
+        return request( message, nTimeout );
+    }
+
+    @Override
+    public CompletableFuture<Object> request( Object message, long nTimeoutMillis )
+    {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        ResponseMatcher           rm     = getResponseMatcher();
+        long                      id     = nextId.incrementAndGet();
+
+        if( nTimeoutMillis > 0 )
+        {
+            future.orTimeout( nTimeoutMillis, TimeUnit.MILLISECONDS );
+        }
+
+        try
+        {
+            if( rm.isOrdered() )
+            {
+                synchronized( reqLock )
+                {
+                    fifo.add( future );     // Stays in the queue after timeout or cancel: its late answer has to be discarded
+
+                    try
+                    {
+                        sendRequest( rm.encode( id, message ), nTimeoutMillis );
+                    }
+                    catch( IOException | RuntimeException exc )
+                    {
+                        fifo.remove( future );     // It was not sent: no answer will arrive for it
+                        throw exc;
+                    }
+                }
+            }
+            else
+            {
+                pending.put( id, future );
+                future.whenComplete( (answer,exc) -> pending.remove( id ) );
+                sendRequest( rm.encode( id, message ), nTimeoutMillis );
+            }
+        }
+        catch( IOException | RuntimeException exc )
+        {
+            future.completeExceptionally( exc );     // Fails now instead of when it times out
+        }
+
+        return future;
+    }
+
     //----------------------------------------------------------------------------//
 
     protected synchronized void setSocketAddress( T socketAddress )
@@ -94,9 +361,129 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
         this.nReadBufferSize = nReadBufferSize;
     }
 
+    /**
+     * Returns a new Backoff using the delays set by ::setBackoff(...): it has
+     * to be used by ::connect(...) to wait between failed attempts.
+     *
+     * @return A new Backoff.
+     */
+    protected Backoff newBackoff()
+    {
+        return new Backoff( nWaitMin, nWaitMax );
+    }
+
+    /**
+     * Sends a request (already encoded by the ResponseMatcher).
+     * <p>
+     * This implementation invokes ::sendLine(...). Subclasses that can know
+     * that the request was not sent (e.g. the connection can not be
+     * established) override it to throw an exception: the request then fails
+     * at once instead of when it times out.
+     *
+     * @param message What to send.
+     * @param nTimeoutMillis The request timeout (0 == no limit): nothing done
+     *                       here should last longer.
+     * @throws IOException If the request could not be sent.
+     */
+    protected void sendRequest( Object message, long nTimeoutMillis ) throws IOException
+    {
+        sendLine( message );
+    }
+
+    /**
+     * Starts the heartbeat (if one was set): it has to be invoked by
+     * ::connect(...).
+     */
+    protected synchronized void startHeartbeat()
+    {
+        if( (beat == null) && (nBeat > 0) )
+        {
+            long nDeadAfter = nDead;
+
+            beat = heartbeats.scheduleWithFixedDelay( () -> heartbeat( nDeadAfter ), nBeat, nBeat, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Stops the heartbeat (if any): it has to be invoked by ::disconnect(),
+     * otherwise the shared scheduler keeps this client reachable forever.
+     */
+    protected synchronized void stopHeartbeat()
+    {
+        if( beat != null )
+        {
+            beat.cancel( false );
+            beat = null;
+        }
+
+        nPing = 0;
+    }
+
+    /**
+     * Invoked by the heartbeat when the peer does not answer: subclasses have
+     * to close the connection (it will be re-established as usual).
+     */
+    protected void onPeerDead()
+    {
+    }
+
+    /**
+     * Encodes passed message using the codec and prepends its header: length
+     * and correlation id (the id of a ResponseMatcher.Correlated or 0).
+     *
+     * @param message What to encode.
+     * @return The bytes to be sent.
+     * @throws IOException If the message can not be encoded.
+     */
+    protected byte[] encodeFrame( Object message ) throws IOException
+    {
+        long id = 0;
+
+        if( message instanceof ResponseMatcher.Correlated )
+        {
+            id      = ((ResponseMatcher.Correlated) message).getId();
+            message = ((ResponseMatcher.Correlated) message).getMessage();
+        }
+
+        byte[] payload = codec.encode( message );
+        byte[] frame   = new byte[ payload.length + 12 ];
+
+        ByteBuffer.wrap( frame ).putInt( payload.length + 8 ).putLong( id ).put( payload );
+
+        return frame;
+    }
+
+    /**
+     * Subclasses that read bytes pass them here: they are split into frames
+     * when there is a FrameDecoder, otherwise they are passed as they are to
+     * ICommClient.ByteListener(s).
+     *
+     * @param data Received bytes (from position to limit).
+     * @throws IOException If the FrameDecoder found an invalid frame.
+     */
+    protected void onBytes( ByteBuffer data ) throws IOException
+    {
+        FrameDecoder fd = decoder;
+
+        if( fd == null )
+        {
+            fireReceived( data );
+        }
+        else
+        {
+            fd.decode( data, this::onFrame );
+        }
+    }
+
     protected void fireConnected()
     {
         bConnected = true;
+        nPing      = 0;
+
+        if( decoder != null )
+        {
+            decoder.reset();     // Bytes of a previous connection are discarded
+        }
 
         for( ICommClient.Listener listener : getAllListeners() )
         {
@@ -115,6 +502,8 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
     {
         bConnected = false;
 
+        failRequests();
+
         for( ICommClient.Listener listener : getAllListeners() )
         {
             try
@@ -130,6 +519,24 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
 
     protected void fireReceived( Object obj )
     {
+        if( UtilComm.sHEARTBEAT_PONG.equals( obj ) )
+        {
+            long nSent = nPing;
+
+            if( nSent != 0 )
+            {
+                rtt.record( System.nanoTime() - nSent );
+                nPing = 0;
+            }
+
+            return;
+        }
+
+        if( isAnswer( obj ) )
+        {
+            return;
+        }
+
         for( ICommClient.Listener listener : getAllListeners() )
         {
             try
@@ -143,8 +550,37 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
         }
     }
 
+    /**
+     * Every ByteListener receives passed view from its current position to its
+     * limit.
+     *
+     * @param data A read-only view of the received bytes.
+     */
+    protected void fireReceived( ByteBuffer data )
+    {
+        int nPos = data.position();
+
+        for( ICommClient.ByteListener listener : byteListeners )
+        {
+            try
+            {
+                data.position( nPos );
+                listener.onReceived( this, data );
+            }
+            catch( Exception ex )
+            {
+                fireException( new MarshalException( "Exception thrown inside listener", ex ) );
+            }
+        }
+    }
+
     protected void fireSent( Object obj )
     {
+        if( obj == UtilComm.sHEARTBEAT_PING )     // Same instance: sent by the heartbeat
+        {
+            return;
+        }
+
         for( ICommClient.Listener listener : getAllListeners() )
         {
             try
@@ -172,4 +608,136 @@ public abstract class TCPClientAbstract<T extends SocketAddress>
             }
         }
     }
-}
\ No newline at end of file
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Completes the request answered by passed message (if any).
+     *
+     * @return true if passed message is an answer (even if its request already
+     *         timed out or was cancelled).
+     */
+    private boolean isAnswer( Object msg )
+    {
+        ResponseMatcher rm = getResponseMatcher();
+
+        if( rm.isOrdered() )
+        {
+            CompletableFuture<Object> future = fifo.poll();
+
+            if( future == null )
+            {
+                return false;
+            }
+
+            future.complete( rm.decode( msg ) );     // Does nothing if timed out or cancelled
+            return true;
+        }
+
+        long id = rm.getId( msg );
+
+        if( id < 0 )
+        {
+            return false;
+        }
+
+        CompletableFuture<Object> future = pending.remove( id );
+
+        if( future != null )
+        {
+            future.complete( rm.decode( msg ) );
+        }
+
+        return true;
+    }
+
+    private void onFrame( ByteBuffer frame ) throws IOException
+    {
+        MessageCodec mc = codec;
+        long         id = 0;
+
+        if( mc != null )     // Header: length (already removed by the decoder) + correlation id
+        {
+            if( frame.remaining() < 8 )
+            {
+                throw new IOException( "Invalid frame: no correlation id" );
+            }
+
+            id = frame.order( ByteOrder.BIG_ENDIAN ).getLong();
+        }
+
+        int nPos = frame.position();
+
+        fireReceived( frame );
+
+        if( (! getAllListeners().isEmpty()) || (! fifo.isEmpty()) || (! pending.isEmpty()) || (nPing != 0) )
+        {
+            frame.position( nPos );
+
+            if( mc != null )
+            {
+                Object msg = mc.decode( frame );
+
+                if( id != 0 )     // An answer: its message can be null
+                {
+                    fireReceived( new ResponseMatcher.Correlated( id, msg ) );
+                }
+                else if( msg != null )     // Listeners never receive null
+                {
+                    fireReceived( msg );
+                }
+            }
+            else
+            {
+                byte[] ab = new byte[ frame.remaining() ];
+
+                frame.get( ab );
+                fireReceived( (Object) new String( ab ) );
+            }
+        }
+    }
+
+    private void heartbeat( long nDeadAfterMillis )
+    {
+        if( ! isConnected() )
+        {
+            nPing = 0;
+            return;
+        }
+
+        long nSent = nPing;
+
+        if( nSent == 0 )
+        {
+            nPing = System.nanoTime();
+            sendLine( UtilComm.sHEARTBEAT_PING );
+        }
+        else if( System.nanoTime() - nSent > TimeUnit.MILLISECONDS.toNanos( nDeadAfterMillis ) )
+        {
+            nPing = 0;
+            fireException( new SocketTimeoutException( "Peer is not answering heartbeats: "+ getAddress() ) );
+            onPeerDead();
+        }
+    }
+
+    private void failRequests()
+    {
+        IOException               exc = new IOException( "Connection lost: "+ getAddress() );
+        CompletableFuture<Object> future;
+
+        while( (future = fifo.poll()) != null )
+        {
+            future.completeExceptionally( exc );
+        }
+
+        for( Long id : pending.keySet() )
+        {
+            future = pending.remove( id );
+
+            if( future != null )
+            {
+                future.completeExceptionally( exc );
+            }
+        }
+    }
+}
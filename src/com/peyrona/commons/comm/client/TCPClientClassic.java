@@ -17,26 +17,63 @@
 package com.peyrona.commons.comm.client;
 
 import com.peyrona.commons.comm.CommReceiver;
+import com.peyrona.commons.comm.TLSConfig;
+import com.peyrona.commons.lang.BufferPool;
 import com.peyrona.commons.util.UtilDebug;
 import com.peyrona.commons.util.UtilString;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
-import javax.net.SocketFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class allows to work with a client socket in a simple and clean way.
  * Depending on the constructor used, it will internally use socket.read() or
  * socket.readLine().
+ * <p>
+ * There is also a raw mode: received bytes are read directly from the socket
+ * InputStream (no Reader, no charset decoding, no String creation) into a
+ * reusable buffer and passed to ICommClient.ByteListener(s) as a read-only
+ * view. In raw mode, ICommClient.Listener::onReceived(...) is not invoked and
+ * neither requests nor heartbeat can be used.
+ * <p>
+ * When a FrameDecoder is set, bytes are read the same way (whatever the
+ * constructor used) and every complete frame is passed to listeners. The same
+ * applies when a MessageCodec is set: in this case every message passed to
+ * send(...) is encoded and all of them are written at once.
+ * <p>
+ * By default, messages are written using the thread that invokes ::send(...),
+ * which blocks when the peer is slow (socket send buffer full). In async mode
+ * (::setAsync(...)) messages are put into a bounded queue that is drained by a
+ * writer thread; what happens when the queue is full depends on the
+ * FullPolicy:
+ * <ul>
+ * <li>BLOCK: the caller waits until there is room in the queue.
+ * <li>FAIL_FAST: ::send(...) throws a RejectedExecutionException.
+ * <li>DROP_OLDEST: the oldest queued message is discarded.
+ * </ul>
  *
  * The default implementation; it is based in traditional Java sockets (before
  * NIO API appeared).
@@ -45,12 +82,31 @@ import javax.net.SocketFactory;
  */
 public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
 {
+    public static enum FullPolicy { BLOCK, FAIL_FAST, DROP_OLDEST }
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor( r -> { Thread t = new Thread( r, "TCPClientClassic-flusher" );
+                                                                                                               t.setDaemon( true );
+                                                                                                               return t; } );
+
     private final AtomicReference<Socket>         socket   = new AtomicReference<>();   // Client
+    private final ReentrantLock                   connLock = new ReentrantLock();       // Receiver thread and senders can create the socket at the same time
     private final AtomicReference<PrintWriter>    writer   = new AtomicReference<>();   // To send msgs
     private final AtomicReference<BufferedReader> reader   = new AtomicReference<>();   // To receive msgs
+    private final AtomicReference<InputStream>    input    = new AtomicReference<>();   // To receive bytes (raw mode)
+    private final boolean                         bRaw;
     private final AtomicBoolean                   sendNull = new AtomicBoolean( true );
     private       ClientReceiverThread            receiver = null;                      // Running in background to receive msgs
+    private       TLSConfig                       tls      = null;                      // null == plain socket
+    private volatile int                          nTimeout = 10 * 1000;                 // Connect timeout (millis)
+    private final Object                          sendLock = new Object();              // Guards following 4 and the buffered writer
+    private       boolean                         bBuffer  = false;                     // true == flush once per send(...) call
+    private       long                            nLinger  = 0;                         // Micros to wait for more msgs before flushing
+    private       boolean                         bFlushOn = false;                     // true == a delayed flush is already scheduled
+    private final List<Object>                    lstLinger = new ArrayList<>();        // Written but not flushed yet (linger mode)
     private final ExecutorService                 executor = Executors.newSingleThreadExecutor();
+    private volatile SenderThread                 sender   = null;                      // Not null == async mode
+    private final LongAdder                       dropped  = new LongAdder();
+    private final LongAdder                       rejected = new LongAdder();
 
     //----------------------------------------------------------------------------//
 
@@ -72,7 +128,22 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
      */
     public TCPClientClassic( int nReadBufferSize )
     {
-        setReadBufferSize( nReadBufferSize );
+        this( nReadBufferSize, false );
+    }
+
+    /**
+     * By using this constructor with bRaw == true, received bytes are passed to
+     * ICommClient.ByteListener(s) without being decoded.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then 8 KB are used in raw
+     *                        mode and socket.readLine() is used otherwise.
+     * @param bRaw true to work in raw mode.
+     */
+    public TCPClientClassic( int nReadBufferSize, boolean bRaw )
+    {
+        setReadBufferSize( (bRaw && (nReadBufferSize < 1)) ? 8 * 1024 : nReadBufferSize );
+
+        this.bRaw = bRaw;
     }
 
     //----------------------------------------------------------------------------//
@@ -88,6 +159,159 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
         sendNull.set( send );
     }
 
+    /**
+     * Makes this client to use TLS (or plain sockets when passing null). It has
+     * to be invoked before ::connect(...).
+     * <p>
+     * The same TLSConfig instance must be used across reconnections in order to
+     * resume previous sessions (abbreviated handshake).
+     *
+     * @param tls The TLS configuration to use.
+     */
+    public final synchronized void setTLS( TLSConfig tls )
+    {
+        this.tls = tls;
+    }
+
+    public final synchronized TLSConfig getTLS()
+    {
+        return tls;
+    }
+
+    /**
+     * Maximum time (in millis) to wait for a connection to be established
+     * (0 == no limit). By default it is 10 seconds.
+     *
+     * @param millis Maximum time to wait for a connection to be established.
+     */
+    public final void setConnectTimeout( int millis )
+    {
+        nTimeout = Math.max( 0, millis );
+    }
+
+    /**
+     * Changes the way messages are written.
+     * <p>
+     * By default every line is flushed (one syscall per element) as soon as it
+     * is written. In buffered mode, all elements passed to ::send(...) or
+     * ::sendLine(...) are written into a buffer that is flushed only once per
+     * invocation.
+     * <p>
+     * Optionally, a linger time can be set: in that case the buffer is not
+     * flushed at the end of the invocation but after the linger time, so the
+     * messages sent by many threads during that window are coalesced into one
+     * single write (similar to Nagle's algorithm). In this case, listeners are
+     * informed (::onSent(...)) from the flushing thread after the flush.
+     *
+     * @param bBuffered true to use the buffered mode.
+     * @param nLingerMicros 0 to flush at the end of every send invocation or the
+     *                      number of microseconds to wait for more messages
+     *                      before flushing (only used when bBuffered is true).
+     */
+    public final void setBuffered( boolean bBuffered, long nLingerMicros )
+    {
+        synchronized( sendLock )
+        {
+            flushLingering();
+
+            if( writer.get() != null )     // Current writer has to be recreated with the new autoflush mode
+            {
+                writer.get().flush();
+                writer.set( null );
+            }
+
+            this.bBuffer = bBuffered;
+            this.nLinger = (bBuffered ? Math.max( 0, nLingerMicros ) : 0);
+        }
+    }
+
+    public final boolean isBuffered()
+    {
+        synchronized( sendLock )
+        {
+            return bBuffer;
+        }
+    }
+
+    /**
+     * Sets (or unsets) the async mode: messages are queued and written by a
+     * background thread, so callers do not block when the peer is slow.
+     * <p>
+     * Every invocation of a send method occupies one position in the queue.
+     * Messages still in the queue when ::disconnect() is invoked are written
+     * before closing (best effort).
+     *
+     * @param nQueueSize Max number of send invocations pending to be written
+     *                   (0 to go back to synchronous mode).
+     * @param policy What to do when the queue is full.
+     */
+    public final synchronized void setAsync( int nQueueSize, FullPolicy policy )
+    {
+        if( sender != null )
+        {
+            sender.finish();
+            sender = null;
+        }
+
+        if( nQueueSize > 0 )
+        {
+            sender = new SenderThread( nQueueSize, ((policy == null) ? FullPolicy.BLOCK : policy) );
+            sender.start();
+        }
+    }
+
+    public final boolean isAsync()
+    {
+        return (sender != null);
+    }
+
+    /**
+     * Returns the number of send invocations waiting in the queue (async mode).
+     *
+     * @return The number of send invocations waiting in the queue.
+     */
+    public final int getQueueDepth()
+    {
+        SenderThread st = sender;
+
+        return ((st == null) ? 0 : st.queue.size());
+    }
+
+    /**
+     * Returns the number of send invocations written per second by the writer
+     * thread (async mode), measured over (roughly) the last second.
+     *
+     * @return The number of send invocations written per second.
+     */
+    public final double getDrainRate()
+    {
+        SenderThread st = sender;
+
+        return ((st == null) ? 0 : st.nRate);
+    }
+
+    /**
+     * Returns the number of send invocations discarded because the queue was
+     * full (only when FullPolicy is DROP_OLDEST).
+     *
+     * @return The number of discarded send invocations.
+     */
+    public final long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of send invocations rejected because the queue was
+     * full (only when FullPolicy is FAIL_FAST).
+     *
+     * @return The number of rejected send invocations.
+     */
+    public final long getRejected()
+    {
+        return rejected.sum();
+    }
+
     @Override
     public final synchronized void connect( InetSocketAddress socketAddress )
     {
@@ -95,9 +319,12 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
 
         if( receiver == null )     // If the thread was already started, the invocation is ignored.
         {
-            receiver = new ClientReceiverThread( getReadBufferSize() );
+            receiver = new ClientReceiverThread( getReadBufferSize(), bRaw );
+            receiver.setBackoff( newBackoff() );
             executor.execute( receiver );
         }
+
+        startHeartbeat();
     }
 
     /**
@@ -106,11 +333,25 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
     @Override
     public final synchronized void disconnect()
     {
+        stopHeartbeat();
+
+        if( sender != null )
+        {
+            sender.finish();      // Pending msgs are written before closing
+            sender = null;
+        }
+
         if( receiver != null )    // If the thread was already null, the invocation is ignored.
         {
+            synchronized( sendLock )
+            {
+                flushLingering();     // Coalesced msgs must be sent before closing
+            }
+
             try
             {
                 receiver.interrupt();
+                destroySocket();       // Unblocks the receiver (otherwise it keeps this instance reachable)
                 executor.shutdown();
                 executor.awaitTermination( 1L, TimeUnit.SECONDS );
                 executor.shutdownNow();
@@ -132,21 +373,13 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
      * The method used is: print( ... )
      * @param lstMessages
      * @see #setSendNullValues(boolean)
+     * @see #setBuffered(boolean, long)
+     * @see #setAsync(int, FullPolicy)
      */
     @Override
     public void send( List<Object> lstMessages )    // List because order is important
     {
-        if( createWriter() )
-        {
-            for( Object msg : lstMessages )
-            {
-                if( (msg != null) || sendNull.get() )
-                {
-                    writer.get().print( msg );
-                    fireSent( msg );
-                }
-            }
-        }
+        post( lstMessages, false );
     }
 
     /**
@@ -155,21 +388,13 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
      * The method used is println( ... ) tp send every passed object.
      * @param lstMessages
      * @see #setSendNullValues(boolean)
+     * @see #setBuffered(boolean, long)
+     * @see #setAsync(int, FullPolicy)
      */
     @Override
     public void sendLine( List<Object> lstMessages )
     {
-        if( createWriter() )
-        {
-            for( Object msg : lstMessages )
-            {
-                if( (msg != null) || sendNull.get() )
-                {
-                    writer.get().println( msg );
-                    fireSent( msg );
-                }
-            }
-        }
+        post( lstMessages, true );
     }
 
     /**
@@ -180,14 +405,67 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
     @Override
     public void sendLine()
     {
-        if( createWriter() )
+        post( Collections.singletonList( UtilString.sEOL ), false );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * In sync mode, the request is written by the caller thread: if the socket
+     * has to be created, the connect timeout is not longer than the request
+     * timeout, and the request fails as soon as the socket can not be created
+     * or written.
+     */
+    @Override
+    protected void sendRequest( Object message, long nTimeoutMillis ) throws IOException
+    {
+        if( sender != null )
         {
-            writer.get().println();
-            fireSent( UtilString.sEOL );
+            super.sendRequest( message, nTimeoutMillis );
+            return;
+        }
+
+        int nConnect = nTimeout;
+
+        if( nTimeoutMillis > 0 )
+        {
+            nConnect = (int) Math.min( Integer.MAX_VALUE, ((nConnect == 0) ? nTimeoutMillis : Math.min( nConnect, nTimeoutMillis )) );
+        }
+
+        try
+        {
+            openWriter( nConnect );
+        }
+        catch( IOException ioe )
+        {
+            destroySocket();
+            fireException( new IOException( "Error creating output stream.", ioe ) );
+            throw ioe;
+        }
+
+        if( ! write( Collections.singletonList( message ), true ) )
+        {
+            throw new IOException( "Error writing to socket: "+ getAddress() );
         }
     }
 
-    //----------------------------------------------------------------------------//
+    @Override
+    protected void onPeerDead()
+    {
+        Socket s = socket.get();
+
+        if( s != null )
+        {
+            try
+            {
+                s.close();     // The receiver thread will destroy it and reconnect
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+        }
+    }
 
     @Override
     protected void finalize() throws Throwable
@@ -198,12 +476,211 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
 
     //----------------------------------------------------------------------------//
 
+    /**
+     * Writes passed messages now (sync mode) or queues them (async mode).
+     */
+    private void post( List<Object> lstMessages, boolean bEoL )
+    {
+        SenderThread st = sender;
+
+        if( st == null ) write( lstMessages, bEoL );
+        else             st.enqueue( new Outgoing( new ArrayList<>( lstMessages ), bEoL ) );    // Copied: caller could change it meanwhile
+    }
+
+    /**
+     * Writes passed messages.
+     *
+     * @return false if they could not be written (listeners were informed).
+     */
+    private boolean write( List<Object> lstMessages, boolean bEoL )
+    {
+        if( ! createWriter() )
+        {
+            return false;
+        }
+
+        if( getCodec() != null )
+        {
+            return writeEncoded( lstMessages );
+        }
+
+        List<Object> lstSent = new ArrayList<>( lstMessages.size() );
+        boolean      bError  = false;
+
+        synchronized( sendLock )
+        {
+            PrintWriter pw = writer.get();
+
+            if( pw == null )     // Socket was destroyed meanwhile
+            {
+                return false;
+            }
+
+            for( Object msg : lstMessages )
+            {
+                if( (msg != null) || sendNull.get() )
+                {
+                    if( bEoL ) pw.println( msg );
+                    else       pw.print(   msg );
+
+                    lstSent.add( msg );
+                }
+            }
+
+            if( bBuffer )
+            {
+                if( nLinger > 0 )
+                {
+                    lstLinger.addAll( lstSent );
+                    lstSent.clear();                 // Listeners will be informed after the delayed flush
+
+                    if( ! bFlushOn )
+                    {
+                        bFlushOn = true;
+                        flusher.schedule( this::onLingerExpired, nLinger, TimeUnit.MICROSECONDS );
+                    }
+                }
+                else
+                {
+                    bError = pw.checkError();        // Flushes and checks
+                }
+            }
+            else
+            {
+                bError = pw.checkError();            // Already flushed (autoflush): only checks
+            }
+        }
+
+        if( bError )
+        {
+            fireException( new IOException( "Error writing to socket: "+ getAddress() ) );
+            return false;
+        }
+
+        for( Object msg : lstSent )
+        {
+            fireSent( msg );
+        }
+
+        return true;
+    }
+
+    /**
+     * All passed messages are encoded and written using one single write.
+     *
+     * @return false if any of them could not be encoded or written.
+     */
+    private boolean writeEncoded( List<Object> lstMessages )
+    {
+        ByteArrayOutputStream baos    = new ByteArrayOutputStream( 256 );
+        List<Object>          lstSent = new ArrayList<>( lstMessages.size() );
+        boolean               bOK     = true;
+
+        for( Object msg : lstMessages )
+        {
+            if( (msg != null) || sendNull.get() )
+            {
+                try
+                {
+                    baos.write( encodeFrame( msg ) );
+                    lstSent.add( msg );
+                }
+                catch( IOException ioe )
+                {
+                    fireException( ioe );
+                    bOK = false;
+                }
+            }
+        }
+
+        if( lstSent.isEmpty() )
+        {
+            return bOK;
+        }
+
+        try
+        {
+            synchronized( sendLock )
+            {
+                PrintWriter pw = writer.get();
+                Socket      s  = socket.get();
+
+                if( (pw == null) || (s == null) )     // Socket was destroyed meanwhile
+                {
+                    return false;
+                }
+
+                flushLingering();
+                pw.flush();                           // Text written before has to go first
+                baos.writeTo( s.getOutputStream() );
+                s.getOutputStream().flush();
+            }
+        }
+        catch( IOException ioe )
+        {
+            fireException( new IOException( "Error writing to socket: "+ getAddress(), ioe ) );
+            return false;
+        }
+
+        for( Object msg : lstSent )
+        {
+            fireSent( msg );
+        }
+
+        return bOK;
+    }
+
+    private void onLingerExpired()
+    {
+        List<Object> lstSent;
+        boolean      bError;
+
+        synchronized( sendLock )
+        {
+            bError  = ! flushLingering();
+            lstSent = new ArrayList<>( lstLinger );
+            lstLinger.clear();
+        }
+
+        if( bError )
+        {
+            fireException( new IOException( "Error writing to socket: "+ getAddress() ) );
+        }
+
+        for( Object msg : lstSent )
+        {
+            fireSent( msg );
+        }
+    }
+
+    /**
+     * Flushes the writer if there is a pending delayed flush. Must be invoked
+     * while holding sendLock.
+     *
+     * @return false if there was an error while flushing.
+     */
+    private boolean flushLingering()
+    {
+        boolean bOK = true;
+
+        if( bFlushOn )
+        {
+            bFlushOn = false;
+
+            PrintWriter pw = writer.get();
+
+            bOK = ((pw != null) && (! pw.checkError()));
+        }
+
+        return bOK;
+    }
+
     /**
      * Creates a reader (only if needed).
      *
      * This method ends either with a valid reader or an exception.
      */
-    private boolean createReader()
+    private boolean createReader( boolean bBytes )
     {
         if( (reader.get() != null) && socket.get().isInputShutdown() )
         {
@@ -221,12 +698,14 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
             }
         }
 
-        if( reader.get() == null )
+        if( (reader.get() == null) && (input.get() == null) )
         {
             try
             {
                 createSocket();
-                reader.set( new BufferedReader( new InputStreamReader( socket.get().getInputStream() ) ) );
+
+                if( bBytes ) input.set( socket.get().getInputStream() );
+                else       reader.set( new BufferedReader( new InputStreamReader( socket.get().getInputStream() ) ) );
             }
             catch( IOException ioe )
             {
@@ -236,7 +715,7 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
             }
         }
 
-        return (reader.get() != null);
+        return ((reader.get() != null) || (input.get() != null));
     }
 
     /**
@@ -245,6 +724,28 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
      * This method ends either with a valid writer or an exception.
      */
     private boolean createWriter()
+    {
+        try
+        {
+            openWriter( nTimeout );
+        }
+        catch( IOException ioe )
+        {
+            UtilDebug.log( ioe );
+            destroySocket();    // if can not create the stream --> something is going wrong --> better to disconnect the socket
+            fireException( new IOException( "Error creating output stream.", ioe ) );
+        }
+
+        return (writer.get() != null);
+    }
+
+    /**
+     * Creates a writer (and the socket) only if needed.
+     *
+     * @param nConnectTimeout Max millis to establish the connection (0 == no limit).
+     * @throws IOException If the socket or the writer could not be created.
+     */
+    private void openWriter( int nConnectTimeout ) throws IOException
     {
         if( (writer.get() != null) && socket.get().isOutputShutdown() )
         {
@@ -254,20 +755,9 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
 
         if( writer.get() == null)
         {
-            try
-            {
-                createSocket();
-                writer.set( new PrintWriter( socket.get().getOutputStream(), true ) );    // true == autoflush
-            }
-            catch( IOException ioe )
-            {
-                UtilDebug.log( ioe );
-                destroySocket();    // if can not create the stream --> something is going wrong --> better to disconnect the socket
-                fireException( new IOException( "Error creating output stream.", ioe ) );
-            }
+            createSocket( nConnectTimeout );
+            writer.set( new PrintWriter( socket.get().getOutputStream(), (! isBuffered()) ) );    // autoflush only when not buffered
         }
-
-        return (writer.get() != null);
     }
 
     /**
@@ -277,20 +767,85 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
      */
     private void createSocket() throws IOException
     {
-        if( (socket.get() != null) && socket.get().isClosed() )
+        createSocket( nTimeout );
+    }
+
+    /**
+     * Creates a socket (only if needed).
+     *
+     * @param nConnectTimeout Max millis to establish the connection, including
+     *                        the time waiting for another thread that is
+     *                        establishing it (0 == no limit).
+     * @throws IOException If the socket could not be created.
+     */
+    private void createSocket( int nConnectTimeout ) throws IOException
+    {
+        long nStart = System.nanoTime();
+
+        try
+        {
+            if( nConnectTimeout == 0 )
+            {
+                connLock.lockInterruptibly();
+            }
+            else if( ! connLock.tryLock( nConnectTimeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new SocketTimeoutException( "Connect timed out: "+ getAddress() );
+            }
+        }
+        catch( InterruptedException ie )
         {
-            socket.set( null );
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while connecting: "+ getAddress() );
         }
 
-        if( socket.get() == null )
+        try
         {
-            Socket s = SocketFactory.getDefault().createSocket( getAddress().getHostString(),
-                                                                getAddress().getPort() );
-                   s.setKeepAlive( true );
-                   s.setReuseAddress( true );
+            if( (socket.get() != null) && socket.get().isClosed() )
+            {
+                socket.set( null );
+            }
+
+            if( socket.get() == null )
+            {
+                TLSConfig config = getTLS();
+                int       nLeft  = nConnectTimeout;
+                Socket    s;
+
+                if( nConnectTimeout > 0 )     // Time waiting for the lock is discounted
+                {
+                    nLeft = (int) Math.max( 1, nConnectTimeout - TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - nStart ) );
+                }
+
+                if( config != null )
+                {
+                    s = config.createSocket( getAddress(), nLeft );
+                }
+                else
+                {
+                    s = new Socket();
 
-            socket.set( s );
-            fireConnected();
+                    try
+                    {
+                        s.connect( getAddress(), nLeft );
+                    }
+                    catch( IOException ioe )
+                    {
+                        s.close();
+                        throw ioe;
+                    }
+                }
+
+                s.setKeepAlive( true );
+                s.setReuseAddress( true );
+
+                socket.set( s );
+                fireConnected();
+            }
+        }
+        finally
+        {
+            connLock.unlock();
         }
     }
 
@@ -310,6 +865,7 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
             {
                 socket.set( null );
                 reader.set( null );
+                input.set(  null );
                 writer.set( null );
                 fireDisconnected();
             }
@@ -321,24 +877,58 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
     //----------------------------------------------------------------------------//
     private class ClientReceiverThread extends CommReceiver
     {
-        private final char[]  buffer;
+        private final char[]     buffer;
+        private final BufferPool pool;
+        private       ByteBuffer raw  = null;      // Used in raw mode
+        private       ByteBuffer view = null;      // Read-only view of raw
 
         //----------------------------------------------------------------------------//
 
-        ClientReceiverThread( int nBufferSize )
+        ClientReceiverThread( int nBufferSize, boolean bRaw )
         {
             setName( TCPClientClassic.class.getSimpleName() + "-->" );
 
-            this.buffer = ((nBufferSize <= 0) ? null : new char[ nBufferSize ]);
+            boolean bBytes = (bRaw || (getFrameDecoder() != null));
+
+            this.buffer = ((bBytes || (nBufferSize <= 0)) ? null : new char[ nBufferSize ]);
+            this.pool   = (bBytes ? BufferPool.of( (nBufferSize > 0) ? nBufferSize : 8 * 1024 ) : null);
         }
 
         //----------------------------------------------------------------------------//
 
+        @Override
+        public void run()
+        {
+            if( pool != null )
+            {
+                raw  = pool.acquire();
+                view = raw.asReadOnlyBuffer();
+            }
+
+            try
+            {
+                super.run();
+            }
+            finally
+            {
+                if( pool != null )
+                {
+                    pool.release( raw );
+                }
+            }
+        }
+
         @Override
         public void readSocket() throws IOException
         {
-            if( createReader() )
+            if( createReader( raw != null ) )
             {
+                if( raw != null )
+                {
+                    readBytes();
+                    return;
+                }
+
                 String sReaded = null;
 
                 if( buffer == null )     // User used a constructor that implies to use readLine()
@@ -355,11 +945,27 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
                     }
                 }
 
-                if( sReaded != null )
+                if( sReaded == null )     // End of stream: peer closed the connection (e.g. idle timeout)
                 {
-                    fireReceived( sReaded );
+                    throw new EOFException( "Connection closed by peer: "+ getAddress() );
                 }
+
+                fireReceived( sReaded );
+            }
+        }
+
+        private void readBytes() throws IOException
+        {
+            int n = input.get().read( raw.array(), raw.arrayOffset(), raw.capacity() );
+
+            if( n < 0 )
+            {
+                throw new EOFException( "Connection closed by peer: "+ getAddress() );
             }
+
+            view.clear();
+            view.limit( n );
+            onBytes( view );
         }
 
         @Override
@@ -374,4 +980,153 @@ public class TCPClientClassic extends TCPClientAbstract<InetSocketAddress>
             TCPClientClassic.this.destroySocket();
         }
     }
-}
\ No newline at end of file
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Outgoing
+    {
+        final List<Object> messages;
+        final boolean      bEoL;
+
+        Outgoing( List<Object> messages, boolean bEoL )
+        {
+            this.messages = messages;
+            this.bEoL     = bEoL;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class SenderThread extends Thread
+    {
+        private final BlockingQueue<Outgoing> queue;
+        private final FullPolicy              policy;
+        private volatile boolean              bDone = false;
+        private volatile double               nRate = 0;     // Written per second
+        private          long                 nCount = 0;    // Written since nSince
+        private          long                 nSince = System.nanoTime();
+
+        //----------------------------------------------------------------------------//
+
+        SenderThread( int nQueueSize, FullPolicy policy )
+        {
+            super( TCPClientClassic.class.getSimpleName() + "<--" );
+
+            this.queue  = new ArrayBlockingQueue<>( nQueueSize );
+            this.policy = policy;
+
+            setDaemon( true );
+        }
+
+        //----------------------------------------------------------------------------//
+
+        void enqueue( Outgoing out )
+        {
+            switch( policy )
+            {
+                case BLOCK:
+                    try
+                    {
+                        queue.put( out );
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+
+                case FAIL_FAST:
+                    if( ! queue.offer( out ) )
+                    {
+                        rejected.increment();
+                        throw new RejectedExecutionException( "Send queue full: "+ getAddress() );
+                    }
+                    break;
+
+                case DROP_OLDEST:
+                    while( ! queue.offer( out ) )
+                    {
+                        if( queue.poll() != null )
+                        {
+                            dropped.increment();
+                        }
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Writes pending msgs and ends the thread. If they can not be written
+         * in one second (the peer does not read), they are discarded and the
+         * socket is closed.
+         */
+        void finish()
+        {
+            bDone = true;
+            interrupt();
+
+            try
+            {
+                join( 1000 );
+
+                if( isAlive() )     // Blocked writing
+                {
+                    queue.clear();
+                    onPeerDead();
+                    join( 1000 );
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while( ! bDone )
+            {
+                try
+                {
+                    Outgoing out = queue.poll( 1, TimeUnit.SECONDS );
+
+                    if( out != null )
+                    {
+                        write( out.messages, out.bEoL );
+                        nCount++;
+                    }
+
+                    updateRate();
+                }
+                catch( InterruptedException ie )
+                {
+                    // bDone was set
+                }
+                catch( Exception exc )
+                {
+                    UtilDebug.log( exc );
+                }
+            }
+
+            for( Outgoing out = queue.poll(); out != null; out = queue.poll() )
+            {
+                write( out.messages, out.bEoL );
+            }
+        }
+
+        private void updateRate()
+        {
+            long nElapsed = System.nanoTime() - nSince;
+
+            if( nElapsed >= 1_000_000_000L )
+            {
+                nRate  = nCount * 1e9 / nElapsed;
+                nCount = 0;
+                nSince = System.nanoTime();
+            }
+        }
+    }
+}
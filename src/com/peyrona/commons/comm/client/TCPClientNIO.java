@@ -13,14 +13,64 @@
  * this software; see the file COPYING.  If not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
+
 package com.peyrona.commons.comm.client;
 
+import com.peyrona.commons.comm.SelectorLoop;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
 /**
  * An implementation based on Java NIO Clients sockets.
+ * <p>
+ * See ChannelClientAbstract for details.
  *
  * @author peyrona
  */
-public final class TCPClientNIO
+public final class TCPClientNIO extends ChannelClientAbstract<InetSocketAddress>
 {
-    // TODO: hacerlo
-}
\ No newline at end of file
+    /**
+     * By using this constructor, received data will be split in lines.
+     */
+    public TCPClientNIO()
+    {
+        this( 0 );
+    }
+
+    /**
+     * By using this constructor, received data will be delivered as it arrives.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then the behavior will
+     *                        be the same as using the argument zero constructor.
+     */
+    public TCPClientNIO( int nReadBufferSize )
+    {
+        this( nReadBufferSize, SelectorLoop.next() );
+    }
+
+    /**
+     * Creates an instance that will use passed loop.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then received data will
+     *                        be split in lines.
+     * @param loop The loop to be used.
+     */
+    public TCPClientNIO( int nReadBufferSize, SelectorLoop loop )
+    {
+        super( nReadBufferSize, loop );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    protected SocketChannel openChannel() throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+                      channel.setOption( StandardSocketOptions.SO_KEEPALIVE, true );
+                      channel.setOption( StandardSocketOptions.TCP_NODELAY , true );
+
+        return channel;
+    }
+}
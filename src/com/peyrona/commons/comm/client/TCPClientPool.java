@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.lang.LatencyHistogram;
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * A pool of TCPClientClassic connections, keyed by InetSocketAddress, that
+ * allows many threads to make requests to the same endpoints at once.
+ * <p>
+ * Every request is sent using ResponseMatcher.CORRELATION_ID, so it is
+ * prefixed by a correlation id and the answer is expected with the same prefix
+ * (ProtocolHandler does it transparently). This allows to have many requests
+ * in flight per connection.
+ * <p>
+ * For every endpoint, the pool keeps between min and max connections: a
+ * request uses the less loaded connection; a new connection is opened only
+ * when all existing ones have reached the maximum in-flight requests. When
+ * the maximum number of connections is reached, callers wait until there is
+ * capacity (or the request times out).
+ * <p>
+ * A background health check closes broken and idle connections (above min)
+ * and re-opens connections to keep min per endpoint.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class TCPClientPool
+{
+    private final Map<InetSocketAddress,Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService        health;
+    private final LatencyHistogram                waits     = new LatencyHistogram();
+    private final LongAdder                       requests  = new LongAdder();
+    private final LongAdder                       failures  = new LongAdder();
+    private final LongAdder                       timeouts  = new LongAdder();
+    private final LongAdder                       created   = new LongAdder();
+    private final int                             nMin;
+    private final int                             nMax;
+    private final int                             nMaxInFlight;
+    private final long                            nIdle;         // Idle connections above min are closed after this (millis)
+    private volatile long                         nTimeout  = 30 * 1000;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a pool with 1 to 8 connections per endpoint and 64 in-flight
+     * requests per connection.
+     */
+    public TCPClientPool()
+    {
+        this( 1, 8, 64 );
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param nMinPerEndpoint Connections to keep open per endpoint once it was used.
+     * @param nMaxPerEndpoint Maximum number of connections per endpoint.
+     * @param nMaxInFlightPerConnection Maximum requests in flight per connection.
+     */
+    public TCPClientPool( int nMinPerEndpoint, int nMaxPerEndpoint, int nMaxInFlightPerConnection )
+    {
+        this.nMin         = Math.max( 0, nMinPerEndpoint );
+        this.nMax         = Math.max( Math.max( 1, nMin ), nMaxPerEndpoint );
+        this.nMaxInFlight = Math.max( 1, nMaxInFlightPerConnection );
+        this.nIdle        = 60 * 1000;
+        this.health       = Executors.newSingleThreadScheduledExecutor( r -> { Thread t = new Thread( r, "TCPClientPool-health" );
+                                                                               t.setDaemon( true );
+                                                                               return t; } );
+
+        health.scheduleWithFixedDelay( this::checkHealth, 5, 5, TimeUnit.SECONDS );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Default time (in millis) for a request to be answered; it includes the
+     * time waiting for a connection. By default it is 30 seconds.
+     *
+     * @param millis Default time for a request to be answered.
+     */
+    public void setDefaultTimeout( long millis )
+    {
+        nTimeout = Math.max( 1, millis );
+    }
+
+    /**
+     * Sends a request and waits for its answer using the default timeout.
+     *
+     * @param address Where to send the request.
+     * @param message The request (it is sent as a line using its toString()).
+     * @return The answer (an empty String when the server has no answer for it).
+     * @throws IOException If the connection could not be established (it fails
+     *                     at once, without waiting for the timeout) or failed
+     *                     before the answer arrived.
+     * @throws TimeoutException If there was no answer in time.
+     * @throws InterruptedException
+     */
+    public String request( InetSocketAddress address, Object message ) throws IOException, TimeoutException, InterruptedException
+    {
+        return request( address, message, nTimeout );
+    }
+
+    /**
+     * Sends a request and waits for its answer.
+     *
+     * @param address Where to send the request.
+     * @param message The request (it is sent as a line using its toString()).
+     * @param nTimeoutMillis Maximum time to wait for the answer (including the
+     *                       time waiting for a connection).
+     * @return The answer (an empty String when the server has no answer for it).
+     * @throws IOException If the connection could not be established (it fails
+     *                     at once, without waiting for the timeout) or failed
+     *                     before the answer arrived.
+     * @throws TimeoutException If there was no answer in time.
+     * @throws InterruptedException
+     */
+    public String request( InetSocketAddress address, Object message, long nTimeoutMillis ) throws IOException, TimeoutException, InterruptedException
+    {
+        long     deadline = System.currentTimeMillis() + nTimeoutMillis;
+        long     start    = System.nanoTime();
+        Endpoint endpoint = endpoints.computeIfAbsent( address, Endpoint::new );
+        Conn     conn;
+
+        requests.increment();
+
+        try
+        {
+            conn = endpoint.acquire( deadline );
+        }
+        catch( TimeoutException te )
+        {
+            timeouts.increment();
+            failures.increment();
+            throw te;
+        }
+        finally
+        {
+            waits.record( System.nanoTime() - start );
+        }
+
+        CompletableFuture<Object> future = conn.client.request( message, Math.max( 1, deadline - System.currentTimeMillis() ) );
+
+        try
+        {
+            return String.valueOf( future.get() );
+        }
+        catch( InterruptedException ie )
+        {
+            future.cancel( true );
+            throw ie;
+        }
+        catch( ExecutionException ee )
+        {
+            failures.increment();
+
+            if( ee.getCause() instanceof TimeoutException )
+            {
+                timeouts.increment();
+                throw (TimeoutException) ee.getCause();
+            }
+
+            if( (ee.getCause() instanceof SocketTimeoutException) && (System.currentTimeMillis() >= deadline) )     // Connecting took all the time
+            {
+                timeouts.increment();
+                throw (TimeoutException) new TimeoutException( "Request timed out connecting to: "+ address ).initCause( ee.getCause() );
+            }
+
+            throw new IOException( "Request failed: "+ address, ee.getCause() );
+        }
+        finally
+        {
+            endpoint.release( conn );
+        }
+    }
+
+    /**
+     * Closes all connections; the pool can not be used after this.
+     */
+    public void close()
+    {
+        health.shutdownNow();
+
+        for( Endpoint ep : endpoints.values() )
+        {
+            ep.closeAll();
+        }
+
+        endpoints.clear();
+    }
+
+    //----------------------------------------------------------------------------//
+    // METRICS
+
+    /**
+     * Returns the histogram with the time (in nanoseconds) that requests waited
+     * to get a connection.
+     *
+     * @return The histogram with the time that requests waited to get a connection.
+     */
+    public LatencyHistogram getWaitTime()
+    {
+        return waits;
+    }
+
+    /**
+     * Returns the number of open connections for passed endpoint.
+     *
+     * @param address The endpoint.
+     * @return The number of open connections for passed endpoint.
+     */
+    public int getConnectionCount( InetSocketAddress address )
+    {
+        Endpoint ep = endpoints.get( address );
+
+        return ((ep == null) ? 0 : ep.size());
+    }
+
+    /**
+     * Returns the ratio (0 to 1) between requests in flight and the maximum
+     * requests in flight allowed for passed endpoint (nMax * nMaxInFlight).
+     *
+     * @param address The endpoint.
+     * @return The utilization for passed endpoint.
+     */
+    public double getUtilization( InetSocketAddress address )
+    {
+        Endpoint ep = endpoints.get( address );
+
+        return ((ep == null) ? 0d : (double) ep.inFlight() / (nMax * nMaxInFlight));
+    }
+
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the number of failed requests (including timeouts).
+     *
+     * @return The number of failed requests.
+     */
+    public long getFailures()
+    {
+        return failures.sum();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections opened since this pool was created.
+     *
+     * @return The number of connections opened since this pool was created.
+     */
+    public long getConnectionsCreated()
+    {
+        return created.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TCPClientPool{endpoints="+ endpoints.size() +", requests="+ getRequests() +", failures="+ getFailures() +
+                           ", timeouts="+ getTimeouts() +", created="+ getConnectionsCreated() +", wait={"+ waits +"}}";
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void checkHealth()
+    {
+        for( Endpoint ep : endpoints.values() )
+        {
+            try
+            {
+                ep.check();
+            }
+            catch( Exception exc )
+            {
+                UtilDebug.log( Level.WARNING, exc, "Error checking pool health" );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class Endpoint
+    {
+        private final InetSocketAddress address;
+        private final List<Conn>        conns = new ArrayList<>();     // Guarded by this
+
+        Endpoint( InetSocketAddress address )
+        {
+            this.address = address;
+        }
+
+        synchronized Conn acquire( long deadline ) throws TimeoutException, InterruptedException
+        {
+            while( true )
+            {
+                Conn best = null;
+
+                for( Conn c : conns )
+                {
+                    if( (c.nInFlight < nMaxInFlight) && ((best == null) || (c.nInFlight < best.nInFlight)) )
+                    {
+                        best = c;
+                    }
+                }
+
+                if( (best == null) && (conns.size() < nMax) )
+                {
+                    best = open();
+                }
+
+                if( best != null )
+                {
+                    best.nInFlight++;
+                    best.nLastUse = System.currentTimeMillis();
+                    return best;
+                }
+
+                long wait = deadline - System.currentTimeMillis();
+
+                if( wait <= 0 )
+                {
+                    throw new TimeoutException( "No connection available for: "+ address );
+                }
+
+                wait( wait );
+            }
+        }
+
+        synchronized void release( Conn conn )
+        {
+            conn.nInFlight--;
+            notifyAll();
+        }
+
+        synchronized int size()
+        {
+            return conns.size();
+        }
+
+        synchronized int inFlight()
+        {
+            int n = 0;
+
+            for( Conn c : conns )
+            {
+                n += c.nInFlight;
+            }
+
+            return n;
+        }
+
+        void check()
+        {
+            List<Conn> removed = new ArrayList<>();
+
+            synchronized( this )
+            {
+                long now = System.currentTimeMillis();
+
+                for( Conn c : new ArrayList<>( conns ) )
+                {
+                    boolean bBroken = (! c.client.isConnected()) && (now - c.nLastUse > 5 * 1000);
+                    boolean bIdle   = (conns.size() > nMin) && (now - c.nLastUse > nIdle);
+
+                    if( (c.nInFlight == 0) && (bBroken || bIdle) )
+                    {
+                        conns.remove( c );
+                        removed.add( c );
+                    }
+                }
+
+                while( conns.size() < nMin )
+                {
+                    open();
+                }
+
+                notifyAll();
+            }
+
+            close( removed );     // Outside the lock: disconnecting can take a while and ::acquire(...) would be blocked
+        }
+
+        void closeAll()
+        {
+            List<Conn> removed;
+
+            synchronized( this )
+            {
+                removed = new ArrayList<>( conns );
+                conns.clear();
+                notifyAll();
+            }
+
+            close( removed );
+        }
+
+        private void close( List<Conn> list )
+        {
+            for( Conn c : list )
+            {
+                c.close();
+            }
+        }
+
+        private Conn open()
+        {
+            Conn conn = new Conn( address );
+
+            conns.add( conn );
+            created.increment();
+
+            return conn;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Conn
+    {
+        private final TCPClientClassic client    = new TCPClientClassic();
+        private       int              nInFlight = 0;                            // Guarded by Endpoint
+        private       long             nLastUse  = System.currentTimeMillis();   // Guarded by Endpoint
+
+        Conn( InetSocketAddress address )
+        {
+            client.setResponseMatcher( ResponseMatcher.CORRELATION_ID );
+            client.setRequestTimeout( 0 );       // The pool passes the timeout for every request
+            client.setBuffered( true, 0 );
+            client.connect( address );
+        }
+
+        void close()
+        {
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.comm.CommReceiver;
+import com.peyrona.commons.comm.DatagramBatcher;
+import com.peyrona.commons.comm.MessageCodec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client that talks to a UDPServer: no connection has to be established and
+ * a request costs one datagram each way, so latency is lower than TCP (no
+ * handshake, no delayed acks, no head-of-line blocking), which makes it a
+ * good choice for short control messages in a LAN.
+ * <p>
+ * It is message oriented: every object passed to ::send(...) or
+ * ::sendLine(...) is one message (there are no lines: both methods do the
+ * same) and every received message is passed to listeners as one object
+ * (a String or, when a codec is set, the decoded message). Small messages
+ * sent at the same time are packed into one datagram (see DatagramBatcher).
+ * <p>
+ * Requests (::request(...)) are matched with their answers using a sequence
+ * number (the ResponseMatcher is not used). UDP is not reliable: a lost
+ * request (or answer) times out unless retransmission is enabled
+ * (::setRetransmit(...)); the server recognizes retransmitted requests and
+ * answers them again without processing them twice. One way messages are
+ * never retransmitted; received duplicates are discarded.
+ * <p>
+ * As there is no connection, the client is considered connected as soon as
+ * its socket is open; it is considered disconnected (and pending requests
+ * fail) when the server host reports that nobody listens at the server port.
+ * FrameDecoder and TLS are not used.
+ *
+ * @author peyrona
+ */
+public final class UDPClient extends TCPClientAbstract<InetSocketAddress>
+{
+    private static final int nWINDOW = 1024;     // Sequences remembered (to detect duplicates)
+
+    private static final ScheduledExecutorService retransmitter = Executors.newSingleThreadScheduledExecutor( r -> { Thread t = new Thread( r, "UDPClient-retransmit" );
+                                                                                                                     t.setDaemon( true );
+                                                                                                                     return t; } );
+
+    private final    Map<Integer,CompletableFuture<Object>> pending     = new ConcurrentHashMap<>();
+    private final    AtomicInteger                          nSeq        = new AtomicInteger( 0 );
+    private final    LongAdder                              retransmits = new LongAdder();
+    private final    LongAdder                              duplicates  = new LongAdder();
+    private final    LongAdder                              messages    = new LongAdder();   // Sent using previous batchers
+    private final    LongAdder                              datagrams   = new LongAdder();
+    private final    ExecutorService                        executor    = Executors.newSingleThreadExecutor();
+    private          Receiver                               receiver    = null;
+    private volatile DatagramChannel                        channel     = null;
+    private volatile DatagramBatcher                        batcher     = null;
+    private volatile int                                    nDatagram   = DatagramBatcher.nDEFAULT_SIZE;
+    private volatile long                                   nRetryAfter = 0;                 // Millis (0 == no retransmission)
+    private volatile int                                    nMaxRetries = 0;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Max datagram size used to pack messages (by default 1472 bytes: not
+     * fragmented in an Ethernet network). It has to be invoked before
+     * ::connect(...).
+     *
+     * @param nBytes Max datagram size.
+     */
+    public void setMaxDatagramSize( int nBytes )
+    {
+        nDatagram = Math.max( DatagramBatcher.nHEAD + DatagramBatcher.nMSG_HEAD + 1, Math.min( nBytes, DatagramBatcher.nMAX_SIZE ) );
+    }
+
+    /**
+     * Enables (or disables) the retransmission of unanswered requests: a
+     * request is sent again after passed time and the time doubles after every
+     * retransmission (the request timeout still applies).
+     *
+     * @param nAfterMillis Time to wait for the answer before sending the
+     *                     request again (0 == no retransmission).
+     * @param nMaxRetries Max number of times a request is sent again.
+     */
+    public void setRetransmit( long nAfterMillis, int nMaxRetries )
+    {
+        this.nRetryAfter = Math.max( 0, nAfterMillis );
+        this.nMaxRetries = Math.max( 0, nMaxRetries );
+    }
+
+    /**
+     * Returns the number of requests sent again because they were not answered
+     * in time.
+     *
+     * @return The number of requests sent again.
+     */
+    public long getRetransmissions()
+    {
+        return retransmits.sum();
+    }
+
+    /**
+     * Returns the number of received messages that were discarded because
+     * they were duplicated (including late answers to requests that were
+     * already answered, timed out or cancelled).
+     *
+     * @return The number of discarded duplicated messages.
+     */
+    public long getDuplicates()
+    {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns the number of messages sent (including requests and
+     * retransmissions).
+     *
+     * @return The number of messages sent.
+     */
+    public long getMessagesSent()
+    {
+        DatagramBatcher db = batcher;
+
+        return messages.sum() + ((db == null) ? 0 : db.getMessages());
+    }
+
+    /**
+     * Returns the number of datagrams sent: when it is smaller than
+     * ::getMessagesSent(), messages are being packed.
+     *
+     * @return The number of datagrams sent.
+     */
+    public long getDatagramsSent()
+    {
+        DatagramBatcher db = batcher;
+
+        return datagrams.sum() + ((db == null) ? 0 : db.getDatagrams());
+    }
+
+    @Override
+    public int getPendingRequests()
+    {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void connect( InetSocketAddress socketAddress )
+    {
+        setSocketAddress( socketAddress );
+
+        if( receiver == null )     // If the thread was already started, the invocation is ignored.
+        {
+            receiver = new Receiver();
+            receiver.setBackoff( newBackoff() );
+            executor.execute( receiver );
+        }
+
+        startHeartbeat();
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        stopHeartbeat();
+
+        if( receiver != null )     // If the thread was already null, the invocation is ignored.
+        {
+            try
+            {
+                receiver.interrupt();
+                closeChannel();        // Unblocks the receiver
+                executor.shutdown();
+                executor.awaitTermination( 1L, TimeUnit.SECONDS );
+                executor.shutdownNow();
+            }
+            catch( Exception ex )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                receiver = null;
+            }
+        }
+    }
+
+    /**
+     * Sends every passed Object as one message (null elements are sent as
+     * "null" or, when a codec is set, as an encoded null).
+     *
+     * @param lstMessages What to send.
+     */
+    @Override
+    public void send( List<Object> lstMessages )
+    {
+        DatagramBatcher db = batcher;
+
+        if( db == null )
+        {
+            fireException( new IOException( "Not connected: "+ getAddress() ) );
+            return;
+        }
+
+        try
+        {
+            for( Object msg : lstMessages )
+            {
+                db.add( DatagramBatcher.MSG, nSeq.incrementAndGet(), encode( msg ) );
+            }
+
+            db.flush();     // All of them at once
+
+            for( Object msg : lstMessages )
+            {
+                fireSent( msg );
+            }
+        }
+        catch( IOException ioe )
+        {
+            fireException( ioe );
+        }
+    }
+
+    /**
+     * Same as ::send(...): there are no lines, every Object is one message.
+     *
+     * @param lstMessages What to send.
+     */
+    @Override
+    public void sendLine( List<Object> lstMessages )
+    {
+        send( lstMessages );
+    }
+
+    /**
+     * Does nothing: there are no lines.
+     */
+    @Override
+    public void sendLine()
+    {
+    }
+
+    @Override
+    public CompletableFuture<Object> request( Object message, long nTimeoutMillis )
+    {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        DatagramBatcher           db     = batcher;
+        int                       seq    = nSeq.incrementAndGet();
+
+        if( db == null )
+        {
+            future.completeExceptionally( new IOException( "Not connected: "+ getAddress() ) );
+            return future;
+        }
+
+        if( nTimeoutMillis > 0 )
+        {
+            future.orTimeout( nTimeoutMillis, TimeUnit.MILLISECONDS );
+        }
+
+        pending.put( seq, future );
+        future.whenComplete( (answer,exc) -> pending.remove( seq ) );
+
+        try
+        {
+            byte[] payload = encode( message );
+
+            db.send( DatagramBatcher.REQ, seq, payload );
+
+            if( nRetryAfter > 0 && nMaxRetries > 0 )
+            {
+                retransmit( db, seq, payload, future, nRetryAfter, nMaxRetries );
+            }
+        }
+        catch( IOException ioe )
+        {
+            future.completeExceptionally( ioe );
+        }
+
+        return future;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    protected void onPeerDead()
+    {
+        closeChannel();     // The receiver will destroy it and create a new one
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Sends the request again after passed delay if it was not answered yet.
+     */
+    private void retransmit( DatagramBatcher db, int seq, byte[] payload, CompletableFuture<Object> future, long nDelay, int nLeft )
+    {
+        retransmitter.schedule( () ->
+                                {
+                                    if( future.isDone() || (db != batcher) )     // Answered or connection lost
+                                    {
+                                        return;
+                                    }
+
+                                    try
+                                    {
+                                        db.send( DatagramBatcher.REQ, seq, payload );
+                                        retransmits.increment();
+
+                                        if( nLeft > 1 )
+                                        {
+                                            retransmit( db, seq, payload, future, nDelay * 2, nLeft - 1 );
+                                        }
+                                    }
+                                    catch( IOException ioe )
+                                    {
+                                        future.completeExceptionally( ioe );
+                                    }
+                                },
+                                nDelay, TimeUnit.MILLISECONDS );
+    }
+
+    private byte[] encode( Object message ) throws IOException
+    {
+        MessageCodec mc = getCodec();
+
+        return ((mc == null) ? String.valueOf( message ).getBytes( StandardCharsets.UTF_8 ) : mc.encode( message ));
+    }
+
+    private Object decode( ByteBuffer payload ) throws IOException
+    {
+        MessageCodec mc = getCodec();
+
+        if( mc != null )
+        {
+            return mc.decode( payload );
+        }
+
+        byte[] ab = new byte[ payload.remaining() ];
+
+        payload.get( ab );
+
+        return new String( ab, StandardCharsets.UTF_8 );
+    }
+
+    private void closeChannel()
+    {
+        DatagramChannel dc = channel;
+
+        if( dc != null )
+        {
+            try
+            {
+                dc.close();
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class Receiver extends CommReceiver
+    {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect( DatagramBatcher.nMAX_SIZE );
+        private final ByteBuffer view   = buffer.asReadOnlyBuffer();
+        private final int[]      seen   = new int[ nWINDOW ];
+
+        //----------------------------------------------------------------------------//
+
+        Receiver()
+        {
+            setName( UDPClient.class.getSimpleName() + "-->" );
+        }
+
+        //----------------------------------------------------------------------------//
+
+        @Override
+        protected void createSocket() throws IOException
+        {
+            if( (channel != null) && channel.isOpen() )     // Invoked before every read
+            {
+                return;
+            }
+
+            DatagramChannel dc = DatagramChannel.open();
+
+            try
+            {
+                dc.connect( getAddress() );     // Only datagrams from the server are received
+            }
+            catch( IOException ioe )
+            {
+                dc.close();
+                throw ioe;
+            }
+
+            int nSession = ThreadLocalRandom.current().nextInt();
+
+            Arrays.fill( seen, 0 );
+
+            channel = dc;
+            batcher = new DatagramBatcher( dc, getAddress(), ((nSession == 0) ? 1 : nSession), nDatagram );     // A new session: the server forgets previous sequences
+            fireConnected();
+        }
+
+        @Override
+        protected void destroySocket()
+        {
+            DatagramBatcher db = batcher;
+
+            closeChannel();
+
+            if( db != null )
+            {
+                batcher = null;
+                messages.add(  db.getMessages()  );
+                datagrams.add( db.getDatagrams() );
+
+                IOException exc = new IOException( "Connection lost: "+ getAddress() );
+
+                for( Integer seq : pending.keySet() )
+                {
+                    CompletableFuture<Object> future = pending.remove( seq );
+
+                    if( future != null )
+                    {
+                        future.completeExceptionally( exc );
+                    }
+                }
+
+                fireDisconnected();
+            }
+
+            channel = null;
+        }
+
+        @Override
+        protected void readSocket() throws IOException
+        {
+            buffer.clear();
+            channel.read( buffer );     // Throws PortUnreachableException when nobody listens at server port
+            buffer.flip();
+            view.clear();
+            view.limit( buffer.limit() );
+
+            try
+            {
+                DatagramBatcher.parse( view, this::onMessage );
+            }
+            catch( IOException ioe )     // An invalid datagram or message: it is ignored
+            {
+                fireException( ioe );
+            }
+        }
+
+        private void onMessage( byte type, int seq, ByteBuffer payload ) throws IOException
+        {
+            if( type == DatagramBatcher.RESP )
+            {
+                CompletableFuture<Object> future = pending.remove( seq );
+
+                if( future == null )
+                {
+                    duplicates.increment();
+                    return;
+                }
+
+                try
+                {
+                    future.complete( payload.hasRemaining() ? decode( payload ) : null );     // Empty == null
+                }
+                catch( IOException ioe )
+                {
+                    future.completeExceptionally( ioe );
+                }
+            }
+            else if( type == DatagramBatcher.MSG )
+            {
+                int n = seq & (nWINDOW - 1);
+
+                if( seen[n] == seq )
+                {
+                    duplicates.increment();
+                    return;
+                }
+
+                seen[n] = seq;
+
+                int nPos = payload.position();
+
+                fireReceived( payload );
+                payload.position( nPos );
+
+                Object msg = decode( payload );
+
+                if( msg != null )     // Listeners never receive null
+                {
+                    fireReceived( msg );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.client;
+
+import com.peyrona.commons.comm.SelectorLoop;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A client that uses Unix domain sockets (a file path instead of host and
+ * port): only for processes running in the same host, but with lower latency
+ * and higher throughput than TCP over loopback (no TCP/IP stack is involved).
+ * <p>
+ * It works the same way as TCPClientNIO (see ChannelClientAbstract for
+ * details) and talks to a UnixSocketServer.
+ *
+ * @author peyrona
+ */
+public final class UnixSocketClient extends ChannelClientAbstract<UnixDomainSocketAddress>
+{
+    /**
+     * By using this constructor, received data will be split in lines.
+     */
+    public UnixSocketClient()
+    {
+        this( 0 );
+    }
+
+    /**
+     * By using this constructor, received data will be delivered as it arrives.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then the behavior will
+     *                        be the same as using the argument zero constructor.
+     */
+    public UnixSocketClient( int nReadBufferSize )
+    {
+        this( nReadBufferSize, SelectorLoop.next() );
+    }
+
+    /**
+     * Creates an instance that will use passed loop.
+     *
+     * @param nReadBufferSize The buffer size, if x < 1 then received data will
+     *                        be split in lines.
+     * @param loop The loop to be used.
+     */
+    public UnixSocketClient( int nReadBufferSize, SelectorLoop loop )
+    {
+        super( nReadBufferSize, loop );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    @Override
+    protected SocketChannel openChannel() throws IOException
+    {
+        return SocketChannel.open( StandardProtocolFamily.UNIX );
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.http;
+
+import com.peyrona.commons.comm.HttpConstants;
+import com.peyrona.commons.lang.LatencyHistogram;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A minimal HTTP/1.1 load generator: every connection (one thread each) sends
+ * batches of pipelined GET requests and waits for all the responses.
+ * <p>
+ * When no URL is given, an HttpServer is started with two routes: "/hello"
+ * (a small pre-encoded response in a direct buffer) and "/file" (64 KB
+ * served with FileChannel::transferTo(...)).
+ * <p>
+ * Usage: java com.peyrona.commons.comm.http.HttpBenchmark [connections] [pipeline depth] [seconds] [url]
+ * <p>
+ * The server can also be measured with external tools (wrk, h2load, ab, etc.).
+ *
+ * @author peyrona
+ */
+public class HttpBenchmark
+{
+    public static void main( String[] as ) throws Exception
+    {
+        int        nConns   = ((as.length > 0) ? Integer.parseInt( as[0] ) : 8);
+        int        nDepth   = ((as.length > 1) ? Integer.parseInt( as[1] ) : 1);
+        int        nSeconds = ((as.length > 2) ? Integer.parseInt( as[2] ) : 10);
+        HttpServer server   = null;
+        Path       file     = null;
+        List<URI>  uris     = new ArrayList<>();
+
+        if( as.length > 3 )
+        {
+            uris.add( URI.create( as[3] ) );
+        }
+        else
+        {
+            ByteBuffer hello = ByteBuffer.allocateDirect( 13 );
+                       hello.put( "Hello, world!".getBytes( StandardCharsets.US_ASCII ) ).flip();
+
+            file = Files.createTempFile( "peyrona", ".bin" );
+            Files.write( file, new byte[ 64 * 1024 ] );
+
+            Path data = file;
+
+            server = new HttpServer();
+            server.route( HttpConstants.Method.GET, "/hello", (req, resp) -> resp.setContentType( HttpConstants.MIMETYPE_TEXT_PLAIN ).send( hello ) )
+                  .route( HttpConstants.Method.GET, "/file" , (req, resp) -> resp.sendFile( data ) )
+                  .connect( 0 );
+
+            uris.add( URI.create( "http://127.0.0.1:"+ server.getPort() +"/hello" ) );
+            uris.add( URI.create( "http://127.0.0.1:"+ server.getPort() +"/file" ) );
+        }
+
+        System.out.println( "Connections: "+ nConns +", pipeline depth: "+ nDepth +", seconds: "+ nSeconds );
+
+        try
+        {
+            for( URI uri : uris )
+            {
+                run( uri, nConns, nDepth, 1 );          // Warm up
+                run( uri, nConns, nDepth, nSeconds );
+            }
+        }
+        finally
+        {
+            if( server != null )
+            {
+                server.disconnect();
+                Files.deleteIfExists( file );
+            }
+        }
+
+        System.exit( 0 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static void run( URI uri, int nConns, int nDepth, int nSeconds ) throws Exception
+    {
+        LatencyHistogram latency   = new LatencyHistogram();
+        LongAdder        responses = new LongAdder();
+        LongAdder        bytes     = new LongAdder();
+        LongAdder        errors    = new LongAdder();
+        long             nEnd      = System.nanoTime() + nSeconds * 1_000_000_000L;
+        String           sPath     = (uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) + ((uri.getRawQuery() == null) ? "" : "?"+ uri.getRawQuery());
+        byte[]           request   = ("GET "+ sPath +" HTTP/1.1\r\nHost: "+ uri.getHost() +"\r\n\r\n").getBytes( StandardCharsets.ISO_8859_1 );
+        byte[]           batch     = new byte[ request.length * nDepth ];
+        Thread[]         threads   = new Thread[ nConns ];
+
+        for( int n = 0; n < nDepth; n++ )
+        {
+            System.arraycopy( request, 0, batch, n * request.length, request.length );
+        }
+
+        for( int n = 0; n < nConns; n++ )
+        {
+            threads[n] = new Thread( () ->
+                            {
+                                try( Socket socket = new Socket( uri.getHost(), (uri.getPort() < 0) ? 80 : uri.getPort() ) )
+                                {
+                                    socket.setTcpNoDelay( true );
+
+                                    InputStream  in  = new BufferedInputStream( socket.getInputStream(), 64 * 1024 );
+                                    OutputStream out = socket.getOutputStream();
+
+                                    while( System.nanoTime() < nEnd )
+                                    {
+                                        long nStart = System.nanoTime();
+
+                                        out.write( batch );
+                                        out.flush();
+
+                                        for( int r = 0; r < nDepth; r++ )
+                                        {
+                                            bytes.add( readResponse( in ) );
+                                            latency.record( System.nanoTime() - nStart );
+                                            responses.increment();
+                                        }
+                                    }
+                                }
+                                catch( IOException ioe )
+                                {
+                                    errors.increment();
+                                }
+                            } );
+            threads[n].start();
+        }
+
+        long nStart = System.nanoTime();
+
+        for( Thread t : threads )
+        {
+            t.join();
+        }
+
+        double nSecs = (System.nanoTime() - nStart) / 1e9;
+
+        if( nSeconds > 1 )
+        {
+            System.out.println();
+            System.out.println( uri );
+            System.out.println( "\tThroughput : "+ Math.round( responses.sum() / nSecs ) +" req/s, "+ Math.round( bytes.sum() / nSecs / (1024 * 1024) ) +" MB/s" );
+            System.out.println( "\tLatency    : mean="+ Math.round( latency.getMean() / 1000 ) +"us, p50="+ latency.getPercentile( 50 ) / 1000 +
+                                               "us, p99="+ latency.getPercentile( 99 ) / 1000 +"us, max="+ latency.getMax() / 1000 +"us" );
+            System.out.println( "\tErrors     : "+ errors.sum() );
+        }
+    }
+
+    /**
+     * Reads one response (with Content-Length) and returns its body length.
+     */
+    private static long readResponse( InputStream in ) throws IOException
+    {
+        StringBuilder sb      = new StringBuilder( 128 );
+        long          nLength = 0;
+
+        while( true )       // Head: line by line
+        {
+            sb.setLength( 0 );
+
+            int b;
+
+            while( (b = in.read()) != '\n' )
+            {
+                if( b < 0 )
+                {
+                    throw new EOFException();
+                }
+
+                if( b != '\r' )
+                {
+                    sb.append( (char) b );
+                }
+            }
+
+            if( sb.length() == 0 )
+            {
+                break;
+            }
+
+            if( sb.length() > 15 && sb.substring( 0, 15 ).equalsIgnoreCase( "Content-Length:" ) )
+            {
+                nLength = Long.parseLong( sb.substring( 15 ).trim() );
+            }
+        }
+
+        for( long n = nLength; n > 0; )
+        {
+            long nSkipped = in.skip( n );
+
+            if( nSkipped <= 0 )
+            {
+                if( in.read() < 0 )
+                {
+                    throw new EOFException();
+                }
+
+                nSkipped = 1;
+            }
+
+            n -= nSkipped;
+        }
+
+        return nLength;
+    }
+}
@@ -0,0 +1,1564 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.http;
+
+import com.peyrona.commons.comm.HttpConstants;
+import com.peyrona.commons.comm.SelectorLoop;
+import com.peyrona.commons.util.UtilDebug;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * A small HTTP/1.1 client (plain HTTP, no TLS) built on SelectorLoop that
+ * keeps persistent connections per host:port and reuses them.
+ * <p>
+ * Features:
+ * <ul>
+ *    <li>Connection pool: up to ::setMaxConnectionsPerHost(...) connections
+ *        per host:port. When all of them are busy, requests wait (without
+ *        blocking any thread) for a free one. Idle connections are closed
+ *        after ::setIdleTimeout(...).</li>
+ *    <li>Optional pipelining (::setPipelining(...)): up to n requests are sent
+ *        through a connection before their responses arrive.</li>
+ *    <li>Streamed bodies: a request body can be an InputStream (sent using
+ *        chunked transfer encoding) and the response body can be received in
+ *        pieces (Request::onBody(...)) instead of being kept in memory.
+ *        Bodies kept in memory are bounded by ::setMaxBodySize(...).</li>
+ *    <li>Connect and request timeouts: the request timeout includes the time
+ *        waiting for a connection.</li>
+ *    <li>Idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS, TRACE) that
+ *        failed before receiving any byte of their response (e.g. the server
+ *        closed an idle connection) are retried once using a new connection.</li>
+ * </ul>
+ * Responses with any status are returned (they are not errors); futures fail
+ * with IOException (connection problems) or TimeoutException.
+ * <p>
+ * Asynchronous futures are completed inside the loop thread: dependent actions
+ * that block must use the "...Async(...)" CompletableFuture methods.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class HttpClient
+{
+    /**
+     * Receives the body of a response in pieces.
+     */
+    public interface BodyHandler
+    {
+        /**
+         * Invoked (inside the loop thread: it must not block) for every piece
+         * of the body.
+         *
+         * @param data A piece of the body (from position to limit); only valid
+         *             during this invocation.
+         * @throws IOException To abort the request (the connection is closed).
+         */
+        void onData( ByteBuffer data ) throws IOException;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static final int    nMAX_HEAD = 64 * 1024;     // Response status line and headers
+    private static final byte[] LAST      = { '0', '\r', '\n', '\r', '\n' };
+
+    private final    SelectorLoop      loop;
+    private final    Map<String,Host>  hosts     = new ConcurrentHashMap<>();
+    private final    AtomicInteger     nConns    = new AtomicInteger( 0 );
+    private final    LongAdder         requests  = new LongAdder();
+    private final    LongAdder         failures  = new LongAdder();
+    private final    LongAdder         timeouts  = new LongAdder();
+    private final    LongAdder         retries   = new LongAdder();
+    private final    LongAdder         created   = new LongAdder();
+    private volatile int               nMaxConns = 4;
+    private volatile int               nDepth    = 1;
+    private volatile int               nConnect  = 10 * 1000;
+    private volatile int               nTimeout  = 30 * 1000;
+    private volatile int               nIdle     = 15 * 1000;
+    private volatile int               nMaxBody  = 8 * 1024 * 1024;
+    private volatile boolean           isClosed  = false;
+    private          SelectorLoop.Schedule sweeper;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance that uses one of the default loops.
+     */
+    public HttpClient()
+    {
+        this( SelectorLoop.next() );
+    }
+
+    /**
+     * Creates an instance that uses passed loop.
+     *
+     * @param loop The loop.
+     */
+    public HttpClient( SelectorLoop loop )
+    {
+        this.loop    = loop;
+        this.sweeper = loop.schedule( this::closeIdle, 1000 );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Maximum number of connections per host:port (by default 4).
+     *
+     * @param n Maximum number of connections per host:port.
+     * @return Itself.
+     */
+    public HttpClient setMaxConnectionsPerHost( int n )
+    {
+        nMaxConns = Math.max( 1, n );
+        return this;
+    }
+
+    /**
+     * Maximum number of requests sent through one connection before their
+     * responses arrive (by default 1: no pipelining).
+     * <p>
+     * Not all servers handle pipelining well and, when a connection breaks,
+     * non idempotent requests in flight (e.g. POST) fail even if the server
+     * processed them.
+     *
+     * @param nDepth Maximum number of requests in flight per connection.
+     * @return Itself.
+     */
+    public HttpClient setPipelining( int nDepth )
+    {
+        this.nDepth = Math.max( 1, nDepth );
+        return this;
+    }
+
+    /**
+     * Maximum time to establish a connection (by default 10 seconds).
+     *
+     * @param nMillis Connect timeout.
+     * @return Itself.
+     */
+    public HttpClient setConnectTimeout( int nMillis )
+    {
+        nConnect = Math.max( 1, nMillis );
+        return this;
+    }
+
+    /**
+     * Default maximum time for a request to be answered (including the time
+     * waiting for a connection). By default 30 seconds.
+     *
+     * @param nMillis Request timeout.
+     * @return Itself.
+     * @see Request#timeout(int)
+     */
+    public HttpClient setRequestTimeout( int nMillis )
+    {
+        nTimeout = Math.max( 1, nMillis );
+        return this;
+    }
+
+    /**
+     * Connections not used during this time are closed (by default 15 seconds:
+     * it should be shorter than the server idle timeout).
+     *
+     * @param nMillis Idle timeout.
+     * @return Itself.
+     */
+    public HttpClient setIdleTimeout( int nMillis )
+    {
+        nIdle = Math.max( 1, nMillis );
+        return this;
+    }
+
+    /**
+     * Requests whose response has a bigger body fail (with IOException) and
+     * their connection is closed. It does not apply to bodies passed to a
+     * BodyHandler (Request::onBody(...)).
+     *
+     * @param nBytes Max response body size. By default 8 MB.
+     * @return Itself.
+     */
+    public HttpClient setMaxBodySize( int nBytes )
+    {
+        nMaxBody = Math.max( 0, nBytes );
+        return this;
+    }
+
+    /**
+     * Sends a GET request and waits for the response.
+     *
+     * @param url The URL.
+     * @return The response.
+     * @throws IOException If the request failed.
+     * @throws TimeoutException If there was no response in time.
+     * @throws InterruptedException
+     */
+    public Response get( String url ) throws IOException, TimeoutException, InterruptedException
+    {
+        return request( new Request( HttpConstants.Method.GET, url ) );
+    }
+
+    /**
+     * Sends a POST request and waits for the response.
+     *
+     * @param url The URL.
+     * @param contentType The body type.
+     * @param body The body.
+     * @return The response.
+     * @throws IOException If the request failed.
+     * @throws TimeoutException If there was no response in time.
+     * @throws InterruptedException
+     */
+    public Response post( String url, String contentType, byte[] body ) throws IOException, TimeoutException, InterruptedException
+    {
+        return request( new Request( HttpConstants.Method.POST, url ).header( "Content-Type", contentType ).body( body ) );
+    }
+
+    /**
+     * Sends a request and waits for the response.
+     *
+     * @param request The request.
+     * @return The response.
+     * @throws IOException If the request failed.
+     * @throws TimeoutException If there was no response in time.
+     * @throws InterruptedException
+     */
+    public Response request( Request request ) throws IOException, TimeoutException, InterruptedException
+    {
+        CompletableFuture<Response> future = requestAsync( request );
+
+        try
+        {
+            return future.get();
+        }
+        catch( InterruptedException ie )
+        {
+            future.cancel( true );
+            throw ie;
+        }
+        catch( ExecutionException ee )
+        {
+            if( ee.getCause() instanceof TimeoutException )
+            {
+                throw (TimeoutException) ee.getCause();
+            }
+
+            if( ee.getCause() instanceof IOException )
+            {
+                throw (IOException) ee.getCause();
+            }
+
+            throw new IOException( "Request failed: "+ request, ee.getCause() );
+        }
+    }
+
+    /**
+     * Sends a request: the returned future is completed (inside the loop thread)
+     * when the response arrives.
+     *
+     * @param request The request.
+     * @return A future for the response.
+     */
+    public CompletableFuture<Response> requestAsync( Request request )
+    {
+        Exchange x = new Exchange( request );
+
+        requests.increment();
+
+        if( isClosed )
+        {
+            fail( x, new IOException( "Client is closed" ) );
+            return x.future;
+        }
+
+        Host host = hosts.computeIfAbsent( request.key(), k -> new Host( request.uri ) );   // Name resolution: in caller thread
+
+        if( host.address.isUnresolved() )
+        {
+            hosts.remove( request.key() );
+            fail( x, new ConnectException( "Unknown host: "+ request.uri.getHost() ) );
+            return x.future;
+        }
+
+        x.host = host;
+        loop.execute( () -> { if( ! x.future.isDone() )     // Cancelled meanwhile
+                              {
+                                  x.timeout = loop.schedule( () -> onTimeout( x ), (request.nTimeout > 0) ? request.nTimeout : nTimeout );
+                                  dispatch( x );
+                              } } );
+
+        return x.future;
+    }
+
+    /**
+     * Closes all connections: requests in flight fail and the client can not
+     * be used after this.
+     */
+    public void close()
+    {
+        isClosed = true;
+
+        loop.execute( () -> { sweeper.cancel();
+
+                              for( Host host : hosts.values() )
+                              {
+                                  for( Conn conn : new ArrayList<>( host.conns ) )
+                                  {
+                                      conn.close( new IOException( "Client is closed" ), false );
+                                  }
+
+                                  for( Exchange x : host.waiting )
+                                  {
+                                      fail( x, new IOException( "Client is closed" ) );
+                                  }
+
+                                  host.waiting.clear();
+                              }
+
+                              hosts.clear(); } );
+    }
+
+    //----------------------------------------------------------------------------//
+    // METRICS
+
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the number of failed requests (including timeouts).
+     *
+     * @return The number of failed requests.
+     */
+    public long getFailures()
+    {
+        return failures.sum();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of requests that were sent again using a new connection.
+     *
+     * @return The number of requests that were sent again.
+     */
+    public long getRetries()
+    {
+        return retries.sum();
+    }
+
+    /**
+     * Returns the number of connections opened since this client was created.
+     *
+     * @return The number of connections opened since this client was created.
+     */
+    public long getConnectionsCreated()
+    {
+        return created.sum();
+    }
+
+    /**
+     * Returns the number of connections currently open.
+     *
+     * @return The number of connections currently open.
+     */
+    public int getConnections()
+    {
+        return nConns.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HttpClient{hosts="+ hosts.size() +", connections="+ getConnections() +", requests="+ getRequests() +", failures="+ getFailures() +
+                         ", timeouts="+ getTimeouts() +", retries="+ getRetries() +", created="+ getConnectionsCreated() +'}';
+    }
+
+    //----------------------------------------------------------------------------//
+    // Following methods run inside the loop thread
+
+    private void dispatch( Exchange x )
+    {
+        Host host = x.host;
+        Conn best = null;
+
+        for( Conn c : host.conns )
+        {
+            if( c.canTake( x ) && ((best == null) || (c.inFlight.size() < best.inFlight.size())) )
+            {
+                best = c;
+            }
+        }
+
+        if( best == null )
+        {
+            if( host.conns.size() < nMaxConns )
+            {
+                best = new Conn( host );
+                best.open();
+
+                if( best.isClosed )     // ::open(...) failed
+                {
+                    fail( x, best.cause );
+                    return;
+                }
+            }
+            else
+            {
+                host.waiting.add( x );
+                return;
+            }
+        }
+
+        best.send( x );
+    }
+
+    /**
+     * Dispatches the requests waiting for a connection (as many as possible).
+     */
+    private void drain( Host host )
+    {
+        int nWaiting = host.waiting.size();
+
+        for( int n = 0; n < nWaiting && ! host.waiting.isEmpty(); n++ )
+        {
+            Exchange x = host.waiting.poll();
+
+            if( x.future.isDone() )
+            {
+                continue;
+            }
+
+            Conn free = null;
+
+            for( Conn c : host.conns )
+            {
+                if( c.canTake( x ) )
+                {
+                    free = c;
+                    break;
+                }
+            }
+
+            if( free != null )
+            {
+                free.send( x );
+            }
+            else if( host.conns.size() < nMaxConns )
+            {
+                Conn conn = new Conn( host );
+                     conn.open();
+
+                if( conn.isClosed )
+                {
+                    fail( x, conn.cause );
+                }
+                else
+                {
+                    conn.send( x );
+                }
+            }
+            else
+            {
+                host.waiting.add( x );      // Back to the queue: at the end, but n limits the loop
+            }
+        }
+    }
+
+    private void onTimeout( Exchange x )
+    {
+        if( x.future.isDone() )
+        {
+            return;
+        }
+
+        timeouts.increment();
+
+        TimeoutException te = new TimeoutException( "Request timed out: "+ x.request );
+
+        if( x.conn == null )
+        {
+            x.host.waiting.remove( x );
+            fail( x, te );
+        }
+        else
+        {
+            fail( x, te );
+            x.conn.close( new IOException( "Connection closed: a request timed out" ), true );    // Its response can not be skipped
+        }
+    }
+
+    private void fail( Exchange x, Throwable th )
+    {
+        if( x.timeout != null )
+        {
+            x.timeout.cancel();
+        }
+
+        if( ! x.future.isDone() )       // Only the loop thread completes it (but the caller can cancel it)
+        {
+            failures.increment();
+            x.future.completeExceptionally( th );
+        }
+    }
+
+    private void closeIdle()
+    {
+        long now = System.currentTimeMillis();
+
+        for( Host host : hosts.values() )
+        {
+            for( Conn conn : new ArrayList<>( host.conns ) )
+            {
+                if( conn.inFlight.isEmpty() && (now - conn.nLastUse > nIdle) )
+                {
+                    conn.close( null, false );
+                }
+            }
+        }
+
+        if( ! isClosed )
+        {
+            sweeper = loop.schedule( this::closeIdle, 1000 );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * An HTTP request (built using chained calls).
+     */
+    public static final class Request
+    {
+        private final HttpConstants.Method method;
+        private final URI                  uri;
+        private final Map<String,String>   headers  = new LinkedHashMap<>();
+        private       ByteBuffer           body     = null;
+        private       InputStream          stream   = null;
+        private       BodyHandler          handler  = null;
+        private       int                  nTimeout = 0;
+
+        /**
+         * Creates a new request.
+         *
+         * @param method The method.
+         * @param url An "http://" URL.
+         */
+        public Request( HttpConstants.Method method, String url )
+        {
+            this.method = method;
+            this.uri    = URI.create( url );
+
+            if( ! "http".equalsIgnoreCase( uri.getScheme() ) || uri.getHost() == null )
+            {
+                throw new IllegalArgumentException( "Invalid URL (only \"http://host...\" is supported): "+ url );
+            }
+        }
+
+        /**
+         * Adds a header ("Host", "Content-Length" and "Transfer-Encoding" are
+         * managed by the client).
+         *
+         * @param name Header name.
+         * @param value Header value.
+         * @return Itself.
+         */
+        public Request header( String name, String value )
+        {
+            headers.put( name, value );
+            return this;
+        }
+
+        public Request body( byte[] body )
+        {
+            return body( ByteBuffer.wrap( body ) );
+        }
+
+        public Request body( String body )
+        {
+            headers.putIfAbsent( "Content-Type", HttpConstants.MIMETYPE_TEXT_PLAIN_UTF_8 );
+            return body( body.getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        /**
+         * Sets the body (from position to limit). The buffer is not modified:
+         * it can be reused for other requests (its contents must not change
+         * meanwhile). Direct buffers are written to the socket as they are.
+         *
+         * @param body The body.
+         * @return Itself.
+         */
+        public Request body( ByteBuffer body )
+        {
+            this.body   = body.duplicate();
+            this.stream = null;
+            return this;
+        }
+
+        /**
+         * Sets the body as a stream: it is read (in its own thread) and sent
+         * in pieces (chunked transfer encoding) and it is closed at the end.
+         * These requests are never pipelined nor retried.
+         *
+         * @param stream The body.
+         * @return Itself.
+         */
+        public Request body( InputStream stream )
+        {
+            this.stream = stream;
+            this.body   = null;
+            return this;
+        }
+
+        /**
+         * The response body will be passed to handler as it arrives, instead of
+         * being kept in memory (Response::getBody() will be empty).
+         *
+         * @param handler Receives the response body.
+         * @return Itself.
+         */
+        public Request onBody( BodyHandler handler )
+        {
+            this.handler = handler;
+            return this;
+        }
+
+        /**
+         * Maximum time for this request to be answered (instead of the client
+         * default).
+         *
+         * @param nMillis Request timeout.
+         * @return Itself.
+         */
+        public Request timeout( int nMillis )
+        {
+            this.nTimeout = Math.max( 1, nMillis );
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return method +" "+ uri;
+        }
+
+        //------------------------------------------------------------------------//
+
+        private String key()
+        {
+            return uri.getHost().toLowerCase() +':'+ port( uri );
+        }
+
+        private boolean isIdempotent()
+        {
+            return (stream == null) && (method != HttpConstants.Method.POST) && (method != HttpConstants.Method.PATCH) && (method != HttpConstants.Method.CONNECT);
+        }
+
+        private ByteBuffer head( Host host )
+        {
+            String        path = ((uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath());
+            StringBuilder sb   = new StringBuilder( 128 );
+
+            sb.append( method ).append( ' ' ).append( path );
+
+            if( uri.getRawQuery() != null )
+            {
+                sb.append( '?' ).append( uri.getRawQuery() );
+            }
+
+            sb.append( " HTTP/1.1\r\nHost: " ).append( host.sHost ).append( "\r\n" );
+
+            for( Map.Entry<String,String> entry : headers.entrySet() )
+            {
+                sb.append( entry.getKey() ).append( ": " ).append( entry.getValue() ).append( "\r\n" );
+            }
+
+            if( stream != null )
+            {
+                sb.append( "Transfer-Encoding: chunked\r\n" );
+            }
+            else if( body != null || method == HttpConstants.Method.POST || method == HttpConstants.Method.PUT )
+            {
+                sb.append( "Content-Length: " ).append( (body == null) ? 0 : body.remaining() ).append( "\r\n" );
+            }
+
+            sb.append( "\r\n" );
+
+            return ByteBuffer.wrap( sb.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+        }
+
+        private static int port( URI uri )
+        {
+            return ((uri.getPort() < 0) ? 80 : uri.getPort());
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * An HTTP response.
+     */
+    public static final class Response
+    {
+        private final int                nStatus;
+        private final String             version;
+        private final Map<String,String> headers;     // Keys in lower case
+        private       byte[]             body = new byte[0];
+
+        private Response( int nStatus, String version, Map<String,String> headers )
+        {
+            this.nStatus = nStatus;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        public int getStatus()
+        {
+            return nStatus;
+        }
+
+        public String getVersion()
+        {
+            return version;
+        }
+
+        /**
+         * Returns the value of passed header or null (repeated headers are
+         * joined using ',').
+         *
+         * @param name Header name (case insensitive).
+         * @return The value of passed header or null.
+         */
+        public String getHeader( String name )
+        {
+            return headers.get( name.toLowerCase() );
+        }
+
+        /**
+         * Returns all headers (names in lower case).
+         *
+         * @return All headers.
+         */
+        public Map<String,String> getHeaders()
+        {
+            return Collections.unmodifiableMap( headers );
+        }
+
+        /**
+         * Returns the body (empty when it was passed to a BodyHandler).
+         *
+         * @return The body.
+         */
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public String getBodyAsString()
+        {
+            return new String( body, StandardCharsets.UTF_8 );
+        }
+
+        @Override
+        public String toString()
+        {
+            return version +" "+ nStatus +" ("+ body.length +" bytes)";
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Host
+    {
+        final InetSocketAddress address;
+        final String            sHost;          // "Host" header
+        final List<Conn>        conns   = new ArrayList<>();       // Only used inside the loop thread
+        final Queue<Exchange>   waiting = new ArrayDeque<>();      // Only used inside the loop thread
+
+        Host( URI uri )
+        {
+            int nPort = Request.port( uri );
+
+            this.address = new InetSocketAddress( uri.getHost(), nPort );
+            this.sHost   = uri.getHost() + ((nPort == 80) ? "" : ":"+ nPort);
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Exchange
+    {
+        final    Request                     request;
+        final    CompletableFuture<Response> future = new CompletableFuture<>();
+        Host                                 host;
+        Conn                                 conn;
+        SelectorLoop.Schedule                timeout;
+        boolean                              bAnswering = false;   // Part of the response was received
+        boolean                              bRetried   = false;
+        volatile boolean                     bUploaded  = true;    // Streamed body completely sent
+
+        Exchange( Request request )
+        {
+            this.request = request;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * One connection: all its methods run inside the loop thread.
+     */
+    private final class Conn implements SelectorLoop.Handler
+    {
+        // Response parser states
+        private static final int HEAD = 0, LENGTH = 1, CHUNK_SIZE = 2, CHUNK_DATA = 3, CHUNK_END = 4, TRAILERS = 5, UNTIL_CLOSE = 6;
+
+        private final Host                          host;
+        private final Queue<Exchange>               inFlight  = new ArrayDeque<>();
+        private final Queue<ByteBuffer>             output    = new ArrayDeque<>();
+        private final List<CompletableFuture<Void>> flushed   = new ArrayList<>();   // Completed when output is empty
+        private final ByteBuffer[]                  gather    = new ByteBuffer[ 16 ];
+        private       ByteBuffer                    input     = ByteBuffer.allocate( 16 * 1024 );   // In write mode
+        private       SocketChannel                 channel;
+        private       SelectionKey                  key;
+        private       SelectorLoop.Schedule         connTimer;
+        private       boolean                       isConnected = false;
+        private       boolean                       isClosed    = false;
+        private       boolean                       isLast      = false;   // No more requests: close after current responses
+        private       boolean                       isUploading = false;   // A streamed body is being sent
+        private       long                          nLastUse    = System.currentTimeMillis();
+        private       IOException                   cause;
+        // Parser
+        private       int                           nState    = HEAD;
+        private       long                          nRemain   = 0;
+        private       Response                      response  = null;
+        private       ByteArrayOutputStream         body      = null;
+
+        Conn( Host host )
+        {
+            this.host = host;
+        }
+
+        //------------------------------------------------------------------------//
+
+        @Override
+        public void onSelected( SelectionKey key )
+        {
+            try
+            {
+                if( key.isValid() && key.isConnectable() )
+                {
+                    if( channel.finishConnect() )
+                    {
+                        onConnected();
+                    }
+                }
+
+                if( key.isValid() && key.isWritable() )
+                {
+                    flush();
+                }
+
+                if( key.isValid() && key.isReadable() )
+                {
+                    read();
+                }
+            }
+            catch( IOException ioe )
+            {
+                close( ioe, true );
+            }
+        }
+
+        //------------------------------------------------------------------------//
+
+        boolean canTake( Exchange x )
+        {
+            if( isClosed || isLast || isUploading )
+            {
+                return false;
+            }
+
+            if( x.request.stream != null )
+            {
+                return inFlight.isEmpty();
+            }
+
+            return inFlight.size() < nDepth;
+        }
+
+        void open()
+        {
+            host.conns.add( this );
+            nConns.incrementAndGet();
+            created.increment();
+
+            try
+            {
+                channel = SocketChannel.open();
+                channel.configureBlocking( false );
+                channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+                channel.setOption( StandardSocketOptions.SO_KEEPALIVE, true );
+
+                if( channel.connect( host.address ) )
+                {
+                    key = loop.register( channel, 0, this );
+                    onConnected();
+                }
+                else
+                {
+                    key       = loop.register( channel, SelectionKey.OP_CONNECT, this );
+                    connTimer = loop.schedule( () -> { if( ! isConnected )
+                                                           close( new ConnectException( "Connect timed out: "+ host.address ), false ); },
+                                               nConnect );
+                }
+            }
+            catch( IOException ioe )
+            {
+                close( ioe, false );
+            }
+        }
+
+        void send( Exchange x )
+        {
+            x.conn   = this;
+            nLastUse = System.currentTimeMillis();
+            inFlight.add( x );
+            output.add( x.request.head( host ) );
+
+            if( x.request.body != null && x.request.body.hasRemaining() )
+            {
+                output.add( x.request.body.duplicate() );
+            }
+
+            if( x.request.stream != null )
+            {
+                isUploading = true;
+                x.bUploaded = false;
+
+                Thread t = new Thread( () -> upload( x ), "HttpClient-upload" );
+                       t.setDaemon( true );
+                       t.start();
+            }
+
+            if( isConnected )
+            {
+                flushQuietly();
+            }
+        }
+
+        void close( IOException exc, boolean bRetry )
+        {
+            if( isClosed )
+            {
+                return;
+            }
+
+            isClosed = true;
+            cause    = ((exc == null) ? new IOException( "Connection closed" ) : exc);
+            host.conns.remove( this );
+            nConns.decrementAndGet();
+
+            if( connTimer != null )
+            {
+                connTimer.cancel();
+            }
+
+            if( key != null )
+            {
+                key.cancel();
+            }
+
+            try
+            {
+                if( channel != null )
+                {
+                    channel.close();
+                }
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+
+            for( CompletableFuture<Void> f : flushed )
+            {
+                f.completeExceptionally( cause );
+            }
+
+            flushed.clear();
+            output.clear();
+
+            List<Exchange> again = new ArrayList<>();
+
+            for( Exchange x : inFlight )
+            {
+                if( x.future.isDone() )
+                {
+                    continue;
+                }
+
+                if( bRetry && ! x.bAnswering && ! x.bRetried && x.request.isIdempotent() && ! HttpClient.this.isClosed )
+                {
+                    x.bRetried = true;
+                    x.conn     = null;
+                    again.add( x );
+                }
+                else
+                {
+                    fail( x, cause );
+                }
+            }
+
+            inFlight.clear();
+            retries.add( again.size() );
+
+            for( Exchange x : again )
+            {
+                dispatch( x );
+            }
+
+            if( ! HttpClient.this.isClosed )
+            {
+                drain( host );
+            }
+            else
+            {
+                for( Exchange x : host.waiting )
+                {
+                    fail( x, cause );
+                }
+            }
+        }
+
+        //------------------------------------------------------------------------//
+
+        private void onConnected() throws IOException
+        {
+            isConnected = true;
+
+            if( connTimer != null )
+            {
+                connTimer.cancel();
+                connTimer = null;
+            }
+
+            flush();
+        }
+
+        private void flushQuietly()
+        {
+            try
+            {
+                flush();
+            }
+            catch( IOException ioe )
+            {
+                close( ioe, true );
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            while( ! output.isEmpty() )
+            {
+                int nCount = 0;
+
+                for( ByteBuffer bb : output )
+                {
+                    if( nCount == gather.length )
+                    {
+                        break;
+                    }
+
+                    gather[nCount++] = bb;
+                }
+
+                channel.write( gather, 0, nCount );
+
+                boolean bFull = false;
+
+                for( int n = 0; n < nCount; n++ )
+                {
+                    if( gather[n].hasRemaining() )
+                    {
+                        bFull = true;
+                        break;
+                    }
+
+                    output.poll();
+                }
+
+                for( int n = 0; n < nCount; n++ )
+                {
+                    gather[n] = null;
+                }
+
+                if( bFull )
+                {
+                    break;
+                }
+            }
+
+            if( output.isEmpty() && ! flushed.isEmpty() )
+            {
+                for( CompletableFuture<Void> f : flushed )
+                {
+                    f.complete( null );
+                }
+
+                flushed.clear();
+            }
+
+            if( key.isValid() )
+            {
+                key.interestOps( SelectionKey.OP_READ | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE) );
+            }
+        }
+
+        private void read() throws IOException
+        {
+            int n = channel.read( input );
+
+            input.flip();
+
+            try
+            {
+                if( n > 0 )
+                {
+                    nLastUse = System.currentTimeMillis();
+                    parse();
+                }
+            }
+            finally
+            {
+                input.compact();
+            }
+
+            if( n < 0 )
+            {
+                if( nState == UNTIL_CLOSE && response != null )     // The body ends when the connection is closed
+                {
+                    complete();
+                }
+
+                close( new EOFException( "Connection closed by server: "+ host.address ), true );
+            }
+            else if( ! input.hasRemaining() )
+            {
+                if( input.capacity() >= nMAX_HEAD )
+                {
+                    throw new IOException( "Response head too big" );
+                }
+
+                ByteBuffer bigger = ByteBuffer.allocate( input.capacity() * 2 );
+                input.flip();
+                bigger.put( input );
+                input = bigger;
+            }
+        }
+
+        /**
+         * Parses the responses in the input buffer (in read mode).
+         */
+        private void parse() throws IOException
+        {
+            while( input.hasRemaining() && ! isClosed )
+            {
+                Exchange x = inFlight.peek();
+
+                if( x == null )
+                {
+                    throw new IOException( "Unexpected data received from: "+ host.address );
+                }
+
+                x.bAnswering = true;
+
+                switch( nState )
+                {
+                    case HEAD:
+                        if( ! head( x ) )
+                            return;
+                        break;
+
+                    case LENGTH:
+                    case UNTIL_CLOSE:
+                        data( x, (nState == LENGTH) ? nRemain : Long.MAX_VALUE );
+                        if( nState == LENGTH && nRemain == 0 )
+                            complete();
+                        break;
+
+                    case CHUNK_SIZE:
+                        String sSize = line();
+                        if( sSize == null )
+                            return;
+                        int nSemi = sSize.indexOf( ';' );
+                        try
+                        {
+                            nRemain = Long.parseLong( ((nSemi < 0) ? sSize : sSize.substring( 0, nSemi )).trim(), 16 );
+                        }
+                        catch( NumberFormatException nfe )
+                        {
+                            throw new IOException( "Invalid chunk size: "+ sSize );
+                        }
+                        nState = ((nRemain == 0) ? TRAILERS : CHUNK_DATA);
+                        break;
+
+                    case CHUNK_DATA:
+                        data( x, nRemain );
+                        if( nRemain == 0 )
+                            nState = CHUNK_END;
+                        break;
+
+                    case CHUNK_END:
+                    case TRAILERS:
+                        String sLine = line();
+                        if( sLine == null )
+                            return;
+                        if( nState == CHUNK_END )
+                            nState = CHUNK_SIZE;
+                        else if( sLine.isEmpty() )
+                            complete();
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Parses the response head: returns false if it is not complete.
+         */
+        private boolean head( Exchange x ) throws IOException
+        {
+            int nStart = input.position();
+            int nEnd   = -1;
+
+            for( int n = nStart; n <= input.limit() - 4; n++ )
+            {
+                if( input.get( n ) == '\r' && input.get( n + 1 ) == '\n' && input.get( n + 2 ) == '\r' && input.get( n + 3 ) == '\n' )
+                {
+                    nEnd = n + 4;
+                    break;
+                }
+            }
+
+            if( nEnd < 0 )
+            {
+                return false;
+            }
+
+            String[] lines  = new String( input.array(), input.arrayOffset() + nStart, nEnd - nStart - 4, StandardCharsets.ISO_8859_1 ).split( "\r\n" );
+            String[] status = lines[0].split( " ", 3 );
+            int      nCode;
+
+            input.position( nEnd );
+
+            try
+            {
+                nCode = Integer.parseInt( status[1] );
+            }
+            catch( RuntimeException exc )
+            {
+                throw new IOException( "Invalid status line: "+ lines[0] );
+            }
+
+            if( ! status[0].startsWith( "HTTP/1." ) )
+            {
+                throw new IOException( "Invalid status line: "+ lines[0] );
+            }
+
+            if( nCode >= 100 && nCode < 200 )      // Interim response (e.g. "100 Continue"): ignored
+            {
+                return true;
+            }
+
+            Map<String,String> headers = new LinkedHashMap<>();
+
+            for( int n = 1; n < lines.length; n++ )
+            {
+                int nColon = lines[n].indexOf( ':' );
+
+                if( nColon > 0 )
+                {
+                    headers.merge( lines[n].substring( 0, nColon ).trim().toLowerCase(), lines[n].substring( nColon + 1 ).trim(), (a,b) -> a +','+ b );
+                }
+            }
+
+            response = new Response( nCode, status[0], headers );
+            body     = ((x.request.handler == null) ? new ByteArrayOutputStream() : null);
+
+            String sConn = headers.getOrDefault( "connection", "" ).toLowerCase();
+            String sTE   = headers.get( "transfer-encoding" );
+            String sCL   = headers.get( "content-length" );
+
+            if( sConn.contains( "close" ) || ("HTTP/1.0".equals( status[0] ) && ! sConn.contains( "keep-alive" )) )
+            {
+                isLast = true;
+            }
+
+            if( x.request.method == HttpConstants.Method.HEAD || nCode == HttpConstants._204_No_Content || nCode == 304 )
+            {
+                nState  = LENGTH;
+                nRemain = 0;
+            }
+            else if( sTE != null && sTE.toLowerCase().contains( "chunked" ) )
+            {
+                nState = CHUNK_SIZE;
+            }
+            else if( sCL != null )
+            {
+                try
+                {
+                    nRemain = Long.parseLong( sCL.trim() );
+                }
+                catch( NumberFormatException nfe )
+                {
+                    throw new IOException( "Invalid Content-Length: "+ sCL );
+                }
+
+                if( body != null && nRemain > nMaxBody )
+                {
+                    tooLarge( x );
+                }
+
+                nState = LENGTH;
+            }
+            else
+            {
+                nState = UNTIL_CLOSE;
+                isLast = true;
+            }
+
+            if( nState == LENGTH && nRemain == 0 )
+            {
+                complete();
+            }
+
+            return true;
+        }
+
+        /**
+         * Consumes up to nMax bytes of body.
+         */
+        private void data( Exchange x, long nMax ) throws IOException
+        {
+            int        nLen  = (int) Math.min( nMax, input.remaining() );
+            ByteBuffer slice = input.duplicate();
+
+            slice.limit( slice.position() + nLen );
+            input.position( input.position() + nLen );
+            nRemain -= nLen;
+
+            if( x.request.handler != null )
+            {
+                try
+                {
+                    x.request.handler.onData( slice.asReadOnlyBuffer() );
+                }
+                catch( IOException | RuntimeException exc )
+                {
+                    fail( x, exc );
+                    throw new IOException( "Body handler failed", exc );
+                }
+            }
+            else
+            {
+                if( (long) body.size() + nLen > nMaxBody )
+                {
+                    tooLarge( x );
+                }
+
+                body.write( slice.array(), slice.arrayOffset() + slice.position(), nLen );
+            }
+        }
+
+        private void tooLarge( Exchange x ) throws IOException
+        {
+            IOException ioe = new IOException( "Response body too large (max "+ nMaxBody +" bytes)" );
+
+            fail( x, ioe );
+            throw ioe;
+        }
+
+        /**
+         * Returns the next line (without CRLF) or null if it is not complete.
+         */
+        private String line()
+        {
+            for( int n = input.position(); n < input.limit() - 1; n++ )
+            {
+                if( input.get( n ) == '\r' && input.get( n + 1 ) == '\n' )
+                {
+                    String s = new String( input.array(), input.arrayOffset() + input.position(), n - input.position(), StandardCharsets.ISO_8859_1 );
+
+                    input.position( n + 2 );
+                    return s;
+                }
+            }
+
+            return null;
+        }
+
+        private void complete()
+        {
+            Exchange x = inFlight.poll();
+
+            if( body != null )
+            {
+                response.body = body.toByteArray();
+            }
+
+            if( x.timeout != null )
+            {
+                x.timeout.cancel();
+            }
+
+            if( ! x.bUploaded )     // The server answered before the body was sent (e.g. 413): the connection can not be reused
+            {
+                isLast = true;
+            }
+
+            Response resp = response;
+
+            nState   = HEAD;
+            response = null;
+            body     = null;
+            nLastUse = System.currentTimeMillis();
+
+            try
+            {
+                x.future.complete( resp );
+            }
+            catch( Throwable th )
+            {
+                UtilDebug.log( Level.WARNING, th, "Error in response listener" );
+            }
+
+            if( isLast && inFlight.isEmpty() )
+            {
+                close( null, false );
+            }
+            else if( isLast )
+            {
+                close( new IOException( "Connection closed by server" ), true );   // Pipelined requests were not processed
+            }
+            else
+            {
+                drain( host );
+            }
+        }
+
+        /**
+         * Sends a streamed body (runs in its own thread).
+         */
+        private void upload( Exchange x )
+        {
+            try( InputStream in = x.request.stream )
+            {
+                byte[] buffer = new byte[ 16 * 1024 ];
+                int    n;
+
+                while( (n = in.read( buffer )) >= 0 && ! x.future.isDone() )
+                {
+                    if( n > 0 )
+                    {
+                        ByteBuffer chunk = chunk( buffer, n );
+
+                        enqueue( chunk ).get( nTimeout, TimeUnit.MILLISECONDS );     // Waits until it was written: memory is bounded
+                    }
+                }
+
+                loop.execute( () -> { x.bUploaded = true;
+                                      isUploading = false;
+                                      output.add( ByteBuffer.wrap( LAST ) );
+                                      flushQuietly();
+                                      drain( host ); } );
+            }
+            catch( Exception exc )
+            {
+                loop.execute( () -> { fail( x, exc );
+                                      close( new IOException( "Upload failed", exc ), false ); } );
+            }
+        }
+
+        private CompletableFuture<Void> enqueue( ByteBuffer data )
+        {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+
+            loop.execute( () -> { if( isClosed )
+                                  {
+                                      future.completeExceptionally( cause );
+                                  }
+                                  else
+                                  {
+                                      output.add( data );
+                                      flushed.add( future );
+
+                                      if( isConnected )
+                                      {
+                                          flushQuietly();
+                                      }
+                                  } } );
+
+            return future;
+        }
+
+        private ByteBuffer chunk( byte[] data, int nLength )
+        {
+            byte[]     size  = (Integer.toHexString( nLength ) +"\r\n").getBytes( StandardCharsets.ISO_8859_1 );
+            ByteBuffer chunk = ByteBuffer.allocate( size.length + nLength + 2 );
+
+            chunk.put( size ).put( data, 0, nLength ).put( (byte) '\r' ).put( (byte) '\n' ).flip();
+
+            return chunk;
+        }
+    }
+}
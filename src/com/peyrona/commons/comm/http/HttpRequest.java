@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.http;
+
+import com.peyrona.commons.comm.HttpConstants;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request received by HttpServer.
+ * <p>
+ * Header names are case insensitive.
+ *
+ * @author peyrona
+ */
+public final class HttpRequest
+{
+    private final HttpConstants.Method method;
+    private final String               path;
+    private final String               query;       // null when there is no query
+    private final String               version;
+    private final Map<String,String>   headers;     // Keys in lower case
+    private final byte[]               body;
+    private final SocketAddress        remote;
+    private       Map<String,String>   params = null;
+
+    //----------------------------------------------------------------------------//
+
+    HttpRequest( HttpConstants.Method method, String target, String version, Map<String,String> headers, byte[] body, SocketAddress remote )
+    {
+        int nQuery = target.indexOf( '?' );
+
+        this.method  = method;
+        this.path    = ((nQuery < 0) ? target : target.substring( 0, nQuery ));
+        this.query   = ((nQuery < 0) ? null   : target.substring( nQuery + 1 ));
+        this.version = version;
+        this.headers = headers;
+        this.body    = body;
+        this.remote  = remote;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public HttpConstants.Method getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Returns the path of the request target (without the query).
+     *
+     * @return The path of the request target.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the query (what follows '?' in the request target) or null.
+     *
+     * @return The query or null.
+     */
+    public String getQuery()
+    {
+        return query;
+    }
+
+    /**
+     * Returns the value of passed query parameter (URL decoded) or null.
+     *
+     * @param name Parameter name.
+     * @return The value of passed query parameter or null.
+     */
+    public synchronized String getParam( String name )
+    {
+        if( params == null )
+        {
+            params = new LinkedHashMap<>();
+
+            if( query != null )
+            {
+                for( String pair : query.split( "&" ) )
+                {
+                    int n = pair.indexOf( '=' );
+
+                    if( n != 0 && ! pair.isEmpty() )
+                    {
+                        params.put( decode( (n < 0) ? pair : pair.substring( 0, n ) ),
+                                    decode( (n < 0) ? ""   : pair.substring( n + 1 ) ) );
+                    }
+                }
+            }
+        }
+
+        return params.get( name );
+    }
+
+    /**
+     * Returns the protocol version (e.g. "HTTP/1.1").
+     *
+     * @return The protocol version.
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Returns the value of passed header or null (repeated headers are joined
+     * using ',').
+     *
+     * @param name Header name (case insensitive).
+     * @return The value of passed header or null.
+     */
+    public String getHeader( String name )
+    {
+        return headers.get( name.toLowerCase() );
+    }
+
+    /**
+     * Returns all headers (names in lower case).
+     *
+     * @return All headers.
+     */
+    public Map<String,String> getHeaders()
+    {
+        return Collections.unmodifiableMap( headers );
+    }
+
+    /**
+     * Returns the body (an empty array when there is no body).
+     *
+     * @return The body.
+     */
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    /**
+     * Returns the body as an UTF-8 String.
+     *
+     * @return The body as an UTF-8 String.
+     */
+    public String getBodyAsString()
+    {
+        return new String( body, StandardCharsets.UTF_8 );
+    }
+
+    public SocketAddress getRemoteAddress()
+    {
+        return remote;
+    }
+
+    /**
+     * Returns true if the connection can be used for more requests.
+     *
+     * @return true if the connection can be used for more requests.
+     */
+    public boolean isKeepAlive()
+    {
+        String conn = getHeader( "Connection" );
+
+        if( "HTTP/1.0".equals( version ) )
+        {
+            return (conn != null) && conn.equalsIgnoreCase( "keep-alive" );
+        }
+
+        return (conn == null) || (! conn.toLowerCase().contains( "close" ));
+    }
+
+    @Override
+    public String toString()
+    {
+        return method +" "+ path + ((query == null) ? "" : "?"+ query) +" "+ version;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static String decode( String s )
+    {
+        try
+        {
+            return URLDecoder.decode( s, "UTF-8" );
+        }
+        catch( UnsupportedEncodingException | IllegalArgumentException exc )
+        {
+            return s;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.http;
+
+import com.peyrona.commons.comm.HttpConstants;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The response to an HttpRequest.
+ * <p>
+ * There are two ways to send the body:
+ * <ul>
+ *    <li>At once: ::send(...) or ::sendFile(...) (the length is known, so
+ *        "Content-Length" is used). Direct ByteBuffers are written to the
+ *        socket as they are (no copy): a pre-encoded response can be shared
+ *        by all requests. Files are written using FileChannel::transferTo(...).</li>
+ *    <li>Streamed: ::write(...) as many times as needed (chunked transfer
+ *        encoding is used) and ::end() (optional: it is invoked when the
+ *        handler returns).</li>
+ * </ul>
+ * Status and headers can not be changed once the response head was sent.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class HttpResponse
+{
+    /**
+     * Where the response is written to (the connection).
+     */
+    interface Output
+    {
+        /**
+         * @param data A ByteBuffer or a FileRegion.
+         */
+        void write( Object data );
+
+        /**
+         * The response is complete.
+         *
+         * @param bClose true to close the connection after writing the response.
+         */
+        void done( boolean bClose );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static final byte[]               CRLF      = { '\r', '\n' };
+    private static final byte[]               LAST      = { '0', '\r', '\n', '\r', '\n' };
+    private static final Map<Integer,String>  reasons   = new HashMap<>();
+    private static final Map<String,String>   mimetypes = new HashMap<>();
+
+    private final HttpRequest        request;
+    private final Output             output;
+    private final boolean            bNoBody;       // HEAD requests
+    private final Map<String,String> headers   = new LinkedHashMap<>();
+    private       int                nStatus   = HttpConstants._200_OK;
+    private       boolean            bKeepAlive;
+    private       boolean            bCommitted = false;
+    private       boolean            bChunked   = false;
+    private       boolean            bEnded     = false;
+
+    static
+    {
+        for( Field field : HttpConstants.class.getFields() )    // "_404_Not_Found" --> "Not Found"
+        {
+            if( Modifier.isStatic( field.getModifiers() ) && (field.getType() == int.class) && field.getName().startsWith( "_" ) )
+            {
+                try
+                {
+                    reasons.put( field.getInt( null ), field.getName().substring( 5 ).replace( '_', ' ' ) );
+                }
+                catch( IllegalAccessException iae )
+                {
+                    // Nothing to do
+                }
+            }
+        }
+
+        mimetypes.put( "html", HttpConstants.MIMETYPE_TEXT_HTML_UTF_8 );
+        mimetypes.put( "htm" , HttpConstants.MIMETYPE_TEXT_HTML_UTF_8 );
+        mimetypes.put( "txt" , HttpConstants.MIMETYPE_TEXT_PLAIN_UTF_8 );
+        mimetypes.put( "xml" , HttpConstants.MIMETYPE_TEXT_XML_UTF_8 );
+        mimetypes.put( "css" , "text/css; charset=utf-8" );
+        mimetypes.put( "csv" , "text/csv; charset=utf-8" );
+        mimetypes.put( "js"  , "application/javascript; charset=utf-8" );
+        mimetypes.put( "json", "application/json" );
+        mimetypes.put( "pdf" , "application/pdf" );
+        mimetypes.put( "zip" , "application/zip" );
+        mimetypes.put( "png" , "image/png" );
+        mimetypes.put( "jpg" , "image/jpeg" );
+        mimetypes.put( "jpeg", "image/jpeg" );
+        mimetypes.put( "gif" , "image/gif" );
+        mimetypes.put( "svg" , "image/svg+xml" );
+        mimetypes.put( "ico" , "image/x-icon" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    HttpResponse( HttpRequest request, Output output )
+    {
+        this.request    = request;
+        this.output     = output;
+        this.bNoBody    = (request.getMethod() == HttpConstants.Method.HEAD);
+        this.bKeepAlive = request.isKeepAlive();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public HttpRequest getRequest()
+    {
+        return request;
+    }
+
+    public synchronized int getStatus()
+    {
+        return nStatus;
+    }
+
+    /**
+     * Sets the status code (by default 200).
+     *
+     * @param nStatus Status code (e.g. HttpConstants._404_Not_Found).
+     * @return Itself.
+     */
+    public synchronized HttpResponse setStatus( int nStatus )
+    {
+        checkNotCommitted();
+
+        if( nStatus < 100 || nStatus > 999 )
+        {
+            throw new IllegalArgumentException( "Invalid status: "+ nStatus );
+        }
+
+        this.nStatus = nStatus;
+        return this;
+    }
+
+    /**
+     * Sets a header (null value removes it). "Content-Length",
+     * "Transfer-Encoding" and "Connection" are managed by the server.
+     *
+     * @param name Header name.
+     * @param value Header value.
+     * @return Itself.
+     */
+    public synchronized HttpResponse setHeader( String name, String value )
+    {
+        checkNotCommitted();
+
+        if( value == null )
+        {
+            headers.remove( name );
+        }
+        else
+        {
+            headers.put( name, value );
+        }
+
+        return this;
+    }
+
+    public HttpResponse setContentType( String type )
+    {
+        return setHeader( "Content-Type", type );
+    }
+
+    /**
+     * Closes the connection after this response (by default it is kept open
+     * when the client wants it).
+     *
+     * @return Itself.
+     */
+    public synchronized HttpResponse close()
+    {
+        checkNotCommitted();
+        bKeepAlive = false;
+        return this;
+    }
+
+    /**
+     * Returns true if the head of the response was already sent.
+     *
+     * @return true if the head of the response was already sent.
+     */
+    public synchronized boolean isCommitted()
+    {
+        return bCommitted;
+    }
+
+    /**
+     * Sends the response using passed String (UTF-8) as the body
+     * ("text/plain; charset=utf-8" if no Content-Type was set).
+     *
+     * @param body The body.
+     */
+    public void send( String body )
+    {
+        synchronized( this )
+        {
+            headers.putIfAbsent( "Content-Type", HttpConstants.MIMETYPE_TEXT_PLAIN_UTF_8 );
+        }
+
+        send( body.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Sends the response using passed bytes as the body.
+     *
+     * @param body The body.
+     */
+    public void send( byte[] body )
+    {
+        send( ByteBuffer.wrap( body ) );
+    }
+
+    /**
+     * Sends the response using passed buffer (from position to limit) as the
+     * body. The buffer is not modified and can be reused for other responses
+     * (its contents must not change meanwhile).
+     *
+     * @param body The body.
+     */
+    public synchronized void send( ByteBuffer body )
+    {
+        checkNotCommitted();
+
+        ByteBuffer data = body.duplicate();
+
+        output.write( head( data.remaining() ) );
+
+        if( ! bNoBody && data.hasRemaining() )
+        {
+            output.write( data );
+        }
+
+        finish();
+    }
+
+    /**
+     * Sends passed file as the body (the Content-Type is guessed from the file
+     * extension if it was not set).
+     *
+     * @param file The file to send.
+     * @throws IOException If the file can not be opened.
+     */
+    public synchronized void sendFile( Path file ) throws IOException
+    {
+        checkNotCommitted();
+
+        FileChannel fc   = FileChannel.open( file, StandardOpenOption.READ );
+        long        size = fc.size();
+
+        if( ! headers.containsKey( "Content-Type" ) )
+        {
+            String name = file.getFileName().toString();
+            int    dot  = name.lastIndexOf( '.' );
+
+            headers.put( "Content-Type", mimetypes.getOrDefault( (dot < 0) ? "" : name.substring( dot + 1 ).toLowerCase( Locale.ROOT ),
+                                                                 "application/octet-stream" ) );
+        }
+
+        output.write( head( size ) );
+
+        if( bNoBody || size == 0 )
+        {
+            fc.close();
+        }
+        else
+        {
+            output.write( new FileRegion( fc, size ) );
+        }
+
+        finish();
+    }
+
+    /**
+     * Sends a chunk of the body: the head is sent with the first chunk.
+     * <p>
+     * HTTP/1.0 clients do not understand chunks: the body is sent as it is
+     * and the connection is closed at the end.
+     *
+     * @param data A chunk of the body (from position to limit; empty chunks are ignored).
+     */
+    public synchronized void write( ByteBuffer data )
+    {
+        if( bEnded )
+        {
+            throw new IllegalStateException( "Response already sent" );
+        }
+
+        if( ! bCommitted )
+        {
+            if( "HTTP/1.0".equals( request.getVersion() ) )
+            {
+                bKeepAlive = false;
+            }
+            else
+            {
+                bChunked = true;
+            }
+
+            output.write( head( -1 ) );
+        }
+
+        if( bNoBody || ! data.hasRemaining() )
+        {
+            return;
+        }
+
+        if( bChunked )
+        {
+            output.write( ByteBuffer.wrap( (Integer.toHexString( data.remaining() ) +"\r\n").getBytes( StandardCharsets.ISO_8859_1 ) ) );
+            output.write( data.duplicate() );
+            output.write( ByteBuffer.wrap( CRLF ) );
+        }
+        else
+        {
+            output.write( data.duplicate() );
+        }
+    }
+
+    public void write( byte[] data )
+    {
+        write( ByteBuffer.wrap( data ) );
+    }
+
+    public void write( String data )
+    {
+        write( data.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Ends the response: if nothing was sent, an empty body is sent. Invoking
+     * this method more than once has no effect.
+     */
+    public synchronized void end()
+    {
+        if( bEnded )
+        {
+            return;
+        }
+
+        if( ! bCommitted )
+        {
+            output.write( head( 0 ) );
+        }
+        else if( bChunked && ! bNoBody )
+        {
+            output.write( ByteBuffer.wrap( LAST ) );
+        }
+
+        finish();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return nStatus +" "+ request;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    static String reason( int nStatus )
+    {
+        return reasons.getOrDefault( nStatus, "Unknown" );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Builds the head (status line and headers).
+     *
+     * @param nLength Body length or -1 if unknown.
+     */
+    private ByteBuffer head( long nLength )
+    {
+        StringBuilder sb = new StringBuilder( 128 );
+
+        sb.append( "HTTP/1.1 " ).append( nStatus ).append( ' ' ).append( reason( nStatus ) ).append( "\r\n" );
+
+        for( Map.Entry<String,String> entry : headers.entrySet() )
+        {
+            sb.append( entry.getKey() ).append( ": " ).append( entry.getValue() ).append( "\r\n" );
+        }
+
+        if( bChunked )
+        {
+            sb.append( "Transfer-Encoding: chunked\r\n" );
+        }
+        else if( nLength >= 0 )
+        {
+            sb.append( "Content-Length: " ).append( nLength ).append( "\r\n" );
+        }
+
+        if( ! bKeepAlive )
+        {
+            sb.append( "Connection: close\r\n" );
+        }
+        else if( "HTTP/1.0".equals( request.getVersion() ) )
+        {
+            sb.append( "Connection: keep-alive\r\n" );
+        }
+
+        sb.append( "\r\n" );
+
+        bCommitted = true;
+
+        return ByteBuffer.wrap( sb.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+    }
+
+    private void finish()
+    {
+        bEnded = true;
+        output.done( ! bKeepAlive );
+    }
+
+    private void checkNotCommitted()
+    {
+        if( bCommitted )
+        {
+            throw new IllegalStateException( "Response already sent" );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A part of a file to be transferred to the socket.
+     */
+    static final class FileRegion
+    {
+        final FileChannel channel;
+        long              position = 0;
+        long              remaining;
+
+        FileRegion( FileChannel channel, long nLength )
+        {
+            this.channel   = channel;
+            this.remaining = nLength;
+        }
+    }
+}
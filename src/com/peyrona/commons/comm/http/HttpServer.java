@@ -0,0 +1,1231 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.http;
+
+import com.peyrona.commons.comm.HttpConstants;
+import com.peyrona.commons.comm.SelectorLoop;
+import com.peyrona.commons.lang.BufferPool;
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * A small embedded HTTP/1.1 server built on SelectorLoop (non-blocking).
+ * <p>
+ * Features:
+ * <ul>
+ *    <li>Persistent connections (keep-alive) and pipelining: requests received
+ *        on the same connection are processed one after the other and their
+ *        responses are sent in the same order (responses that are ready at the
+ *        same time are written using one gathering write).</li>
+ *    <li>Routing by method and path: exact paths ("/status") and prefixes
+ *        ("/api/*"; the longest one wins). HEAD requests are served by the GET
+ *        handler when there is no HEAD handler (the body is not sent).</li>
+ *    <li>Request bodies using "Content-Length" or chunked transfer encoding
+ *        (bounded by ::setMaxBodySize(...)) and "Expect: 100-continue".</li>
+ *    <li>Responses with known length or streamed (chunked): see HttpResponse.</li>
+ *    <li>Static files sent using FileChannel::transferTo(...) (zero-copy).</li>
+ * </ul>
+ * By default handlers are invoked inside the loop thread: this is the fastest
+ * option, but handlers must not block. Handlers that block (database, disk,
+ * etc.) need an executor: ::setExecutor(...).
+ * <p>
+ * More than one loop can be used: the first one accepts the connections and
+ * all of them serve the connections (round-robin).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class HttpServer
+{
+    /**
+     * Serves the requests of a route.
+     */
+    public interface Handler
+    {
+        /**
+         * Serves a request. The response is ended when this method returns (if
+         * it was not done already).
+         *
+         * @param request The request.
+         * @param response The response.
+         * @throws Exception Any exception: if the response was not sent yet,
+         *                   a 500 response is sent; otherwise the connection
+         *                   is closed.
+         */
+        void handle( HttpRequest request, HttpResponse response ) throws Exception;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static final int nMAX_HEAD = 16 * 1024;     // Request line and headers
+
+    private final    SelectorLoop[]                                        loops;
+    private final    Map<String,Map<HttpConstants.Method,Handler>>       exact     = new ConcurrentHashMap<>();
+    private volatile List<Prefix>                                          prefixes  = new ArrayList<>();    // Sorted: longest first
+    private final    Map<Connection,Boolean>                               conns     = new ConcurrentHashMap<>();
+    private final    AtomicInteger                                         nNextLoop = new AtomicInteger( 0 );
+    private final    LongAdder                                             requests  = new LongAdder();
+    private final    LongAdder                                             accepted  = new LongAdder();
+    private volatile ServerSocketChannel                                   server    = null;
+    private volatile Executor                                              executor  = null;
+    private volatile int                                                   nIdle     = 30 * 1000;
+    private volatile int                                                   nMaxBody  = 8 * 1024 * 1024;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance that uses one of the default loops.
+     */
+    public HttpServer()
+    {
+        this( SelectorLoop.next() );
+    }
+
+    /**
+     * Creates an instance that uses passed loops.
+     *
+     * @param loops The first one accepts the connections and all of them serve
+     *              the connections.
+     */
+    public HttpServer( SelectorLoop... loops )
+    {
+        if( loops == null || loops.length == 0 )
+        {
+            throw new IllegalArgumentException( "At least one loop is needed" );
+        }
+
+        this.loops = loops.clone();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Adds (or replaces) a route.
+     *
+     * @param method The method.
+     * @param path An exact path (e.g. "/status") or a prefix ending with "/*"
+     *             (e.g. "/api/*", which also matches "/api").
+     * @param handler Serves the requests.
+     * @return Itself.
+     */
+    public HttpServer route( HttpConstants.Method method, String path, Handler handler )
+    {
+        if( method == null || handler == null || path == null || ! path.startsWith( "/" ) )
+        {
+            throw new IllegalArgumentException( "Invalid route: "+ method +' '+ path );
+        }
+
+        if( path.endsWith( "/*" ) )
+        {
+            synchronized( this )
+            {
+                String       prefix = path.substring( 0, path.length() - 1 );
+                List<Prefix> list   = new ArrayList<>( prefixes );
+                Prefix       route  = null;
+
+                for( Prefix p : list )
+                {
+                    if( p.prefix.equals( prefix ) )
+                    {
+                        route = p;
+                    }
+                }
+
+                if( route == null )
+                {
+                    route = new Prefix( prefix );
+                    list.add( route );
+                    list.sort( (a,b) -> b.prefix.length() - a.prefix.length() );
+                }
+
+                route.handlers.put( method, handler );
+                prefixes = list;
+            }
+        }
+        else
+        {
+            exact.computeIfAbsent( path, p -> new ConcurrentHashMap<>() ).put( method, handler );
+        }
+
+        return this;
+    }
+
+    /**
+     * Serves the files under passed directory (GET and HEAD) using passed
+     * prefix: e.g. with prefix "/static" and root "/var/www", "/static/a.html"
+     * is "/var/www/a.html". Directories are served using their "index.html".
+     *
+     * @param prefix The prefix (e.g. "/" or "/static").
+     * @param root The directory.
+     * @return Itself.
+     */
+    public HttpServer routeFiles( String prefix, Path root )
+    {
+        Path   base = root.toAbsolutePath().normalize();
+        String sPfx = (prefix.endsWith( "/" ) ? prefix.substring( 0, prefix.length() - 1 ) : prefix);
+
+        return route( HttpConstants.Method.GET, sPfx +"/*", (req, resp) -> serveFile( base, sPfx, req, resp ) );
+    }
+
+    /**
+     * Sets the executor used to invoke the handlers (null to invoke them inside
+     * the loop thread).
+     *
+     * @param executor The executor.
+     * @return Itself.
+     */
+    public HttpServer setExecutor( Executor executor )
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Connections without activity during this time are closed.
+     *
+     * @param nMillis Idle timeout (0 for none). By default 30 seconds.
+     * @return Itself.
+     */
+    public HttpServer setIdleTimeout( int nMillis )
+    {
+        this.nIdle = Math.max( 0, nMillis );
+        return this;
+    }
+
+    /**
+     * Requests with a bigger body are rejected (413).
+     *
+     * @param nBytes Max request body size. By default 8 MB.
+     * @return Itself.
+     */
+    public HttpServer setMaxBodySize( int nBytes )
+    {
+        this.nMaxBody = Math.max( 0, nBytes );
+        return this;
+    }
+
+    /**
+     * Starts listening at passed port (in all interfaces).
+     *
+     * @param nPort The port (0 for any free port).
+     * @throws IOException
+     */
+    public void connect( int nPort ) throws IOException
+    {
+        connect( new InetSocketAddress( nPort ) );
+    }
+
+    /**
+     * Starts listening at passed address.
+     *
+     * @param address The address.
+     * @throws IOException
+     */
+    public synchronized void connect( InetSocketAddress address ) throws IOException
+    {
+        if( server != null )
+        {
+            throw new IllegalStateException( "Already connected" );
+        }
+
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+
+        try
+        {
+            ssc.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+            ssc.bind( address, 1024 );
+            ssc.configureBlocking( false );
+        }
+        catch( IOException ioe )
+        {
+            ssc.close();
+            throw ioe;
+        }
+
+        server = ssc;
+        loops[0].execute( () -> { try
+                                  {
+                                      loops[0].register( ssc, SelectionKey.OP_ACCEPT, key -> accept( ssc ) );
+                                  }
+                                  catch( IOException ioe )
+                                  {
+                                      UtilDebug.log( Level.SEVERE, ioe, "Can not accept HTTP connections" );
+                                  } } );
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    public synchronized void disconnect()
+    {
+        if( server == null )
+        {
+            return;
+        }
+
+        try
+        {
+            server.close();
+        }
+        catch( IOException ioe )
+        {
+            // Nothing to do
+        }
+
+        server = null;
+
+        for( Connection conn : conns.keySet() )
+        {
+            conn.loop.execute( conn::close );
+        }
+    }
+
+    public boolean isConnected()
+    {
+        return (server != null);
+    }
+
+    /**
+     * Returns the port the server is listening at or -1.
+     *
+     * @return The port the server is listening at or -1.
+     */
+    public int getPort()
+    {
+        ServerSocketChannel ssc = server;
+
+        try
+        {
+            return ((ssc == null) ? -1 : ((InetSocketAddress) ssc.getLocalAddress()).getPort());
+        }
+        catch( IOException ioe )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of requests received.
+     *
+     * @return The number of requests received.
+     */
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the number of connections accepted.
+     *
+     * @return The number of connections accepted.
+     */
+    public long getAccepted()
+    {
+        return accepted.sum();
+    }
+
+    /**
+     * Returns the number of connections currently open.
+     *
+     * @return The number of connections currently open.
+     */
+    public int getConnections()
+    {
+        return conns.size();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void accept( ServerSocketChannel ssc ) throws IOException
+    {
+        SocketChannel channel;
+
+        while( (channel = ssc.accept()) != null )
+        {
+            try
+            {
+                channel.configureBlocking( false );
+                channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+            }
+            catch( IOException ioe )
+            {
+                channel.close();
+                continue;
+            }
+
+            Connection conn = new Connection( channel, loops[ Math.abs( nNextLoop.getAndIncrement() % loops.length ) ] );
+
+            accepted.increment();
+            conns.put( conn, Boolean.TRUE );
+            conn.loop.execute( conn::open );
+        }
+    }
+
+    /**
+     * Returns the handler for passed request or null (the response was sent).
+     */
+    private Handler find( HttpRequest req, HttpResponse resp )
+    {
+        Map<HttpConstants.Method,Handler> handlers = exact.get( req.getPath() );
+
+        if( handlers == null )
+        {
+            for( Prefix p : prefixes )
+            {
+                if( p.matches( req.getPath() ) )
+                {
+                    handlers = p.handlers;
+                    break;
+                }
+            }
+        }
+
+        if( handlers == null )
+        {
+            resp.setStatus( HttpConstants._404_Not_Found ).send( "Not found: "+ req.getPath() );
+            return null;
+        }
+
+        Handler handler = handlers.get( req.getMethod() );
+
+        if( handler == null && req.getMethod() == HttpConstants.Method.HEAD )
+        {
+            handler = handlers.get( HttpConstants.Method.GET );
+        }
+
+        if( handler == null )
+        {
+            StringBuilder sb = new StringBuilder();
+
+            for( HttpConstants.Method m : handlers.keySet() )
+            {
+                sb.append( (sb.length() == 0) ? "" : ", " ).append( m );
+            }
+
+            resp.setStatus( HttpConstants._405_Method_Not_Allowed ).setHeader( "Allow", sb.toString() ).send( "Method not allowed: "+ req.getMethod() );
+        }
+
+        return handler;
+    }
+
+    private void serve( HttpRequest req, HttpResponse resp )
+    {
+        try
+        {
+            Handler handler = find( req, resp );
+
+            if( handler != null )
+            {
+                handler.handle( req, resp );
+            }
+
+            resp.end();
+        }
+        catch( Throwable th )
+        {
+            UtilDebug.log( Level.WARNING, th, "Error serving: "+ req );
+
+            if( resp.isCommitted() )
+            {
+                resp.end();     // Nothing else can be done: the client will notice that the body is incomplete
+            }
+            else
+            {
+                resp.setStatus( HttpConstants._500_Internal_Server_Error ).close().send( "Internal error" );
+            }
+        }
+    }
+
+    private static void serveFile( Path root, String prefix, HttpRequest req, HttpResponse resp ) throws IOException
+    {
+        String sPath = decode( req.getPath().substring( Math.min( prefix.length(), req.getPath().length() ) ) );
+        Path   file  = root.resolve( sPath.startsWith( "/" ) ? sPath.substring( 1 ) : sPath ).normalize();
+
+        if( file.startsWith( root ) && Files.isDirectory( file ) )
+        {
+            file = file.resolve( "index.html" );
+        }
+
+        if( ! file.startsWith( root ) || ! Files.isRegularFile( file ) || ! Files.isReadable( file ) )   // "startsWith": no "../" tricks
+        {
+            resp.setStatus( HttpConstants._404_Not_Found ).send( "Not found: "+ req.getPath() );
+        }
+        else
+        {
+            resp.sendFile( file );
+        }
+    }
+
+    private static String decode( String s )
+    {
+        try
+        {
+            return URLDecoder.decode( s.replace( "+", "%2B" ), "UTF-8" );
+        }
+        catch( UnsupportedEncodingException | IllegalArgumentException exc )
+        {
+            return s;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Prefix
+    {
+        final String                            prefix;      // Ends with "/"
+        final Map<HttpConstants.Method,Handler> handlers = new ConcurrentHashMap<>();
+
+        Prefix( String prefix )
+        {
+            this.prefix = prefix;
+        }
+
+        boolean matches( String path )
+        {
+            return path.startsWith( prefix ) || path.equals( prefix.substring( 0, prefix.length() - 1 ) );
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * An HTTP error detected while parsing a request.
+     */
+    private static final class HttpError extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int nStatus;
+
+        HttpError( int nStatus, String msg )
+        {
+            super( msg );
+            this.nStatus = nStatus;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * One client connection: all its methods (except ::write(...) and ::done(...),
+     * invoked by the responses) run inside the loop thread.
+     */
+    private final class Connection implements SelectorLoop.Handler, HttpResponse.Output
+    {
+        private final    SelectorLoop          loop;
+        private final    SocketChannel         channel;
+        private final    Queue<Object>         output      = new ConcurrentLinkedQueue<>();    // ByteBuffers and FileRegions
+        private final    ByteBuffer[]          gather      = new ByteBuffer[ 16 ];
+        private final    int                   nTimeout    = nIdle;
+        private          SelectionKey          key         = null;
+        private          ByteBuffer            input       = BufferPool.of( nMAX_HEAD ).acquire();   // In write mode
+        private          SelectorLoop.Schedule idle        = null;
+        private          long                  nLastActive = System.currentTimeMillis();
+        private          boolean               isBusy      = false;     // A request is being served
+        private          boolean               isParsing   = false;
+        private          boolean               isClosing   = false;     // Close after flushing (no more requests are read)
+        private          boolean               isEOF       = false;     // Client will not send more requests
+        private          boolean               isContinued = false;     // "100 Continue" sent for current request
+        private volatile boolean               isClosed    = false;
+
+        Connection( SocketChannel channel, SelectorLoop loop )
+        {
+            this.channel = channel;
+            this.loop    = loop;
+        }
+
+        //------------------------------------------------------------------------//
+
+        @Override
+        public void onSelected( SelectionKey key )
+        {
+            try
+            {
+                if( key.isValid() && key.isWritable() )
+                {
+                    flush();
+                }
+
+                if( key.isValid() && key.isReadable() )
+                {
+                    read();
+                }
+            }
+            catch( IOException ioe )
+            {
+                close();
+            }
+        }
+
+        @Override
+        public void write( Object data )
+        {
+            output.add( data );
+
+            if( ! loop.inLoop() )
+            {
+                loop.execute( this::flushQuietly );
+            }
+            else if( ! isParsing )      // When parsing, it is flushed at the end (one write for all pipelined responses)
+            {
+                flushQuietly();
+            }
+        }
+
+        @Override
+        public void done( boolean bClose )
+        {
+            if( loop.inLoop() )
+            {
+                onDone( bClose );
+            }
+            else
+            {
+                loop.execute( () -> onDone( bClose ) );
+            }
+        }
+
+        //------------------------------------------------------------------------//
+
+        void open()
+        {
+            try
+            {
+                key = loop.register( channel, SelectionKey.OP_READ, this );
+
+                if( nTimeout > 0 )
+                {
+                    idle = loop.schedule( this::checkIdle, nTimeout );
+                }
+            }
+            catch( IOException ioe )
+            {
+                close();
+            }
+        }
+
+        void close()
+        {
+            if( isClosed )
+            {
+                return;
+            }
+
+            isClosed = true;
+            conns.remove( this );
+
+            if( idle != null )
+            {
+                idle.cancel();
+            }
+
+            if( key != null )
+            {
+                key.cancel();
+            }
+
+            try
+            {
+                channel.close();
+            }
+            catch( IOException ioe )
+            {
+                // Nothing to do
+            }
+
+            for( Object data : output )
+            {
+                if( data instanceof HttpResponse.FileRegion )
+                {
+                    try { ((HttpResponse.FileRegion) data).channel.close(); }
+                    catch( IOException ioe ) { /* Nothing to do */ }
+                }
+            }
+
+            output.clear();
+            BufferPool.of( nMAX_HEAD ).release( input );    // Ignored if it grew
+            input = null;
+        }
+
+        //------------------------------------------------------------------------//
+
+        private void read() throws IOException
+        {
+            if( ! input.hasRemaining() )
+            {
+                if( ! grow() )      // Buffer full while a request is being served: stop reading until it is done
+                {
+                    setInterest();
+                    return;
+                }
+            }
+
+            int n = channel.read( input );
+
+            if( n < 0 )
+            {
+                isEOF = true;
+            }
+            else
+            {
+                nLastActive = System.currentTimeMillis();
+            }
+
+            parse();
+        }
+
+        /**
+         * Parses and serves all complete requests in the input buffer (one
+         * after the other).
+         */
+        private void parse() throws IOException
+        {
+            if( isParsing || isClosed )
+            {
+                return;
+            }
+
+            isParsing = true;
+
+            try
+            {
+                while( ! isBusy && ! isClosing )
+                {
+                    HttpRequest req;
+
+                    input.flip();
+
+                    try
+                    {
+                        req = request();
+                    }
+                    catch( HttpError err )
+                    {
+                        error( err );
+                        break;
+                    }
+                    finally
+                    {
+                        input.compact();
+                    }
+
+                    if( req == null )
+                    {
+                        if( (input.position() == input.capacity()) && ! grow() )
+                        {
+                            error( new HttpError( HttpConstants._413_Request_Entity_Too_Large, "Request too big" ) );
+                        }
+                        else if( (input.position() == 0) && (input.capacity() > nMAX_HEAD) )     // Back to a pooled buffer after a big request
+                        {
+                            input = BufferPool.of( nMAX_HEAD ).acquire();
+                        }
+
+                        break;
+                    }
+
+                    isContinued = false;
+                    isBusy      = true;
+                    requests.increment();
+
+                    HttpResponse resp = new HttpResponse( req, this );
+                    Executor     exec = executor;
+
+                    if( exec == null )
+                    {
+                        serve( req, resp );
+                    }
+                    else
+                    {
+                        exec.execute( () -> serve( req, resp ) );
+                    }
+                }
+            }
+            finally
+            {
+                isParsing = false;
+            }
+
+            flush();
+        }
+
+        /**
+         * Returns the request at the beginning of the input buffer (in read
+         * mode) or null if it is not complete (the buffer position does not
+         * change).
+         */
+        private HttpRequest request() throws IOException
+        {
+            int nStart = input.position();
+            int nEnd   = headEnd( nStart );
+
+            if( nEnd < 0 )
+            {
+                if( input.remaining() >= nMAX_HEAD )
+                {
+                    throw new HttpError( HttpConstants._400_Bad_Request, "Request head too big" );
+                }
+
+                return null;
+            }
+
+            String[] lines = new String( input.array(), input.arrayOffset() + nStart, nEnd - nStart - 4, StandardCharsets.ISO_8859_1 ).split( "\r\n" );
+            String[] first = lines[0].split( " " );
+
+            if( first.length != 3 || ! first[1].startsWith( "/" ) )
+            {
+                throw new HttpError( HttpConstants._400_Bad_Request, "Invalid request line: "+ lines[0] );
+            }
+
+            if( ! first[2].startsWith( "HTTP/1." ) )
+            {
+                throw new HttpError( HttpConstants._505_HTTP_Version_Not_Supported, "Unsupported version: "+ first[2] );
+            }
+
+            HttpConstants.Method method;
+
+            try
+            {
+                method = HttpConstants.Method.valueOf( first[0] );
+            }
+            catch( IllegalArgumentException iae )
+            {
+                throw new HttpError( HttpConstants._501_Not_Implemented, "Unsupported method: "+ first[0] );
+            }
+
+            Map<String,String> headers = new LinkedHashMap<>();
+
+            for( int n = 1; n < lines.length; n++ )
+            {
+                int nColon = lines[n].indexOf( ':' );
+
+                if( nColon <= 0 )
+                {
+                    throw new HttpError( HttpConstants._400_Bad_Request, "Invalid header: "+ lines[n] );
+                }
+
+                String name  = lines[n].substring( 0, nColon ).trim().toLowerCase();
+                String value = lines[n].substring( nColon + 1 ).trim();
+
+                headers.merge( name, value, (a,b) -> a +','+ b );
+            }
+
+            byte[] body;
+            String sTE = headers.get( "transfer-encoding" );
+            String sCL = headers.get( "content-length" );
+
+            if( sTE != null && sTE.toLowerCase().contains( "chunked" ) )
+            {
+                body = chunked( nEnd );
+            }
+            else if( sCL != null )
+            {
+                long nLength;
+
+                try
+                {
+                    nLength = Long.parseLong( sCL );
+                }
+                catch( NumberFormatException nfe )
+                {
+                    throw new HttpError( HttpConstants._400_Bad_Request, "Invalid Content-Length: "+ sCL );
+                }
+
+                if( nLength < 0 || nLength > nMaxBody )
+                {
+                    throw new HttpError( HttpConstants._413_Request_Entity_Too_Large, "Body too big: "+ nLength );
+                }
+
+                if( input.limit() - nEnd < nLength )
+                {
+                    if( nEnd - nStart + nLength > input.capacity() )     // It will not fit: make room for all of it now
+                    {
+                        ByteBuffer bigger = ByteBuffer.allocate( (int) (nEnd - nStart + nLength) );
+
+                        bigger.put( input );        // Copies from position: the request starts at 0 now
+                        bigger.flip();
+                        BufferPool.of( nMAX_HEAD ).release( input );
+                        input = bigger;
+                    }
+
+                    body = null;
+                }
+                else
+                {
+                    body = new byte[ (int) nLength ];
+                    input.position( nEnd );
+                    input.get( body );
+                }
+            }
+            else
+            {
+                body = new byte[0];
+                input.position( nEnd );
+            }
+
+            if( body == null )
+            {
+                if( ! isContinued && "100-continue".equalsIgnoreCase( headers.get( "expect" ) ) )
+                {
+                    write( ByteBuffer.wrap( "HTTP/1.1 100 Continue\r\n\r\n".getBytes( StandardCharsets.ISO_8859_1 ) ) );
+                }
+
+                isContinued = true;
+                return null;
+            }
+
+            return new HttpRequest( method, first[1], first[2], headers, body, channel.socket().getRemoteSocketAddress() );
+        }
+
+        /**
+         * Reads a chunked body starting at passed index (the buffer position
+         * is moved to the end of the body) or returns null if it is not complete.
+         */
+        private byte[] chunked( int nFrom ) throws IOException
+        {
+            List<int[]> chunks = new ArrayList<>();     // { start, length }
+            int         nAt    = nFrom;
+            long        nTotal = 0;
+
+            while( true )
+            {
+                int nEOL = find( nAt, (byte) '\r' );
+
+                if( nEOL < 0 || nEOL + 1 >= input.limit() )
+                {
+                    return null;
+                }
+
+                String sSize = new String( input.array(), input.arrayOffset() + nAt, nEOL - nAt, StandardCharsets.ISO_8859_1 );
+                int    nSemi = sSize.indexOf( ';' );    // Chunk extensions are ignored
+                int    nSize;
+
+                try
+                {
+                    nSize = Integer.parseInt( ((nSemi < 0) ? sSize : sSize.substring( 0, nSemi )).trim(), 16 );
+                }
+                catch( NumberFormatException nfe )
+                {
+                    throw new HttpError( HttpConstants._400_Bad_Request, "Invalid chunk size: "+ sSize );
+                }
+
+                nTotal += nSize;
+
+                if( nSize < 0 || nTotal > nMaxBody )
+                {
+                    throw new HttpError( HttpConstants._413_Request_Entity_Too_Large, "Body too big" );
+                }
+
+                nAt = nEOL + 2;
+
+                if( nSize == 0 )
+                {
+                    break;
+                }
+
+                if( input.limit() < nAt + nSize + 2 )
+                {
+                    return null;
+                }
+
+                chunks.add( new int[] { nAt, nSize } );
+                nAt += nSize + 2;
+            }
+
+            // Trailers (ignored) end with an empty line
+            while( true )
+            {
+                int nEOL = find( nAt, (byte) '\r' );
+
+                if( nEOL < 0 || nEOL + 1 >= input.limit() )
+                {
+                    return null;
+                }
+
+                boolean bEmpty = (nEOL == nAt);
+
+                nAt = nEOL + 2;
+
+                if( bEmpty )
+                {
+                    break;
+                }
+            }
+
+            byte[] body = new byte[ (int) nTotal ];
+            int    nPos = 0;
+
+            for( int[] chunk : chunks )
+            {
+                System.arraycopy( input.array(), input.arrayOffset() + chunk[0], body, nPos, chunk[1] );
+                nPos += chunk[1];
+            }
+
+            input.position( nAt );
+
+            return body;
+        }
+
+        /**
+         * Returns the index after "\r\n\r\n" or -1.
+         */
+        private int headEnd( int nFrom )
+        {
+            byte[] ab   = input.array();
+            int    nOff = input.arrayOffset();
+
+            for( int n = nFrom; n <= input.limit() - 4; n++ )
+            {
+                if( ab[nOff + n] == '\r' && ab[nOff + n + 1] == '\n' && ab[nOff + n + 2] == '\r' && ab[nOff + n + 3] == '\n' )
+                {
+                    return n + 4;
+                }
+            }
+
+            return -1;
+        }
+
+        private int find( int nFrom, byte b )
+        {
+            for( int n = nFrom; n < input.limit(); n++ )
+            {
+                if( input.get( n ) == b )
+                {
+                    return n;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Doubles the input buffer (when it is full with an incomplete request).
+         * Returns false if it can not grow (a request is being served or the
+         * limit was reached).
+         */
+        private boolean grow()
+        {
+            if( isBusy || input.capacity() >= nMAX_HEAD + nMaxBody )
+            {
+                return false;
+            }
+
+            ByteBuffer bigger = ByteBuffer.allocate( (int) Math.min( (long) input.capacity() * 2, (long) nMAX_HEAD + nMaxBody ) );
+
+            input.flip();
+            bigger.put( input );
+            BufferPool.of( nMAX_HEAD ).release( input );
+            input = bigger;
+
+            return true;
+        }
+
+        private void error( HttpError err )
+        {
+            StringBuilder sb   = new StringBuilder();
+            byte[]        body = err.getMessage().getBytes( StandardCharsets.UTF_8 );
+
+            sb.append( "HTTP/1.1 " ).append( err.nStatus ).append( ' ' ).append( HttpResponse.reason( err.nStatus ) ).append( "\r\n" )
+              .append( "Content-Type: " ).append( HttpConstants.MIMETYPE_TEXT_PLAIN_UTF_8 ).append( "\r\n" )
+              .append( "Content-Length: " ).append( body.length ).append( "\r\n" )
+              .append( "Connection: close\r\n\r\n" );
+
+            output.add( ByteBuffer.wrap( sb.toString().getBytes( StandardCharsets.ISO_8859_1 ) ) );
+            output.add( ByteBuffer.wrap( body ) );
+            isClosing = true;
+        }
+
+        private void onDone( boolean bClose )
+        {
+            if( isClosed )
+            {
+                return;
+            }
+
+            isBusy    = false;
+            isClosing = isClosing || bClose;
+
+            try
+            {
+                parse();     // Next pipelined request (if any): does nothing when invoked from inside ::parse()
+            }
+            catch( IOException ioe )
+            {
+                close();
+            }
+        }
+
+        private void flushQuietly()
+        {
+            try
+            {
+                flush();
+            }
+            catch( IOException ioe )
+            {
+                close();
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            if( isClosed )
+            {
+                return;
+            }
+
+            Object head;
+
+            while( (head = output.peek()) != null )
+            {
+                if( head instanceof HttpResponse.FileRegion )
+                {
+                    HttpResponse.FileRegion region = (HttpResponse.FileRegion) head;
+                    long                    n      = region.channel.transferTo( region.position, region.remaining, channel );
+
+                    region.position  += n;
+                    region.remaining -= n;
+
+                    if( region.remaining > 0 )
+                    {
+                        if( n == 0 )
+                        {
+                            break;      // Socket send buffer is full: wait for OP_WRITE
+                        }
+
+                        continue;
+                    }
+
+                    region.channel.close();
+                    output.poll();
+                }
+                else
+                {
+                    int nCount = 0;
+
+                    for( Object data : output )     // Consecutive buffers are written at once
+                    {
+                        if( (nCount == gather.length) || ! (data instanceof ByteBuffer) )
+                        {
+                            break;
+                        }
+
+                        gather[nCount++] = (ByteBuffer) data;
+                    }
+
+                    channel.write( gather, 0, nCount );
+
+                    boolean bFull = false;
+
+                    for( int n = 0; n < nCount; n++ )
+                    {
+                        if( gather[n].hasRemaining() )
+                        {
+                            bFull = true;
+                            break;
+                        }
+
+                        output.poll();
+                    }
+
+                    Arrays.fill( gather, 0, nCount, null );
+
+                    if( bFull )
+                    {
+                        break;
+                    }
+                }
+
+                nLastActive = System.currentTimeMillis();
+            }
+
+            if( output.isEmpty() && ! isBusy && (isClosing || isEOF) )      // Not busy: all received requests were served
+            {
+                close();
+                return;
+            }
+
+            setInterest();
+        }
+
+        private void setInterest()
+        {
+            if( key == null || ! key.isValid() )
+            {
+                return;
+            }
+
+            int ops = (output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+
+            if( ! isClosing && ! isEOF && (input.hasRemaining() || ! isBusy) )
+            {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            if( key.interestOps() != ops )
+            {
+                key.interestOps( ops );
+            }
+        }
+
+        private void checkIdle()
+        {
+            if( isClosed )
+            {
+                return;
+            }
+
+            long nElapsed = System.currentTimeMillis() - nLastActive;
+
+            if( ! isBusy && nElapsed >= nTimeout )
+            {
+                close();
+            }
+            else
+            {
+                idle = loop.schedule( this::checkIdle, isBusy ? nTimeout : nTimeout - nElapsed );
+            }
+        }
+    }
+}
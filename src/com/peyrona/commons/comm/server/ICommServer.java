@@ -51,6 +51,13 @@ public interface ICommServer
 
     Class<? extends ProtocolHandler> getProtocolHandler();
 
+    /**
+     * Returns traffic and latency metrics for this server and its connections.
+     *
+     * @return Traffic and latency metrics for this server and its connections.
+     */
+    ServerMetrics getMetrics();
+
     void addListener( ICommServer.Listener handler );
 
     void removeListener( ICommServer.Listener handler );
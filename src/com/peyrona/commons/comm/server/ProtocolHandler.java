@@ -16,14 +16,34 @@
 
 package com.peyrona.commons.comm.server;
 
+import com.peyrona.commons.comm.MappedChannel;
+import com.peyrona.commons.comm.MessageCodec;
+import com.peyrona.commons.comm.TLSConfig;
+import com.peyrona.commons.util.UtilComm;
 import com.peyrona.commons.util.UtilDebug;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import javax.net.ssl.SSLSocket;
 
 /**
  * This class is a base implementation that is used by TCPServerXXX:
@@ -38,29 +58,111 @@ import java.util.logging.Level;
  * Note: even if this implementation is thread safe (it is inmutable), it is not
  * needed to be thread safe, because a new instance is created each time by the
  * Server Socket.
+ * <p>
+ * Correlated requests (as sent by TCPClientPool) are handled transparently: a
+ * received line with the form "id" + UtilComm.cID_SEPARATOR + "message" is
+ * passed to process(...) as "message" and its answer is sent back prefixed by
+ * the same id and separator (when the answer is null, only the id and the
+ * separator are sent back: the client would wait for it until its timeout).
+ * <p>
+ * Heartbeat pings (UtilComm.sHEARTBEAT_PING) are answered with a pong and are
+ * not passed to process(...).
+ * <p>
+ * When the server uses a MessageCodec, messages are received and sent encoded
+ * (see TCPServerAbstract::setCodec(...)) and received messages are passed to
+ * processDecoded(...) instead of process(...). The correlation id is then
+ * carried by the frame header (see MessageCodec): an encoded request with an
+ * id is always answered with the same id (the answer can be an encoded null).
+ * <p>
+ * Subclasses used with UnixSocketServer need a constructor that receives a
+ * SocketChannel, those used with SharedMemoryServer need one that receives a
+ * MappedChannel (and those used with TCPServerClassic need one that receives
+ * a Socket). The idle timeout (TCPServerAbstract::setIdleTimeout(...)) is not
+ * applied to Unix domain connections: a dead local peer is always detected.
+ * <p>
+ * Subclasses used with UDPServer need a constructor that receives a
+ * UDPServer.Peer: there is one instance per client address, but its thread is
+ * not started (the server invokes process(...) for every received message).
  *
  * @author peyrona
  */
 public abstract class ProtocolHandler extends Thread
 {
-    private final Socket         socket;    // Client
-    private final PrintWriter    writer;    // To send msgs
-    private final BufferedReader reader;    // To receive msgs
+    private static final AtomicLong nUnix = new AtomicLong( 0 );     // Unix domain peers have no address: connections are numbered
+
+    private final    Socket                   socket;    // Client (null for Unix domain connections)
+    private final    SocketChannel            channel;   // Null when the socket was not created by a ServerSocketChannel
+    private final    MappedChannel            mapped;    // Not null only for shared memory connections
+    private final    UDPServer.Peer           peer;      // Not null only for UDP clients
+    private final    OutputStream             output;    // To send raw bytes when there is no channel
+    private final    PrintWriter              writer;    // To send msgs
+    private final    BufferedReader           reader;    // To receive msgs
+    private final    DataInputStream          input;     // To receive encoded msgs (when there is a codec)
+    private final    ServerMetrics.Connection metrics;
+    private volatile ICommServer              server = null;
+    private volatile MessageCodec             codec  = null;
+    private          long                     nFrame = 0;        // Correlation id of last encoded msg received (0 == none)
 
     //----------------------------------------------------------------------------//
 
     public ProtocolHandler( Socket socket ) throws IOException
+    {
+        this( socket, socket.getChannel(), null, null, socket.getInputStream(), socket.getOutputStream(),
+              String.valueOf( socket.getRemoteSocketAddress() ) );
+
+        socket.setKeepAlive( true );
+        socket.setReuseAddress( true );
+    }
+
+    /**
+     * Constructor used for Unix domain connections (see UnixSocketServer).
+     *
+     * @param channel A connected channel in blocking mode.
+     * @throws IOException
+     */
+    public ProtocolHandler( SocketChannel channel ) throws IOException
+    {
+        this( null, channel, null, null, new ChannelInputStream( channel ), new ChannelOutputStream( channel ),
+              "unix:"+ channel.getLocalAddress() +"#"+ nUnix.incrementAndGet() );
+    }
+
+    /**
+     * Constructor used for shared memory connections (see SharedMemoryServer).
+     *
+     * @param mapped An open channel.
+     */
+    public ProtocolHandler( MappedChannel mapped )
+    {
+        this( null, null, mapped, null, mapped.getInputStream(), mapped.getOutputStream(), "shm:"+ mapped.getPath() );
+    }
+
+    /**
+     * Constructor used for UDP clients (see UDPServer).
+     *
+     * @param peer The client.
+     */
+    public ProtocolHandler( UDPServer.Peer peer )
+    {
+        this( null, null, null, peer, InputStream.nullInputStream(), OutputStream.nullOutputStream(), "udp:"+ peer.getAddress() );
+    }
+
+    private ProtocolHandler( Socket socket, SocketChannel channel, MappedChannel mapped, UDPServer.Peer peer, InputStream is, OutputStream os, String sRemote )
     {
         setName( getClass().getSimpleName()
                  +"-"+
                  hashCode() );
 
-        socket.setKeepAlive( true );
-        socket.setReuseAddress( true );
+        this.socket  = socket;
+        this.channel = channel;
+        this.mapped  = mapped;
+        this.peer    = peer;
+        this.metrics = new ServerMetrics.Connection( sRemote );
+        this.output  = new CountingOutputStream( os, metrics );
+        InputStream in = new CountingInputStream( is, metrics );   // Only one of the following is used
 
-        this.socket = socket;
-        this.reader = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-        this.writer = new PrintWriter( socket.getOutputStream(), true );    // true == autoflush
+        this.reader  = new BufferedReader( new InputStreamReader( in ) );
+        this.input   = new DataInputStream( new BufferedInputStream( in ) );
+        this.writer  = new PrintWriter( output, true );    // true == autoflush
 
         UtilDebug.debuggingTrace( "Socket open" );
     }
@@ -76,6 +178,45 @@ public abstract class ProtocolHandler extends Thread
      */
     protected abstract Object process( String sMsg );
 
+    /**
+     * Receives a message sent by the client when the server uses a
+     * MessageCodec and optionally returns an answer (that will be encoded
+     * using the same codec).
+     * <p>
+     * This implementation invokes ::process( String.valueOf( message ) ):
+     * subclasses override it to receive typed messages.
+     *
+     * @param message The decoded message sent by the client.
+     * @return The answer to be sent back to the client or null if no answer.
+     */
+    protected Object processDecoded( Object message )
+    {
+        return process( String.valueOf( message ) );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the traffic and latency counters for this connection.
+     *
+     * @return The traffic and latency counters for this connection.
+     */
+    public ServerMetrics.Connection getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Returns the server that accepted this connection or null if this handler
+     * was not created by an ICommServer.
+     *
+     * @return The server that accepted this connection.
+     */
+    protected ICommServer getServer()
+    {
+        return server;
+    }
+
     //----------------------------------------------------------------------------//
 
     @Override
@@ -90,20 +231,67 @@ public abstract class ProtocolHandler extends Thread
     {
         try
         {
-            while( ! socket.isClosed() )
+            TLSConfig tls = ((server instanceof TCPServerAbstract) ? ((TCPServerAbstract) server).getTLS() : null);
+
+            if( (tls != null) && (socket instanceof SSLSocket) )
+            {
+                tls.handshake( (SSLSocket) socket );    // Done here to not block the accepting thread
+            }
+
+            if( server instanceof TCPServerAbstract )
             {
-                String s = receive();
+                int nIdle = ((TCPServerAbstract) server).getIdleTimeout();
 
-                if( s != null )
+                if( socket != null ) socket.setSoTimeout( nIdle );
+                if( mapped != null ) mapped.setReadTimeout( nIdle );
+            }
+
+            while( ! isClosed() )
+            {
+                Object msg   = ((codec == null) ? receive() : receiveDecoded());
+                long   nCorr = ((codec == null) ? 0 : nFrame);     // Encoded msgs carry the id in the header (and can be null)
+
+                if( UtilComm.sHEARTBEAT_PING.equals( msg ) )
                 {
-                    send( process( s ) );
+                    send( UtilComm.sHEARTBEAT_PONG );
+                }
+                else if( (msg != null) || (nCorr != 0) )
+                {
+                    String s      = (((codec == null) && (msg instanceof String)) ? (String) msg : null);
+                    int    nId    = ((s == null) ? 0 : correlationIdLength( s ));
+                    Object data   = ((nId == 0) ? msg : s.substring( nId + 1 ));
+                    long   start  = System.nanoTime();
+                    Object answer = ((codec == null) ? process( (String) data ) : processDecoded( data ));
+
+                    metrics.onProcessed( System.nanoTime() - start );
+
+                    // Correlated requests are always answered (even when there is no answer): the client is waiting for it
+
+                    if( nCorr != 0 )
+                    {
+                        sendFrame( nCorr, answer );
+                    }
+                    else
+                    {
+                        if( nId > 0 )
+                        {
+                            answer = s.substring( 0, nId + 1 ) + ((answer == null) ? "" : answer);    // Same id and separator
+                        }
+
+                        send( answer );
+                    }
                 }
             }
         }
+        catch( SocketTimeoutException ste )
+        {
+            UtilDebug.log( Level.INFO, "Idle connection closed: "+ metrics.snapshot().getName() );
+        }
         catch( IOException exc )
         {
-            if( ! (exc instanceof SocketException) )     // If not caused by closing the socket
+            if( ! ((exc instanceof SocketException) || (exc instanceof ClosedChannelException)) )     // If not caused by closing the socket
             {
+                metrics.onError();
                 UtilDebug.log( Level.SEVERE, exc, null );
             }
         }
@@ -124,36 +312,280 @@ public abstract class ProtocolHandler extends Thread
      */
     public String receive() throws IOException
     {
-        return reader.readLine();
+        String s = reader.readLine();
+
+        if( s == null )     // End of stream: the client closed the connection
+        {
+            closeSocket();
+        }
+
+        return s;
+    }
+
+    /**
+     * Reads next message when the server uses a MessageCodec: its header
+     * (length and correlation id, see MessageCodec) and the encoded message.
+     *
+     * @return The decoded message or null if the client closed the connection.
+     * @throws IOException
+     */
+    public Object receiveDecoded() throws IOException
+    {
+        int len;
+
+        nFrame = 0;
+
+        try
+        {
+            len = input.readInt();
+        }
+        catch( EOFException eof )     // End of stream: the client closed the connection
+        {
+            closeSocket();
+            return null;
+        }
+
+        if( (len < 8) || (len - 8 > codec.getMaxFrameSize()) )     // 8 == correlation id
+        {
+            throw new IOException( "Invalid message length: "+ len );
+        }
+
+        byte[] ab = new byte[ len - 8 ];
+
+        nFrame = input.readLong();
+        input.readFully( ab );
+
+        return codec.decode( ByteBuffer.wrap( ab ) );
     }
 
+    /**
+     * Sends passed message as a line or, when the server uses a MessageCodec,
+     * encoded and preceded by its header.
+     *
+     * @param message What to send (null is ignored).
+     * @throws IOException
+     */
     public synchronized void send( Object message ) throws IOException
     {
-        if( message != null )
+        if( peer != null )
+        {
+            peer.send( message );
+        }
+        else if( message != null )
+        {
+            MessageCodec mc = codec;
+
+            if( mc == null )
+            {
+                writer.println( message.toString() );
+            }
+            else
+            {
+                writeFrame( mc, 0, message );
+            }
+        }
+    }
+
+    /**
+     * Sends passed answer encoded and preceded by its header, using the
+     * correlation id of its request (a null answer is also sent).
+     *
+     * @param id The correlation id of the request.
+     * @param answer What to send.
+     * @throws IOException
+     */
+    private synchronized void sendFrame( long id, Object answer ) throws IOException
+    {
+        writeFrame( codec, id, answer );
+    }
+
+    /**
+     * Sends a region of a file as it is (no EoL is appended).
+     * <p>
+     * When the socket has an associated channel (the default for TCPServerClassic)
+     * bytes are moved by the OS using FileChannel::transferTo(...) (zero-copy),
+     * otherwise (p.e. TLS sockets) they are copied through the socket stream.
+     * <p>
+     * Pending text messages are flushed before sending the file region.
+     *
+     * @param file     The file to read from.
+     * @param position Position in the file where to start.
+     * @param count    Number of bytes to send.
+     * @return The number of bytes sent (less than count only if the file is shorter).
+     * @throws IOException
+     */
+    public synchronized long send( FileChannel file, long position, long count ) throws IOException
+    {
+        if( peer != null )
+        {
+            throw new IOException( "Files can not be sent using UDP" );
+        }
+
+        WritableByteChannel target = ((channel != null) ? channel : Channels.newChannel( output ));
+        long                nSent  = 0;
+
+        writer.flush();
+
+        count = Math.min( count, file.size() - position );
+
+        while( nSent < count )
+        {
+            long n = file.transferTo( position + nSent, count - nSent, target );
+
+            if( n <= 0 )     // This should not happen with blocking channels but better to be safe
+            {
+                break;
+            }
+
+            nSent += n;
+        }
+
+        if( channel != null )
+        {
+            metrics.onSent( nSent );     // When using the stream, it is already counted
+        }
+
+        return nSent;
+    }
+
+    /**
+     * Sends the remaining bytes of passed buffer as they are (no EoL is appended).
+     * <p>
+     * When the socket has an associated channel, direct buffers are written to
+     * the socket without intermediate copies. After this call, the buffer has no
+     * remaining bytes. For UDP clients, the bytes are sent as one message.
+     * <p>
+     * Pending text messages are flushed before sending the buffer.
+     *
+     * @param buffer The bytes to send.
+     * @return The number of bytes sent.
+     * @throws IOException
+     */
+    public synchronized int send( ByteBuffer buffer ) throws IOException
+    {
+        int nSent = buffer.remaining();
+
+        writer.flush();
+
+        if( peer != null )
         {
-            String s = message.toString();
+            byte[] ab = new byte[ nSent ];
 
-            writer.println( s );
+            buffer.get( ab );
+            peer.sendRaw( ab );
+        }
+        else if( channel != null )
+        {
+            while( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+
+            metrics.onSent( nSent );
+        }
+        else if( buffer.hasArray() )
+        {
+            output.write( buffer.array(), buffer.arrayOffset() + buffer.position(), nSent );
+            buffer.position( buffer.limit() );
         }
+        else
+        {
+            byte[] chunk = new byte[ Math.min( nSent, 8 * 1024 ) ];
+
+            while( buffer.hasRemaining() )
+            {
+                int n = Math.min( chunk.length, buffer.remaining() );
+
+                buffer.get( chunk, 0, n );
+                output.write( chunk, 0, n );
+            }
+        }
+
+        output.flush();
+
+        return nSent;
     }
 
     //----------------------------------------------------------------------------//
 
+    /**
+     * Invoked by the server after accepting the connection and before starting
+     * this thread.
+     *
+     * @param server The server that accepted the connection.
+     */
+    void attach( TCPServerAbstract server )
+    {
+        this.server = server;
+        this.codec  = server.getCodec();
+        server.getMetrics().register( metrics );
+    }
+
+    /**
+     * Returns the number of digits before UtilComm.cID_SEPARATOR or 0 if the
+     * message does not start with a correlation id.
+     */
+    private static int correlationIdLength( String s )
+    {
+        int n = s.indexOf( UtilComm.cID_SEPARATOR );
+
+        if( (n < 1) || (n > 19) )      // 19 == max digits for a long
+        {
+            return 0;
+        }
+
+        for( int i = 0; i < n; i++ )
+        {
+            if( ! Character.isDigit( s.charAt( i ) ) )
+            {
+                return 0;
+            }
+        }
+
+        return n;
+    }
+
+    private void writeFrame( MessageCodec mc, long id, Object message ) throws IOException
+    {
+        byte[] ab    = mc.encode( message );
+        byte[] frame = new byte[ ab.length + 12 ];     // One single write: length + id + message
+
+        ByteBuffer.wrap( frame ).putInt( ab.length + 8 ).putLong( id ).put( ab );
+
+        writer.flush();
+        output.write( frame );
+        output.flush();
+    }
+
+    private boolean isClosed()
+    {
+        if( socket  != null ) return socket.isClosed();
+        if( channel != null ) return (! channel.isOpen());
+        if( peer    != null ) return (! peer.isOpen());
+
+        return (! mapped.isOpen());
+    }
+
     protected void closeSocket()
     {
-        if( ! socket.isClosed() )
+        if( ! isClosed() )
         {
             UtilDebug.debuggingTrace();
 
             try
             {
-                socket.close();    // Also closes the input & output streams
+                if(      socket  != null ) socket.close();    // Also closes the input & output streams
+                else if( channel != null ) channel.close();
+                else if( peer    != null ) peer.close();
+                else                       mapped.close();
             }
             catch( Exception ex )
             {
                 /* Nothing to do */
             }
         }
+
+        metrics.close();
     }
 
     @Override
@@ -162,4 +594,137 @@ public abstract class ProtocolHandler extends Thread
         closeSocket();
         super.finalize();
     }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASSES
+    //----------------------------------------------------------------------------//
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private final ServerMetrics.Connection metrics;
+
+        CountingInputStream( InputStream in, ServerMetrics.Connection metrics )
+        {
+            super( in );
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int n = super.read();
+
+            if( n > -1 )
+            {
+                metrics.onReceived( 1 );
+            }
+
+            return n;
+        }
+
+        @Override
+        public int read( byte[] ab, int off, int len ) throws IOException
+        {
+            int n = in.read( ab, off, len );
+
+            if( n > 0 )
+            {
+                metrics.onReceived( n );
+            }
+
+            return n;
+        }
+    }
+
+    /**
+     * Channels::newInputStream(...) can not be used: it blocks writes while a
+     * read is in progress (both synchronize on the channel blocking lock).
+     */
+    private static final class ChannelInputStream extends InputStream
+    {
+        private final SocketChannel channel;
+
+        ChannelInputStream( SocketChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] ab = new byte[1];
+            int    n  = read( ab, 0, 1 );
+
+            return ((n < 1) ? -1 : (ab[0] & 0xFF));
+        }
+
+        @Override
+        public int read( byte[] ab, int off, int len ) throws IOException
+        {
+            return ((len == 0) ? 0 : channel.read( ByteBuffer.wrap( ab, off, len ) ));
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream
+    {
+        private final SocketChannel channel;
+
+        ChannelOutputStream( SocketChannel channel )
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] ab, int off, int len ) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap( ab, off, len );
+
+            while( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private final ServerMetrics.Connection metrics;
+
+        CountingOutputStream( OutputStream out, ServerMetrics.Connection metrics )
+        {
+            super( out );
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            out.write( b );
+            metrics.onSent( 1 );
+        }
+
+        @Override
+        public void write( byte[] ab, int off, int len ) throws IOException
+        {
+            out.write( ab, off, len );     // FilterOutputStream would write byte by byte
+            metrics.onSent( len );
+        }
+    }
 }
\ No newline at end of file
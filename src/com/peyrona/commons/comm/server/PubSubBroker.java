@@ -0,0 +1,611 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.server;
+
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * A topic based publish/subscribe broker built on top of TCPServerClassic.
+ * <p>
+ * Clients talk to the broker using a line protocol:
+ * <pre>
+ *    SUB   topic             --> starts receiving messages published on topic
+ *    UNSUB topic             --> stops receiving messages published on topic
+ *    PUB   topic payload     --> publishes payload to all topic subscribers
+ * </pre>
+ * Subscribers receive one line per message: "topic payload".
+ * <p>
+ * Every published message is encoded only once into a shared read-only buffer
+ * that is delivered to every subscriber through its own bounded queue. Queues
+ * are drained by a bounded pool of writer threads, so a slow subscriber never
+ * blocks the publisher nor the rest of subscribers. What happens when the
+ * queue of a subscriber is full depends on the SlowPolicy:
+ * <ul>
+ * <li>DROP: the new message is discarded for that subscriber.
+ * <li>DISCONNECT: the subscriber connection is closed.
+ * <li>CONFLATE: only the last message per topic is kept (the queue never fills).
+ * </ul>
+ * A subscriber that does not read at all (its TCP window is full) blocks the
+ * writer thread that is sending to it. Sockets have no write timeout, so when
+ * a write does not end within the stall timeout (::setStallTimeout(...)), the
+ * subscriber connection is closed whatever the SlowPolicy is: otherwise the
+ * writer thread would be lost for the rest of subscribers.
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class PubSubBroker implements ICommServer.Listener
+{
+    public static enum SlowPolicy { DROP, DISCONNECT, CONFLATE }
+
+    public static final String SUBSCRIBE   = "SUB";
+    public static final String UNSUBSCRIBE = "UNSUB";
+    public static final String PUBLISH     = "PUB";
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor( r -> { Thread t = new Thread( r, "PubSubBroker-watchdog" );
+                                                                                                                t.setDaemon( true );
+                                                                                                                return t; } );
+
+    private final TCPServerClassic                     server;
+    private final Map<String,Set<Subscriber>>          topics      = new ConcurrentHashMap<>();
+    private final Map<ProtocolHandler,Subscriber>      subscribers = new ConcurrentHashMap<>();
+    private volatile ExecutorService                   writers     = null;     // Created by ::connect(...) and shut down by ::disconnect()
+    private          ScheduledFuture<?>                stallCheck  = null;     // Guarded by this
+    private          int                               nWriters    = Math.max( 4, Runtime.getRuntime().availableProcessors() * 2 );    // Guarded by this
+    private volatile long                              nStall      = 5 * 1000;     // Millis
+    private final int                                  nQueueSize;
+    private final SlowPolicy                           policy;
+    private final LongAdder                            published   = new LongAdder();
+    private final LongAdder                            dropped     = new LongAdder();
+    private final LongAdder                            kicked      = new LongAdder();
+    private final LongAdder                            stalled     = new LongAdder();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a broker with a queue of 256 messages per subscriber that drops
+     * messages for slow subscribers.
+     */
+    public PubSubBroker()
+    {
+        this( 256, SlowPolicy.DROP );
+    }
+
+    /**
+     * Creates a broker that uses the default protocol handler.
+     *
+     * @param nQueueSize Maximum number of messages pending to be sent per subscriber.
+     * @param policy What to do with slow subscribers.
+     */
+    public PubSubBroker( int nQueueSize, SlowPolicy policy )
+    {
+        this( PubSubBroker.Handler.class, nQueueSize, policy );
+    }
+
+    /**
+     * Creates a broker that uses passed protocol handler (it can be used to
+     * process other commands apart from the broker ones).
+     *
+     * @param handler A subclass of PubSubBroker.Handler.
+     * @param nQueueSize Maximum number of messages pending to be sent per subscriber.
+     * @param policy What to do with slow subscribers.
+     */
+    public PubSubBroker( Class<? extends PubSubBroker.Handler> handler, int nQueueSize, SlowPolicy policy )
+    {
+        this.nQueueSize = Math.max( 1, nQueueSize );
+        this.policy     = policy;
+        this.server     = new TCPServerClassic( handler );
+        this.server.setOwner( this );      // Handlers get the broker from here
+        this.server.addListener( this );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public synchronized void connect( int port )
+    {
+        if( writers == null )
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor( nWriters, nWriters, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                              r -> new Thread( r, "PubSubBroker-writer" ) );
+                               pool.allowCoreThreadTimeOut( true );
+
+            long nCheck = Math.max( 10, nStall / 4 );
+
+            writers    = pool;
+            stallCheck = watchdog.scheduleWithFixedDelay( this::checkStalls, nCheck, nCheck, TimeUnit.MILLISECONDS );
+        }
+
+        server.connect( port );
+    }
+
+    public synchronized void disconnect()
+    {
+        server.disconnect();
+
+        if( writers != null )
+        {
+            stallCheck.cancel( false );
+            writers.shutdown();    // Otherwise its threads would keep the JVM alive for a while
+            writers    = null;
+            stallCheck = null;
+        }
+    }
+
+    /**
+     * Sets the number of threads that write to subscribers. It has to be
+     * invoked before ::connect(...). By default: twice the number of
+     * processors (at least 4).
+     *
+     * @param nThreads Number of writer threads.
+     */
+    public synchronized void setWriters( int nThreads )
+    {
+        nWriters = Math.max( 1, nThreads );
+    }
+
+    /**
+     * Sets the maximum time that one write to a subscriber can last: after
+     * this time the subscriber connection is closed. It has to be invoked
+     * before ::connect(...). By default: 5 seconds.
+     *
+     * @param millis Maximum time that one write to a subscriber can last.
+     */
+    public void setStallTimeout( long millis )
+    {
+        nStall = Math.max( 1, millis );
+    }
+
+    /**
+     * Returns the underlying server: it can be used to add listeners or to
+     * retrieve metrics.
+     *
+     * @return The underlying server.
+     */
+    public ICommServer getServer()
+    {
+        return server;
+    }
+
+    /**
+     * Publishes a message to all subscribers of passed topic.
+     * <p>
+     * The payload is converted using its toString() method and it must not
+     * contain EoLs.
+     *
+     * @param topic The topic.
+     * @param payload What to publish.
+     * @return The number of subscribers the message was delivered to.
+     */
+    public int publish( String topic, Object payload )
+    {
+        Set<Subscriber> set = topics.get( topic );
+
+        if( (set == null) || set.isEmpty() )
+        {
+            return 0;
+        }
+
+        byte[]     ab     = (topic +' '+ payload +'\n').getBytes( StandardCharsets.UTF_8 );
+        ByteBuffer shared = ByteBuffer.wrap( ab ).asReadOnlyBuffer();     // Not direct: it is written through the socket stream
+        int        count  = 0;
+
+        published.increment();
+
+        for( Subscriber sub : set )
+        {
+            if( sub.offer( topic, shared ) )
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the topics that have at least one subscriber.
+     *
+     * @return The topics that have at least one subscriber.
+     */
+    public Set<String> getTopics()
+    {
+        return Collections.unmodifiableSet( topics.keySet() );
+    }
+
+    public int getSubscriberCount()
+    {
+        return subscribers.size();
+    }
+
+    public long getPublished()
+    {
+        return published.sum();
+    }
+
+    /**
+     * Returns the number of messages that were not delivered because the
+     * subscriber queue was full (only when SlowPolicy is DROP).
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of subscribers that were disconnected because their
+     * queue was full (only when SlowPolicy is DISCONNECT).
+     *
+     * @return The number of disconnected subscribers.
+     */
+    public long getDisconnected()
+    {
+        return kicked.sum();
+    }
+
+    /**
+     * Returns the number of subscribers that were disconnected because a
+     * write to them lasted more than the stall timeout.
+     *
+     * @return The number of subscribers disconnected because they stalled.
+     */
+    public long getStalled()
+    {
+        return stalled.sum();
+    }
+
+    //----------------------------------------------------------------------------//
+    // ICommServer.Listener
+
+    @Override
+    public void onConnected( ICommServer origin )
+    {
+    }
+
+    @Override
+    public void onDisconnected( ICommServer origin )
+    {
+        for( ProtocolHandler ph : subscribers.keySet() )
+        {
+            remove( ph );
+        }
+    }
+
+    @Override
+    public void onConnectionAccepted( ICommServer origin, ProtocolHandler ph )
+    {
+    }
+
+    @Override
+    public void onException( ICommServer origin, Exception exc )
+    {
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void subscribe( ProtocolHandler ph, String topic )
+    {
+        Subscriber sub = subscribers.computeIfAbsent( ph, Subscriber::new );
+
+        if( sub.topics.add( topic ) )
+        {
+            topics.computeIfAbsent( topic, k -> ConcurrentHashMap.newKeySet() ).add( sub );
+        }
+    }
+
+    private void unsubscribe( ProtocolHandler ph, String topic )
+    {
+        Subscriber sub = subscribers.get( ph );
+
+        if( (sub != null) && sub.topics.remove( topic ) )
+        {
+            unlink( sub, topic );
+        }
+    }
+
+    private void remove( ProtocolHandler ph )
+    {
+        Subscriber sub = subscribers.remove( ph );
+
+        if( sub != null )
+        {
+            remove( sub );
+        }
+    }
+
+    private void remove( Subscriber sub )
+    {
+        for( String topic : sub.topics )
+        {
+            unlink( sub, topic );
+        }
+
+        sub.topics.clear();
+    }
+
+    /**
+     * Closes the subscribers whose current write lasts more than the stall
+     * timeout: closing the socket makes the blocked write to fail, so its
+     * writer thread is released.
+     */
+    private void checkStalls()
+    {
+        long nMax = TimeUnit.MILLISECONDS.toNanos( nStall );
+        long now  = System.nanoTime();
+
+        for( Subscriber sub : subscribers.values() )
+        {
+            long nSince = sub.nSending;
+
+            if( (nSince != 0) && (now - nSince > nMax) && (subscribers.remove( sub.handler ) != null) )
+            {
+                stalled.increment();
+                UtilDebug.log( Level.INFO, "Stalled subscriber disconnected: "+ sub.handler.getName() );
+                remove( sub );
+                sub.handler.interrupt();     // Closes the socket
+            }
+        }
+    }
+
+    private void unlink( Subscriber sub, String topic )
+    {
+        topics.computeIfPresent( topic, (k, set) -> { set.remove( sub );
+                                                       return (set.isEmpty() ? null : set); } );
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * The ProtocolHandler used by the broker. It can be subclassed to process
+     * other commands: just override process(...) and invoke super.process(...)
+     * for the lines that are not handled by the subclass.
+     */
+    public static class Handler extends ProtocolHandler
+    {
+        private volatile PubSubBroker broker = null;
+
+        public Handler( Socket socket ) throws IOException
+        {
+            super( socket );
+        }
+
+        @Override
+        protected Object process( String sMsg )
+        {
+            PubSubBroker psb = getBroker();
+            int          sp1 = sMsg.indexOf( ' ' );
+
+            if( (psb == null) || (sp1 < 1) )
+            {
+                return null;
+            }
+
+            String cmd = sMsg.substring( 0, sp1 );
+            String arg = sMsg.substring( sp1 + 1 ).trim();
+
+            if( SUBSCRIBE.equalsIgnoreCase( cmd ) )
+            {
+                psb.subscribe( this, arg );
+            }
+            else if( UNSUBSCRIBE.equalsIgnoreCase( cmd ) )
+            {
+                psb.unsubscribe( this, arg );
+            }
+            else if( PUBLISH.equalsIgnoreCase( cmd ) )
+            {
+                int sp2 = arg.indexOf( ' ' );
+
+                psb.publish( ((sp2 < 0) ? arg : arg.substring( 0, sp2 )),
+                             ((sp2 < 0) ? ""  : arg.substring( sp2 + 1 )) );
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the broker this handler belongs to.
+         *
+         * @return The broker this handler belongs to or null if it was not
+         *         created by a broker.
+         */
+        protected PubSubBroker getBroker()
+        {
+            return broker;
+        }
+
+        @Override
+        void attach( TCPServerAbstract server )     // Invoked before this thread starts
+        {
+            super.attach( server );
+
+            Object owner = server.getOwner();
+
+            broker = ((owner instanceof PubSubBroker) ? (PubSubBroker) owner : null);
+        }
+
+        @Override
+        protected void closeSocket()
+        {
+            super.closeSocket();
+
+            if( broker != null )
+            {
+                broker.remove( this );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class Subscriber implements Runnable
+    {
+        private final ProtocolHandler               handler;
+        private final Set<String>                   topics    = ConcurrentHashMap.newKeySet();
+        private final Queue<ByteBuffer>             queue;                                        // Used by DROP and DISCONNECT
+        private final Map<String,ByteBuffer>        latest;                                       // Used by CONFLATE
+        private final Queue<String>                 pending;                                      // Used by CONFLATE
+        private final AtomicBoolean                 scheduled = new AtomicBoolean( false );
+        private volatile long                       nSending  = 0;                                // nanoTime when current write started (0 == not writing)
+
+        //----------------------------------------------------------------------------//
+
+        Subscriber( ProtocolHandler handler )
+        {
+            boolean conflate = (policy == SlowPolicy.CONFLATE);
+
+            this.handler = handler;
+            this.queue   = (conflate ? null : new ArrayBlockingQueue<>( nQueueSize ));
+            this.latest  = (conflate ? new ConcurrentHashMap<>() : null);
+            this.pending = (conflate ? new ConcurrentLinkedQueue<>() : null);
+        }
+
+        //----------------------------------------------------------------------------//
+
+        boolean offer( String topic, ByteBuffer data )
+        {
+            switch( policy )
+            {
+                case CONFLATE:
+                    if( latest.put( topic, data ) == null )    // If there was a previous one, it is already pending
+                    {
+                        pending.offer( topic );
+                    }
+                    break;
+
+                case DISCONNECT:
+                    if( ! queue.offer( data ) )
+                    {
+                        kicked.increment();
+                        remove( handler );
+                        handler.interrupt();     // Closes the socket
+                        return false;
+                    }
+                    break;
+
+                default:
+                    if( ! queue.offer( data ) )
+                    {
+                        dropped.increment();
+                        return false;
+                    }
+            }
+
+            if( scheduled.compareAndSet( false, true ) )
+            {
+                schedule();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                ByteBuffer data;
+
+                while( (data = next()) != null )
+                {
+                    nSending = System.nanoTime();
+                    handler.send( data.duplicate() );    // Every subscriber needs its own position
+                    nSending = 0;
+                }
+            }
+            catch( IOException ioe )
+            {
+                if( subscribers.containsKey( handler ) )     // Otherwise it was already removed (e.g. it stalled)
+                {
+                    UtilDebug.log( Level.INFO, ioe, "Subscriber removed: "+ handler.getName() );
+                    remove( handler );
+                    handler.interrupt();
+                }
+            }
+            finally
+            {
+                nSending = 0;
+                scheduled.set( false );
+
+                if( (! isEmpty()) && subscribers.containsKey( handler ) && scheduled.compareAndSet( false, true ) )
+                {
+                    schedule();     // Something arrived after last next() and before scheduled was reset
+                }
+            }
+        }
+
+        private void schedule()
+        {
+            ExecutorService pool = writers;
+
+            try
+            {
+                if( pool == null )
+                {
+                    throw new RejectedExecutionException( "Broker is not connected" );
+                }
+
+                pool.execute( this );
+            }
+            catch( RejectedExecutionException ree )      // Broker disconnected meanwhile
+            {
+                scheduled.set( false );
+            }
+        }
+
+        private ByteBuffer next()
+        {
+            if( queue != null )
+            {
+                return queue.poll();
+            }
+
+            String topic = pending.poll();
+
+            return ((topic == null) ? null : latest.remove( topic ));
+        }
+
+        private boolean isEmpty()
+        {
+            return ((queue != null) ? queue.isEmpty() : pending.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.server;
+
+import com.peyrona.commons.lang.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic and latency metrics for an ICommServer: per connection counters,
+ * aggregated counters and a histogram with the time spent inside
+ * ProtocolHandler::process(...).
+ * <p>
+ * Counters are updated only by the connection they belong to (no contention)
+ * and aggregated values are calculated when a snapshot is requested, therefore
+ * collecting metrics is cheap enough to be always on.
+ * <p>
+ * This class is thread safe: snapshots can be requested from any thread.
+ *
+ * @author peyrona
+ */
+public final class ServerMetrics
+{
+    private final Set<Connection>  live      = ConcurrentHashMap.newKeySet();
+    private final LatencyHistogram latency   = new LatencyHistogram();
+    private final LongAdder        accepted  = new LongAdder();
+    private final LongAdder        requests  = new LongAdder();    // These 4 hold the totals for already closed connections
+    private final LongAdder        bytesIn   = new LongAdder();
+    private final LongAdder        bytesOut  = new LongAdder();
+    private final LongAdder        errors    = new LongAdder();
+    private final long             createdAt = System.currentTimeMillis();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns the histogram with the time (in nanoseconds) spent by all
+     * connections inside ProtocolHandler::process(...).
+     *
+     * @return The histogram with the time spent processing requests.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Returns the aggregated values for all connections (alive and closed)
+     * since this server was created.
+     *
+     * @return The aggregated values for all connections.
+     */
+    public Snapshot snapshot()
+    {
+        long nReq, nIn, nOut, nErr;
+        int  nLiv = 0;
+
+        synchronized( live )      // A connection retiring meanwhile would be counted twice or not at all
+        {
+            nReq = requests.sum();
+            nIn  = bytesIn.sum();
+            nOut = bytesOut.sum();
+            nErr = errors.sum();
+
+            for( Connection conn : live )
+            {
+                nReq += conn.requests.sum();
+                nIn  += conn.bytesIn.sum();
+                nOut += conn.bytesOut.sum();
+                nErr += conn.errors.sum();
+                nLiv++;
+            }
+        }
+
+        return new Snapshot( "server", createdAt, accepted.sum(), nLiv, nReq, nIn, nOut, nErr,
+                             latency.getPercentile( 50d ),
+                             latency.getPercentile( 99d ),
+                             latency.getPercentile( 99.9d ) );
+    }
+
+    /**
+     * Returns one snapshot per connection that is currently open.
+     *
+     * @return One snapshot per connection that is currently open.
+     */
+    public List<Snapshot> snapshotConnections()
+    {
+        List<Snapshot> list = new ArrayList<>( live.size() );
+
+        for( Connection conn : live )
+        {
+            list.add( conn.snapshot() );
+        }
+
+        return list;
+    }
+
+    @Override
+    public String toString()
+    {
+        return snapshot().toString();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    void register( Connection conn )
+    {
+        if( conn.owner == null )
+        {
+            conn.owner = this;
+            live.add( conn );
+            accepted.increment();
+        }
+    }
+
+    private void retire( Connection conn )
+    {
+        synchronized( live )      // Same step for ::snapshot(): it is invoked once per connection
+        {
+            if( live.remove( conn ) )
+            {
+                requests.add( conn.requests.sum() );
+                bytesIn.add(  conn.bytesIn.sum()  );
+                bytesOut.add( conn.bytesOut.sum() );
+                errors.add(   conn.errors.sum()   );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * Counters for one single connection (one ProtocolHandler).
+     */
+    public static final class Connection
+    {
+        private final    String           name;
+        private final    long             createdAt = System.currentTimeMillis();
+        private final    LongAdder        requests  = new LongAdder();
+        private final    LongAdder        bytesIn   = new LongAdder();
+        private final    LongAdder        bytesOut  = new LongAdder();
+        private final    LongAdder        errors    = new LongAdder();
+        private final    LatencyHistogram latency   = new LatencyHistogram();
+        private volatile long             lastNanos = 0;                  // Last time spent inside process(...)
+        private volatile ServerMetrics    owner     = null;
+
+        //----------------------------------------------------------------------------//
+
+        Connection( String name )
+        {
+            this.name = name;
+        }
+
+        //----------------------------------------------------------------------------//
+
+        /**
+         * Returns the time (in nanoseconds) spent processing the last request.
+         *
+         * @return The time spent processing the last request.
+         */
+        public long getLastLatency()
+        {
+            return lastNanos;
+        }
+
+        /**
+         * Returns the histogram with the time (in nanoseconds) spent by this
+         * connection inside ProtocolHandler::process(...).
+         *
+         * @return The histogram with the time spent processing requests.
+         */
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        public Snapshot snapshot()
+        {
+            ServerMetrics sm = owner;
+
+            return new Snapshot( name, createdAt, 1, (((sm != null) && sm.live.contains( this )) ? 1 : 0),
+                                 requests.sum(), bytesIn.sum(), bytesOut.sum(), errors.sum(),
+                                 latency.getPercentile( 50d ),
+                                 latency.getPercentile( 99d ),
+                                 latency.getPercentile( 99.9d ) );
+        }
+
+        @Override
+        public String toString()
+        {
+            return snapshot().toString();
+        }
+
+        //----------------------------------------------------------------------------//
+
+        void onReceived( long nBytes )
+        {
+            bytesIn.add( nBytes );
+        }
+
+        void onSent( long nBytes )
+        {
+            bytesOut.add( nBytes );
+        }
+
+        void onProcessed( long nanos )
+        {
+            lastNanos = nanos;
+            requests.increment();
+            latency.record( nanos );
+
+            ServerMetrics sm = owner;
+
+            if( sm != null )
+            {
+                sm.latency.record( nanos );
+            }
+        }
+
+        void onError()
+        {
+            errors.increment();
+        }
+
+        void close()
+        {
+            ServerMetrics sm = owner;
+
+            if( sm != null )
+            {
+                sm.retire( this );
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * An inmutable copy of the metrics at a certain moment.
+     */
+    public static final class Snapshot
+    {
+        private final String name;
+        private final long   since;
+        private final long   accepted;
+        private final long   active;
+        private final long   requests;
+        private final long   bytesIn;
+        private final long   bytesOut;
+        private final long   errors;
+        private final long   p50;
+        private final long   p99;
+        private final long   p999;
+
+        //----------------------------------------------------------------------------//
+
+        Snapshot( String name, long since, long accepted, long active, long requests, long bytesIn,
+                  long bytesOut, long errors, long p50, long p99, long p999 )
+        {
+            this.name     = name;
+            this.since    = since;
+            this.accepted = accepted;
+            this.active   = active;
+            this.requests = requests;
+            this.bytesIn  = bytesIn;
+            this.bytesOut = bytesOut;
+            this.errors   = errors;
+            this.p50      = p50;
+            this.p99      = p99;
+            this.p999     = p999;
+        }
+
+        //----------------------------------------------------------------------------//
+
+        public String getName()                { return name;     }
+        public long   getSince()               { return since;    }
+        public long   getAcceptedConnections() { return accepted; }
+        public long   getActiveConnections()   { return active;   }
+        public long   getRequests()            { return requests; }
+        public long   getBytesIn()             { return bytesIn;  }
+        public long   getBytesOut()            { return bytesOut; }
+        public long   getErrors()              { return errors;   }
+        public long   getLatencyP50()          { return p50;      }
+        public long   getLatencyP99()          { return p99;      }
+        public long   getLatencyP999()         { return p999;     }
+
+        /**
+         * Returns the average number of requests per second since the
+         * connection (or the server) was created.
+         *
+         * @return The average number of requests per second.
+         */
+        public double getRequestRate()
+        {
+            long elapsed = Math.max( 1, System.currentTimeMillis() - since );
+
+            return requests * 1000d / elapsed;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name +"{accepted="+ accepted +", active="+ active +", requests="+ requests +
+                         ", bytesIn="+ bytesIn  +", bytesOut="+ bytesOut +", errors="+ errors +
+                         ", p50="+ p50 +"ns, p99="+ p99 +"ns, p999="+ p999 +"ns}";
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.server;
+
+import com.peyrona.commons.comm.MappedChannel;
+import com.peyrona.commons.comm.MappedServerChannel;
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A server that talks with one client (at a time) running in the same host
+ * through a memory-mapped file (see MappedChannel): the lowest latency
+ * transport for the hottest links between two processes.
+ * <p>
+ * It works the same way as TCPServerClassic: when the client connects, the
+ * channel is passed to an instance that extends ProtocolHandler (which must
+ * have a constructor that receives a MappedChannel). Same listeners, metrics,
+ * codecs and idle timeout can be used; TLS is not used.
+ * <p>
+ * The file is created by ::connect(...) (an old one is replaced) and deleted
+ * by ::disconnect().
+ *
+ * @author peyrona
+ */
+public final class SharedMemoryServer extends TCPServerAbstract
+{
+    private final Path                       path;
+    private final int                        nCapacity;
+    private final MappedChannel.WaitStrategy wait;
+    private       Accepter                   accepter = null;   // Running in background to accept connections
+    private final ExecutorService            executor = Executors.newCachedThreadPool();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates an instance with rings of 1 MB that yield the CPU while waiting.
+     *
+     * @param protocol A ProtocolHandler subclass having a constructor that
+     *                 receives a MappedChannel.
+     * @param path The file (better in a memory file system, e.g. /dev/shm).
+     */
+    public SharedMemoryServer( Class<? extends ProtocolHandler> protocol, Path path )
+    {
+        this( protocol, path, 1024 * 1024, MappedChannel.WaitStrategy.YIELD );
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param protocol A ProtocolHandler subclass having a constructor that
+     *                 receives a MappedChannel.
+     * @param path The file (better in a memory file system, e.g. /dev/shm).
+     * @param nCapacity Bytes per ring (one ring per direction).
+     * @param wait How the server waits for data or room.
+     */
+    public SharedMemoryServer( Class<? extends ProtocolHandler> protocol, Path path, int nCapacity, MappedChannel.WaitStrategy wait )
+    {
+        super( protocol );
+
+        this.path      = path;
+        this.nCapacity = nCapacity;
+        this.wait      = wait;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Starts accepting connections.
+     *
+     * @param nPort Ignored: the path passed to the constructor is used.
+     */
+    @Override
+    public void connect( int nPort )
+    {
+        synchronized( this )
+        {
+            if( accepter == null )
+            {
+                accepter = new Accepter();
+                executor.execute( accepter );
+                fireConnected();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        if( accepter != null )
+        {
+            try
+            {
+                accepter.interrupt();
+                executor.shutdown();
+                executor.awaitTermination( 2, TimeUnit.SECONDS );
+            }
+            catch( Exception ex )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                accepter = null;
+
+                try{ executor.shutdownNow(); }
+                catch( Exception e ) { }
+
+                fireDisconnected();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private class Accepter extends Thread
+    {
+        private volatile boolean             isRunning  = false;
+        private volatile MappedServerChannel server     = null;
+        private volatile ProtocolHandler     connection = null;
+        private final    Constructor<?>      constructor;
+
+        //----------------------------------------------------------------------------//
+
+        Accepter()
+        {
+            setName( SharedMemoryServer.class.getSimpleName() +"-->"+ path );
+
+            Constructor<?> cons = null;
+
+            try
+            {
+                cons = getProtocolHandler().getConstructor( MappedChannel.class );
+            }
+            catch( NoSuchMethodException | SecurityException exc )
+            {
+                onMyCodeIsBad( exc );
+            }
+
+            constructor = cons;
+
+            try
+            {
+                server = MappedServerChannel.bind( path, nCapacity, wait );
+            }
+            catch( IOException ioe )
+            {
+                UtilDebug.log( Level.WARNING, ioe, "Error creating the shared memory file: "+ path );
+            }
+        }
+
+        //----------------------------------------------------------------------------//
+
+        @Override
+        public void interrupt()    // Flow comes here when accepter.interrupt();
+        {
+            super.interrupt();
+
+            isRunning = false;
+            destroy();
+        }
+
+        @Override
+        public void run()
+        {
+            isRunning = (server != null);      // If null, the error was already logged
+
+            while( isRunning )
+            {
+                try
+                {
+                    MappedChannel   client   = server.accept();     // Returns when previous client is gone and a new one arrives
+                    ProtocolHandler protocol = (ProtocolHandler) constructor.newInstance( client );
+
+                    connection = protocol;
+                    protocol.attach( SharedMemoryServer.this );
+                    executor.execute( protocol );
+                    fireConnectionAccepted( protocol );
+                }
+                catch( ClosedChannelException | InterruptedIOException exc )     // Flow comes here when the server is closed or interrupted.
+                {
+                    isRunning = false;
+                }
+                catch( IOException ioe )
+                {
+                    isRunning = isRunning && server.isOpen();
+
+                    if( isRunning )      // Only this client is lost: keep accepting
+                    {
+                        UtilDebug.log( Level.WARNING, ioe, "Error accepting a client on: "+ path );
+                    }
+                }
+                catch( InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException exc )
+                {
+                    onMyCodeIsBad( exc );
+                }
+            }
+
+            destroy();
+        }
+
+        private void destroy()
+        {
+            ProtocolHandler ph = connection;
+
+            if( ph != null )
+            {
+                ph.interrupt();
+                connection = null;
+            }
+
+            if( server != null )
+            {
+                server.close();
+            }
+        }
+
+        private void onMyCodeIsBad( Exception exc )
+        {
+            UtilDebug.log( Level.SEVERE, exc, "The Java code is not written properly: "+
+                                              "ProtocolHandler class can not be instantiated (a constructor receiving a MappedChannel is needed)." );
+            System.exit( 1 );
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.peyrona.commons.comm.server;
 
+import com.peyrona.commons.comm.MessageCodec;
+import com.peyrona.commons.comm.TLSConfig;
 import com.peyrona.commons.lang.ListenerWise;
 import com.peyrona.commons.util.UtilComm;
 import com.peyrona.commons.util.UtilDebug;
@@ -35,6 +37,11 @@ public abstract class TCPServerAbstract
 {
     private int nPort;
     private final Class<? extends ProtocolHandler> protocol;
+    private final ServerMetrics                    metrics = new ServerMetrics();
+    private       TLSConfig                        tls     = null;
+    private volatile int                           nIdle   = 0;       // Millis (0 == no limit)
+    private volatile MessageCodec                  codec   = null;    // null == lines of text
+    private volatile Object                        owner   = null;    // Object this server works for (e.g. a PubSubBroker)
 
     //----------------------------------------------------------------------------//
 
@@ -63,6 +70,86 @@ public abstract class TCPServerAbstract
         return protocol;
     }
 
+    @Override
+    public ServerMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Returns the TLS configuration or null if this server uses plain sockets.
+     *
+     * @return The TLS configuration or null if this server uses plain sockets.
+     */
+    public synchronized TLSConfig getTLS()
+    {
+        return tls;
+    }
+
+    /**
+     * Makes this server to accept only TLS connections (or plain connections
+     * when passing null). It has to be invoked before ::connect(...).
+     *
+     * @param tls The TLS configuration to use.
+     */
+    public synchronized void setTLS( TLSConfig tls )
+    {
+        this.tls = tls;
+    }
+
+    public MessageCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * Makes this server to receive and send typed messages using passed codec
+     * (or lines of text when passing null, which is the default). It has to be
+     * invoked before ::connect(...) and clients have to use the same codec.
+     * <p>
+     * Received messages are passed to ProtocolHandler::processDecoded(...).
+     *
+     * @param codec The codec to use.
+     */
+    public void setCodec( MessageCodec codec )
+    {
+        this.codec = codec;
+    }
+
+    /**
+     * Sets the object this server works for: ProtocolHandlers can get it when
+     * they are attached (before their thread starts).
+     *
+     * @param owner The object this server works for.
+     */
+    void setOwner( Object owner )
+    {
+        this.owner = owner;
+    }
+
+    Object getOwner()
+    {
+        return owner;
+    }
+
+    public int getIdleTimeout()
+    {
+        return nIdle;
+    }
+
+    /**
+     * Connections that do not receive anything during passed time are closed
+     * (0 == no limit, which is the default). Clients using a heartbeat (see
+     * TCPClientAbstract::setHeartbeat(...)) with a shorter interval are never
+     * closed while alive, so this allows to detect dead (half-open) clients.
+     *
+     * @param millis Max time a connection can be idle.
+     */
+    public void setIdleTimeout( int millis )
+    {
+        nIdle = Math.max( 0, millis );
+    }
+
     //----------------------------------------------------------------------------//
 
     protected synchronized void setPort( int nPort )
@@ -21,9 +21,11 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -155,6 +157,7 @@ public final class TCPServerClassic extends TCPServerAbstract
                     ProtocolHandler protocol     = (ProtocolHandler) constructor.newInstance( socketClient );
 
                     connections.put( socketClient, protocol );
+                    protocol.attach( TCPServerClassic.this );
                     executor.execute( protocol );
                     fireConnectionAccepted( protocol );
                 }
@@ -207,12 +210,23 @@ public final class TCPServerClassic extends TCPServerAbstract
         {
             if( socketServer == null )
             {
+                ServerSocket ss = null;
+
                 try
                 {
-                    socketServer = new ServerSocket( getPort() );
+                    ss = ((getTLS() != null) ? getTLS().createServerSocket()            // TLS sockets have no channel: no zero-copy
+                                             : ServerSocketChannel.open().socket());    // Accepted sockets will have a channel: needed for zero-copy sends
+                    ss.bind( new InetSocketAddress( getPort() ) );
+                    socketServer = ss;
                 }
                 catch( IOException ioe )
                 {
+                    if( ss != null )
+                    {
+                        try{ ss.close(); }
+                        catch( IOException e ) { }
+                    }
+
                     socketServer = null;
                     UtilDebug.log( Level.WARNING, ioe, "Error creating a new Server Socket" );
                 }
@@ -0,0 +1,641 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.server;
+
+import com.peyrona.commons.comm.DatagramBatcher;
+import com.peyrona.commons.comm.MessageCodec;
+import com.peyrona.commons.util.UtilComm;
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * A server for short messages over UDP (unicast): no connections to set up,
+ * so a request costs one datagram each way.
+ * <p>
+ * It works the same way as TCPServerClassic: there is one instance that
+ * extends ProtocolHandler (which must have a constructor that receives a
+ * UDPServer.Peer) per client address and its process(...) is invoked for
+ * every received message. Messages of one client are processed one after the
+ * other (in the order they arrived); messages of different clients are
+ * processed concurrently. Same listeners, metrics and codecs can be used; TLS
+ * is not used.
+ * <p>
+ * The protocol (see UDPClient and DatagramBatcher):
+ * <ul>
+ *    <li>Every message has a sequence number. Duplicated messages (e.g. the
+ *        client retransmitted a request whose answer was lost) are not
+ *        processed again: a recent request is answered with the same answer.</li>
+ *    <li>Requests (UDPClient::request(...)) are answered using their sequence;
+ *        one way messages are answered (when process(...) returns something)
+ *        with one way messages, as a TCP server does.</li>
+ *    <li>Answers to messages received in the same datagram are packed in one
+ *        datagram (up to ::setMaxDatagramSize(...)).</li>
+ * </ul>
+ * UDP is not reliable: messages can be lost (only requests can be retransmitted
+ * by the client), so this is intended for short control messages in a LAN.
+ * Clients not sending anything during the idle timeout (by default 10
+ * minutes) are forgotten.
+ *
+ * @author peyrona
+ */
+public final class UDPServer extends TCPServerAbstract
+{
+    private static final int nWINDOW = 1024;     // Sequences remembered per client (to detect duplicates)
+
+    private final    Map<SocketAddress,Peer> peers     = new ConcurrentHashMap<>();
+    private final    ExecutorService         executor  = Executors.newCachedThreadPool();
+    private          Receiver                receiver  = null;
+    private volatile int                     nDatagram = DatagramBatcher.nDEFAULT_SIZE;
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a new instance.
+     *
+     * @param protocol A ProtocolHandler subclass having a constructor that
+     *                 receives a UDPServer.Peer.
+     */
+    public UDPServer( Class<? extends ProtocolHandler> protocol )
+    {
+        super( protocol );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Max datagram size used to pack answers (by default 1472 bytes: not
+     * fragmented in an Ethernet network). It has to be invoked before
+     * ::connect(...).
+     *
+     * @param nBytes Max datagram size.
+     */
+    public void setMaxDatagramSize( int nBytes )
+    {
+        nDatagram = Math.max( DatagramBatcher.nHEAD + DatagramBatcher.nMSG_HEAD + 1, Math.min( nBytes, DatagramBatcher.nMAX_SIZE ) );
+    }
+
+    /**
+     * Returns the number of clients currently known.
+     *
+     * @return The number of clients currently known.
+     */
+    public int getPeers()
+    {
+        return peers.size();
+    }
+
+    @Override
+    public void connect( int nPort )
+    {
+        setPort( nPort );
+
+        synchronized( this )
+        {
+            if( receiver == null )
+            {
+                receiver = new Receiver();
+                executor.execute( receiver );
+                fireConnected();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        if( receiver != null )
+        {
+            try
+            {
+                receiver.interrupt();
+
+                for( Peer peer : peers.values() )
+                {
+                    peer.close();
+                }
+
+                executor.shutdown();
+                executor.awaitTermination( 2, TimeUnit.SECONDS );
+            }
+            catch( Exception ex )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                receiver = null;
+
+                try{ executor.shutdownNow(); }
+                catch( Exception e ) { }
+
+                fireDisconnected();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    /**
+     * A client (identified by its address), as seen by its ProtocolHandler.
+     */
+    public static final class Peer
+    {
+        private final    UDPServer                server;
+        private final    SocketAddress            address;
+        private final    int                      nSession;
+        private final    DatagramBatcher          batcher;
+        private final    int[]                    seen     = new int[ nWINDOW ];            // Only used by the Receiver thread
+        private final    Map<Integer,byte[]>      answers;                                  // Recent answers (to answer duplicated requests)
+        private final    Queue<Received>          inbox    = new ConcurrentLinkedQueue<>();
+        private final    AtomicBoolean            isQueued = new AtomicBoolean( false );
+        private final    AtomicInteger            nSeq     = new AtomicInteger( 0 );
+        private volatile ProtocolHandler          handler  = null;
+        private volatile Thread                   drainer  = null;
+        private volatile boolean                  isOpen   = true;
+        private volatile long                     nLastIn  = System.currentTimeMillis();
+
+        private Peer( UDPServer server, DatagramChannel channel, SocketAddress address, int nSession )
+        {
+            this.server   = server;
+            this.address  = address;
+            this.nSession = nSession;
+            this.batcher  = new DatagramBatcher( channel, address, nSession, server.nDatagram );
+            this.answers  = new LinkedHashMap<Integer,byte[]>()
+                                {
+                                    @Override
+                                    protected boolean removeEldestEntry( Map.Entry<Integer,byte[]> eldest )
+                                    {
+                                        return size() > nWINDOW;
+                                    }
+                                };
+        }
+
+        //------------------------------------------------------------------------//
+
+        public SocketAddress getAddress()
+        {
+            return address;
+        }
+
+        public boolean isOpen()
+        {
+            return isOpen;
+        }
+
+        /**
+         * Sends a one way message to this client (encoded using the server
+         * codec or as text).
+         *
+         * @param message What to send (null is ignored).
+         * @throws IOException
+         */
+        public void send( Object message ) throws IOException
+        {
+            if( message != null )
+            {
+                sendRaw( encode( message ) );
+            }
+        }
+
+        /**
+         * Sends passed bytes as a one way message to this client.
+         *
+         * @param payload The bytes to send.
+         * @throws IOException
+         */
+        public void sendRaw( byte[] payload ) throws IOException
+        {
+            post( DatagramBatcher.MSG, nSeq.incrementAndGet(), payload );
+        }
+
+        /**
+         * Forgets this client (its handler is closed). If it sends more
+         * messages, a new handler is created.
+         */
+        public void close()
+        {
+            if( isOpen )
+            {
+                isOpen = false;
+                server.peers.remove( address, this );
+
+                ProtocolHandler ph = handler;
+
+                if( ph != null )
+                {
+                    ph.closeSocket();
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "UDPServer.Peer{address="+ address +", "+ batcher +'}';
+        }
+
+        //------------------------------------------------------------------------//
+
+        /**
+         * Returns true if passed sequence was already received (recently).
+         */
+        private boolean isDuplicated( int nSeq )
+        {
+            int n = nSeq & (nWINDOW - 1);
+
+            if( seen[n] == nSeq )
+            {
+                return true;
+            }
+
+            seen[n] = nSeq;
+            return false;
+        }
+
+        private void post( byte type, int nSeq, byte[] payload ) throws IOException
+        {
+            if( Thread.currentThread() == drainer )
+            {
+                batcher.add( type, nSeq, payload );     // Sent when all received messages were processed
+            }
+            else
+            {
+                batcher.send( type, nSeq, payload );
+            }
+
+            handler.getMetrics().onSent( payload.length + DatagramBatcher.nMSG_HEAD );
+        }
+
+        /**
+         * Processes received messages (one after the other) and sends the
+         * answers (packed).
+         */
+        private void drain()
+        {
+            drainer = Thread.currentThread();
+
+            try
+            {
+                Received in;
+
+                while( (in = inbox.poll()) != null )
+                {
+                    process( in );
+                }
+
+                batcher.flush();
+            }
+            catch( IOException ioe )
+            {
+                handler.getMetrics().onError();
+                UtilDebug.log( Level.WARNING, ioe, "Error sending to: "+ address );
+            }
+            finally
+            {
+                drainer = null;
+                isQueued.set( false );
+            }
+
+            if( ! inbox.isEmpty() && isQueued.compareAndSet( false, true ) )
+            {
+                server.execute( this::drain );
+            }
+        }
+
+        private void process( Received in ) throws IOException
+        {
+            ProtocolHandler ph = handler;
+            Object          msg;
+            Object          answer;
+
+            try
+            {
+                msg = decode( in.payload );
+
+                if( UtilComm.sHEARTBEAT_PING.equals( msg ) )
+                {
+                    post( DatagramBatcher.MSG, nSeq.incrementAndGet(), encode( UtilComm.sHEARTBEAT_PONG ) );
+                    return;
+                }
+
+                long nStart = System.nanoTime();
+
+                answer = ((server.getCodec() == null) ? ph.process( (String) msg ) : ph.processDecoded( msg ));
+
+                ph.getMetrics().onProcessed( System.nanoTime() - nStart );
+            }
+            catch( IOException | RuntimeException exc )      // The client will not have an answer: the request times out
+            {
+                ph.getMetrics().onError();
+                UtilDebug.log( Level.WARNING, exc, "Error processing a message from: "+ address );
+                return;
+            }
+
+            if( in.type == DatagramBatcher.REQ )
+            {
+                byte[] ab = ((answer == null) ? new byte[0] : encode( answer ));    // Empty == null
+
+                synchronized( answers )
+                {
+                    answers.put( in.nSeq, ab );
+                }
+
+                post( DatagramBatcher.RESP, in.nSeq, ab );
+            }
+            else if( answer != null )
+            {
+                post( DatagramBatcher.MSG, nSeq.incrementAndGet(), encode( answer ) );
+            }
+        }
+
+        /**
+         * Sends again the answer of a duplicated request (if it is ready).
+         */
+        private void answerAgain( int nSeq ) throws IOException
+        {
+            byte[] ab;
+
+            synchronized( answers )
+            {
+                ab = answers.get( nSeq );
+            }
+
+            if( ab != null )
+            {
+                batcher.send( DatagramBatcher.RESP, nSeq, ab );
+            }
+        }
+
+        private byte[] encode( Object message ) throws IOException
+        {
+            MessageCodec mc = server.getCodec();
+
+            return ((mc == null) ? message.toString().getBytes( StandardCharsets.UTF_8 ) : mc.encode( message ));
+        }
+
+        private Object decode( byte[] payload ) throws IOException
+        {
+            MessageCodec mc = server.getCodec();
+
+            return ((mc == null) ? new String( payload, StandardCharsets.UTF_8 ) : mc.decode( ByteBuffer.wrap( payload ) ));
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private void execute( Runnable task )
+    {
+        try
+        {
+            executor.execute( task );
+        }
+        catch( java.util.concurrent.RejectedExecutionException ree )
+        {
+            // The server is being closed
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private static final class Received
+    {
+        final byte   type;
+        final int    nSeq;
+        final byte[] payload;
+
+        Received( byte type, int nSeq, byte[] payload )
+        {
+            this.type    = type;
+            this.nSeq    = nSeq;
+            this.payload = payload;
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private final class Receiver extends Thread
+    {
+        private volatile boolean         isRunning = false;
+        private volatile DatagramChannel channel   = null;
+        private final    Constructor<?>  constructor;
+        private final    ByteBuffer      buffer    = ByteBuffer.allocateDirect( DatagramBatcher.nMAX_SIZE );
+        private          long            nSweep    = System.currentTimeMillis();
+
+        //----------------------------------------------------------------------------//
+
+        Receiver()
+        {
+            setName( UDPServer.class.getSimpleName() +"-->"+ getPort() );
+
+            Constructor<?> cons = null;
+
+            try
+            {
+                cons = getProtocolHandler().getConstructor( Peer.class );
+            }
+            catch( NoSuchMethodException | SecurityException exc )
+            {
+                onMyCodeIsBad( exc );
+            }
+
+            constructor = cons;
+
+            try
+            {
+                channel = DatagramChannel.open();
+                channel.setOption( StandardSocketOptions.SO_RCVBUF, 1024 * 1024 );     // Bursts are not lost while handlers are busy
+                channel.bind( new InetSocketAddress( getPort() ) );
+            }
+            catch( IOException ioe )
+            {
+                UtilDebug.log( Level.WARNING, ioe, "Error opening UDP port: "+ getPort() );
+                channel = null;
+            }
+        }
+
+        //----------------------------------------------------------------------------//
+
+        @Override
+        public void interrupt()    // Flow comes here when receiver.interrupt();
+        {
+            super.interrupt();
+
+            isRunning = false;
+            destroy();
+        }
+
+        @Override
+        public void run()
+        {
+            isRunning = (channel != null);      // If null, the error was already logged
+
+            while( isRunning )
+            {
+                try
+                {
+                    buffer.clear();
+
+                    SocketAddress from = channel.receive( buffer );
+
+                    buffer.flip();
+                    onDatagram( from );
+                    sweep();
+                }
+                catch( ClosedChannelException cce )     // Flow comes here when the server is closed.
+                {
+                    isRunning = false;
+                }
+                catch( IOException ioe )
+                {
+                    if( isRunning )     // Invalid datagrams are ignored
+                    {
+                        UtilDebug.log( Level.FINE, ioe, "Invalid datagram" );
+                    }
+                }
+                catch( ReflectiveOperationException | IllegalArgumentException exc )
+                {
+                    onMyCodeIsBad( exc );
+                }
+            }
+
+            destroy();
+        }
+
+        private void onDatagram( SocketAddress from ) throws IOException, ReflectiveOperationException
+        {
+            int  nSession = DatagramBatcher.session( buffer );
+            Peer peer     = peers.get( from );
+
+            if( (peer != null) && (peer.nSession != nSession) )     // The client was restarted
+            {
+                peer.close();
+                peer = null;
+            }
+
+            if( peer == null )
+            {
+                peer = new Peer( UDPServer.this, channel, from, nSession );
+
+                ProtocolHandler protocol = (ProtocolHandler) constructor.newInstance( peer );
+
+                peer.handler = protocol;
+                protocol.attach( UDPServer.this );
+                peers.put( from, peer );
+                fireConnectionAccepted( protocol );
+            }
+
+            Peer target = peer;
+
+            target.nLastIn = System.currentTimeMillis();
+            target.handler.getMetrics().onReceived( buffer.remaining() );
+
+            DatagramBatcher.parse( buffer, (type, nSeq, payload) ->
+                                    {
+                                        if( target.isDuplicated( nSeq ) )
+                                        {
+                                            if( type == DatagramBatcher.REQ )
+                                            {
+                                                target.answerAgain( nSeq );
+                                            }
+                                        }
+                                        else if( type == DatagramBatcher.MSG || type == DatagramBatcher.REQ )
+                                        {
+                                            byte[] ab = new byte[ payload.remaining() ];
+
+                                            payload.get( ab );
+                                            target.inbox.add( new Received( type, nSeq, ab ) );
+                                        }
+                                    } );
+
+            if( ! target.inbox.isEmpty() && target.isQueued.compareAndSet( false, true ) )
+            {
+                execute( target::drain );
+            }
+        }
+
+        /**
+         * Forgets the clients that are idle (checked once per second at most).
+         */
+        private void sweep()
+        {
+            long now = System.currentTimeMillis();
+
+            if( now - nSweep < 1000 )
+            {
+                return;
+            }
+
+            long nIdle = ((getIdleTimeout() > 0) ? getIdleTimeout() : 10 * 60 * 1000);
+
+            nSweep = now;
+
+            for( Peer peer : peers.values() )
+            {
+                if( now - peer.nLastIn > nIdle )
+                {
+                    peer.close();
+                }
+            }
+        }
+
+        private void destroy()
+        {
+            DatagramChannel dc = channel;
+
+            if( dc != null )
+            {
+                try
+                {
+                    dc.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Nothing to do
+                }
+            }
+        }
+
+        private void onMyCodeIsBad( Exception exc )
+        {
+            UtilDebug.log( Level.SEVERE, exc, "The Java code is not written properly: "+
+                                              "ProtocolHandler class can not be instantiated (a constructor receiving a UDPServer.Peer is needed)." );
+            System.exit( 1 );
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.comm.server;
+
+import com.peyrona.commons.util.UtilDebug;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A multithreaded and thread safe server that uses Unix domain sockets (a file
+ * path instead of a port): only processes running in the same host can
+ * connect, but with lower latency and higher throughput than TCP over loopback.
+ * <p>
+ * It works the same way as TCPServerClassic: when a connection comes, the
+ * channel is passed to an instance that extends ProtocolHandler (which must
+ * have a constructor that receives a SocketChannel). Same listeners, metrics
+ * and codecs can be used; TLS and idle timeout are not used.
+ * <p>
+ * The socket file is created by ::connect(...) (an old one is deleted) and
+ * deleted by ::disconnect().
+ *
+ * @author peyrona
+ */
+public final class UnixSocketServer extends TCPServerAbstract
+{
+    private final Path            path;
+    private       Accepter        accepter = null;   // Running in background to accept connections
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a new instance.
+     *
+     * @param protocol A ProtocolHandler subclass having a constructor that
+     *                 receives a SocketChannel.
+     * @param path The socket file.
+     */
+    public UnixSocketServer( Class<? extends ProtocolHandler> protocol, Path path )
+    {
+        super( protocol );
+
+        this.path = path;
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Starts accepting connections.
+     *
+     * @param nPort Ignored: the path passed to the constructor is used.
+     */
+    @Override
+    public void connect( int nPort )
+    {
+        synchronized( this )
+        {
+            if( accepter == null )
+            {
+                accepter = new Accepter();
+                executor.execute( accepter );
+                fireConnected();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void disconnect()
+    {
+        if( accepter != null )
+        {
+            try
+            {
+                accepter.interrupt();
+                executor.shutdown();
+                executor.awaitTermination( 2, TimeUnit.SECONDS );
+            }
+            catch( Exception ex )
+            {
+                // Nothing to do
+            }
+            finally
+            {
+                accepter = null;
+
+                try{ executor.shutdownNow(); }
+                catch( Exception e ) { }
+
+                fireDisconnected();
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------//
+    // INNER CLASS
+    //----------------------------------------------------------------------------//
+    private class Accepter extends Thread
+    {
+        private volatile boolean                                isRunning   = false;
+        private volatile ServerSocketChannel                    server      = null;
+        private final    Map<SocketChannel,ProtocolHandler>     connections = new ConcurrentHashMap<>();
+        private final    Constructor<?>                         constructor;
+
+        //----------------------------------------------------------------------------//
+
+        Accepter()
+        {
+            setName( UnixSocketServer.class.getSimpleName() +"-->"+ path );
+
+            Constructor<?> cons = null;
+
+            try
+            {
+                cons = getProtocolHandler().getConstructor( SocketChannel.class );
+            }
+            catch( NoSuchMethodException | SecurityException exc )
+            {
+                onMyCodeIsBad( exc );
+            }
+
+            constructor = cons;
+            createServer();
+        }
+
+        //----------------------------------------------------------------------------//
+
+        @Override
+        public void interrupt()    // Flow comes here when accepter.interrupt();
+        {
+            super.interrupt();
+
+            isRunning = false;
+            destroyServer();       // Not accepting more connections
+            destroyConnections();
+        }
+
+        @Override
+        public void run()
+        {
+            isRunning = true;
+
+            while( isRunning )
+            {
+                if( server == null )      // Could not be created: the error was already logged
+                {
+                    break;
+                }
+
+                try
+                {
+                    SocketChannel   client   = server.accept();
+                    ProtocolHandler protocol = (ProtocolHandler) constructor.newInstance( client );
+
+                    connections.put( client, protocol );
+                    protocol.attach( UnixSocketServer.this );
+                    executor.execute( () -> { try     { protocol.run();               }
+                                              finally { connections.remove( client ); } } );
+                    fireConnectionAccepted( protocol );
+                }
+                catch( ClosedChannelException cce )     // Flow comes here when the server is closed.
+                {
+                    isRunning = false;
+                }
+                catch( IOException ioe )
+                {
+                    if( isRunning )
+                    {
+                        UtilDebug.log( Level.WARNING, ioe, "Error accepting an incoming connection on: "+ path );
+                        destroyServer();
+                        createServer();
+                    }
+                }
+                catch( InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException exc )
+                {
+                    onMyCodeIsBad( exc );
+                }
+            }
+
+            destroyServer();
+            destroyConnections();
+        }
+
+        private void destroyConnections()
+        {
+            for( ProtocolHandler ph : connections.values() )
+            {
+                try
+                {
+                    ph.interrupt();
+                }
+                catch( Exception exc )
+                {
+                    // Nothing to do
+                }
+            }
+
+            connections.clear();
+        }
+
+        private void createServer()
+        {
+            if( server == null )
+            {
+                ServerSocketChannel ssc = null;
+
+                try
+                {
+                    Files.deleteIfExists( path );     // Left by a previous run that was not properly closed
+
+                    ssc = ServerSocketChannel.open( StandardProtocolFamily.UNIX );
+                    ssc.bind( UnixDomainSocketAddress.of( path ) );
+                    server = ssc;
+                }
+                catch( IOException ioe )
+                {
+                    if( ssc != null )
+                    {
+                        try{ ssc.close(); }
+                        catch( IOException e ) { }
+                    }
+
+                    server = null;
+                    UtilDebug.log( Level.WARNING, ioe, "Error creating a new Unix domain server socket: "+ path );
+                }
+            }
+        }
+
+        private void destroyServer()
+        {
+            if( server != null )
+            {
+                try
+                {
+                    server.close();
+                    Files.deleteIfExists( path );
+                }
+                catch( IOException ioe )
+                {
+                    // Nothing to do
+                }
+                finally
+                {
+                    server = null;
+                }
+            }
+        }
+
+        private void onMyCodeIsBad( Exception exc )
+        {
+            UtilDebug.log( Level.SEVERE, exc, "The Java code is not written properly: "+
+                                              "ProtocolHandler class can not be instantiated (a constructor receiving a SocketChannel is needed)." );
+            System.exit( 1 );
+        }
+    }
+}
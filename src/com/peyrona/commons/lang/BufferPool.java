@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.lang;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of heap ByteBuffers, all of them with the same capacity.
+ * <p>
+ * Buffers are acquired for a (relatively) long time (e.g. the life of a
+ * connection) and released when not needed anymore, so connections that are
+ * opened and closed very often do not allocate a new buffer every time.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author peyrona
+ */
+public final class BufferPool
+{
+    private static final Map<Integer,BufferPool> shared = new ConcurrentHashMap<>();
+
+    private final int               nCapacity;
+    private final int               nMaxPooled;
+    private final Queue<ByteBuffer> pool    = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger     nPooled = new AtomicInteger( 0 );
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Returns a pool (shared by all callers) for buffers of passed capacity.
+     *
+     * @param nCapacity Buffers capacity.
+     * @return A pool (shared by all callers) for buffers of passed capacity.
+     */
+    public static BufferPool of( int nCapacity )
+    {
+        return shared.computeIfAbsent( nCapacity, n -> new BufferPool( n, 256 ) );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Creates a new pool.
+     *
+     * @param nCapacity Buffers capacity.
+     * @param nMaxPooled Max number of idle buffers kept by the pool.
+     */
+    public BufferPool( int nCapacity, int nMaxPooled )
+    {
+        if( nCapacity < 1 )
+        {
+            throw new IllegalArgumentException( "Invalid capacity: "+ nCapacity );
+        }
+
+        this.nCapacity  = nCapacity;
+        this.nMaxPooled = Math.max( 0, nMaxPooled );
+    }
+
+    //----------------------------------------------------------------------------//
+
+    public int getCapacity()
+    {
+        return nCapacity;
+    }
+
+    /**
+     * Returns a cleared buffer: a pooled one or a new one if the pool is empty.
+     *
+     * @return A cleared buffer.
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = pool.poll();
+
+        if( buffer == null )
+        {
+            return ByteBuffer.allocate( nCapacity );
+        }
+
+        nPooled.decrementAndGet();
+
+        return buffer.clear();
+    }
+
+    /**
+     * Returns passed buffer to the pool: it must not be used after this.
+     *
+     * @param buffer The buffer to return (null and buffers of a different
+     *               capacity are ignored).
+     */
+    public void release( ByteBuffer buffer )
+    {
+        if( (buffer == null) || (buffer.capacity() != nCapacity) || buffer.isReadOnly() )
+        {
+            return;
+        }
+
+        if( nPooled.incrementAndGet() <= nMaxPooled )
+        {
+            pool.add( buffer );
+        }
+        else
+        {
+            nPooled.decrementAndGet();     // Pool is full: the buffer is left to the GC
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Francisco José Morero Peyrona. All Rights Reserved.
+ *
+ * GNU Classpath is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the free
+ * Software Foundation; either version 3, or (at your option) any later version.
+ *
+ * This app is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this software; see the file COPYING.  If not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.peyrona.commons.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, fixed size histogram to record latencies (in nanoseconds).
+ * <p>
+ * Values are stored in logarithmic buckets: every power of two is split in 16
+ * linear sub-buckets, so the reported percentiles have a relative error lower
+ * than 6.25%. Values bigger than 2^40 nanos (aprox. 18 minutes) are stored in
+ * the last bucket.
+ * <p>
+ * Recording is cheap (one atomic increment plus two adders), therefore it can
+ * be left always on. All methods can be invoked from any thread.
+ *
+ * @author peyrona
+ */
+public final class LatencyHistogram
+{
+    private static final int nSUB_BITS = 4;
+    private static final int nSUB      = 1 << nSUB_BITS;       // Sub-buckets per power of two
+    private static final int nMAX_EXP  = 40;                   // 2^40 nanos == aprox 18 minutes
+    private static final int nBUCKETS  = nSUB + ((nMAX_EXP - nSUB_BITS + 1) * nSUB);
+
+    private final AtomicLongArray counts = new AtomicLongArray( nBUCKETS );
+    private final LongAdder       count  = new LongAdder();
+    private final LongAdder       sum    = new LongAdder();
+    private final AtomicLong      max    = new AtomicLong();
+
+    //----------------------------------------------------------------------------//
+
+    /**
+     * Records a new value.
+     *
+     * @param nanos The value to record (negative values are recorded as zero).
+     */
+    public void record( long nanos )
+    {
+        nanos = Math.max( 0, nanos );
+
+        counts.incrementAndGet( index( nanos ) );
+        count.increment();
+        sum.add( nanos );
+
+        long current = max.get();
+
+        while( (nanos > current) && (! max.compareAndSet( current, nanos )) )
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The number of recorded values.
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * Returns the biggest recorded value (exact, not bucketed).
+     *
+     * @return The biggest recorded value.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the arithmetic mean of all recorded values.
+     *
+     * @return The arithmetic mean of all recorded values or 0 if empty.
+     */
+    public double getMean()
+    {
+        long n = count.sum();
+
+        return ((n == 0) ? 0d : ((double) sum.sum() / n));
+    }
+
+    /**
+     * Returns the value that is greater or equal than the passed percentage of
+     * all recorded values.
+     *
+     * @param percentile A number between 0 and 100 (p.e.: 99.9).
+     * @return The value for passed percentile or 0 if empty.
+     */
+    public long getPercentile( double percentile )
+    {
+        long[] snap  = new long[ nBUCKETS ];
+        long   total = 0;
+
+        for( int n = 0; n < nBUCKETS; n++ )
+        {
+            snap[n] = counts.get( n );
+            total  += snap[n];
+        }
+
+        if( total == 0 )
+        {
+            return 0;
+        }
+
+        long target = (long) Math.ceil( (Math.min( 100d, Math.max( 0d, percentile ) ) / 100d) * total );
+        long seen   = 0;
+
+        target = Math.max( 1, target );
+
+        for( int n = 0; n < nBUCKETS; n++ )
+        {
+            seen += snap[n];
+
+            if( seen >= target )
+            {
+                return Math.min( value( n ), max.get() );
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Removes all recorded values.
+     * <p>
+     * Note: values recorded concurrently while resetting could be partially lost.
+     */
+    public void reset()
+    {
+        for( int n = 0; n < nBUCKETS; n++ )
+        {
+            counts.set( n, 0 );
+        }
+
+        count.reset();
+        sum.reset();
+        max.set( 0 );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count="+ getCount()              +", "+
+               "mean=" + (long) getMean()         +", "+
+               "p50="  + getPercentile( 50d )     +", "+
+               "p99="  + getPercentile( 99d )     +", "+
+               "p999=" + getPercentile( 99.9d )   +", "+
+               "max="  + getMax();
+    }
+
+    //----------------------------------------------------------------------------//
+
+    private static int index( long value )
+    {
+        if( value < nSUB )
+        {
+            return (int) value;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros( value );      // Position of the most significant bit (>= nSUB_BITS)
+
+        if( exp > nMAX_EXP )
+        {
+            return nBUCKETS - 1;
+        }
+
+        int sub = (int) (value >>> (exp - nSUB_BITS)) - nSUB;  // 0 to nSUB - 1
+
+        return nSUB + ((exp - nSUB_BITS) * nSUB) + sub;
+    }
+
+    private static long value( int index )      // Highest value that falls into the bucket
+    {
+        if( index < nSUB )
+        {
+            return index;
+        }
+
+        int shift = (index - nSUB) / nSUB;
+        int sub   = (index - nSUB) % nSUB;
+
+        return ((long) (nSUB + sub + 1) << shift) - 1;
+    }
+}
@@ -55,6 +55,15 @@ public class UtilComm
     public static final int UDP_PORT_MAX         = 0xFFFF;
     public static final int PORT_MIN_RECOMMENDED = 49152;
 
+    /** Separates the correlation id from the message in correlated requests: ASCII "Record Separator" (it survives any charset) */
+    public static final char cID_SEPARATOR = '\u001E';
+
+    /** Heartbeat request line: ASCII "Enquiry" */
+    public static final String sHEARTBEAT_PING = "\u0005";
+
+    /** Heartbeat answer line: ASCII "Acknowledge" */
+    public static final String sHEARTBEAT_PONG = "\u0006";
+
     private static final AtomicInteger nLastUsedValidPort = new AtomicInteger( PORT_MIN_RECOMMENDED );
 
     //------------------------------------------------------------------------//